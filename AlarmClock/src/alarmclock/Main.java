@@ -1,12 +1,33 @@
 package alarmclock;
 
 import alarmclock.ServiceImplementations.*;
+import alarmclock.models.RecurringAlarm;
+import alarmclock.models.SetAlarm;
+import alarmclock.services.AlarmListener;
+import alarmclock.services.AlarmStarter;
 import alarmclock.services.PropertiesLoader;
 import alarmclock.view.MainFrame;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * This class is only used as the main entry point into the program.  It contains
  * the main method which initializes the program and sets it running.
+ * <p/>
+ * Out of the box the alarms are kept by a TimerAlarmStarter and written to a
+ * journal.  The other AlarmStarters are switched on with system properties:
+ * <ul>
+ * <li>-Dalarmclock.starter=wheel uses a TimingWheelAlarmStarter instead of the Timer</li>
+ * <li>-Dalarmclock.overload=policy picks the dispatcher's OverloadPolicy, BLOCK by default</li>
+ * <li>-Dalarmclock.metrics=true logs how late alarms went off when the program exits</li>
+ * <li>-Dalarmclock.tiered=true allows alarms more than 31 days away</li>
+ * <li>-Dalarmclock.index=true shows the next alarm when the mouse is over the clock</li>
+ * <li>-Dalarmclock.catchup=policy picks a CatchUpPolicy for alarms missed during sleep</li>
+ * <li>-Dalarmclock.audit=true writes every alarm event to the audit log</li>
+ * </ul>
  * @author Gordon
  */
 public class Main {
@@ -28,9 +49,128 @@ public class Main {
         favoritesService.setPropertiesLoader(localPropsLoader);
         mf.setFavoritesService(favoritesService);
         
-        mf.setAlarmStarter(new TimerAlarmStarter());
+        //Alarms are run by a couple of worker threads, so a slow program
+        //doesn't hold up the others.  If too many go off at once, the clock
+        //waits for room instead of dropping any.  A policy which drops alarms
+        //has to be asked for, like -Dalarmclock.overload=COALESCE_BY_PATH
+        BoundedAlarmDispatcher dispatcher = new BoundedAlarmDispatcher(2, 64,
+                BoundedAlarmDispatcher.OverloadPolicy.valueOf(
+                        System.getProperty("alarmclock.overload", "BLOCK")));
+
+        //The alarms are kept by the TimerAlarmStarter, and the journal writes
+        //them down.  Everything else is extra, and is only put in when it's
+        //asked for with a system property, like -Dalarmclock.metrics=true.
+        AlarmStarter starter;
+        if("wheel".equals(System.getProperty("alarmclock.starter"))){
+            //The TimingWheelAlarmStarter keeps alarms on time even if the wall
+            //clock jumps, like after the computer wakes up from sleep.
+            TimingWheelAlarmStarter wheelStarter = new TimingWheelAlarmStarter(20);
+            wheelStarter.setDispatcher(dispatcher);
+            starter = wheelStarter;
+        }else{
+            TimerAlarmStarter timerStarter = new TimerAlarmStarter();
+            timerStarter.setDispatcher(dispatcher);
+            starter = timerStarter;
+        }
+
+        if(Boolean.getBoolean("alarmclock.metrics")){
+            //The MetricsAlarmStarter measures how late alarms go off, and
+            //writes it to the log when the program exits.
+            final MetricsAlarmStarter metrics = new MetricsAlarmStarter(starter);
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable(){
+                @Override
+                public void run() {
+                    Logger.getLogger(Main.class.getName()).log(Level.INFO,
+                            "Alarm metrics: {0}", metrics.snapshot());
+                }
+            }));
+            starter = metrics;
+        }
+
+        if(Boolean.getBoolean("alarmclock.tiered")){
+            //The TieredAlarmStarter keeps alarms more than a day away out of
+            //the active AlarmStarter, so they can be set as far in the future
+            //as we like.
+            starter = new TieredAlarmStarter(starter);
+        }
+
+        IndexedAlarmStarter indexed = null;
+        if(Boolean.getBoolean("alarmclock.index")){
+            //The IndexedAlarmStarter keeps all the pending alarms sorted by
+            //time, so the MainFrame can ask which ones are coming up next.
+            indexed = new IndexedAlarmStarter(starter);
+            mf.setAlarmQueryService(indexed);
+            starter = indexed;
+        }
+
+        String catchUpPolicy = System.getProperty("alarmclock.catchup");
+        if(catchUpPolicy != null){
+            //The CatchUpAlarmStarter holds back alarms that were missed while
+            //the computer was asleep, and after it wakes up runs them
+            //according to the policy, like LATEST_PER_PATH, a few a second.
+            //It goes below the journal and the publisher, so an alarm it
+            //skips isn't written down or published as having gone off.
+            CatchUpAlarmStarter catchUp = new CatchUpAlarmStarter(starter,
+                    CatchUpAlarmStarter.CatchUpPolicy.valueOf(catchUpPolicy));
+            //The MainFrame cancels the alarms it skips, so the journal and the
+            //audit log see them as cancelled.
+            catchUp.setSkippedListener(new AlarmListener(){
+                @Override
+                public void alarmFinished(SetAlarm alarm) {
+                    mf.onAlarmSkipped(alarm);
+                }
+            });
+            starter = catchUp;
+        }
+
+        //The JournalingAlarmStarter writes every alarm to a file as it's set,
+        //so we can set them all again the next time the program starts.
+        final JournalingAlarmStarter alarmStarter = new JournalingAlarmStarter(
+                starter,
+                new AlarmJournal(new File("AlarmJournal.dat")));
+        //Cancels and firings aren't waited for, so when the program exits
+        //the journal has to write out whatever it still has.
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable(){
+            @Override
+            public void run() {
+                alarmStarter.shutdown();
+            }
+        }));
+        starter = alarmStarter;
+
+        if(Boolean.getBoolean("alarmclock.audit")){
+            //The PublishingAlarmStarter sends out an event whenever an alarm
+            //is set, goes off or is cancelled, which the audit log subscribes to.
+            PublishingAlarmStarter publishing = new PublishingAlarmStarter(starter);
+            publishing.subscribe(new AuditLogSubscriber());
+            starter = publishing;
+        }
+        mf.setAlarmStarter(starter);
+
+        //The MainFrame hears about alarms the dispatcher dropped, and they
+        //come out of the index since their callback never runs.
+        final IndexedAlarmStarter droppedIndex = indexed;
+        dispatcher.setOverloadListener(new AlarmListener(){
+            @Override
+            public void alarmFinished(SetAlarm alarm) {
+                if(droppedIndex != null)
+                    droppedIndex.forget(alarm);
+                mf.onAlarmDropped(alarm);
+            }
+        });
         mf.setProcessStarter(new RealProcessStarter());
 
+        List<SetAlarm> restored;
+        try {
+            restored = alarmStarter.recover();
+        } catch (IOException ex) {
+            Logger.getLogger(Main.class.getName()).log(Level.SEVERE,
+                    "Could not read the alarm journal, previous alarms are lost", ex);
+            restored = java.util.Collections.emptyList();
+        }
+        final List<SetAlarm> toRestore = restored;
+        final List<RecurringAlarm> recurringToRestore = alarmStarter.getRecoveredRecurringAlarms();
+
         //This is just how you start a Swing frame
         java.awt.EventQueue.invokeLater(new Runnable() {
 
@@ -38,6 +178,9 @@ public class Main {
             public void run() {
                 //call the initialize method
                 mf.init();
+                //set any alarms that were pending when we last closed
+                mf.restoreAlarms(toRestore);
+                mf.restoreRecurringAlarms(recurringToRestore);
                 //set the frame to visible
                 mf.setVisible(true);
             }
@@ -0,0 +1,267 @@
+package alarmclock.ServiceImplementations;
+
+import alarmclock.models.SetAlarm;
+import alarmclock.services.AlarmListener;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class runs the whenFinished callbacks of alarms once an AlarmStarter
+ * has decided that they are due.
+ * <p/>
+ * Deciding that an alarm is due and running its callback are two separate
+ * jobs.  If the thread that watches the clock also runs the callbacks, then a
+ * callback that takes a few seconds (like starting a process) makes every other
+ * alarm late, and a callback that throws an exception can kill the thread,
+ * which for a java.util.Timer means no alarm will ever go off again.  The
+ * AlarmStarters hand their due alarms to an AlarmDispatcher, which can run the
+ * callbacks on a pool of worker threads, and which always catches and logs
+ * anything a callback throws so it can't hurt the other alarms.
+ * <p/>
+ * The default dispatcher runs callbacks inline on the clock thread, which is
+ * how the AlarmStarters have always worked.
+ *
+ * This class Does Something.
+ * @author Gordon
+ */
+public class AlarmDispatcher {
+
+    /** The executor which runs the callbacks, or null to run them inline. */
+    private final Executor executor;
+
+    private final AtomicLong failedCallbacks = new AtomicLong();
+
+    /**
+     * When the alarm whose callback is running on this thread was handed to
+     * its dispatcher.  See {@link #firedMillis()}.
+     */
+    private static final ThreadLocal<Long> FIRED_MILLIS = new ThreadLocal<Long>();
+
+    /**
+     * Creates a dispatcher which runs callbacks inline on the thread which
+     * decided the alarm was due.
+     */
+    public AlarmDispatcher(){
+        this(null);
+    }
+
+    /**
+     * Creates a dispatcher which runs callbacks on the given executor.
+     * @param executor the executor for the callbacks, or null to run them inline.
+     */
+    public AlarmDispatcher(Executor executor){
+        this.executor = executor;
+    }
+
+    /**
+     * Creates a dispatcher which runs callbacks on a fixed size pool of daemon
+     * worker threads.
+     * @param threads the number of worker threads
+     * @return the new dispatcher
+     */
+    public static AlarmDispatcher withWorkerPool(int threads){
+        if(threads <= 0)
+            throw new IllegalArgumentException("threads must be positive");
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads,
+                daemonThreadFactory("AlarmDispatcher"));
+        return new AlarmDispatcher(pool);
+    }
+
+    /**
+     * Creates a dispatcher which starts a brand new thread for every alarm that
+     * goes off.  Alarm callbacks spend most of their time blocked, starting a
+     * process or waiting on the Swing event queue, so when thousands of alarms
+     * go off in the same second we don't want them waiting in line for a few
+     * pool threads.
+     * <p/>
+     * When the JVM supports virtual threads (Java 21 and up) each callback gets
+     * its own virtual thread, which costs about as much as a small object and
+     * lets a blocked callback give up its carrier thread.  On older JVMs we
+     * fall back to ordinary daemon threads.
+     * @return the new dispatcher
+     */
+    public static AlarmDispatcher threadPerFiring(){
+        ThreadFactory factory = virtualThreadFactory("AlarmFiring-");
+        if(factory == null)
+            factory = daemonThreadFactory("AlarmFiring");
+
+        return threadPerFiring(factory);
+    }
+
+    /**
+     * Creates a dispatcher which asks the given ThreadFactory for a new thread
+     * for every alarm that goes off.
+     * @param factory the factory which makes the firing threads
+     * @return the new dispatcher
+     */
+    public static AlarmDispatcher threadPerFiring(final ThreadFactory factory){
+        return new AlarmDispatcher(new Executor(){
+            @Override
+            public void execute(Runnable command) {
+                factory.newThread(command).start();
+            }
+        });
+    }
+
+    /**
+     * Looks up the virtual thread factory using reflection, because this
+     * project still compiles for Java 6.  This is the same as calling
+     * {@code Thread.ofVirtual().name(prefix, 1).factory()}.
+     * @return the virtual ThreadFactory, or null if this JVM doesn't have them.
+     */
+    static ThreadFactory virtualThreadFactory(String prefix){
+        try{
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class)
+                    .invoke(builder, prefix, 1L);
+            return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+        }catch(Exception ex){
+            //No virtual threads here, either because the method doesn't exist
+            //or because they are a disabled preview feature.
+            return null;
+        }
+    }
+
+    /**
+     * Makes a ThreadFactory which creates daemon threads named
+     * "prefix-1", "prefix-2" and so on.
+     */
+    static ThreadFactory daemonThreadFactory(final String prefix){
+        return new ThreadFactory(){
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Makes a callback which tells the given listener that the given alarm
+     * went off.  This is how the batch methods of the AlarmStarters turn their
+     * one shared AlarmListener into a callback for each alarm.
+     */
+    static Runnable notifying(final AlarmListener listener, final SetAlarm alarm){
+        return new Runnable(){
+            @Override
+            public void run() {
+                listener.alarmFinished(alarm);
+            }
+        };
+    }
+
+    /**
+     * Runs the callback for an alarm which has come due.  This never throws,
+     * even if the callback does.
+     * @param alarm the alarm which came due
+     * @param whenFinished the callback which was given with the alarm
+     */
+    public void dispatch(SetAlarm alarm, Runnable whenFinished){
+        this.dispatch(alarm, whenFinished, System.currentTimeMillis());
+    }
+
+    /**
+     * Runs the callbacks for a group of alarms which came due together, like
+     * the alarms in one coalescing window or on one tick of a timing wheel.
+     * Only the wakeup is shared: each callback is still handed to the
+     * executor on its own, so on a worker pool or with a thread per firing
+     * one slow callback doesn't hold up the others in its group.  This never
+     * throws, even if the callbacks do.
+     * @param alarms the alarms which came due
+     * @param callbacks the callback for each alarm, in the same order
+     */
+    public void dispatchAll(List<SetAlarm> alarms, List<Runnable> callbacks){
+        long firedMillis = System.currentTimeMillis();
+        for(int i = 0; i < alarms.size(); i++){
+            this.dispatch(alarms.get(i), callbacks.get(i), firedMillis);
+        }
+    }
+
+    /**
+     * Hands one callback to the executor, or runs it inline if there isn't
+     * one.
+     * @param firedMillis when the alarm came due
+     */
+    private void dispatch(final SetAlarm alarm, final Runnable whenFinished, final long firedMillis){
+        Runnable task = new Runnable(){
+            @Override
+            public void run() {
+                AlarmDispatcher.this.runCallback(alarm, whenFinished, firedMillis);
+            }
+        };
+
+        if(executor == null){
+            task.run();
+            return;
+        }
+
+        try{
+            executor.execute(task);
+        }catch(RejectedExecutionException ex){
+            failedCallbacks.incrementAndGet();
+            Logger.getLogger(AlarmDispatcher.class.getName()).log(Level.SEVERE,
+                    "Could not dispatch alarm for " + alarm.getPath(), ex);
+        }
+    }
+
+    /**
+     * Runs a single callback, catching and logging anything it throws.
+     */
+    protected void runCallback(SetAlarm alarm, Runnable whenFinished){
+        this.runCallback(alarm, whenFinished, System.currentTimeMillis());
+    }
+
+    /**
+     * Runs a single callback, catching and logging anything it throws.
+     * While it runs, {@link #firedMillis()} returns the given time.
+     * @param firedMillis when the alarm was handed to the dispatcher
+     */
+    protected void runCallback(SetAlarm alarm, Runnable whenFinished, long firedMillis){
+        Long outer = FIRED_MILLIS.get();
+        FIRED_MILLIS.set(firedMillis);
+        try{
+            whenFinished.run();
+        }catch(Throwable ex){
+            //log it and move on, one broken alarm shouldn't stop the others
+            failedCallbacks.incrementAndGet();
+            Logger.getLogger(AlarmDispatcher.class.getName()).log(Level.SEVERE,
+                    "Alarm for " + alarm.getPath() + " failed", ex);
+        }finally{
+            FIRED_MILLIS.set(outer);
+        }
+    }
+
+    /**
+     * Tells a callback when its alarm actually went off, that is when the
+     * AlarmStarter found it due and handed it to its dispatcher.  A callback
+     * can run a good while after that if it waited in a queue behind other
+     * alarms, and that wait shouldn't make the alarm look late.
+     * @return when the alarm whose callback is running on this thread was
+     * dispatched, or the current time if this isn't a dispatched callback.
+     */
+    public static long firedMillis(){
+        Long fired = FIRED_MILLIS.get();
+        return fired != null ? fired : System.currentTimeMillis();
+    }
+
+    /**
+     * @return the number of callbacks which have thrown an exception or could
+     * not be handed to the executor.
+     */
+    public long getFailedCallbackCount(){
+        return failedCallbacks.get();
+    }
+}
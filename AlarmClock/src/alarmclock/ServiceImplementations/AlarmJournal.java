@@ -0,0 +1,493 @@
+package alarmclock.ServiceImplementations;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class is a write-ahead journal of alarms.  Every time an alarm is
+ * scheduled, cancelled or fired, a record is added to the end of a file.  When
+ * the program starts back up it reads the file from start to finish, and
+ * whatever alarms were scheduled but never cancelled or fired are still pending.
+ * <p/>
+ * Writing to the end of a file is fast, but making sure the bytes have actually
+ * reached the disk (an "fsync", which FileChannel calls force) is slow, on the
+ * order of milliseconds.  So records are not written by the thread that adds
+ * them.  Instead one writer thread collects everything that was added while it
+ * was busy and writes and forces it all at once.  This is called group commit:
+ * a hundred alarms set at the same moment cost one fsync instead of a hundred.
+ * <p/>
+ * Left alone the file would grow forever, so once it holds many more records
+ * than there are pending alarms, the writer rewrites it with just the pending
+ * ones.  This is called compaction.  The writer only holds the lock long
+ * enough to copy the pending alarms, so alarms can still be added while it
+ * writes and forces the new file.  They're written after it as usual.
+ *
+ * This class Does Something.
+ * @author Gordon
+ */
+public class AlarmJournal {
+
+    /**
+     * Don't bother compacting until there are at least this many records,
+     * no matter how few alarms are pending.
+     */
+    public static final int DEFAULT_MIN_COMPACTION_RECORDS = 10000;
+
+    private final File file;
+    private final File compactFile;
+    private final File backupFile;
+
+    /*
+     * Everything below is guarded by the lock.
+     */
+    private final Object lock = new Object();
+
+    /** The records added since the writer last took a batch, already serialized. */
+    private ByteArrayOutputStream pendingBytes = new ByteArrayOutputStream();
+    private DataOutputStream pendingOut = new DataOutputStream(pendingBytes);
+
+    /** The sequence number of the last record added, and the last one on disk. */
+    private long appendedSeq = 0;
+    private long durableSeq = 0;
+
+    /** If the writer thread failed, this is why. */
+    private IOException writeFailure;
+
+    /**
+     * The alarms which are scheduled and have not been cancelled or fired yet,
+     * by id.  We keep this up to date as records are added, so that compaction is just
+     * writing out this map.
+     */
+    private final Map<Long, AlarmJournalRecord> live = new java.util.LinkedHashMap<Long, AlarmJournalRecord>();
+
+    /** The number of records in the file, counting the pending ones. */
+    private long recordCount = 0;
+
+    private int minCompactionRecords = DEFAULT_MIN_COMPACTION_RECORDS;
+
+    /**
+     * The journal file.  This isn't guarded by the lock, since compaction
+     * swaps it without holding the lock.  open() uses it before the writer
+     * thread starts, then only the writer thread does, then close() once the
+     * writer has stopped.
+     */
+    private FileChannel channel;
+    private Thread writerThread;
+    private boolean closed = false;
+
+    /**
+     * Creates a journal which will keep its records in the given file.  Nothing
+     * is read or written until {@link #open()} is called.
+     * @param file the journal file
+     */
+    public AlarmJournal(File file){
+        this.file = file;
+        this.compactFile = new File(file.getPath() + ".compact");
+        this.backupFile = new File(file.getPath() + ".old");
+    }
+
+    /**
+     * Sets how many records the journal must hold before it will be compacted.
+     * It will also only be compacted once it holds more than twice as many
+     * records as there are pending alarms.
+     */
+    public void setMinCompactionRecords(int minCompactionRecords){
+        synchronized(lock){
+            this.minCompactionRecords = minCompactionRecords;
+        }
+    }
+
+    /**
+     * Opens the journal.  This replays the whole file to find the pending
+     * alarms, compacts it down to just those, and starts the writer thread.
+     * @return a SCHEDULED or RECURRING record for every alarm which is still
+     * pending, in the order they were scheduled.
+     * @throws IOException if the journal file couldn't be read or written.
+     */
+    public List<AlarmJournalRecord> open() throws IOException {
+        synchronized(lock){
+            if(channel != null || closed)
+                throw new IllegalStateException("Journal was already opened");
+
+            //If we crashed in the middle of compacting, the old journal will
+            //still be sitting in the backup file.
+            if(!file.exists() && backupFile.exists()){
+                if(!backupFile.renameTo(file))
+                    throw new IOException("Could not restore " + backupFile);
+            }
+
+            this.replay();
+
+            //Start over with a compact file, so that a journal full of records
+            //from last time doesn't keep growing.
+            this.writeCompacted(new ArrayList<AlarmJournalRecord>(live.values()));
+            recordCount = live.size();
+
+            writerThread = new Thread(new Runnable(){
+                @Override
+                public void run() {
+                    AlarmJournal.this.runWriter();
+                }
+            }, "AlarmJournal");
+            writerThread.setDaemon(true);
+            writerThread.start();
+
+            return new ArrayList<AlarmJournalRecord>(live.values());
+        }
+    }
+
+    /**
+     * Adds a record to the journal.  This returns right away, before the record
+     * is on disk.  Use {@link #awaitDurable(long)} to wait until it is.
+     * @param record the record to add
+     * @return the sequence number of the record
+     * @throws IllegalStateException if the journal isn't open.
+     */
+    public long append(AlarmJournalRecord record){
+        synchronized(lock){
+            return this.add(record);
+        }
+    }
+
+    /**
+     * Adds a SCHEDULED or RECURRING record, unless its alarm is already
+     * pending.  This lets the JournalingAlarmStarter tell an alarm it is
+     * setting for the first time from one which is already set.
+     * @param record the record to add
+     * @return the sequence number of the record, or 0 if the alarm was
+     * already pending and nothing was added
+     * @throws IllegalStateException if the journal isn't open.
+     */
+    public long appendIfAbsent(AlarmJournalRecord record){
+        synchronized(lock){
+            if(live.containsKey(record.getAlarmId()))
+                return 0;
+            return this.add(record);
+        }
+    }
+
+    /** Must be called while holding the lock. */
+    private long add(AlarmJournalRecord record){
+        if(writerThread == null || closed)
+            throw new IllegalStateException("Journal is not open");
+
+        try {
+            record.writeTo(pendingOut);
+        } catch (IOException ex) {
+            //can't happen with a ByteArrayOutputStream
+            throw new IllegalStateException(ex);
+        }
+        this.apply(record);
+        recordCount++;
+        appendedSeq++;
+
+        //wake up the writer
+        lock.notifyAll();
+        return appendedSeq;
+    }
+
+    /**
+     * Waits until the record with the given sequence number, and every record
+     * before it, has been forced to disk.
+     * @param seq the sequence number returned by append
+     * @throws IOException if the journal couldn't be written.
+     */
+    public void awaitDurable(long seq) throws IOException {
+        synchronized(lock){
+            while(durableSeq < seq){
+                if(writeFailure != null)
+                    throw new IOException("Journal write failed", writeFailure);
+                if(closed)
+                    throw new IOException("Journal was closed");
+                try {
+                    lock.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for the journal");
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes out anything still pending and closes the journal file.
+     */
+    public void close(){
+        Thread writer;
+        synchronized(lock){
+            if(closed)
+                return;
+            closed = true;
+            lock.notifyAll();
+            writer = writerThread;
+        }
+
+        if(writer != null){
+            try {
+                //the writer finishes off the last batch before it quits
+                writer.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized(lock){
+            try{
+                if(channel != null)
+                    channel.close();
+            }catch(IOException ex){
+                Logger.getLogger(AlarmJournal.class.getName()).log(Level.WARNING, null, ex);
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /** @return the number of alarms the journal thinks are pending. */
+    public int getLiveCount(){
+        synchronized(lock){
+            return live.size();
+        }
+    }
+
+    /** @return the number of records in the journal file. */
+    public long getRecordCount(){
+        synchronized(lock){
+            return recordCount;
+        }
+    }
+
+    /**
+     * This is the main loop of the writer thread.  It waits for records, takes
+     * everything which has been added so far as one batch, writes it and forces
+     * it to disk, then tells everyone waiting on that batch they can go.
+     */
+    private void runWriter(){
+        while(true){
+            byte[] batch = null;
+            List<AlarmJournalRecord> compacted = null;
+            long batchSeq;
+            synchronized(lock){
+                while(pendingBytes.size() == 0 && !closed){
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                if(pendingBytes.size() == 0 && closed)
+                    return;
+
+                if(recordCount >= minCompactionRecords && recordCount > 2L * live.size()){
+                    //Everything pending is already reflected in the live map,
+                    //so the copy takes care of the pending records too.
+                    //Anything added while we write it is counted on top.
+                    compacted = new ArrayList<AlarmJournalRecord>(live.values());
+                    recordCount = compacted.size();
+                }else{
+                    batch = pendingBytes.toByteArray();
+                }
+                pendingBytes.reset();
+                batchSeq = appendedSeq;
+            }
+
+            if(compacted != null){
+                try{
+                    this.writeCompacted(compacted);
+                }catch(IOException ex){
+                    synchronized(lock){
+                        this.fail(ex);
+                    }
+                    return;
+                }
+                synchronized(lock){
+                    durableSeq = Math.max(durableSeq, batchSeq);
+                    lock.notifyAll();
+                }
+                continue;
+            }
+
+            try{
+                ByteBuffer buffer = ByteBuffer.wrap(batch);
+                while(buffer.hasRemaining()){
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            }catch(IOException ex){
+                synchronized(lock){
+                    this.fail(ex);
+                }
+                return;
+            }
+
+            synchronized(lock){
+                durableSeq = Math.max(durableSeq, batchSeq);
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /** Must be called while holding the lock. */
+    private void fail(IOException ex){
+        Logger.getLogger(AlarmJournal.class.getName()).log(Level.SEVERE,
+                "Could not write the alarm journal " + file, ex);
+        writeFailure = ex;
+        lock.notifyAll();
+    }
+
+    /**
+     * Reads the journal file and rebuilds the live map from it.  If the end of
+     * the file is a partly written record, it is cut off.  Must be called while
+     * holding the lock.
+     */
+    private void replay() throws IOException {
+        live.clear();
+        recordCount = 0;
+        if(!file.exists())
+            return;
+
+        long goodLength = 0;
+        CountingInputStream counter = new CountingInputStream(
+                new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        DataInputStream in = new DataInputStream(counter);
+        try{
+            AlarmJournalRecord record;
+            while((record = AlarmJournalRecord.readFrom(in)) != null){
+                this.apply(record);
+                recordCount++;
+                goodLength = counter.count;
+            }
+        }finally{
+            //ALWAYS ALWAYS ALWAYS clean up your resources
+            in.close();
+        }
+
+        if(goodLength < file.length()){
+            Logger.getLogger(AlarmJournal.class.getName()).log(Level.WARNING,
+                    "Ignoring {0} damaged bytes at the end of {1}",
+                    new Object[]{file.length() - goodLength, file});
+        }
+    }
+
+    /**
+     * Updates the live map with the effect of one record.  Must be called
+     * while holding the lock.
+     */
+    private void apply(AlarmJournalRecord record){
+        apply(live, record);
+    }
+
+    /**
+     * Updates a map of pending alarms with the effect of one record.  This is
+     * shared with the replication classes, so a standby's copy of the alarms
+     * follows exactly the same rules as the journal.
+     */
+    static void apply(Map<Long, AlarmJournalRecord> live, AlarmJournalRecord record){
+        Long key = record.getAlarmId();
+        if(record.getType() == AlarmJournalRecord.SCHEDULED ||
+                record.getType() == AlarmJournalRecord.RECURRING){
+            if(!live.containsKey(key))
+                live.put(key, record);
+        }else{
+            live.remove(key);
+        }
+    }
+
+    /**
+     * Rewrites the journal with just the given records.  The new journal is
+     * written to a separate file and forced to disk before it replaces the old
+     * one, so a crash in the middle leaves us with one or the other.  This
+     * doesn't need the lock, but only one thread may use the channel at a
+     * time: open() before the writer thread starts, then the writer thread.
+     */
+    private void writeCompacted(List<AlarmJournalRecord> records) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(compactFile), 1 << 16));
+        try{
+            for(AlarmJournalRecord record : records){
+                record.writeTo(out);
+            }
+            out.flush();
+        }finally{
+            out.close();
+        }
+
+        //force the new file to disk before we swap it in
+        RandomAccessFile raf = new RandomAccessFile(compactFile, "rw");
+        try{
+            raf.getChannel().force(true);
+        }finally{
+            raf.close();
+        }
+
+        if(channel != null){
+            channel.close();
+            channel = null;
+        }
+
+        //File.renameTo won't replace an existing file on Windows, so move the
+        //old journal out of the way first.  open() knows to look for it.
+        if(file.exists()){
+            backupFile.delete();
+            if(!file.renameTo(backupFile))
+                throw new IOException("Could not move " + file + " out of the way");
+        }
+        if(!compactFile.renameTo(file))
+            throw new IOException("Could not move " + compactFile + " into place");
+        backupFile.delete();
+
+        channel = new FileOutputStream(file, true).getChannel();
+    }
+
+    /**
+     * Counts how many bytes have been read through it, so that replay knows
+     * where the last good record ended.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        long count = 0;
+
+        CountingInputStream(InputStream in){
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if(b >= 0)
+                count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if(n > 0)
+                count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
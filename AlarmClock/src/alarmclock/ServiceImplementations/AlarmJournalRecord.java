@@ -0,0 +1,182 @@
+package alarmclock.ServiceImplementations;
+
+import alarmclock.models.PathDictionary;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import org.joda.time.DateTimeZone;
+
+/**
+ * This class is one entry in an {@link AlarmJournal}.  It records that an
+ * alarm was scheduled, cancelled or fired, or that a recurring alarm was
+ * scheduled.
+ * <p/>
+ * Each record is written as its length, a checksum, and then the record itself.
+ * If the program dies halfway through writing a record, the checksum won't
+ * match when we read it back, so we know to ignore the partly written record
+ * instead of reading garbage.
+ *
+ * This class Is Something.
+ * @author Gordon
+ */
+public class AlarmJournalRecord {
+
+    public static final byte SCHEDULED = 'S';
+    public static final byte CANCELLED = 'C';
+    public static final byte FIRED = 'F';
+    public static final byte RECURRING = 'R';
+
+    /** No record is anywhere near this big, so a bigger length means garbage. */
+    private static final int MAX_RECORD_LENGTH = 64 * 1024;
+
+    private final byte type;
+    public byte getType(){
+        return type;
+    }
+
+    private final long timeMillis;
+    public long getTimeMillis(){
+        return timeMillis;
+    }
+
+    /**
+     * The zone the alarm was set in.  It's part of what makes two SetAlarms
+     * equal and it's what the UI shows the time in, so an alarm read back
+     * from the journal has to come back in the same zone.
+     */
+    private final DateTimeZone zone;
+    public DateTimeZone getZone(){
+        return zone;
+    }
+
+    private final String path;
+    public String getPath(){
+        return path;
+    }
+
+    /** For a RECURRING record, the period of the alarm.  Otherwise 0. */
+    private final long periodMillis;
+    public long getPeriodMillis(){
+        return periodMillis;
+    }
+
+    /**
+     * The id of the SetAlarm this record is about, so that two equal alarms
+     * can be told apart.  It's how the journal matches a cancel or a firing
+     * to the alarm it's about.
+     */
+    private final long alarmId;
+    public long getAlarmId(){
+        return alarmId;
+    }
+
+    public AlarmJournalRecord(byte type, long alarmId, long timeMillis, DateTimeZone zone, String path, long periodMillis){
+        if(type != SCHEDULED && type != CANCELLED && type != FIRED && type != RECURRING)
+            throw new IllegalArgumentException("Unknown record type " + type);
+        if(alarmId <= 0)
+            throw new IllegalArgumentException("alarm id must be positive");
+        if(zone == null)
+            throw new NullPointerException("zone");
+        if((type == RECURRING) != (periodMillis > 0))
+            throw new IllegalArgumentException("Only recurring records have a period");
+
+        this.type = type;
+        this.alarmId = alarmId;
+        this.timeMillis = timeMillis;
+        this.zone = zone;
+        this.path = path;
+        this.periodMillis = periodMillis;
+    }
+
+    /**
+     * Writes this record, with its length and checksum, to the given stream.
+     * @param out the stream to write to
+     * @throws IOException if the stream couldn't be written
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + path.length());
+        DataOutputStream body = new DataOutputStream(bytes);
+        body.writeByte(type);
+        body.writeLong(alarmId);
+        body.writeLong(timeMillis);
+        body.writeUTF(zone.getID());
+        body.writeUTF(path);
+        if(type == RECURRING)
+            body.writeLong(periodMillis);
+        body.flush();
+
+        byte[] payload = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        out.writeInt(payload.length);
+        out.writeInt((int)crc.getValue());
+        out.write(payload);
+    }
+
+    /**
+     * Reads the next record from the given stream.
+     * @param in the stream to read from
+     * @return the record, or null if the stream is at its end or the rest of
+     * the stream is a partly written or damaged record.
+     * @throws IOException if the stream couldn't be read
+     */
+    public static AlarmJournalRecord readFrom(DataInput in) throws IOException {
+        byte[] payload;
+        int checksum;
+        try{
+            int length = in.readInt();
+            if(length <= 0 || length > MAX_RECORD_LENGTH)
+                return null;
+            checksum = in.readInt();
+            payload = new byte[length];
+            in.readFully(payload);
+        }catch(EOFException ex){
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if((int)crc.getValue() != checksum)
+            return null;
+
+        DataInputStream body = new DataInputStream(new java.io.ByteArrayInputStream(payload));
+        try{
+            byte type = body.readByte();
+            long alarmId = body.readLong();
+            long timeMillis = body.readLong();
+            DateTimeZone zone = zoneFor(body.readUTF());
+            //share one copy of each path, instead of one per record
+            String path = PathDictionary.canonical(body.readUTF());
+            long periodMillis = type == RECURRING ? body.readLong() : 0;
+            return new AlarmJournalRecord(type, alarmId, timeMillis, zone, path, periodMillis);
+        }catch(IllegalArgumentException ex){
+            return null;
+        }catch(EOFException ex){
+            return null;
+        }
+    }
+
+    /**
+     * Joda keeps one DateTimeZone per id, so this gives back the same object
+     * the alarm had.  If a newer Joda has dropped the zone, the alarm still
+     * goes off at the right instant, it's just shown in the local zone.
+     */
+    private static DateTimeZone zoneFor(String id){
+        try{
+            return DateTimeZone.forID(id);
+        }catch(IllegalArgumentException ex){
+            return DateTimeZone.getDefault();
+        }
+    }
+
+    @Override
+    public String toString(){
+        return (char)type + "|" + alarmId + "|" + timeMillis + "|" + zone.getID() + "|" + path +
+                (type == RECURRING ? "|" + periodMillis : "");
+    }
+}
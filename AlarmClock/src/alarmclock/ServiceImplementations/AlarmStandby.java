@@ -0,0 +1,310 @@
+package alarmclock.ServiceImplementations;
+
+import alarmclock.models.RecurringAlarm;
+import alarmclock.models.SetAlarm;
+import alarmclock.services.AlarmListener;
+import alarmclock.services.AlarmStarter;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.joda.time.DateTime;
+
+/**
+ * This class is the standby copy of the program, which follows a
+ * {@link ReplicatingAlarmStarter} and keeps the same pending alarms in memory.
+ * It doesn't fire anything while the primary is alive.  When the primary
+ * stops talking to it for longer than the failover time, it takes over and
+ * starts all the pending alarms with its own AlarmStarter.
+ * <p/>
+ * The primary sends a heartbeat whenever it has nothing else to send, so the
+ * failover time only has to be a few heartbeats long.  The socket's read
+ * timeout is set to the failover time, so a primary which hangs without
+ * closing the socket is noticed just like one which dies.
+ * <p/>
+ * Alarms which came due during the failover are fired as soon as we take
+ * over.  If the primary fired one just before it died and we never heard
+ * about it, it goes off twice, which is better than not at all.
+ *
+ * This class Does Something.
+ * @author Gordon
+ */
+public class AlarmStandby {
+
+    public static final long DEFAULT_FAILOVER_MILLIS = 500;
+
+    /** How long to wait between tries while the primary isn't up yet. */
+    private static final long RETRY_MILLIS = 50;
+
+    private final AlarmStarter starter;
+    private final String host;
+    private final int port;
+
+    private AlarmListener listener;
+    /**
+     * Sets the AlarmListener which is told when an alarm goes off, once
+     * we've taken over.
+     */
+    public void setAlarmListener(AlarmListener listener){
+        this.listener = listener;
+    }
+
+    private long failoverMillis = DEFAULT_FAILOVER_MILLIS;
+    /**
+     * Sets how long the primary can be quiet before we take over.  It
+     * should be a few times the primary's heartbeat.
+     */
+    public void setFailoverMillis(long failoverMillis){
+        if(failoverMillis <= 0)
+            throw new IllegalArgumentException("failoverMillis must be positive");
+        this.failoverMillis = failoverMillis;
+    }
+
+    /**
+     * The pending alarms.  Replaced whole each time a snapshot comes in.
+     * Guarded by this.
+     */
+    private Map<Long, AlarmJournalRecord> live =
+            new LinkedHashMap<Long, AlarmJournalRecord>();
+
+    private volatile boolean connected = false;
+    private volatile boolean stopped = false;
+    private volatile Socket socket;
+    private Thread thread;
+
+    private boolean promoted = false;
+    private long takeOverMillis = -1;
+
+    /**
+     * Creates an AlarmStandby.  Call {@link #start()} to connect to the
+     * primary.
+     * @param starter the AlarmStarter to start the alarms with once we take
+     * over
+     * @param host the computer the primary is on
+     * @param port the port the primary is listening on
+     */
+    public AlarmStandby(AlarmStarter starter, String host, int port){
+        this.starter = starter;
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Starts following the primary.  We keep trying until it's up, and only
+     * take over once we've been connected to it and lost it.
+     */
+    public void start(){
+        thread = AlarmDispatcher.daemonThreadFactory("AlarmStandby").newThread(new Runnable(){
+            @Override
+            public void run() {
+                AlarmStandby.this.follow();
+            }
+        });
+        thread.start();
+    }
+
+    /**
+     * Stops following the primary without taking over.
+     */
+    public void stop(){
+        stopped = true;
+        Socket s = socket;
+        if(s != null){
+            try {
+                s.close();
+            } catch (IOException ex) {
+                Logger.getLogger(AlarmStandby.class.getName()).log(Level.FINE, null, ex);
+            }
+        }
+        if(thread != null){
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** @return how many alarms are pending, as far as we know. */
+    public synchronized int getLiveCount(){
+        return live.size();
+    }
+
+    /** @return true if we're connected to the primary right now. */
+    public boolean isConnected(){
+        return connected;
+    }
+
+    /** @return true if we've taken over from the primary. */
+    public synchronized boolean isPromoted(){
+        return promoted;
+    }
+
+    /**
+     * @return how long it took from losing the primary to having started all
+     * its alarms, in millis, or -1 if we haven't taken over.
+     */
+    public synchronized long getTakeOverMillis(){
+        return takeOverMillis;
+    }
+
+    /**
+     * This is the main loop of the standby's thread.
+     */
+    private void follow(){
+        while(!stopped && socket == null){
+            try{
+                Socket s = new Socket();
+                s.connect(new InetSocketAddress(host, port), (int)failoverMillis);
+                s.setSoTimeout((int)failoverMillis);
+                s.setTcpNoDelay(true);
+                socket = s;
+            }catch(IOException ex){
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+        if(stopped)
+            return;
+
+        connected = true;
+        long lostAt;
+        try{
+            this.read(new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16)));
+        }catch(IOException ex){
+            Logger.getLogger(AlarmStandby.class.getName()).log(Level.INFO,
+                    "Lost the primary", ex);
+        }finally{
+            lostAt = System.currentTimeMillis();
+            connected = false;
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                Logger.getLogger(AlarmStandby.class.getName()).log(Level.FINE, null, ex);
+            }
+        }
+
+        if(!stopped)
+            this.takeOver(lostAt);
+    }
+
+    /**
+     * Reads from the primary until it goes away.  A snapshot is read into a
+     * new map and only swapped in once it's complete.
+     */
+    private void read(DataInputStream in) throws IOException {
+        Map<Long, AlarmJournalRecord> snapshot = null;
+        while(true){
+            byte type;
+            try{
+                type = in.readByte();
+            }catch(EOFException ex){
+                return;
+            }
+
+            switch(type){
+                case ReplicatingAlarmStarter.SNAPSHOT_BEGIN:
+                    snapshot = new LinkedHashMap<Long, AlarmJournalRecord>();
+                    break;
+                case ReplicatingAlarmStarter.SNAPSHOT_END:
+                    if(snapshot != null){
+                        synchronized(this){
+                            live = snapshot;
+                        }
+                    }
+                    snapshot = null;
+                    break;
+                case ReplicatingAlarmStarter.RECORD:
+                    AlarmJournalRecord record = AlarmJournalRecord.readFrom(in);
+                    if(record == null)
+                        throw new IOException("Damaged record from the primary");
+                    if(snapshot != null){
+                        AlarmJournal.apply(snapshot, record);
+                    }else{
+                        synchronized(this){
+                            AlarmJournal.apply(live, record);
+                        }
+                    }
+                    break;
+                case ReplicatingAlarmStarter.HEARTBEAT:
+                    break;
+                default:
+                    throw new IOException("Unknown message " + type + " from the primary");
+            }
+        }
+    }
+
+    /**
+     * Starts every pending alarm with our own AlarmStarter.  Alarms which
+     * came due while nobody was firing them go off right away.  This only
+     * ever happens once.
+     * @param lostAt when we lost the primary
+     */
+    private synchronized void takeOver(long lostAt){
+        if(promoted)
+            return;
+        promoted = true;
+
+        long now = System.currentTimeMillis();
+        List<SetAlarm> future = new ArrayList<SetAlarm>();
+        List<SetAlarm> overdue = new ArrayList<SetAlarm>();
+        for(AlarmJournalRecord record : live.values()){
+            SetAlarm alarm = starter.createAlarm(new DateTime(record.getTimeMillis(), record.getZone()), record.getPath());
+            if(record.getType() == AlarmJournalRecord.RECURRING){
+                //move it up to the next time it should go off
+                RecurringAlarm old = new RecurringAlarm(alarm, record.getPeriodMillis());
+                SetAlarm next = starter.createAlarm(new DateTime(old.nextAfter(now), record.getZone()), record.getPath());
+                try{
+                    starter.startRecurringAlarm(new RecurringAlarm(next, record.getPeriodMillis()),
+                            this.firing(next));
+                }catch(Exception ex){
+                    Logger.getLogger(AlarmStandby.class.getName()).log(Level.WARNING,
+                            "Could not take over recurring alarm " + next, ex);
+                }
+            }else if(record.getTimeMillis() <= now){
+                overdue.add(alarm);
+            }else{
+                future.add(alarm);
+            }
+        }
+
+        if(!future.isEmpty()){
+            starter.startAlarms(future, new AlarmListener(){
+                @Override
+                public void alarmFinished(SetAlarm alarm) {
+                    AlarmStandby.this.firing(alarm).run();
+                }
+            });
+        }
+
+        takeOverMillis = System.currentTimeMillis() - lostAt;
+        Logger.getLogger(AlarmStandby.class.getName()).log(Level.INFO,
+                "Took over {0} alarms in {1}ms", new Object[]{ live.size(), takeOverMillis });
+
+        for(SetAlarm alarm : overdue){
+            this.firing(alarm).run();
+        }
+    }
+
+    private Runnable firing(final SetAlarm alarm){
+        return new Runnable(){
+            @Override
+            public void run() {
+                AlarmListener whenFinished = listener;
+                if(whenFinished != null)
+                    whenFinished.alarmFinished(alarm);
+            }
+        };
+    }
+}
@@ -0,0 +1,73 @@
+package alarmclock.ServiceImplementations;
+
+import alarmclock.models.AlarmEvent;
+import alarmclock.services.AlarmEventSubscriber;
+import alarmclock.services.AlarmEventSubscription;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class is an AlarmEventSubscriber which writes every alarm event to
+ * the log, so there's a record of what each alarm did.
+ * <p/>
+ * It asks for events a batch at a time, and asks for the next batch when it's
+ * halfway through the last one, so there are always some on the way but never
+ * more than it has room for.
+ *
+ * This class Does Something.
+ * @author Gordon
+ */
+public class AuditLogSubscriber implements AlarmEventSubscriber {
+
+    private static final Logger log = Logger.getLogger(AuditLogSubscriber.class.getName());
+
+    private final int batchSize;
+    private AlarmEventSubscription subscription;
+    /** How many events are left of what we've asked for. */
+    private int outstanding;
+
+    /**
+     * Creates an AuditLogSubscriber.
+     * @param batchSize how many events to ask for at once
+     */
+    public AuditLogSubscriber(int batchSize){
+        if(batchSize <= 1)
+            throw new IllegalArgumentException("batchSize must be more than 1");
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Creates an AuditLogSubscriber which asks for 64 events at a time.
+     */
+    public AuditLogSubscriber(){
+        this(64);
+    }
+
+    @Override
+    public void onSubscribe(AlarmEventSubscription subscription) {
+        this.subscription = subscription;
+        outstanding = batchSize;
+        subscription.request(batchSize);
+    }
+
+    @Override
+    public void onNext(AlarmEvent event) {
+        log.log(Level.INFO, "Alarm {0}", event);
+
+        outstanding--;
+        if(outstanding <= batchSize / 2){
+            subscription.request(batchSize - outstanding);
+            outstanding = batchSize;
+        }
+    }
+
+    @Override
+    public void onError(Throwable error) {
+        log.log(Level.WARNING, "The alarm audit log stopped", error);
+    }
+
+    @Override
+    public void onComplete() {
+        log.log(Level.INFO, "The alarm audit log is finished");
+    }
+}
@@ -0,0 +1,358 @@
+package alarmclock.ServiceImplementations;
+
+import alarmclock.models.SetAlarm;
+import alarmclock.services.AlarmListener;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class is an AlarmDispatcher which puts the alarms that have come due in
+ * a queue of limited size, and runs them on a fixed number of worker threads.
+ * <p/>
+ * The plain AlarmDispatcher will happily run every alarm the moment it's due.
+ * If ten thousand alarms come due at once, that's ten thousand processes
+ * started at once, which can bring the computer to its knees.  With a bounded
+ * queue, only so many callbacks run at a time, and only so many wait their
+ * turn.  What happens when the queue is full is decided by the
+ * {@link OverloadPolicy}.
+ * <p/>
+ * Alarms which are dropped instead of run are handed to the overload listener,
+ * if there is one, so that whoever set them can find out.
+ *
+ * This class Does Something.
+ * @author Gordon
+ */
+public class BoundedAlarmDispatcher extends AlarmDispatcher {
+
+    /**
+     * This decides what happens to an alarm which comes due while the queue
+     * is full.
+     */
+    public enum OverloadPolicy {
+        /**
+         * Make the thread that found the alarm due wait until there's room.
+         * Nothing is ever dropped, but the clock thread falls behind, so later
+         * alarms go off late.
+         */
+        BLOCK,
+        /**
+         * Drop the alarm which has been waiting the longest to make room for
+         * the new one.
+         */
+        DROP_OLDEST,
+        /**
+         * When the queue is full, drop the new alarm, and if there's already
+         * an alarm for the same path waiting, count it as coalesced with that
+         * one, since starting the same program twice in a row does no good.
+         * While there's room every alarm is queued, even for the same path.
+         */
+        COALESCE_BY_PATH,
+        /**
+         * Put the alarm in a second, deferred queue, which is only run when
+         * the main queue is empty.  The deferred queue has the same size
+         * limit, and anything that doesn't fit there is dropped.
+         */
+        DEFER
+    }
+
+    /** An alarm which has come due, waiting to be run. */
+    private static class Pending {
+        final SetAlarm alarm;
+        final Runnable whenFinished;
+        /** When it came due, so the wait in the queue doesn't count as late. */
+        final long firedMillis;
+
+        Pending(SetAlarm alarm, Runnable whenFinished, long firedMillis){
+            this.alarm = alarm;
+            this.whenFinished = whenFinished;
+            this.firedMillis = firedMillis;
+        }
+    }
+
+    private final int capacity;
+    private final OverloadPolicy policy;
+
+    /*
+     * Everything below is guarded by the lock.
+     */
+    private final Object lock = new Object();
+    private final ArrayDeque<Pending> queue = new ArrayDeque<Pending>();
+    private final ArrayDeque<Pending> deferred = new ArrayDeque<Pending>();
+
+    /**
+     * How many alarms for each path are waiting in the queue, for
+     * COALESCE_BY_PATH, by the path's number in the PathDictionary.  The
+     * number stays the path's while it's queued, since the queued SetAlarm
+     * holds on to the path.
+     */
+    private int[] queuedPerPath = new int[64];
+
+    private long shedCount = 0;
+    private long coalescedCount = 0;
+    private long deferredCount = 0;
+    private int maxDepth = 0;
+    private boolean shutdown = false;
+
+    private final List<Thread> workers = new ArrayList<Thread>();
+
+    /**
+     * This is told about every alarm which is dropped instead of run.
+     */
+    private volatile AlarmListener overloadListener;
+    public void setOverloadListener(AlarmListener overloadListener){
+        this.overloadListener = overloadListener;
+    }
+
+    /**
+     * Creates a BoundedAlarmDispatcher.
+     * @param workerCount the number of worker threads running callbacks
+     * @param capacity the most alarms which can wait in the queue
+     * @param policy what to do when an alarm comes due and the queue is full
+     */
+    public BoundedAlarmDispatcher(int workerCount, int capacity, OverloadPolicy policy){
+        if(workerCount <= 0 || capacity <= 0)
+            throw new IllegalArgumentException("need at least one worker and room for one alarm");
+
+        this.capacity = capacity;
+        this.policy = policy;
+
+        ThreadFactory factory = AlarmDispatcher.daemonThreadFactory("BoundedAlarmDispatcher");
+        for(int i = 0; i < workerCount; i++){
+            Thread worker = factory.newThread(new Runnable(){
+                @Override
+                public void run() {
+                    BoundedAlarmDispatcher.this.runWorker();
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * Puts the alarm in the queue, or deals with it according to the
+     * overload policy if the queue is full.
+     */
+    @Override
+    public void dispatch(SetAlarm alarm, Runnable whenFinished){
+        List<Pending> dropped = new ArrayList<Pending>(0);
+        long now = System.currentTimeMillis();
+        synchronized(lock){
+            this.offer(new Pending(alarm, whenFinished, now), dropped);
+        }
+        this.notifyDropped(dropped);
+    }
+
+    /**
+     * Puts a group of alarms in the queue while holding the lock just once.
+     */
+    @Override
+    public void dispatchAll(List<SetAlarm> alarms, List<Runnable> callbacks){
+        List<Pending> dropped = new ArrayList<Pending>(0);
+        long now = System.currentTimeMillis();
+        synchronized(lock){
+            for(int i = 0; i < alarms.size(); i++){
+                this.offer(new Pending(alarms.get(i), callbacks.get(i), now), dropped);
+            }
+        }
+        this.notifyDropped(dropped);
+    }
+
+    /**
+     * Adds one alarm to the queue.  Must be called while holding the lock.
+     * @param dropped anything dropped to make room is added to this list
+     */
+    private void offer(Pending pending, List<Pending> dropped){
+        if(shutdown){
+            dropped.add(pending);
+            shedCount++;
+            return;
+        }
+
+        if(queue.size() >= capacity){
+            switch(policy){
+                case BLOCK:
+                    while(queue.size() >= capacity && !shutdown){
+                        try {
+                            lock.wait();
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            dropped.add(pending);
+                            shedCount++;
+                            return;
+                        }
+                    }
+                    if(shutdown){
+                        dropped.add(pending);
+                        shedCount++;
+                        return;
+                    }
+                    break;
+
+                case DROP_OLDEST:
+                    dropped.add(queue.removeFirst());
+                    shedCount++;
+                    break;
+
+                case DEFER:
+                    if(deferred.size() < capacity){
+                        deferred.addLast(pending);
+                        deferredCount++;
+                        lock.notifyAll();
+                    }else{
+                        dropped.add(pending);
+                        shedCount++;
+                    }
+                    return;
+
+                case COALESCE_BY_PATH:
+                    dropped.add(pending);
+                    if(this.queuedCount(pending.alarm.getPathId()) > 0)
+                        coalescedCount++;
+                    else
+                        shedCount++;
+                    return;
+
+                default:
+                    dropped.add(pending);
+                    shedCount++;
+                    return;
+            }
+        }
+
+        queue.addLast(pending);
+        if(policy == OverloadPolicy.COALESCE_BY_PATH)
+            this.countQueued(pending.alarm.getPathId(), 1);
+        maxDepth = Math.max(maxDepth, queue.size());
+        lock.notifyAll();
+    }
+
+    /**
+     * @return how many alarms for the path are in the queue.  Must be called
+     * while holding the lock.
+     */
+    private int queuedCount(int pathId){
+        return pathId < queuedPerPath.length ? queuedPerPath[pathId] : 0;
+    }
+
+    /**
+     * Adds to the number of alarms for the path in the queue.  Must be called
+     * while holding the lock.
+     */
+    private void countQueued(int pathId, int delta){
+        if(pathId >= queuedPerPath.length)
+            queuedPerPath = Arrays.copyOf(queuedPerPath, Math.max(pathId + 1, queuedPerPath.length * 2));
+        queuedPerPath[pathId] += delta;
+    }
+
+    /**
+     * Tells the overload listener about the dropped alarms.  This is done
+     * outside the lock, since the listener could take a while.
+     */
+    private void notifyDropped(List<Pending> dropped){
+        if(dropped.isEmpty())
+            return;
+
+        Logger.getLogger(BoundedAlarmDispatcher.class.getName()).log(Level.WARNING,
+                "Too many alarms at once, dropped {0}", dropped.size());
+
+        AlarmListener listener = overloadListener;
+        if(listener == null)
+            return;
+        for(Pending pending : dropped){
+            this.runCallback(pending.alarm, AlarmDispatcher.notifying(listener, pending.alarm));
+        }
+    }
+
+    /**
+     * This is the main loop of each worker thread.  It takes alarms from the
+     * queue, or from the deferred queue if the main one is empty, and runs them.
+     */
+    private void runWorker(){
+        while(true){
+            Pending next;
+            synchronized(lock){
+                while(queue.isEmpty() && deferred.isEmpty() && !shutdown){
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+                if(shutdown)
+                    return;
+
+                if(!queue.isEmpty()){
+                    next = queue.removeFirst();
+                    if(policy == OverloadPolicy.COALESCE_BY_PATH)
+                        this.countQueued(next.alarm.getPathId(), -1);
+                }else{
+                    next = deferred.removeFirst();
+                }
+
+                //there's room now, wake up anyone who is blocked
+                lock.notifyAll();
+            }
+
+            this.runCallback(next.alarm, next.whenFinished, next.firedMillis);
+        }
+    }
+
+    /** @return the number of alarms waiting in the main queue. */
+    public int getQueueDepth(){
+        synchronized(lock){
+            return queue.size();
+        }
+    }
+
+    /** @return the most alarms that have ever been waiting in the main queue at once. */
+    public int getMaxQueueDepth(){
+        synchronized(lock){
+            return maxDepth;
+        }
+    }
+
+    /** @return the number of alarms waiting in the deferred queue. */
+    public int getDeferredDepth(){
+        synchronized(lock){
+            return deferred.size();
+        }
+    }
+
+    /** @return the number of alarms which were dropped because there was no room. */
+    public long getShedCount(){
+        synchronized(lock){
+            return shedCount;
+        }
+    }
+
+    /** @return the number of alarms which were dropped because their path was already queued. */
+    public long getCoalescedCount(){
+        synchronized(lock){
+            return coalescedCount;
+        }
+    }
+
+    /** @return the number of alarms which have been put in the deferred queue. */
+    public long getDeferredCount(){
+        synchronized(lock){
+            return deferredCount;
+        }
+    }
+
+    /**
+     * Stops the worker threads.  Alarms still in the queues are dropped
+     * without telling the overload listener.
+     */
+    public void shutdown(){
+        synchronized(lock){
+            shutdown = true;
+            lock.notifyAll();
+        }
+    }
+}
@@ -0,0 +1,440 @@
+package alarmclock.ServiceImplementations;
+
+import alarmclock.models.AlarmBatchResult;
+import alarmclock.models.RecurringAlarm;
+import alarmclock.models.SetAlarm;
+import alarmclock.services.AlarmListener;
+import alarmclock.services.AlarmStarter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.joda.time.DateTime;
+
+/**
+ * This class is an AlarmStarter which decides what to do with alarms that
+ * were missed, because the computer was asleep or the program was paused
+ * when they were due.
+ * <p/>
+ * When the computer wakes up, every alarm it slept through comes due at once.
+ * Each one starts a process, so a night's worth of alarms all start their
+ * programs in the same second.  This Decorator catches any alarm which goes
+ * off more than the grace time late, and instead of running it right away
+ * puts it in a batch.  Once no more missed alarms have turned up for a little
+ * while, the whole batch is sorted by when the alarms were due, trimmed by
+ * the {@link CatchUpPolicy}, and run one after the other at a limited rate.
+ * Alarms which go off on time are never held up.
+ * <p/>
+ * Missed one-off alarms that the policy skips are handed to the skipped
+ * listener, if there is one.  A recurring alarm will go off again, so when
+ * one of its times is skipped the listener isn't told.
+ * <p/>
+ * This should go below Decorators like the JournalingAlarmStarter and the
+ * PublishingAlarmStarter, so that their callbacks only run for alarms which
+ * actually go off.  A skipped alarm counts as cancelled instead: the skipped
+ * listener should call cancelAlarm for it, which returns true, so the
+ * Decorators above write it down as cancelled.
+ *
+ * This class Does Something.
+ * @author Gordon
+ */
+public class CatchUpAlarmStarter implements AlarmStarter {
+
+    /**
+     * This decides which of a batch of missed alarms are run.
+     */
+    public enum CatchUpPolicy {
+        /**
+         * Run every missed alarm, oldest first.
+         */
+        FIRE_ALL,
+        /**
+         * Run only the most recent missed alarm for each path.  If a website
+         * was supposed to be opened at 1, 2 and 3 o'clock, it's opened once.
+         */
+        LATEST_PER_PATH,
+        /**
+         * Run the missed alarms which are less than the max age late, and
+         * skip the older ones.
+         */
+        SKIP_OLDER_THAN
+    }
+
+    public static final long DEFAULT_GRACE_MILLIS = 5000;
+    public static final long DEFAULT_MAX_AGE_MILLIS = 5 * 60 * 1000;
+    public static final long DEFAULT_SETTLE_MILLIS = 200;
+    public static final int DEFAULT_REPLAY_PER_SECOND = 5;
+
+    /** A missed alarm waiting to be replayed. */
+    private static class Missed {
+        final SetAlarm alarm;
+        final long dueMillis;
+        final Runnable whenFinished;
+        final boolean recurring;
+
+        Missed(SetAlarm alarm, long dueMillis, Runnable whenFinished, boolean recurring){
+            this.alarm = alarm;
+            this.dueMillis = dueMillis;
+            this.whenFinished = whenFinished;
+            this.recurring = recurring;
+        }
+    }
+
+    private static final Comparator<Missed> BY_DUE = new Comparator<Missed>(){
+        @Override
+        public int compare(Missed o1, Missed o2) {
+            return o1.dueMillis < o2.dueMillis ? -1 : (o1.dueMillis == o2.dueMillis ? 0 : 1);
+        }
+    };
+
+    private final AlarmStarter delegate;
+    private final CatchUpPolicy policy;
+    private final AlarmDispatcher dispatcher = new AlarmDispatcher();
+
+    /**
+     * The skipped alarms the skipped listener was told about, until they're
+     * cancelled, by id.
+     */
+    private final ConcurrentLongMap<SetAlarm> skippedAlarms = new ConcurrentLongMap<SetAlarm>();
+
+    private volatile long graceMillis = DEFAULT_GRACE_MILLIS;
+    /**
+     * Sets how late an alarm can go off before it counts as missed.
+     */
+    public void setGraceMillis(long graceMillis){
+        if(graceMillis < 0)
+            throw new IllegalArgumentException("graceMillis can't be negative");
+        this.graceMillis = graceMillis;
+    }
+
+    private volatile long maxAgeMillis = DEFAULT_MAX_AGE_MILLIS;
+    /**
+     * Sets how late a missed alarm can be and still run, for SKIP_OLDER_THAN.
+     */
+    public void setMaxAgeMillis(long maxAgeMillis){
+        if(maxAgeMillis < 0)
+            throw new IllegalArgumentException("maxAgeMillis can't be negative");
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    private volatile long settleMillis = DEFAULT_SETTLE_MILLIS;
+    /**
+     * Sets how long to wait after the last missed alarm turns up before
+     * replaying the batch, so that the whole lot arrives first.
+     */
+    public void setSettleMillis(long settleMillis){
+        if(settleMillis < 0)
+            throw new IllegalArgumentException("settleMillis can't be negative");
+        this.settleMillis = settleMillis;
+    }
+
+    private volatile long replayIntervalNanos = TimeUnit.SECONDS.toNanos(1) / DEFAULT_REPLAY_PER_SECOND;
+    /**
+     * Sets how many missed alarms are run each second while replaying.
+     */
+    public void setReplayPerSecond(int perSecond){
+        if(perSecond <= 0)
+            throw new IllegalArgumentException("perSecond must be positive");
+        this.replayIntervalNanos = TimeUnit.SECONDS.toNanos(1) / perSecond;
+    }
+
+    private volatile AlarmListener skippedListener;
+    /**
+     * Sets the listener which is told about missed one-off alarms that the
+     * policy skips.  It should cancel them through the outermost AlarmStarter.
+     */
+    public void setSkippedListener(AlarmListener skippedListener){
+        this.skippedListener = skippedListener;
+    }
+
+    /*
+     * Everything below is guarded by the lock.
+     */
+    private final Object lock = new Object();
+    private List<Missed> missed = new ArrayList<Missed>();
+    private long lastMissedNanos;
+    private long missedCount = 0;
+    private long replayedCount = 0;
+    private long skippedCount = 0;
+    private boolean shutdown = false;
+
+    private final Thread replayThread;
+
+    /**
+     * Creates a CatchUpAlarmStarter.
+     * @param delegate the AlarmStarter which actually schedules the alarms
+     * @param policy which missed alarms to run
+     */
+    public CatchUpAlarmStarter(AlarmStarter delegate, CatchUpPolicy policy){
+        if(policy == null)
+            throw new NullPointerException("policy");
+
+        this.delegate = delegate;
+        this.policy = policy;
+
+        replayThread = AlarmDispatcher.daemonThreadFactory("CatchUpReplay").newThread(new Runnable(){
+            @Override
+            public void run() {
+                CatchUpAlarmStarter.this.runReplay();
+            }
+        });
+        replayThread.start();
+    }
+
+    /**
+     * Stops replaying.  Missed alarms which haven't been replayed yet are
+     * forgotten.
+     */
+    public void shutdown(){
+        synchronized(lock){
+            shutdown = true;
+            missed.clear();
+            lock.notifyAll();
+        }
+    }
+
+    /** @return how many alarms have gone off late enough to count as missed. */
+    public long getMissedCount(){
+        synchronized(lock){
+            return missedCount;
+        }
+    }
+
+    /** @return how many missed alarms have been run. */
+    public long getReplayedCount(){
+        synchronized(lock){
+            return replayedCount;
+        }
+    }
+
+    /** @return how many missed alarms the policy skipped. */
+    public long getSkippedCount(){
+        synchronized(lock){
+            return skippedCount;
+        }
+    }
+
+    @Override
+    public SetAlarm createAlarm(DateTime alarmDate, String exePath)
+    {
+        return delegate.createAlarm(alarmDate, exePath);
+    }
+
+    @Override
+    public TimerTask startAlarm(final SetAlarm alarm, final Runnable whenFinished)
+            throws Exception
+    {
+        return delegate.startAlarm(alarm, new Runnable(){
+            @Override
+            public void run() {
+                CatchUpAlarmStarter.this.fired(alarm, alarm.getTimeMillis(), whenFinished, false);
+            }
+        });
+    }
+
+    /**
+     * Starts a recurring alarm.  Each time it goes off, whether it's late is
+     * worked out from the last time it was due, like the MetricsAlarmStarter
+     * does.
+     */
+    @Override
+    public TimerTask startRecurringAlarm(final RecurringAlarm alarm, final Runnable whenFinished)
+            throws Exception
+    {
+        return delegate.startRecurringAlarm(alarm, new Runnable(){
+            /** The most recent time the alarm was due. */
+            private long due = alarm.getFirst().getTimeMillis();
+
+            @Override
+            public void run() {
+                //if it was very late it might have skipped some, so find the
+                //last time it was due before it went off.
+                long fired = AlarmDispatcher.firedMillis();
+                long next;
+                while((next = alarm.nextAfter(due)) <= fired){
+                    due = next;
+                }
+                CatchUpAlarmStarter.this.fired(alarm.getFirst(), due, whenFinished, true);
+                due = alarm.nextAfter(due);
+            }
+        });
+    }
+
+    /**
+     * Cancels an alarm.  Cancelling an alarm we skipped returns true, since
+     * it was pending until we decided not to run it.
+     */
+    @Override
+    public boolean cancelAlarm(SetAlarm alarm){
+        if(skippedAlarms.remove(alarm.getId()) != null)
+            return true;
+        return delegate.cancelAlarm(alarm);
+    }
+
+    @Override
+    public AlarmBatchResult startAlarms(Collection<SetAlarm> alarms, final AlarmListener whenFinished){
+        return delegate.startAlarms(alarms, new AlarmListener(){
+            @Override
+            public void alarmFinished(SetAlarm alarm) {
+                CatchUpAlarmStarter.this.fired(alarm, alarm.getTimeMillis(),
+                        AlarmDispatcher.notifying(whenFinished, alarm), false);
+            }
+        });
+    }
+
+    @Override
+    public boolean[] cancelAlarms(Collection<SetAlarm> alarms){
+        boolean[] result = delegate.cancelAlarms(alarms);
+        int index = 0;
+        for(SetAlarm alarm : alarms){
+            if(skippedAlarms.remove(alarm.getId()) != null)
+                result[index] = true;
+            index++;
+        }
+        return result;
+    }
+
+    /**
+     * Runs the callback right away if the alarm is on time, or puts it in the
+     * batch of missed alarms if it's late.  How late it is goes by when the
+     * scheduler found it due, not when its callback got to run, so an alarm
+     * which only waited in the dispatcher's queue isn't counted as missed.
+     */
+    private void fired(SetAlarm alarm, long dueMillis, Runnable whenFinished, boolean recurring){
+        if(AlarmDispatcher.firedMillis() - dueMillis <= graceMillis){
+            whenFinished.run();
+            return;
+        }
+
+        synchronized(lock){
+            if(shutdown)
+                return;
+            missed.add(new Missed(alarm, dueMillis, whenFinished, recurring));
+            missedCount++;
+            lastMissedNanos = System.nanoTime();
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * This is the main loop of the replay thread.  It waits for missed alarms
+     * to stop turning up, then replays the batch.
+     */
+    private void runReplay(){
+        while(true){
+            List<Missed> batch;
+            synchronized(lock){
+                try{
+                    while(missed.isEmpty() && !shutdown){
+                        lock.wait();
+                    }
+                    long settleNanos;
+                    while(!shutdown && (settleNanos = lastMissedNanos
+                            + TimeUnit.MILLISECONDS.toNanos(settleMillis) - System.nanoTime()) > 0){
+                        TimeUnit.NANOSECONDS.timedWait(lock, settleNanos);
+                    }
+                }catch(InterruptedException ex){
+                    return;
+                }
+                if(shutdown)
+                    return;
+
+                batch = missed;
+                missed = new ArrayList<Missed>();
+            }
+
+            this.replay(batch);
+        }
+    }
+
+    /**
+     * Sorts the batch, lets the policy decide which to run, and runs them at
+     * the replay rate.
+     */
+    private void replay(List<Missed> batch){
+        Collections.sort(batch, BY_DUE);
+        List<Missed> toRun = new ArrayList<Missed>(batch.size());
+        List<Missed> toSkip = new ArrayList<Missed>();
+        this.choose(batch, toRun, toSkip);
+
+        synchronized(lock){
+            skippedCount += toSkip.size();
+        }
+        Logger.getLogger(CatchUpAlarmStarter.class.getName()).log(Level.INFO,
+                "Catching up on {0} missed alarms, running {1} and skipping {2}",
+                new Object[]{ batch.size(), toRun.size(), toSkip.size() });
+
+        AlarmListener listener = skippedListener;
+        if(listener != null){
+            for(Missed m : toSkip){
+                if(m.recurring)
+                    continue;
+                skippedAlarms.put(m.alarm.getId(), m.alarm);
+                dispatcher.dispatch(m.alarm, AlarmDispatcher.notifying(listener, m.alarm));
+            }
+        }
+
+        long nextNanos = System.nanoTime();
+        for(Missed m : toRun){
+            long waitNanos = nextNanos - System.nanoTime();
+            if(waitNanos > 0){
+                try {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+            synchronized(lock){
+                if(shutdown)
+                    return;
+                replayedCount++;
+            }
+            //the dispatcher catches anything the callback throws
+            dispatcher.dispatch(m.alarm, m.whenFinished);
+            nextNanos = Math.max(nextNanos, System.nanoTime() - replayIntervalNanos) + replayIntervalNanos;
+        }
+    }
+
+    /**
+     * Splits a batch of missed alarms, sorted oldest first, into the ones the
+     * policy runs and the ones it skips.
+     */
+    private void choose(List<Missed> batch, List<Missed> toRun, List<Missed> toSkip){
+        switch(policy){
+            case LATEST_PER_PATH:
+                //the last one for each path wins, since they're oldest first
+                Map<Integer, Missed> latest = new HashMap<Integer, Missed>();
+                for(Missed m : batch){
+                    Missed older = latest.put(m.alarm.getPathId(), m);
+                    if(older != null)
+                        toSkip.add(older);
+                }
+                for(Missed m : batch){
+                    if(latest.get(m.alarm.getPathId()) == m)
+                        toRun.add(m);
+                }
+                break;
+
+            case SKIP_OLDER_THAN:
+                long oldest = System.currentTimeMillis() - maxAgeMillis;
+                for(Missed m : batch){
+                    if(m.dueMillis < oldest)
+                        toSkip.add(m);
+                    else
+                        toRun.add(m);
+                }
+                break;
+
+            default:
+                toRun.addAll(batch);
+                break;
+        }
+    }
+}
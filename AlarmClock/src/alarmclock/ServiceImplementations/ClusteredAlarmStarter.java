@@ -0,0 +1,686 @@
+package alarmclock.ServiceImplementations;
+
+import alarmclock.models.AlarmBatchResult;
+import alarmclock.models.Lease;
+import alarmclock.models.RecurringAlarm;
+import alarmclock.models.SetAlarm;
+import alarmclock.services.AlarmListener;
+import alarmclock.services.AlarmStarter;
+import alarmclock.services.LeaseStore;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.joda.time.DateTime;
+
+/**
+ * This class is an AlarmStarter for running the same alarms on several
+ * computers ("nodes") at once, so that if one of them dies the alarms still go
+ * off, but each alarm only goes off on one of them.
+ * <p/>
+ * Every node is given every alarm.  The alarms are split into a fixed number
+ * of partitions by their time and path, which works out the same on every
+ * node, and each partition is owned by one node at a time.  A node only
+ * schedules the alarms in the partitions it owns, with the AlarmStarter it
+ * wraps, and just remembers the rest in case it has to take them over.
+ * <p/>
+ * Who owns what is kept in a LeaseStore.  Each node holds a lease on each of
+ * its partitions, plus a membership lease so the others know it's alive, and
+ * a background thread renews them several times per lease.  Each node tries
+ * to own its fair share of the partitions: when a node joins, the others give
+ * some back, and when a node dies its leases run out and the others take its
+ * partitions over.  An alarm only goes off while its node's lease is good.
+ * <p/>
+ * Each partition's lease also carries a checkpoint, before which every alarm
+ * has already gone off.  A node taking a partition over throws away the
+ * alarms before the checkpoint, fires any after it which are already due,
+ * and schedules the rest.  The owner moves the checkpoint forward in the
+ * lease store before it runs an alarm's callback, so even if it dies right
+ * after, the new owner won't fire that alarm again.  Alarms in a partition
+ * due at the same millisecond go together under one checkpoint.
+ * <p/>
+ * That makes each alarm go off at most once.  The one it gives up is an
+ * alarm whose checkpoint was saved but whose callback hadn't run yet when its
+ * node died, which goes off nowhere.  If the checkpoint can't be saved the
+ * alarm isn't fired yet, and it's tried again after the next renewal.
+ * <p/>
+ * A recurring alarm stays in the partition of its first alarm, with just the
+ * next time it goes off in there.  Each time that one goes off, every node
+ * puts the time after it in its place: the owner when it fires it, and the
+ * others when the checkpoint passes it.  They all work it out from the same
+ * times, so they all agree.  Times missed while nobody could fire them are
+ * skipped, and it goes off once for them.
+ * <p/>
+ * Cancelling an alarm has to be done on every node, just like starting it.
+ *
+ * This class Does Something.
+ * @author Gordon
+ */
+public class ClusteredAlarmStarter implements AlarmStarter {
+
+    private static final String MEMBER_PREFIX = "member/";
+    private static final String PARTITION_PREFIX = "partition/";
+
+    private final AlarmStarter delegate;
+    private final LeaseStore leases;
+    private final String nodeId;
+    private final long leaseMillis;
+    private final Partition[] partitions;
+
+    /** The callback for each alarm we know about, by alarm id. */
+    private final ConcurrentLongMap<Runnable> callbacks = new ConcurrentLongMap<Runnable>();
+    /** The task from the wrapped AlarmStarter for each scheduled alarm, by alarm id. */
+    private final ConcurrentLongMap<TimerTask> tasks = new ConcurrentLongMap<TimerTask>();
+    /** The recurring alarms we know about, by the id of their first alarm. */
+    private final ConcurrentLongMap<Recurrence> recurrences = new ConcurrentLongMap<Recurrence>();
+
+    private final AtomicLong firedCount = new AtomicLong();
+
+    private volatile boolean running = true;
+    private final Thread thread;
+
+    /**
+     * Creates a ClusteredAlarmStarter and starts its lease thread.
+     * @param delegate the AlarmStarter which schedules the alarms this node owns
+     * @param leases the LeaseStore shared by all the nodes
+     * @param nodeId the name of this node, which must be different on every node
+     * @param partitionCount the number of partitions, which must be the same
+     * on every node.  It should be a few times the number of nodes.
+     * @param leaseMillis how long a lease lasts.  A dead node's partitions are
+     * taken over within about this long.
+     */
+    public ClusteredAlarmStarter(AlarmStarter delegate, LeaseStore leases, String nodeId,
+            int partitionCount, long leaseMillis)
+    {
+        if(partitionCount <= 0)
+            throw new IllegalArgumentException("need at least one partition");
+        if(leaseMillis < 3)
+            throw new IllegalArgumentException("the lease is too short");
+
+        this.delegate = delegate;
+        this.leases = leases;
+        this.nodeId = nodeId;
+        this.leaseMillis = leaseMillis;
+        this.partitions = new Partition[partitionCount];
+        for(int i = 0; i < partitionCount; i++){
+            partitions[i] = new Partition(PARTITION_PREFIX + i);
+        }
+
+        thread = AlarmDispatcher.daemonThreadFactory("ClusteredAlarmStarter-" + nodeId).newThread(new Runnable(){
+            @Override
+            public void run() {
+                ClusteredAlarmStarter.this.runLoop();
+            }
+        });
+        thread.start();
+    }
+
+    public String getNodeId(){
+        return nodeId;
+    }
+
+    /** @return the number of partitions this node owns right now. */
+    public int getOwnedPartitionCount(){
+        int ret = 0;
+        for(Partition p : partitions){
+            if(p.isOwned())
+                ret++;
+        }
+        return ret;
+    }
+
+    /** @return the number of alarms which have gone off on this node. */
+    public long getFiredCount(){
+        return firedCount.get();
+    }
+
+    /**
+     * Stops the lease thread and hands all of this node's partitions to the
+     * other nodes.  The alarms stop going off here right away.
+     */
+    public void shutdown(){
+        this.stopThread();
+        for(Partition p : partitions){
+            if(p.isOwned())
+                this.giveBack(p);
+        }
+        try {
+            long now = System.currentTimeMillis();
+            leases.release(MEMBER_PREFIX + nodeId, nodeId, now, now);
+        } catch (IOException ex) {
+            Logger.getLogger(ClusteredAlarmStarter.class.getName()).log(Level.WARNING,
+                    "Could not leave the cluster, the others will notice when the lease runs out", ex);
+        }
+    }
+
+    /**
+     * Stops the lease thread and stops firing alarms without telling anyone,
+     * like the node died.  The other nodes take over once the leases run out.
+     */
+    void abandon(){
+        this.stopThread();
+        for(Partition p : partitions){
+            this.lose(p);
+        }
+    }
+
+    private void stopThread(){
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Works out which partition an alarm is in.  This has to come out the
+     * same on every node, so it uses the path's String hashCode, which Java
+     * defines exactly, rather than anything only this JVM knows like the
+     * alarm's id or its PathDictionary number.  Every time a recurring alarm
+     * goes off is in the partition of its first alarm.
+     */
+    private Partition partitionOf(SetAlarm alarm){
+        Recurrence recurrence = recurrences.get(alarm.getId());
+        if(recurrence != null)
+            alarm = recurrence.alarm.getFirst();
+        String path = alarm.getPath();
+        long time = alarm.getTimeMillis();
+        int h = 31 * (path == null ? 0 : path.hashCode()) + (int)(time ^ (time >>> 32));
+        h ^= h >>> 16;
+        return partitions[(h & 0x7fffffff) % partitions.length];
+    }
+
+    @Override
+    public SetAlarm createAlarm(DateTime alarmDate, String exePath)
+    {
+        return delegate.createAlarm(alarmDate, exePath);
+    }
+
+    /**
+     * Starts an alarm.  It's only scheduled if this node owns its partition,
+     * but it's remembered either way in case this node takes it over.
+     */
+    @Override
+    public TimerTask startAlarm(SetAlarm alarm, Runnable whenFinished)
+            throws Exception
+    {
+        return this.start(alarm, whenFinished, null);
+    }
+
+    /**
+     * Starts a recurring alarm.  Like a one-off alarm, it's only scheduled
+     * if this node owns its partition.
+     */
+    @Override
+    public TimerTask startRecurringAlarm(RecurringAlarm alarm, Runnable whenFinished)
+            throws Exception
+    {
+        return this.start(alarm.getFirst(), whenFinished, new Recurrence(alarm));
+    }
+
+    /**
+     * Puts an alarm in its partition, and schedules it if we own the partition.
+     * @param recurrence the recurring alarm it's the first time of, or null
+     */
+    private TimerTask start(SetAlarm alarm, Runnable whenFinished, Recurrence recurrence)
+            throws Exception
+    {
+        long millis = alarm.getTimeMillis() - System.currentTimeMillis();
+        if(millis < 0 || millis > SetAlarm.MAX_FUTURE_SCHEDULING_MILLIS)
+            throw new UnsupportedOperationException("can't schedule for " + millis + "from now");
+        if(callbacks.putIfAbsent(alarm.getId(), whenFinished) != null)
+            throw new UnsupportedOperationException("Already scheduled once");
+        if(recurrence != null){
+            recurrence.next = alarm;
+            recurrences.put(alarm.getId(), recurrence);
+        }
+
+        Partition p = this.partitionOf(alarm);
+        synchronized(p){
+            p.alarms.add(alarm);
+            if(p.owned){
+                try{
+                    this.schedule(p, alarm);
+                }catch(Exception ex){
+                    p.alarms.remove(alarm);
+                    recurrences.remove(alarm.getId());
+                    callbacks.remove(alarm.getId());
+                    throw ex;
+                }
+            }
+        }
+        return new ClusteredTask(alarm);
+    }
+
+    /**
+     * Cancels an alarm.  A recurring alarm is cancelled by its first alarm,
+     * and whichever time it's up to is taken out.
+     */
+    @Override
+    public boolean cancelAlarm(SetAlarm alarm){
+        Partition p = this.partitionOf(alarm);
+        boolean removed;
+        synchronized(p){
+            Recurrence recurrence = recurrences.get(alarm.getId());
+            if(recurrence != null){
+                removed = p.alarms.remove(recurrence.next);
+                recurrences.remove(alarm.getId());
+            }else{
+                removed = p.alarms.remove(alarm);
+            }
+        }
+        if(!removed)
+            return false;
+
+        callbacks.remove(alarm.getId());
+        TimerTask task = tasks.remove(alarm.getId());
+        if(task != null)
+            task.cancel();
+        return true;
+    }
+
+    @Override
+    public AlarmBatchResult startAlarms(Collection<SetAlarm> alarms, final AlarmListener whenFinished){
+        AlarmBatchResult result = new AlarmBatchResult(alarms.size());
+        int index = 0;
+        for(final SetAlarm alarm : alarms){
+            try{
+                TimerTask task = this.startAlarm(alarm, new Runnable(){
+                    @Override
+                    public void run() {
+                        whenFinished.alarmFinished(alarm);
+                    }
+                });
+                result.setStarted(index, alarm, task);
+            }catch(Exception ex){
+                result.setFailed(index, alarm, ex);
+            }
+            index++;
+        }
+        return result;
+    }
+
+    @Override
+    public boolean[] cancelAlarms(Collection<SetAlarm> alarms){
+        boolean[] result = new boolean[alarms.size()];
+        int index = 0;
+        for(SetAlarm alarm : alarms){
+            result[index++] = this.cancelAlarm(alarm);
+        }
+        return result;
+    }
+
+    /**
+     * Schedules an alarm with the wrapped AlarmStarter.  Must be called while
+     * holding the partition's lock.
+     */
+    private void schedule(final Partition p, final SetAlarm alarm) throws Exception {
+        TimerTask task = delegate.startAlarm(alarm, new Runnable(){
+            @Override
+            public void run() {
+                ClusteredAlarmStarter.this.fire(p, alarm.getTimeMillis());
+            }
+        });
+        tasks.put(alarm.getId(), task);
+    }
+
+    /**
+     * Runs the callbacks of every alarm in a partition due at or before the
+     * given time, but only if this node still holds the lease on the
+     * partition.  Taking them out of the partition is what makes them ours to
+     * fire, so one can't go off twice here even if it's fired from two places
+     * at once.
+     * <p/>
+     * Before any callback runs, the partition's checkpoint is saved past them,
+     * so that the next owner won't fire them again.  They all go together so
+     * that one checkpoint covers every alarm at the same millisecond.
+     */
+    private void fire(Partition p, long through){
+        List<SetAlarm> due = new ArrayList<SetAlarm>();
+        List<Runnable> toRun = new ArrayList<Runnable>();
+        synchronized(p){
+            if(!p.owned || System.currentTimeMillis() >= p.expiresMillis)
+                return;     //the next owner will fire them
+            for(SetAlarm alarm : p.alarms){
+                if(alarm.getTimeMillis() > through)
+                    break;
+                due.add(alarm);
+            }
+            if(due.isEmpty())
+                return;
+            p.alarms.removeAll(due);
+
+            boolean saved = false;
+            try{
+                if(leases.tryAcquire(p.leaseName, nodeId, p.expiresMillis, through) != null){
+                    saved = true;
+                }else{
+                    //ours ran out and somebody else took it
+                    p.owned = false;
+                }
+            }catch(IOException ex){
+                Logger.getLogger(ClusteredAlarmStarter.class.getName()).log(Level.WARNING,
+                        "Could not save the checkpoint for " + p.leaseName + ", its alarms will go off later", ex);
+            }
+            if(!saved){
+                //put them back.  If we still have the lease they're fired
+                //after the next renewal, otherwise the next owner fires them.
+                p.alarms.addAll(due);
+                if(!p.owned)
+                    this.cancelTasks(p);
+                return;
+            }
+
+            for(SetAlarm alarm : due){
+                TimerTask task = tasks.remove(alarm.getId());
+                if(task != null)
+                    task.cancel();
+                //a recurring alarm keeps its callback for the next time
+                Runnable callback = this.rearm(p, alarm, through) ?
+                        callbacks.get(alarm.getId()) : callbacks.remove(alarm.getId());
+                if(callback != null)
+                    toRun.add(callback);
+            }
+        }
+
+        for(Runnable callback : toRun){
+            firedCount.incrementAndGet();
+            callback.run();
+        }
+    }
+
+    /**
+     * If the alarm is one time of a recurring alarm, puts the next time after
+     * both it and the checkpoint into the partition in its place, and
+     * schedules that if we own the partition.  If it's already due, the lease
+     * thread fires it after the next renewal.  Must be called while holding
+     * the partition's lock.
+     * @return false if the alarm isn't recurring.
+     */
+    private boolean rearm(Partition p, SetAlarm alarm, long checkpoint){
+        Recurrence recurrence = recurrences.get(alarm.getId());
+        if(recurrence == null)
+            return false;
+
+        //it keeps the id of the first alarm, which is what it's cancelled by
+        long after = Math.max(alarm.getTimeMillis(), checkpoint);
+        SetAlarm next = new SetAlarm(alarm.getId(), recurrence.alarm.nextAfter(after),
+                alarm.getZone(), alarm.getPath());
+        recurrence.next = next;
+        p.alarms.add(next);
+        if(p.owned && next.getTimeMillis() > System.currentTimeMillis()){
+            try{
+                this.schedule(p, next);
+            }catch(Exception ex){
+                Logger.getLogger(ClusteredAlarmStarter.class.getName()).log(Level.WARNING,
+                        "Could not schedule alarm for " + next.getPath(), ex);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * This is the main loop of the lease thread.
+     */
+    private void runLoop(){
+        while(running){
+            try{
+                this.rebalance();
+            }catch(IOException ex){
+                //if this keeps up our leases run out and we stop firing, which is safe
+                Logger.getLogger(ClusteredAlarmStarter.class.getName()).log(Level.WARNING,
+                        "Could not reach the lease store", ex);
+            }catch(RuntimeException ex){
+                Logger.getLogger(ClusteredAlarmStarter.class.getName()).log(Level.SEVERE,
+                        "Rebalancing failed", ex);
+            }
+
+            try {
+                Thread.sleep(leaseMillis / 3);
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Renews this node's leases, gives back partitions beyond its fair share,
+     * takes unowned ones up to its fair share, and forgets alarms the other
+     * nodes have already fired.
+     */
+    void rebalance() throws IOException {
+        long now = System.currentTimeMillis();
+        long expires = now + leaseMillis;
+
+        leases.tryAcquire(MEMBER_PREFIX + nodeId, nodeId, expires, now);
+        int live = 0;
+        for(Lease member : leases.getLeases(MEMBER_PREFIX).values()){
+            if(member.isHeldAt(now))
+                live++;
+        }
+        int share = (partitions.length + Math.max(live, 1) - 1) / Math.max(live, 1);
+
+        //renew what we have, and give back anything beyond our share
+        int owned = 0;
+        for(Partition p : partitions){
+            if(!p.isOwned())
+                continue;
+            if(owned >= share){
+                this.giveBack(p);
+                continue;
+            }
+            Lease renewed;
+            synchronized(p){
+                //under the partition's lock, so it doesn't race with fire()
+                //saving a checkpoint
+                renewed = leases.tryAcquire(p.leaseName, nodeId, expires, this.checkpoint(p, now));
+                if(renewed != null)
+                    p.expiresMillis = renewed.getExpiresMillis();
+            }
+            if(renewed == null){
+                //ours ran out and somebody else took it
+                this.lose(p);
+                continue;
+            }
+            owned++;
+            //fire anything that's overdue, like ones which came due while
+            //our lease had run out before we got it back
+            this.fire(p, now);
+        }
+
+        //take unowned partitions up to our share, starting at a different
+        //place on each node so they don't all fight over the same ones
+        Map<String, Lease> current = leases.getLeases(PARTITION_PREFIX);
+        int start = (nodeId.hashCode() & 0x7fffffff) % partitions.length;
+        for(int i = 0; i < partitions.length && owned < share; i++){
+            Partition p = partitions[(start + i) % partitions.length];
+            if(p.isOwned())
+                continue;
+            Lease lease = current.get(p.leaseName);
+            if(lease != null && lease.isHeldAt(now) && !lease.getOwner().equals(nodeId))
+                continue;
+
+            Lease taken = leases.tryAcquire(p.leaseName, nodeId, expires, 0);
+            if(taken != null){
+                this.takeOver(p, taken, now);
+                owned++;
+            }
+        }
+
+        //forget what the other nodes have already fired
+        for(Partition p : partitions){
+            Lease lease = current.get(p.leaseName);
+            if(lease != null && !p.isOwned())
+                this.dropThrough(p, lease.getCheckpointMillis());
+        }
+    }
+
+    /**
+     * Starts firing the alarms in a partition we just got the lease on.
+     */
+    private void takeOver(Partition p, Lease lease, long now){
+        synchronized(p){
+            p.owned = true;
+            p.expiresMillis = lease.getExpiresMillis();
+            this.dropThrough(p, lease.getCheckpointMillis());
+            for(SetAlarm alarm : p.alarms){
+                if(alarm.getTimeMillis() <= now || tasks.containsKey(alarm.getId()))
+                    continue;
+                try{
+                    this.schedule(p, alarm);
+                }catch(Exception ex){
+                    Logger.getLogger(ClusteredAlarmStarter.class.getName()).log(Level.WARNING,
+                            "Could not schedule alarm for " + alarm.getPath(), ex);
+                }
+            }
+        }
+        this.fire(p, now);
+    }
+
+    /**
+     * Forgets the alarms in a partition due at or before a checkpoint, since
+     * they've gone off already.  Recurring alarms move on to their next time.
+     */
+    private void dropThrough(Partition p, long checkpoint){
+        synchronized(p){
+            Iterator<SetAlarm> it = p.alarms.iterator();
+            while(it.hasNext()){
+                SetAlarm alarm = it.next();
+                if(alarm.getTimeMillis() > checkpoint)
+                    break;
+                if(p.alarms.remove(alarm) && !this.rearm(p, alarm, checkpoint))
+                    callbacks.remove(alarm.getId());
+            }
+        }
+    }
+
+    /**
+     * Works out a partition's checkpoint: now, or just before the first alarm
+     * which hasn't gone off yet if that's earlier.
+     */
+    private long checkpoint(Partition p, long now){
+        Iterator<SetAlarm> it = p.alarms.iterator();
+        if(!it.hasNext())
+            return now;
+        return Math.min(now, it.next().getTimeMillis() - 1);
+    }
+
+    /**
+     * Hands a partition over to the other nodes.  We stop firing first, so
+     * the checkpoint we give back is exact.
+     */
+    private void giveBack(Partition p){
+        long at;
+        long checkpoint;
+        synchronized(p){
+            at = System.currentTimeMillis();
+            p.owned = false;
+            p.expiresMillis = at;
+            checkpoint = this.checkpoint(p, at);
+            this.cancelTasks(p);
+        }
+        try {
+            leases.release(p.leaseName, nodeId, at, checkpoint);
+        } catch (IOException ex) {
+            Logger.getLogger(ClusteredAlarmStarter.class.getName()).log(Level.WARNING,
+                    "Could not give back " + p.leaseName + ", it will run out by itself", ex);
+        }
+    }
+
+    /**
+     * Stops firing a partition whose lease we no longer have.
+     */
+    private void lose(Partition p){
+        synchronized(p){
+            p.owned = false;
+            this.cancelTasks(p);
+        }
+    }
+
+    private void cancelTasks(Partition p){
+        for(SetAlarm alarm : p.alarms){
+            TimerTask task = tasks.remove(alarm.getId());
+            if(task != null)
+                task.cancel();
+        }
+    }
+
+    /**
+     * This is one partition of the alarms.  The alarms are sorted by time,
+     * so the ones due first are at the front.
+     */
+    private static final class Partition {
+        final String leaseName;
+        final ConcurrentSkipListSet<SetAlarm> alarms =
+                new ConcurrentSkipListSet<SetAlarm>(IndexedAlarmStarter.BY_TIME);
+
+        /* These are guarded by the partition's lock. */
+        boolean owned = false;
+        long expiresMillis = 0;
+
+        Partition(String leaseName){
+            this.leaseName = leaseName;
+        }
+
+        synchronized boolean isOwned(){
+            return owned;
+        }
+    }
+
+    /**
+     * This is a recurring alarm, along with the next time it goes off, which
+     * is the one in its partition.
+     */
+    private static final class Recurrence {
+        final RecurringAlarm alarm;
+        /* Changed while holding the partition's lock. */
+        volatile SetAlarm next;
+
+        Recurrence(RecurringAlarm alarm){
+            this.alarm = alarm;
+        }
+    }
+
+    /**
+     * This is the task returned for each alarm, whichever node ends up
+     * firing it.  For a recurring alarm it stands for the whole series.
+     */
+    private class ClusteredTask extends TimerTask {
+        private final SetAlarm alarm;
+
+        ClusteredTask(SetAlarm alarm){
+            this.alarm = alarm;
+        }
+
+        @Override
+        public void run() {
+            ClusteredAlarmStarter.this.fire(ClusteredAlarmStarter.this.partitionOf(alarm),
+                    Math.min(this.current().getTimeMillis(), System.currentTimeMillis()));
+        }
+
+        @Override
+        public boolean cancel(){
+            return ClusteredAlarmStarter.this.cancelAlarm(alarm);
+        }
+
+        @Override
+        public long scheduledExecutionTime(){
+            return this.current().getTimeMillis();
+        }
+
+        /** @return the alarm, or the time a recurring alarm is up to. */
+        private SetAlarm current(){
+            Recurrence recurrence = recurrences.get(alarm.getId());
+            return recurrence == null ? alarm : recurrence.next;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package alarmclock.ServiceImplementations;
+
+/**
+ * This class is a thread safe map from primitive long keys to values, which
+ * the AlarmStarters use to remember their running tasks by SetAlarm id.
+ * <p/>
+ * A ConcurrentHashMap keyed by SetAlarm has to call SetAlarm.hashCode and
+ * equals on every lookup, which hash and compare the alarm's time, zone and
+ * path number.  A ConcurrentHashMap keyed by Long boxes every id.  This map
+ * keeps the keys in a plain long array instead, and finds them by "open
+ * addressing": each key has a home position worked out from its bits, and if
+ * that position is taken it goes in the next free one along.  Looking up an
+ * alarm is a couple of multiplications and usually a single array read.
+ * <p/>
+ * Like ConcurrentHashMap, the map is split into stripes which are locked
+ * separately, so threads working on different alarms usually don't wait on
+ * each other.  Zero can't be used as a key, since it marks an empty position.
+ * <p/>
+ * Each stripe grows when it gets half full and shrinks again when it gets
+ * down to an eighth full, so a burst of alarms doesn't keep its memory after
+ * they have gone off.
+ *
+ * This class Does Something.
+ * @author Gordon
+ */
+final class ConcurrentLongMap<V> {
+
+    private static final int STRIPE_BITS = 4;
+    private static final int STRIPES = 1 << STRIPE_BITS;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    ConcurrentLongMap(){
+        for(int i = 0; i < STRIPES; i++){
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Scrambles the bits of a key, since ids handed out in order only differ
+     * in their low bits.  This is the finishing step of the MurmurHash3 hash.
+     */
+    private static long mix(long key){
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private Stripe stripeFor(long hash){
+        //the top bits pick the stripe, the bottom bits the position in it
+        return stripes[(int)(hash >>> (64 - STRIPE_BITS))];
+    }
+
+    private static long checkKey(long key){
+        if(key == 0)
+            throw new IllegalArgumentException("zero can't be used as a key");
+        return key;
+    }
+
+    /**
+     * @return the value for the key, or null if there isn't one.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key){
+        long hash = mix(checkKey(key));
+        return (V)this.stripeFor(hash).get(key, hash);
+    }
+
+    public boolean containsKey(long key){
+        return this.get(key) != null;
+    }
+
+    /**
+     * Maps the key to the value, unless it's already mapped to something.
+     * @return the value it was already mapped to, or null if it wasn't.
+     */
+    @SuppressWarnings("unchecked")
+    public V putIfAbsent(long key, V value){
+        if(value == null)
+            throw new NullPointerException("value");
+        long hash = mix(checkKey(key));
+        return (V)this.stripeFor(hash).put(key, hash, value, true);
+    }
+
+    /**
+     * Maps the key to the value, replacing anything it was mapped to.
+     * @return the value it was mapped to before, or null if it wasn't.
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value){
+        if(value == null)
+            throw new NullPointerException("value");
+        long hash = mix(checkKey(key));
+        return (V)this.stripeFor(hash).put(key, hash, value, false);
+    }
+
+    /**
+     * Removes the key.
+     * @return the value it was mapped to, or null if it wasn't.
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key){
+        long hash = mix(checkKey(key));
+        return (V)this.stripeFor(hash).remove(key, hash, null);
+    }
+
+    /**
+     * Removes the key, but only if it's mapped to the given value.
+     * @return true if it was removed.
+     */
+    public boolean remove(long key, V value){
+        if(value == null)
+            return false;
+        long hash = mix(checkKey(key));
+        return this.stripeFor(hash).remove(key, hash, value) != null;
+    }
+
+    /**
+     * Maps the key to a new value, but only if it's mapped to the expected one.
+     * @return true if it was replaced.
+     */
+    public boolean replace(long key, V expected, V value){
+        if(expected == null || value == null)
+            throw new NullPointerException("value");
+        long hash = mix(checkKey(key));
+        return this.stripeFor(hash).replace(key, hash, expected, value);
+    }
+
+    /**
+     * @return the number of keys in the map.  If other threads are changing
+     * the map this is only approximate.
+     */
+    public int size(){
+        int ret = 0;
+        for(Stripe stripe : stripes){
+            ret += stripe.count;
+        }
+        return ret;
+    }
+
+    /**
+     * @return the number of positions in all the stripes, taken or not.
+     */
+    int capacity(){
+        int ret = 0;
+        for(Stripe stripe : stripes){
+            ret += stripe.capacity();
+        }
+        return ret;
+    }
+
+    /**
+     * This is one separately locked part of the map, which is a simple open
+     * addressing hash table with linear probing.
+     */
+    private static final class Stripe {
+        private static final int MIN_CAPACITY = 16;
+
+        private long[] keys = new long[MIN_CAPACITY];
+        private Object[] values = new Object[MIN_CAPACITY];
+        private volatile int count = 0;
+
+        synchronized Object get(long key, long hash){
+            int mask = keys.length - 1;
+            for(int i = (int)hash & mask; ; i = (i + 1) & mask){
+                long k = keys[i];
+                if(k == key)
+                    return values[i];
+                if(k == 0)
+                    return null;
+            }
+        }
+
+        synchronized Object put(long key, long hash, Object value, boolean onlyIfAbsent){
+            int mask = keys.length - 1;
+            int i = (int)hash & mask;
+            for(; keys[i] != 0; i = (i + 1) & mask){
+                if(keys[i] == key){
+                    Object old = values[i];
+                    if(!onlyIfAbsent)
+                        values[i] = value;
+                    return old;
+                }
+            }
+
+            keys[i] = key;
+            values[i] = value;
+            count++;
+            //keep it at most half full, so the runs of taken positions stay short
+            if(count * 2 > keys.length)
+                this.resize(keys.length * 2);
+            return null;
+        }
+
+        synchronized boolean replace(long key, long hash, Object expected, Object value){
+            int mask = keys.length - 1;
+            for(int i = (int)hash & mask; keys[i] != 0; i = (i + 1) & mask){
+                if(keys[i] == key){
+                    if(values[i] != expected)
+                        return false;
+                    values[i] = value;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Removes the key, if it's mapped to the expected value or if the
+         * expected value is null.
+         */
+        synchronized Object remove(long key, long hash, Object expected){
+            int mask = keys.length - 1;
+            int i = (int)hash & mask;
+            for(; keys[i] != key; i = (i + 1) & mask){
+                if(keys[i] == 0)
+                    return null;
+            }
+            Object old = values[i];
+            if(expected != null && expected != old)
+                return null;
+
+            //Close the hole by moving back any key further along the run
+            //which would no longer be found past the empty position.
+            int hole = i;
+            for(int j = (hole + 1) & mask; keys[j] != 0; j = (j + 1) & mask){
+                int home = (int)mix(keys[j]) & mask;
+                //it can move back if its home isn't cyclically between the hole and here
+                boolean between = hole <= j ? (hole < home && home <= j) : (hole < home || home <= j);
+                if(!between){
+                    keys[hole] = keys[j];
+                    values[hole] = values[j];
+                    hole = j;
+                }
+            }
+            keys[hole] = 0;
+            values[hole] = null;
+            count--;
+            //Shrinking at an eighth rather than just under half means it
+            //is a quarter full afterwards, so it doesn't grow straight back.
+            if(keys.length > MIN_CAPACITY && count * 8 < keys.length)
+                this.resize(keys.length / 2);
+            return old;
+        }
+
+        synchronized int capacity(){
+            return keys.length;
+        }
+
+        private void resize(int length){
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new long[length];
+            values = new Object[length];
+            int mask = keys.length - 1;
+            for(int j = 0; j < oldKeys.length; j++){
+                long key = oldKeys[j];
+                if(key == 0)
+                    continue;
+                int i = (int)mix(key) & mask;
+                while(keys[i] != 0){
+                    i = (i + 1) & mask;
+                }
+                keys[i] = key;
+                values[i] = oldValues[j];
+            }
+        }
+    }
+}
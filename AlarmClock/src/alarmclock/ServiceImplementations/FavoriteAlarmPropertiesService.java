@@ -84,7 +84,7 @@ public class FavoriteAlarmPropertiesService implements FavoriteAlarmService{
             new Comparator<FavoriteAlarm>(){
                 @Override
                 public int compare(FavoriteAlarm o1, FavoriteAlarm o2) {
-                    return o1.getTimeOfDay().compareTo(o2.getTimeOfDay());
+                    return o1.getMinuteOfDay() - o2.getMinuteOfDay();
                 }
             });
 
@@ -219,9 +219,7 @@ public class FavoriteAlarmPropertiesService implements FavoriteAlarmService{
             //Pull the exePath out of the second part of the string.
             String exePath = strs[1];
 
-            LocalTime localTime = time.toLocalTime();
-
-            return new FavoriteAlarm(localTime, exePath);
+            return new FavoriteAlarm(time.getMinuteOfDay(), exePath);
 
         } catch (Exception ex) {
             //if there is an error, log it and return a null value indicating we could
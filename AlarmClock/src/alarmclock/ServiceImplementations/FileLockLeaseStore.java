@@ -0,0 +1,177 @@
+package alarmclock.ServiceImplementations;
+
+import alarmclock.models.Lease;
+import alarmclock.services.LeaseStore;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class is a LeaseStore kept in one small file, for trying out a cluster
+ * of nodes on one computer, or in tests.  Every call locks the file, reads all
+ * the leases, changes them and writes them all back, so it's only meant for a
+ * few dozen leases.  A real cluster would keep its leases in a database or a
+ * coordination service instead.
+ * <p/>
+ * The file is locked with a FileLock, which keeps other programs out while
+ * we're using it.  A FileLock belongs to the whole JVM though, and trying to
+ * lock the same file twice in one JVM throws an exception instead of waiting,
+ * so all the FileLockLeaseStores for one file in this JVM also share a
+ * plain Java lock.
+ *
+ * This class Does Something.
+ * @author Gordon
+ */
+public class FileLockLeaseStore implements LeaseStore {
+
+    /** The Java lock for each file, by its canonical path. */
+    private static final ConcurrentHashMap<String, Object> fileLocks =
+            new ConcurrentHashMap<String, Object>();
+
+    private final File file;
+    private final Object lock;
+
+    /**
+     * Creates a FileLockLeaseStore.
+     * @param file the file to keep the leases in.  It's created if it doesn't
+     * exist.
+     * @throws IOException if the file's path can't be worked out
+     */
+    public FileLockLeaseStore(File file) throws IOException {
+        this.file = file.getCanonicalFile();
+        Object newLock = new Object();
+        Object existing = fileLocks.putIfAbsent(this.file.getPath(), newLock);
+        this.lock = existing == null ? newLock : existing;
+    }
+
+    @Override
+    public Lease tryAcquire(String name, String owner, long expiresMillis, long checkpointMillis)
+            throws IOException
+    {
+        synchronized(lock){
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try{
+                FileLock fileLock = raf.getChannel().lock();
+                try{
+                    Map<String, Lease> leases = read(raf);
+                    Lease old = leases.get(name);
+                    if(old != null && !old.getOwner().equals(owner)
+                            && old.isHeldAt(System.currentTimeMillis()))
+                        return null;
+
+                    long checkpoint = old == null ? checkpointMillis
+                            : Math.max(old.getCheckpointMillis(), checkpointMillis);
+                    Lease ret = new Lease(name, owner, expiresMillis, checkpoint);
+                    leases.put(name, ret);
+                    write(raf, leases);
+                    return ret;
+                }finally{
+                    fileLock.release();
+                }
+            }finally{
+                raf.close();
+            }
+        }
+    }
+
+    @Override
+    public boolean release(String name, String owner, long atMillis, long checkpointMillis)
+            throws IOException
+    {
+        synchronized(lock){
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try{
+                FileLock fileLock = raf.getChannel().lock();
+                try{
+                    Map<String, Lease> leases = read(raf);
+                    Lease old = leases.get(name);
+                    if(old == null || !old.getOwner().equals(owner))
+                        return false;
+
+                    leases.put(name, new Lease(name, owner,
+                            Math.min(old.getExpiresMillis(), atMillis),
+                            Math.max(old.getCheckpointMillis(), checkpointMillis)));
+                    write(raf, leases);
+                    return true;
+                }finally{
+                    fileLock.release();
+                }
+            }finally{
+                raf.close();
+            }
+        }
+    }
+
+    @Override
+    public Map<String, Lease> getLeases(String prefix) throws IOException {
+        Map<String, Lease> all;
+        synchronized(lock){
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try{
+                //a shared lock is enough, since we're only reading
+                FileLock fileLock = raf.getChannel().lock(0, Long.MAX_VALUE, true);
+                try{
+                    all = read(raf);
+                }finally{
+                    fileLock.release();
+                }
+            }finally{
+                raf.close();
+            }
+        }
+
+        Map<String, Lease> ret = new TreeMap<String, Lease>();
+        for(Map.Entry<String, Lease> entry : all.entrySet()){
+            if(entry.getKey().startsWith(prefix))
+                ret.put(entry.getKey(), entry.getValue());
+        }
+        return ret;
+    }
+
+    /*
+     * The file is just the number of leases, then each lease one after the
+     * other.  An empty file has no leases.
+     */
+
+    private static Map<String, Lease> read(RandomAccessFile raf) throws IOException {
+        Map<String, Lease> ret = new TreeMap<String, Lease>();
+        if(raf.length() == 0)
+            return ret;
+
+        byte[] bytes = new byte[(int)raf.length()];
+        raf.seek(0);
+        raf.readFully(bytes);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        int count = in.readInt();
+        for(int i = 0; i < count; i++){
+            String name = in.readUTF();
+            ret.put(name, new Lease(name, in.readUTF(), in.readLong(), in.readLong()));
+        }
+        return ret;
+    }
+
+    private static void write(RandomAccessFile raf, Map<String, Lease> leases) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(leases.size());
+        for(Lease lease : leases.values()){
+            out.writeUTF(lease.getName());
+            out.writeUTF(lease.getOwner());
+            out.writeLong(lease.getExpiresMillis());
+            out.writeLong(lease.getCheckpointMillis());
+        }
+        out.flush();
+
+        raf.seek(0);
+        raf.write(bytes.toByteArray());
+        raf.setLength(bytes.size());
+    }
+}
@@ -0,0 +1,144 @@
+package alarmclock.ServiceImplementations;
+
+import alarmclock.models.AlarmBatchResult;
+import alarmclock.models.AlarmFuture;
+import alarmclock.models.SetAlarm;
+import alarmclock.services.AlarmListener;
+import alarmclock.services.AlarmStarter;
+import alarmclock.services.AsyncAlarmStarter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import org.joda.time.DateTime;
+
+/**
+ * This class is an AsyncAlarmStarter which uses any AlarmStarter to do the
+ * actual scheduling.  It's an Adapter: it turns the Runnable each alarm runs
+ * when it goes off into an AlarmFuture finishing, and cancelling the future
+ * into cancelling the alarm.
+ * <p/>
+ * The futures of the alarms which haven't gone off yet are kept by the id of
+ * their alarm, so that cancelAlarm can find them.  Each one is taken out
+ * when it finishes.
+ * <p/>
+ * Recurring alarms aren't supported, since a future can only finish once.
+ *
+ * This class Does Something.
+ * @author Gordon
+ */
+public class FutureAlarmStarter implements AsyncAlarmStarter {
+
+    private final AlarmStarter delegate;
+
+    /** The futures of the alarms which haven't gone off yet, by alarm id. */
+    private final ConcurrentLongMap<AlarmFuture> pending = new ConcurrentLongMap<AlarmFuture>();
+
+    /**
+     * Creates a FutureAlarmStarter.
+     * @param delegate the AlarmStarter which actually schedules the alarms
+     */
+    public FutureAlarmStarter(AlarmStarter delegate){
+        this.delegate = delegate;
+    }
+
+    /** @return how many alarms haven't finished yet. */
+    public int getPendingCount(){
+        return pending.size();
+    }
+
+    @Override
+    public SetAlarm createAlarm(DateTime alarmDate, String exePath) {
+        return delegate.createAlarm(alarmDate, exePath);
+    }
+
+    @Override
+    public AlarmFuture startAlarm(final SetAlarm alarm) {
+        final AlarmFuture future = this.track(alarm);
+        if(future.isDone())
+            return future;
+        try{
+            delegate.startAlarm(alarm, new Runnable(){
+                @Override
+                public void run() {
+                    future.fire(alarm);
+                }
+            });
+        }catch(Exception ex){
+            future.fail(ex);
+        }
+        return future;
+    }
+
+    @Override
+    public List<AlarmFuture> startAlarms(Collection<SetAlarm> alarms) {
+        List<AlarmFuture> ret = new ArrayList<AlarmFuture>(alarms.size());
+        for(SetAlarm alarm : alarms){
+            ret.add(this.track(alarm));
+        }
+
+        AlarmBatchResult result = delegate.startAlarms(alarms, new AlarmListener(){
+            @Override
+            public void alarmFinished(SetAlarm alarm) {
+                AlarmFuture future = pending.get(alarm.getId());
+                if(future != null)
+                    future.fire(alarm);
+            }
+        });
+
+        for(int i = 0; i < result.size(); i++){
+            Exception failure = result.getFailure(i);
+            if(failure != null)
+                ret.get(i).fail(failure);
+        }
+        return ret;
+    }
+
+    @Override
+    public boolean cancelAlarm(SetAlarm alarm) {
+        AlarmFuture future = pending.get(alarm.getId());
+        if(future == null)
+            return false;
+        return future.cancel(false);
+    }
+
+    /**
+     * Makes the future for an alarm, and remembers it until it's finished.
+     */
+    private AlarmFuture track(SetAlarm alarm){
+        TrackedFuture future = new TrackedFuture(alarm);
+
+        //an alarm which is already started keeps its own future
+        if(pending.putIfAbsent(alarm.getId(), future) != null)
+            future.fail(new IllegalArgumentException("Alarm already started: " + alarm));
+        return future;
+    }
+
+    /**
+     * This is the future for one of our alarms.  It cancels the alarm when
+     * it's cancelled, and forgets about itself before it finishes, so that
+     * anyone waiting on it sees it gone from the pending alarms.
+     */
+    private class TrackedFuture extends AlarmFuture {
+
+        TrackedFuture(SetAlarm alarm){
+            super(alarm);
+        }
+
+        @Override
+        protected boolean cancelAlarm(){
+            return delegate.cancelAlarm(this.getAlarm());
+        }
+
+        @Override
+        public boolean fire(SetAlarm fired){
+            pending.remove(this.getAlarm().getId(), this);
+            return super.fire(fired);
+        }
+
+        @Override
+        public boolean fail(Throwable reason){
+            pending.remove(this.getAlarm().getId(), this);
+            return super.fail(reason);
+        }
+    }
+}
@@ -0,0 +1,519 @@
+package alarmclock.ServiceImplementations;
+
+import alarmclock.models.AlarmBatchResult;
+import alarmclock.models.RecurringAlarm;
+import alarmclock.models.SetAlarm;
+import alarmclock.services.AlarmListener;
+import alarmclock.services.AlarmQueryService;
+import alarmclock.services.AlarmStarter;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.joda.time.DateTime;
+
+/**
+ * This class is an AlarmStarter which keeps an index of the alarms waiting to
+ * go off, so they can be looked up by time.  It's a Decorator like the
+ * MetricsAlarmStarter, so it can be put around any AlarmStarter, and it
+ * answers the questions in the AlarmQueryService.
+ * <p/>
+ * The pending alarms are kept in a ConcurrentSkipListMap sorted by the time
+ * they are due.  A skip list is a sorted linked list with extra "express
+ * lanes" of links that skip over many entries at once, so finding a time in
+ * it takes about log(n) steps, like a binary tree, but many threads can use it
+ * at once without locking the whole thing.  Asking for the alarms between two
+ * times just finds the first one and gives back a view from there, without
+ * copying anything.  The map is keyed by a small Key holding just the time and
+ * id of each alarm, so a query can look up a time with a Key of its own
+ * instead of making up a whole SetAlarm.
+ * <p/>
+ * Counting the alarms in a range would still mean walking through all of
+ * them, so the number due in each hour is also kept up to date in a second
+ * skip list, which has one entry per hour with alarms in it instead of one
+ * per alarm.
+ *
+ * This class Does Something.
+ * @author Gordon
+ */
+public class IndexedAlarmStarter implements AlarmStarter, AlarmQueryService {
+
+    private static final long HOUR_MILLIS = 60L * 60L * 1000L;
+
+    /**
+     * This sorts alarms by the time they are due.  Alarms due at the same
+     * time are sorted by id, so the set doesn't think they are the same.
+     * It's the same order the Keys sort in.
+     */
+    static final Comparator<SetAlarm> BY_TIME = new Comparator<SetAlarm>(){
+        @Override
+        public int compare(SetAlarm o1, SetAlarm o2) {
+            long t1 = o1.getTimeMillis();
+            long t2 = o2.getTimeMillis();
+            if(t1 != t2)
+                return t1 < t2 ? -1 : 1;
+            long id1 = o1.getId();
+            long id2 = o2.getId();
+            return id1 < id2 ? -1 : (id1 == id2 ? 0 : 1);
+        }
+    };
+
+    private final AlarmStarter delegate;
+
+    /** The pending alarms, sorted by when they are due. */
+    private final ConcurrentSkipListMap<Key, SetAlarm> pending = new ConcurrentSkipListMap<Key, SetAlarm>();
+
+    /**
+     * The number of pending alarms due in each hour, keyed by the start of the
+     * hour.  An hour is taken out once its last alarm goes, see unindex.
+     */
+    private final ConcurrentSkipListMap<Long, AtomicInteger> hourCounts =
+            new ConcurrentSkipListMap<Long, AtomicInteger>();
+
+    /**
+     * The entry in the index for each started alarm, by the id of the alarm
+     * that was started.  For a one-off alarm it's the alarm itself, and for a
+     * recurring alarm it's the next time it goes off.  Whoever takes an entry
+     * out of here is the one who takes it out of the index.
+     */
+    private final ConcurrentLongMap<SetAlarm> entries = new ConcurrentLongMap<SetAlarm>();
+
+    /** The recurring alarms which have been started, by the id of their first alarm. */
+    private final ConcurrentLongMap<RecurringAlarm> recurrences = new ConcurrentLongMap<RecurringAlarm>();
+
+    /**
+     * Creates an IndexedAlarmStarter.
+     * @param delegate the AlarmStarter which actually schedules the alarms
+     */
+    public IndexedAlarmStarter(AlarmStarter delegate){
+        this.delegate = delegate;
+    }
+
+    @Override
+    public SetAlarm createAlarm(DateTime alarmDate, String exePath)
+    {
+        return delegate.createAlarm(alarmDate, exePath);
+    }
+
+    /**
+     * Starts an alarm and adds it to the index.  It goes in the index first,
+     * in case it's due right away and goes off before startAlarm returns.
+     */
+    @Override
+    public TimerTask startAlarm(final SetAlarm alarm, final Runnable whenFinished)
+            throws Exception
+    {
+        //if it's already started, the wrapped AlarmStarter will say so
+        boolean added = this.add(alarm.getId(), alarm);
+        TimerTask task;
+        try{
+            task = delegate.startAlarm(alarm, new Runnable(){
+                @Override
+                public void run() {
+                    IndexedAlarmStarter.this.remove(alarm.getId());
+                    whenFinished.run();
+                }
+            });
+        }catch(Exception ex){
+            if(added)
+                this.remove(alarm.getId());
+            throw ex;
+        }
+        return new IndexedTask(task, alarm.getId());
+    }
+
+    /**
+     * Starts a recurring alarm.  Only the next time it goes off is in the
+     * index, and each time it goes off it's replaced by the one after.
+     */
+    @Override
+    public TimerTask startRecurringAlarm(final RecurringAlarm alarm, final Runnable whenFinished)
+            throws Exception
+    {
+        final SetAlarm first = alarm.getFirst();
+        boolean added = this.add(first.getId(), first);
+        if(added)
+            recurrences.put(first.getId(), alarm);
+        TimerTask task;
+        try{
+            task = delegate.startRecurringAlarm(alarm, new Runnable(){
+                @Override
+                public void run() {
+                    IndexedAlarmStarter.this.advance(first.getId(), alarm);
+                    whenFinished.run();
+                }
+            });
+        }catch(Exception ex){
+            if(added)
+                this.remove(first.getId());
+            throw ex;
+        }
+        return new IndexedTask(task, first.getId());
+    }
+
+    @Override
+    public boolean cancelAlarm(SetAlarm alarm){
+        boolean ret = delegate.cancelAlarm(alarm);
+        if(ret)
+            this.remove(alarm.getId());
+        return ret;
+    }
+
+    @Override
+    public AlarmBatchResult startAlarms(Collection<SetAlarm> alarms, final AlarmListener whenFinished){
+        //put them all in the index first, remembering which ones we added
+        boolean[] added = new boolean[alarms.size()];
+        int i = 0;
+        for(SetAlarm alarm : alarms){
+            added[i++] = this.add(alarm.getId(), alarm);
+        }
+
+        AlarmBatchResult result = delegate.startAlarms(alarms, new AlarmListener(){
+            @Override
+            public void alarmFinished(SetAlarm alarm) {
+                IndexedAlarmStarter.this.remove(alarm.getId());
+                whenFinished.alarmFinished(alarm);
+            }
+        });
+        for(i = 0; i < result.size(); i++){
+            if(added[i] && result.getFailure(i) != null)
+                this.remove(result.getAlarm(i).getId());
+        }
+        return result;
+    }
+
+    @Override
+    public boolean[] cancelAlarms(Collection<SetAlarm> alarms){
+        boolean[] result = delegate.cancelAlarms(alarms);
+        int i = 0;
+        for(SetAlarm alarm : alarms){
+            if(result[i++])
+                this.remove(alarm.getId());
+        }
+        return result;
+    }
+
+    /**
+     * Takes an alarm out of the index without cancelling it.  This is for
+     * alarms which went off but were dropped by a BoundedAlarmDispatcher, so
+     * their callback never ran and they would otherwise stay in the index
+     * forever.  A recurring alarm moves on to the next time it goes off.
+     * @param alarm the alarm which was dropped
+     */
+    public void forget(SetAlarm alarm){
+        RecurringAlarm recurrence = recurrences.get(alarm.getId());
+        if(recurrence != null)
+            this.advance(alarm.getId(), recurrence);
+        else
+            this.remove(alarm.getId());
+    }
+
+    @Override
+    public SortedSet<SetAlarm> getAlarmsBetween(long fromMillis, long toMillis){
+        toMillis = Math.max(fromMillis, toMillis);
+        return new AlarmView(pending.subMap(Key.before(fromMillis), Key.before(toMillis)));
+    }
+
+    @Override
+    public List<SetAlarm> getNextAlarms(long fromMillis, int count){
+        List<SetAlarm> ret = new ArrayList<SetAlarm>(Math.min(count, 64));
+        Iterator<SetAlarm> it = pending.tailMap(Key.before(fromMillis)).values().iterator();
+        while(ret.size() < count && it.hasNext()){
+            ret.add(it.next());
+        }
+        return ret;
+    }
+
+    @Override
+    public SortedMap<Long, Integer> getCountsPerHour(long fromMillis, long toMillis){
+        SortedMap<Long, Integer> ret = new TreeMap<Long, Integer>();
+        if(toMillis <= fromMillis)
+            return ret;
+
+        for(Map.Entry<Long, AtomicInteger> hour :
+                hourCounts.subMap(hourOf(fromMillis), hourOf(toMillis - 1) + 1).entrySet())
+        {
+            int count = hour.getValue().get();
+            if(count > 0)
+                ret.put(hour.getKey(), count);
+        }
+        return ret;
+    }
+
+    @Override
+    public int getPendingCount(){
+        //the skip list's size() counts every entry, so ask our own map
+        return entries.size();
+    }
+
+    /** @return the number of hours the counts are being kept for. */
+    int getHoursCounted(){
+        return hourCounts.size();
+    }
+
+    private static long hourOf(long millis){
+        //floor, so times before 1970 go in the right hour too
+        return millis - (((millis % HOUR_MILLIS) + HOUR_MILLIS) % HOUR_MILLIS);
+    }
+
+    /**
+     * Adds an entry to the index.
+     * @return false if there's already an entry for the id.
+     */
+    private boolean add(long id, SetAlarm entry){
+        if(entries.putIfAbsent(id, entry) != null)
+            return false;
+        this.index(entry);
+        return true;
+    }
+
+    /**
+     * Takes the entry for an id out of the index, if it's still there.
+     */
+    private void remove(long id){
+        SetAlarm entry = entries.remove(id);
+        if(entry != null){
+            recurrences.remove(id);
+            this.unindex(entry);
+        }
+    }
+
+    /**
+     * Moves a recurring alarm's entry on to the next time it goes off.
+     */
+    private void advance(long id, RecurringAlarm alarm){
+        SetAlarm current = entries.get(id);
+        if(current == null)
+            return;
+
+        long after = Math.max(System.currentTimeMillis(), current.getTimeMillis());
+        SetAlarm next = new SetAlarm(alarm.nextAfter(after), current.getZone(), current.getPath());
+        //if it was cancelled meanwhile, whoever cancelled it took it out
+        if(entries.replace(id, current, next)){
+            this.index(next);
+            this.unindex(current);
+        }
+    }
+
+    private void index(SetAlarm entry){
+        pending.put(new Key(entry), entry);
+        Long hour = hourOf(entry.getTimeMillis());
+        while(true){
+            AtomicInteger count = hourCounts.get(hour);
+            if(count == null){
+                count = hourCounts.putIfAbsent(hour, new AtomicInteger(1));
+                if(count == null)
+                    return;
+            }
+            if(increment(count))
+                return;
+            //It emptied out and is being taken away, so help take it away
+            //and put in a new one.
+            hourCounts.remove(hour, count);
+        }
+    }
+
+    private void unindex(SetAlarm entry){
+        pending.remove(new Key(entry));
+        Long hour = hourOf(entry.getTimeMillis());
+        AtomicInteger count = hourCounts.get(hour);
+        //Another alarm could be going into the hour right now, so it's
+        //marked with -1 first.  After that nobody adds to it, see increment.
+        if(count != null && count.decrementAndGet() == 0 && count.compareAndSet(0, -1))
+            hourCounts.remove(hour, count);
+    }
+
+    /**
+     * Adds one to an hour's count, unless it has been marked as taken away.
+     * @return false if it was marked, so the caller needs a new one.
+     */
+    private static boolean increment(AtomicInteger count){
+        while(true){
+            int current = count.get();
+            if(current < 0)
+                return false;
+            if(count.compareAndSet(current, current + 1))
+                return true;
+        }
+    }
+
+    /**
+     * This is what the pending alarms are sorted by: the time an alarm is
+     * due, then its id.  It's much smaller than a SetAlarm, and making one
+     * doesn't touch the PathDictionary or use up an id.
+     */
+    private static final class Key implements Comparable<Key> {
+        final long timeMillis;
+        final long id;
+
+        Key(long timeMillis, long id){
+            this.timeMillis = timeMillis;
+            this.id = id;
+        }
+
+        Key(SetAlarm alarm){
+            this(alarm.getTimeMillis(), alarm.getId());
+        }
+
+        /**
+         * @return a Key which sorts before every alarm due at that time,
+         * since no alarm has an id this small.
+         */
+        static Key before(long millis){
+            return new Key(millis, Long.MIN_VALUE);
+        }
+
+        @Override
+        public int compareTo(Key o) {
+            if(timeMillis != o.timeMillis)
+                return timeMillis < o.timeMillis ? -1 : 1;
+            return id < o.id ? -1 : (id == o.id ? 0 : 1);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return this.timeMillis == other.timeMillis && this.id == other.id;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 7;
+            hash = 59 * hash + (int) (this.timeMillis ^ (this.timeMillis >>> 32));
+            hash = 59 * hash + (int) (this.id ^ (this.id >>> 32));
+            return hash;
+        }
+    }
+
+    /**
+     * This is a read-only SortedSet of alarms which is really a range of the
+     * pending map, so it changes along with the map and costs nothing to make.
+     */
+    private static final class AlarmView extends AbstractSet<SetAlarm> implements SortedSet<SetAlarm> {
+        private final ConcurrentNavigableMap<Key, SetAlarm> range;
+
+        AlarmView(ConcurrentNavigableMap<Key, SetAlarm> range){
+            this.range = range;
+        }
+
+        @Override
+        public Iterator<SetAlarm> iterator() {
+            final Iterator<SetAlarm> it = range.values().iterator();
+            return new Iterator<SetAlarm>(){
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public SetAlarm next() {
+                    return it.next();
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException("The alarms can only be cancelled through the AlarmStarter");
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return range.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return range.isEmpty();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if(!(o instanceof SetAlarm))
+                return false;
+            return range.containsKey(new Key((SetAlarm)o));
+        }
+
+        @Override
+        public Comparator<? super SetAlarm> comparator() {
+            return BY_TIME;
+        }
+
+        @Override
+        public SortedSet<SetAlarm> subSet(SetAlarm fromElement, SetAlarm toElement) {
+            return new AlarmView(range.subMap(new Key(fromElement), new Key(toElement)));
+        }
+
+        @Override
+        public SortedSet<SetAlarm> headSet(SetAlarm toElement) {
+            return new AlarmView(range.headMap(new Key(toElement)));
+        }
+
+        @Override
+        public SortedSet<SetAlarm> tailSet(SetAlarm fromElement) {
+            return new AlarmView(range.tailMap(new Key(fromElement)));
+        }
+
+        @Override
+        public SetAlarm first() {
+            Map.Entry<Key, SetAlarm> entry = range.firstEntry();
+            if(entry == null)
+                throw new NoSuchElementException();
+            return entry.getValue();
+        }
+
+        @Override
+        public SetAlarm last() {
+            Map.Entry<Key, SetAlarm> entry = range.lastEntry();
+            if(entry == null)
+                throw new NoSuchElementException();
+            return entry.getValue();
+        }
+    }
+
+    /**
+     * This wraps the task returned by the wrapped AlarmStarter so that
+     * cancelling it directly takes the alarm out of the index too.
+     */
+    private class IndexedTask extends TimerTask {
+        private final TimerTask task;
+        private final long id;
+
+        IndexedTask(TimerTask task, long id){
+            this.task = task;
+            this.id = id;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        @Override
+        public boolean cancel(){
+            boolean ret = task.cancel();
+            if(ret)
+                IndexedAlarmStarter.this.remove(id);
+            return ret;
+        }
+
+        @Override
+        public long scheduledExecutionTime(){
+            return task.scheduledExecutionTime();
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package alarmclock.ServiceImplementations;
+
+import alarmclock.models.AlarmBatchResult;
+import alarmclock.models.RecurringAlarm;
+import alarmclock.models.SetAlarm;
+import alarmclock.services.AlarmListener;
+import alarmclock.services.AlarmStarter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.joda.time.DateTime;
+
+/**
+ * This class is an AlarmStarter which writes down every alarm it starts in an
+ * {@link AlarmJournal}, so that the alarms can be set again after the program
+ * restarts.
+ * <p/>
+ * It's another Decorator: the actual scheduling is done by whatever
+ * AlarmStarter it wraps.  The journal is write-ahead: an alarm is written
+ * down and on disk before the wrapped AlarmStarter is asked to start it, so
+ * there's no moment where an alarm is set but would be forgotten by a crash.
+ * If it can't be started after all, it's written down as cancelled.
+ * Cancelling and firing are written down too, but we don't wait for those,
+ * since the worst that can happen if they're lost is that a finished alarm
+ * gets set again and is thrown away as being in the past.
+ *
+ * This class Does Something.
+ * @author Gordon
+ */
+public class JournalingAlarmStarter implements AlarmStarter {
+
+    private final AlarmStarter delegate;
+    private final AlarmJournal journal;
+
+    /** The recurring alarms found by recover(). */
+    private List<RecurringAlarm> recoveredRecurring = new ArrayList<RecurringAlarm>();
+
+    /**
+     * The alarms found by recover() which haven't been started again or
+     * cancelled yet, by id.  They're still pending in the journal, so
+     * starting one doesn't need to write anything.
+     */
+    private final ConcurrentLongMap<SetAlarm> unarmed = new ConcurrentLongMap<SetAlarm>();
+
+    /**
+     * Creates a JournalingAlarmStarter.  Call {@link #recover()} before
+     * starting any alarms.
+     * @param delegate the AlarmStarter which actually schedules the alarms
+     * @param journal the journal to write the alarms to
+     */
+    public JournalingAlarmStarter(AlarmStarter delegate, AlarmJournal journal){
+        this.delegate = delegate;
+        this.journal = journal;
+    }
+
+    /**
+     * Opens the journal and reads back every alarm which was pending when the
+     * program last stopped.  The alarms are not started, the caller should
+     * start the ones it still wants and cancel the rest.  Until then they stay
+     * pending in the journal, so they aren't lost if the program stops again
+     * before it gets to them.
+     * @return the pending alarms, in the order they were set.  Recurring
+     * alarms are not included, see {@link #getRecoveredRecurringAlarms()}.
+     * @throws IOException if the journal couldn't be opened.
+     */
+    public List<SetAlarm> recover() throws IOException {
+        List<AlarmJournalRecord> records = journal.open();
+        List<SetAlarm> ret = new ArrayList<SetAlarm>(records.size());
+        List<RecurringAlarm> recurring = new ArrayList<RecurringAlarm>();
+        long now = System.currentTimeMillis();
+        for(AlarmJournalRecord record : records){
+            //It keeps the id it had before, so the records already in the
+            //journal still belong to it.
+            SetAlarm alarm = new SetAlarm(record.getAlarmId(), record.getTimeMillis(),
+                    record.getZone(), record.getPath());
+
+            if(record.getType() == AlarmJournalRecord.RECURRING){
+                //move it up to the next time it should go off
+                RecurringAlarm old = new RecurringAlarm(alarm, record.getPeriodMillis());
+                SetAlarm next = new SetAlarm(alarm.getId(), old.nextAfter(now),
+                        alarm.getZone(), alarm.getPath());
+                recurring.add(new RecurringAlarm(next, record.getPeriodMillis()));
+                unarmed.put(next.getId(), next);
+            }else{
+                ret.add(alarm);
+                unarmed.put(alarm.getId(), alarm);
+            }
+        }
+
+        recoveredRecurring = recurring;
+        return ret;
+    }
+
+    /**
+     * @return the recurring alarms which were pending when the program last
+     * stopped, each moved up to the next time it should go off.  This is
+     * filled in by {@link #recover()}.
+     */
+    public List<RecurringAlarm> getRecoveredRecurringAlarms(){
+        return recoveredRecurring;
+    }
+
+    @Override
+    public SetAlarm createAlarm(DateTime alarmDate, String exePath)
+    {
+        return delegate.createAlarm(alarmDate, exePath);
+    }
+
+    /**
+     * Writes the alarm to the journal and waits until it's on disk, then
+     * starts it with the wrapped AlarmStarter.
+     */
+    @Override
+    public TimerTask startAlarm(SetAlarm alarm, Runnable whenFinished)
+            throws Exception
+    {
+        boolean ours = this.schedule(new AlarmJournalRecord(AlarmJournalRecord.SCHEDULED,
+                alarm.getId(), alarm.getTimeMillis(), alarm.getZone(), alarm.getPath(), 0), alarm);
+        TimerTask task;
+        try{
+            task = delegate.startAlarm(alarm, this.firing(alarm, whenFinished));
+        }catch(Exception ex){
+            if(ours)
+                this.journal(AlarmJournalRecord.CANCELLED, alarm);
+            throw ex;
+        }
+        return new JournaledTask(alarm, task);
+    }
+
+    /**
+     * Writes a recurring alarm to the journal and waits until it's on disk,
+     * then starts it with the wrapped AlarmStarter.  We don't journal each
+     * time it goes off, it's pending until it's cancelled.
+     */
+    @Override
+    public TimerTask startRecurringAlarm(RecurringAlarm alarm, Runnable whenFinished)
+            throws Exception
+    {
+        SetAlarm first = alarm.getFirst();
+        boolean ours = this.schedule(new AlarmJournalRecord(AlarmJournalRecord.RECURRING,
+                first.getId(), first.getTimeMillis(), first.getZone(), first.getPath(), alarm.getPeriodMillis()), first);
+        TimerTask task;
+        try{
+            task = delegate.startRecurringAlarm(alarm, whenFinished);
+        }catch(Exception ex){
+            if(ours)
+                this.journal(AlarmJournalRecord.CANCELLED, first);
+            throw ex;
+        }
+        return new JournaledTask(first, task);
+    }
+
+    /**
+     * Writes down an alarm which is about to be started, and waits until
+     * it's on disk.  A recovered alarm is already in the journal, and so is
+     * one which was started before, so nothing is written for those.
+     * @return true if the alarm should be written down as cancelled if it
+     * can't be started.  That's every alarm except one which is already
+     * running, since the wrapped AlarmStarter will refuse it but the one
+     * that's running is still pending.
+     */
+    private boolean schedule(AlarmJournalRecord record, SetAlarm alarm){
+        if(unarmed.remove(alarm.getId()) != null)
+            return true;
+        try{
+            long seq = journal.appendIfAbsent(record);
+            this.awaitDurable(seq);
+            return seq != 0;
+        }catch(RuntimeException ex){
+            Logger.getLogger(JournalingAlarmStarter.class.getName()).log(Level.SEVERE,
+                    "Could not journal alarm for " + alarm.getPath(), ex);
+            return true;
+        }
+    }
+
+    /**
+     * Starts a batch of alarms.  The whole batch is written to the journal
+     * first, and because of the journal's group commit it's forced to disk
+     * all at once, so we only have to wait on the last one.
+     */
+    @Override
+    public AlarmBatchResult startAlarms(Collection<SetAlarm> alarms, final AlarmListener whenFinished){
+        boolean[] ours = new boolean[alarms.size()];
+        long lastSeq = -1;
+        int index = 0;
+        for(SetAlarm alarm : alarms){
+            if(unarmed.remove(alarm.getId()) != null){
+                ours[index++] = true;
+                continue;
+            }
+            long seq;
+            try{
+                seq = journal.appendIfAbsent(new AlarmJournalRecord(AlarmJournalRecord.SCHEDULED,
+                        alarm.getId(), alarm.getTimeMillis(), alarm.getZone(), alarm.getPath(), 0));
+            }catch(RuntimeException ex){
+                Logger.getLogger(JournalingAlarmStarter.class.getName()).log(Level.SEVERE,
+                        "Could not journal alarm for " + alarm.getPath(), ex);
+                seq = -1;
+            }
+            ours[index++] = seq != 0;
+            lastSeq = Math.max(lastSeq, seq);
+        }
+        this.awaitDurable(lastSeq);
+
+        AlarmBatchResult result = delegate.startAlarms(alarms, new AlarmListener(){
+            @Override
+            public void alarmFinished(SetAlarm alarm) {
+                JournalingAlarmStarter.this.journal(AlarmJournalRecord.FIRED, alarm);
+                whenFinished.alarmFinished(alarm);
+            }
+        });
+
+        AlarmBatchResult ret = new AlarmBatchResult(result.size());
+        for(int i = 0; i < result.size(); i++){
+            SetAlarm alarm = result.getAlarm(i);
+            if(result.getFailure(i) != null){
+                if(ours[i])
+                    this.journal(AlarmJournalRecord.CANCELLED, alarm);
+                ret.setFailed(i, alarm, result.getFailure(i));
+                continue;
+            }
+            ret.setStarted(i, alarm, new JournaledTask(alarm, result.getTask(i)));
+        }
+        return ret;
+    }
+
+    /**
+     * Cancels an alarm.  This also takes a recovered alarm which was never
+     * started again out of the journal.
+     */
+    @Override
+    public boolean cancelAlarm(SetAlarm alarm){
+        boolean cancelled = delegate.cancelAlarm(alarm);
+        if(!cancelled)
+            cancelled = unarmed.remove(alarm.getId()) != null;
+        if(cancelled)
+            this.journal(AlarmJournalRecord.CANCELLED, alarm);
+        return cancelled;
+    }
+
+    @Override
+    public boolean[] cancelAlarms(Collection<SetAlarm> alarms){
+        boolean[] result = delegate.cancelAlarms(alarms);
+        int index = 0;
+        for(SetAlarm alarm : alarms){
+            if(!result[index])
+                result[index] = unarmed.remove(alarm.getId()) != null;
+            if(result[index++])
+                this.journal(AlarmJournalRecord.CANCELLED, alarm);
+        }
+        return result;
+    }
+
+    /**
+     * Closes the journal.
+     */
+    public void shutdown(){
+        journal.close();
+    }
+
+    /**
+     * Wraps the callback so that the journal hears about the alarm firing
+     * before the callback runs.
+     */
+    private Runnable firing(final SetAlarm alarm, final Runnable whenFinished){
+        return new Runnable(){
+            @Override
+            public void run() {
+                JournalingAlarmStarter.this.journal(AlarmJournalRecord.FIRED, alarm);
+                whenFinished.run();
+            }
+        };
+    }
+
+    /**
+     * Adds a record to the journal.  A broken journal shouldn't stop alarms
+     * from working, so failures are only logged.
+     * @return the record's sequence number, or -1 if it couldn't be added.
+     */
+    private long journal(byte type, SetAlarm alarm){
+        return this.append(new AlarmJournalRecord(type, alarm.getId(),
+                alarm.getTimeMillis(), alarm.getZone(), alarm.getPath(), 0));
+    }
+
+    private long append(AlarmJournalRecord record){
+        try{
+            return journal.append(record);
+        }catch(RuntimeException ex){
+            Logger.getLogger(JournalingAlarmStarter.class.getName()).log(Level.SEVERE,
+                    "Could not journal alarm for " + record.getPath(), ex);
+            return -1;
+        }
+    }
+
+    private void awaitDurable(long seq){
+        if(seq < 0)
+            return;
+        try{
+            journal.awaitDurable(seq);
+        }catch(IOException ex){
+            Logger.getLogger(JournalingAlarmStarter.class.getName()).log(Level.SEVERE,
+                    "Alarm journal is not being written", ex);
+        }
+    }
+
+    /**
+     * This wraps the task returned by the wrapped AlarmStarter so that
+     * cancelling it directly gets written to the journal too.
+     */
+    private class JournaledTask extends TimerTask {
+        private final SetAlarm alarm;
+        private final TimerTask task;
+
+        JournaledTask(SetAlarm alarm, TimerTask task){
+            this.alarm = alarm;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        @Override
+        public boolean cancel(){
+            boolean cancelled = task.cancel();
+            if(cancelled)
+                JournalingAlarmStarter.this.journal(AlarmJournalRecord.CANCELLED, alarm);
+            return cancelled;
+        }
+
+        @Override
+        public long scheduledExecutionTime(){
+            return task.scheduledExecutionTime();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package alarmclock.ServiceImplementations;
+
+import alarmclock.models.LatencySnapshot;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class counts how many times each latency has been seen, so that we can
+ * work out percentiles like the median or the 99th percentile later.
+ * <p/>
+ * Keeping every value would use more and more memory the longer the program
+ * runs, so instead values are counted in a fixed set of buckets.  Small values
+ * (under 32) each get their own bucket.  Above that, every power of two is
+ * split into 16 equal buckets, so a value is always reported within about 6%
+ * of what it really was, whether it's 100 microseconds or 100 seconds.  This
+ * is called a log-linear histogram.  All of the buckets together take less than
+ * 8KB and recording a value never creates any objects or takes a lock, so it's
+ * cheap enough to do every time an alarm goes off.
+ *
+ * This class Does Something.
+ * @author Gordon
+ */
+public class LatencyHistogram {
+
+    /** The number of buckets each power of two is split into. */
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** Values below this each get their own bucket. */
+    private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+
+    /** Enough buckets for every positive long. */
+    private static final int BUCKET_COUNT = bucketIndex(Long.MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Works out which bucket a value is counted in.
+     */
+    static int bucketIndex(long value){
+        if(value < LINEAR_LIMIT)
+            return (int)value;
+
+        //keep the top five bits of the value, the highest of which is always 1
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int mantissa = (int)(value >>> shift);
+        return (shift + 1) * SUB_BUCKETS + (mantissa - SUB_BUCKETS);
+    }
+
+    /**
+     * Works out the largest value which is counted in the given bucket.
+     */
+    static long bucketUpperBound(int index){
+        if(index < LINEAR_LIMIT)
+            return index;
+
+        int shift = index / SUB_BUCKETS - 1;
+        long mantissa = index % SUB_BUCKETS + SUB_BUCKETS;
+        //for the very last bucket this overflows to Long.MIN_VALUE, and
+        //subtracting one brings it back around to Long.MAX_VALUE
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * Counts one value.  Values below zero are counted as zero.
+     * @param value the value to count, like a number of microseconds.
+     */
+    public void record(long value){
+        if(value < 0)
+            value = 0;
+
+        counts.incrementAndGet(bucketIndex(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long current;
+        while(value > (current = max.get())){
+            if(max.compareAndSet(current, value))
+                break;
+        }
+    }
+
+    /** @return the number of values counted so far. */
+    public long getCount(){
+        return count.get();
+    }
+
+    /**
+     * Works out the percentiles of everything counted so far.  Values can
+     * still be counted while this runs, in which case the snapshot might
+     * include some of them and not others.
+     * @return the snapshot
+     */
+    public LatencySnapshot snapshot(){
+        long[] copy = new long[BUCKET_COUNT];
+        long total = 0;
+        for(int i = 0; i < BUCKET_COUNT; i++){
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        long maxValue = max.get();
+
+        if(total == 0)
+            return new LatencySnapshot(0, 0, 0, 0, 0, 0);
+
+        return new LatencySnapshot(total,
+                (double)sum.get() / count.get(),
+                percentile(copy, total, 0.50, maxValue),
+                percentile(copy, total, 0.99, maxValue),
+                percentile(copy, total, 0.999, maxValue),
+                maxValue);
+    }
+
+    /**
+     * Finds the bucket holding the given percentile and reports the top of
+     * that bucket, so that the percentile is never reported lower than it was.
+     */
+    private static long percentile(long[] copy, long total, double fraction, long maxValue){
+        long rank = (long)Math.ceil(total * fraction);
+        if(rank < 1)
+            rank = 1;
+
+        long seen = 0;
+        for(int i = 0; i < copy.length; i++){
+            seen += copy[i];
+            if(seen >= rank)
+                return Math.min(bucketUpperBound(i), maxValue);
+        }
+        return maxValue;
+    }
+
+    /**
+     * Forgets everything counted so far.
+     */
+    public void reset(){
+        for(int i = 0; i < BUCKET_COUNT; i++){
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+}
@@ -0,0 +1,218 @@
+package alarmclock.ServiceImplementations;
+
+import alarmclock.models.AlarmBatchResult;
+import alarmclock.models.AlarmMetricsSnapshot;
+import alarmclock.models.RecurringAlarm;
+import alarmclock.models.SetAlarm;
+import alarmclock.services.AlarmListener;
+import alarmclock.services.AlarmStarter;
+import java.util.Collection;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+import org.joda.time.DateTime;
+
+/**
+ * This class is an AlarmStarter which measures how well the AlarmStarter it
+ * wraps is doing.  It's another Decorator, so it can be put around any
+ * AlarmStarter.
+ * <p/>
+ * It measures how late each alarm goes off compared to its SetAlarm time, how
+ * long each callback takes, and how many alarms are started, cancelled and
+ * fired.  The lateness is measured when the callback actually starts, so time
+ * spent waiting in a dispatcher's queue counts as late.  The measurements go
+ * into LatencyHistograms, which use a fixed amount of memory no matter how
+ * long the program runs, and {@link #snapshot()} reports the percentiles.
+ *
+ * This class Does Something.
+ * @author Gordon
+ */
+public class MetricsAlarmStarter implements AlarmStarter {
+
+    private final AlarmStarter delegate;
+
+    private final LatencyHistogram lateness = new LatencyHistogram();
+    private final LatencyHistogram callbackDuration = new LatencyHistogram();
+    private final AtomicLong scheduled = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong fired = new AtomicLong();
+    private volatile long startedMillis = System.currentTimeMillis();
+
+    /**
+     * Creates a MetricsAlarmStarter.
+     * @param delegate the AlarmStarter which actually schedules the alarms
+     */
+    public MetricsAlarmStarter(AlarmStarter delegate){
+        this.delegate = delegate;
+    }
+
+    /**
+     * @return everything measured since this was created or last reset.
+     */
+    public AlarmMetricsSnapshot snapshot(){
+        return new AlarmMetricsSnapshot(lateness.snapshot(), callbackDuration.snapshot(),
+                scheduled.get(), cancelled.get(), fired.get(),
+                System.currentTimeMillis() - startedMillis);
+    }
+
+    /**
+     * Forgets everything measured so far, so the next snapshot only covers
+     * what happens from now on.
+     */
+    public void reset(){
+        lateness.reset();
+        callbackDuration.reset();
+        scheduled.set(0);
+        cancelled.set(0);
+        fired.set(0);
+        startedMillis = System.currentTimeMillis();
+    }
+
+    @Override
+    public SetAlarm createAlarm(DateTime alarmDate, String exePath)
+    {
+        return delegate.createAlarm(alarmDate, exePath);
+    }
+
+    @Override
+    public TimerTask startAlarm(SetAlarm alarm, Runnable whenFinished)
+            throws Exception
+    {
+        final long due = alarm.getTimeMillis();
+        final Runnable callback = whenFinished;
+        TimerTask task = delegate.startAlarm(alarm, new Runnable(){
+            @Override
+            public void run() {
+                MetricsAlarmStarter.this.measure(due, callback);
+            }
+        });
+        scheduled.incrementAndGet();
+        return new MeteredTask(task);
+    }
+
+    /**
+     * Starts a recurring alarm.  Each time it goes off, its lateness is
+     * measured from the time it was due that time round.
+     */
+    @Override
+    public TimerTask startRecurringAlarm(final RecurringAlarm alarm, final Runnable whenFinished)
+            throws Exception
+    {
+        TimerTask task = delegate.startRecurringAlarm(alarm, new Runnable(){
+            /** The most recent time the alarm was due. */
+            private long due = alarm.getFirst().getTimeMillis();
+
+            @Override
+            public void run() {
+                //if it was very late it might have skipped some, so find the
+                //last time it was due before now.
+                long now = System.currentTimeMillis();
+                long next;
+                while((next = alarm.nextAfter(due)) <= now){
+                    due = next;
+                }
+                MetricsAlarmStarter.this.measure(due, whenFinished);
+                due = alarm.nextAfter(due);
+            }
+        });
+        scheduled.incrementAndGet();
+        return new MeteredTask(task);
+    }
+
+    @Override
+    public boolean cancelAlarm(SetAlarm alarm){
+        boolean ret = delegate.cancelAlarm(alarm);
+        if(ret)
+            cancelled.incrementAndGet();
+        return ret;
+    }
+
+    @Override
+    public AlarmBatchResult startAlarms(Collection<SetAlarm> alarms, final AlarmListener whenFinished){
+        AlarmBatchResult result = delegate.startAlarms(alarms, new AlarmListener(){
+            @Override
+            public void alarmFinished(SetAlarm alarm) {
+                long start = MetricsAlarmStarter.this.fired(alarm.getTimeMillis());
+                try{
+                    whenFinished.alarmFinished(alarm);
+                }finally{
+                    MetricsAlarmStarter.this.finished(start);
+                }
+            }
+        });
+        scheduled.addAndGet(result.size() - result.getFailedCount());
+        return result;
+    }
+
+    @Override
+    public boolean[] cancelAlarms(Collection<SetAlarm> alarms){
+        boolean[] result = delegate.cancelAlarms(alarms);
+        int count = 0;
+        for(boolean b : result){
+            if(b)
+                count++;
+        }
+        cancelled.addAndGet(count);
+        return result;
+    }
+
+    /**
+     * Records how late the alarm is, then runs the callback and records how
+     * long it took.
+     * @param due when the alarm should have gone off, in UTC millis
+     */
+    private void measure(long due, Runnable callback){
+        long start = this.fired(due);
+        try{
+            callback.run();
+        }finally{
+            this.finished(start);
+        }
+    }
+
+    /**
+     * Records how late an alarm is as its callback starts.
+     * @return the time the callback started, to pass to finished().
+     */
+    private long fired(long due){
+        fired.incrementAndGet();
+        lateness.record((System.currentTimeMillis() - due) * 1000);
+        return System.nanoTime();
+    }
+
+    /**
+     * Records how long a callback took.
+     */
+    private void finished(long startNanos){
+        callbackDuration.record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    /**
+     * This wraps the task returned by the wrapped AlarmStarter so that
+     * cancelling it directly gets counted too.
+     */
+    private class MeteredTask extends TimerTask {
+        private final TimerTask task;
+
+        MeteredTask(TimerTask task){
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        @Override
+        public boolean cancel(){
+            boolean ret = task.cancel();
+            if(ret)
+                cancelled.incrementAndGet();
+            return ret;
+        }
+
+        @Override
+        public long scheduledExecutionTime(){
+            return task.scheduledExecutionTime();
+        }
+    }
+}
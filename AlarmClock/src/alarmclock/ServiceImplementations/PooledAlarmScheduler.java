@@ -0,0 +1,343 @@
+package alarmclock.ServiceImplementations;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * This class is a bare-bones alarm scheduler which doesn't create any objects
+ * while scheduling, cancelling or firing alarms.
+ * <p/>
+ * Every AlarmStarter creates a TimerTask, a map entry and usually a closure
+ * for each alarm, and each SetAlarm carries a whole Joda DateTime.  That's
+ * fine for a few alarms, but when millions of alarms are set and cancelled
+ * it's a lot of garbage.  This scheduler instead keeps its alarms in "slots"
+ * in a few arrays which are created up front: the deadline of each slot is a
+ * plain long, and the slots waiting to go off are kept in order in a binary
+ * heap which is just an array of slot numbers.  When an alarm goes off or is
+ * cancelled its slot goes back on a free list to be used again.  The arrays
+ * only ever grow, by doubling, when more alarms are pending than ever before.
+ * <p/>
+ * Instead of a TimerTask, scheduling an alarm gives back a handle, which is a
+ * long made of the slot number and a generation number.  The generation goes
+ * up every time the slot is reused, so an old handle can't cancel somebody
+ * else's alarm.
+ * <p/>
+ * The callbacks are run right on the scheduler's thread, one after the other,
+ * and anything they throw is caught and logged.  They should be quick, or
+ * hand the real work to another thread.
+ *
+ * This class Does Something.
+ * @author Gordon
+ */
+public class PooledAlarmScheduler {
+
+    /** This is returned by schedule() if the alarm could not be scheduled. */
+    public static final long NO_HANDLE = -1;
+
+    /*
+     * Everything below is guarded by the lock.
+     */
+    private final Object lock = new Object();
+
+    /** The time each slot should go off, in UTC millis. */
+    private long[] deadlines;
+    /** The callback of each slot, or null if the slot is free. */
+    private Runnable[] callbacks;
+    /** The generation of each slot, which goes up each time it's freed. */
+    private int[] generations;
+    /** Where each slot is in the heap, or the next free slot if it's free. */
+    private int[] heapIndexOrNextFree;
+
+    /**
+     * The pending slots, ordered by deadline.  heap[0] is always the next one
+     * to go off, and the children of heap[i] are heap[2i+1] and heap[2i+2].
+     */
+    private int[] heap;
+    private int size = 0;
+
+    /** The first free slot, or -1 if there are none. */
+    private int freeHead;
+
+    /** The callbacks which are due, collected here so they run outside the lock. */
+    private Runnable[] due;
+
+    private boolean shutdown = false;
+
+    private final AtomicLong failedCallbacks = new AtomicLong();
+
+    private final Thread thread;
+
+    /**
+     * Creates a PooledAlarmScheduler and starts its thread.
+     * @param initialCapacity the number of alarms there is room for before
+     * the arrays have to grow.
+     */
+    public PooledAlarmScheduler(int initialCapacity){
+        if(initialCapacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+
+        deadlines = new long[initialCapacity];
+        callbacks = new Runnable[initialCapacity];
+        generations = new int[initialCapacity];
+        heapIndexOrNextFree = new int[initialCapacity];
+        heap = new int[initialCapacity];
+        due = new Runnable[64];
+        this.linkFree(0, initialCapacity);
+
+        thread = AlarmDispatcher.daemonThreadFactory("PooledAlarmScheduler").newThread(new Runnable(){
+            @Override
+            public void run() {
+                PooledAlarmScheduler.this.runLoop();
+            }
+        });
+        thread.start();
+    }
+
+    /**
+     * Puts the slots from start up to end on the free list.
+     */
+    private void linkFree(int start, int end){
+        for(int i = start; i < end - 1; i++){
+            heapIndexOrNextFree[i] = i + 1;
+        }
+        heapIndexOrNextFree[end - 1] = -1;
+        freeHead = start;
+    }
+
+    /**
+     * Schedules a callback to run at the given time.
+     * @param deadlineMillis when to run it, in UTC millis like
+     * System.currentTimeMillis().  If it's already past, it runs right away.
+     * @param callback the callback to run
+     * @return the handle for cancelling the alarm, or {@link #NO_HANDLE} if
+     * the scheduler has been shut down.
+     */
+    public long schedule(long deadlineMillis, Runnable callback){
+        if(callback == null)
+            throw new NullPointerException("callback");
+
+        synchronized(lock){
+            if(shutdown)
+                return NO_HANDLE;
+
+            if(freeHead < 0)
+                this.grow();
+
+            int slot = freeHead;
+            freeHead = heapIndexOrNextFree[slot];
+
+            deadlines[slot] = deadlineMillis;
+            callbacks[slot] = callback;
+            heap[size] = slot;
+            heapIndexOrNextFree[slot] = size;
+            size++;
+            boolean first = this.siftUp(size - 1) == 0;
+
+            //only wake the thread if it has to go off sooner than before
+            if(first)
+                lock.notify();
+
+            return ((long)generations[slot] << 32) | slot;
+        }
+    }
+
+    /**
+     * Cancels an alarm.
+     * @param handle the handle given by schedule()
+     * @return true if the alarm was cancelled, false if it already went off,
+     * was already cancelled, or the handle isn't one of ours.
+     */
+    public boolean cancel(long handle){
+        int slot = (int)handle;
+        int generation = (int)(handle >>> 32);
+
+        synchronized(lock){
+            if(slot < 0 || slot >= callbacks.length
+                    || callbacks[slot] == null || generations[slot] != generation)
+                return false;
+
+            this.removeAt(heapIndexOrNextFree[slot]);
+            this.free(slot);
+            return true;
+        }
+    }
+
+    /** @return the number of alarms waiting to go off. */
+    public int getPendingCount(){
+        synchronized(lock){
+            return size;
+        }
+    }
+
+    /** @return the number of alarms there is room for before the arrays grow. */
+    public int getCapacity(){
+        synchronized(lock){
+            return callbacks.length;
+        }
+    }
+
+    /** @return the number of callbacks which have thrown an exception. */
+    public long getFailedCallbackCount(){
+        return failedCallbacks.get();
+    }
+
+    /**
+     * Stops the scheduler thread.  Alarms which haven't gone off never will.
+     */
+    public void shutdown(){
+        synchronized(lock){
+            shutdown = true;
+            lock.notify();
+        }
+    }
+
+    /**
+     * Doubles the size of all the arrays.  This is the only place the
+     * scheduler creates objects once it's running.
+     */
+    private void grow(){
+        int oldCapacity = callbacks.length;
+        int newCapacity = oldCapacity * 2;
+        deadlines = Arrays.copyOf(deadlines, newCapacity);
+        callbacks = Arrays.copyOf(callbacks, newCapacity);
+        generations = Arrays.copyOf(generations, newCapacity);
+        heapIndexOrNextFree = Arrays.copyOf(heapIndexOrNextFree, newCapacity);
+        heap = Arrays.copyOf(heap, newCapacity);
+        this.linkFree(oldCapacity, newCapacity);
+    }
+
+    /**
+     * Puts a slot back on the free list.
+     */
+    private void free(int slot){
+        callbacks[slot] = null;
+        generations[slot]++;
+        heapIndexOrNextFree[slot] = freeHead;
+        freeHead = slot;
+    }
+
+    /**
+     * Takes whatever is at the given position out of the heap.
+     */
+    private void removeAt(int index){
+        size--;
+        if(index == size)
+            return;
+
+        //move the last one into the hole, then put it where it belongs
+        int last = heap[size];
+        heap[index] = last;
+        heapIndexOrNextFree[last] = index;
+        if(this.siftUp(index) == index)
+            this.siftDown(index);
+    }
+
+    /**
+     * Moves the slot at the given position up the heap until its parent is
+     * due sooner.
+     * @return where it ended up.
+     */
+    private int siftUp(int index){
+        int slot = heap[index];
+        long deadline = deadlines[slot];
+        while(index > 0){
+            int parent = (index - 1) >>> 1;
+            int parentSlot = heap[parent];
+            if(deadlines[parentSlot] <= deadline)
+                break;
+            heap[index] = parentSlot;
+            heapIndexOrNextFree[parentSlot] = index;
+            index = parent;
+        }
+        heap[index] = slot;
+        heapIndexOrNextFree[slot] = index;
+        return index;
+    }
+
+    /**
+     * Moves the slot at the given position down the heap until both its
+     * children are due later.
+     */
+    private void siftDown(int index){
+        int slot = heap[index];
+        long deadline = deadlines[slot];
+        int half = size >>> 1;
+        while(index < half){
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if(right < size && deadlines[heap[right]] < deadlines[heap[child]])
+                child = right;
+            int childSlot = heap[child];
+            if(deadline <= deadlines[childSlot])
+                break;
+            heap[index] = childSlot;
+            heapIndexOrNextFree[childSlot] = index;
+            index = child;
+        }
+        heap[index] = slot;
+        heapIndexOrNextFree[slot] = index;
+    }
+
+    /**
+     * This is the main loop of the scheduler thread.  It sleeps until the
+     * first alarm is due, takes every alarm which is due off the heap, and
+     * runs them.
+     */
+    private void runLoop(){
+        while(true){
+            int count = 0;
+            Runnable[] toRun;
+            synchronized(lock){
+                while(!shutdown){
+                    if(size == 0){
+                        this.await(0);
+                        continue;
+                    }
+                    long wait = deadlines[heap[0]] - System.currentTimeMillis();
+                    if(wait <= 0)
+                        break;
+                    this.await(wait);
+                }
+                if(shutdown)
+                    return;
+
+                long now = System.currentTimeMillis();
+                while(size > 0 && deadlines[heap[0]] <= now){
+                    int slot = heap[0];
+                    if(count == due.length)
+                        due = Arrays.copyOf(due, count * 2);
+                    due[count++] = callbacks[slot];
+                    this.removeAt(0);
+                    this.free(slot);
+                }
+                toRun = due;
+            }
+
+            for(int i = 0; i < count; i++){
+                try{
+                    toRun[i].run();
+                }catch(Throwable ex){
+                    //log it and move on, one broken alarm shouldn't stop the others
+                    failedCallbacks.incrementAndGet();
+                    Logger.getLogger(PooledAlarmScheduler.class.getName()).log(Level.SEVERE,
+                            "Alarm callback failed", ex);
+                }
+                toRun[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Waits on the lock, for the given number of millis or until notified if
+     * it's zero.  Must be called while holding the lock.
+     */
+    private void await(long millis){
+        try {
+            lock.wait(millis);
+        } catch (InterruptedException ex) {
+            shutdown = true;
+        }
+    }
+}
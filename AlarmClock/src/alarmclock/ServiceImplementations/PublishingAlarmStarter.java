@@ -0,0 +1,416 @@
+package alarmclock.ServiceImplementations;
+
+import alarmclock.models.AlarmBatchResult;
+import alarmclock.models.AlarmEvent;
+import alarmclock.models.RecurringAlarm;
+import alarmclock.models.SetAlarm;
+import alarmclock.services.AlarmEventPublisher;
+import alarmclock.services.AlarmEventSubscriber;
+import alarmclock.services.AlarmEventSubscription;
+import alarmclock.services.AlarmListener;
+import alarmclock.services.AlarmStarter;
+import java.util.Collection;
+import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.joda.time.DateTime;
+
+/**
+ * This class is an AlarmStarter which sends an AlarmEvent to its subscribers
+ * every time an alarm is scheduled, goes off or is cancelled.  It's another
+ * Decorator, so it can be put around any AlarmStarter, and anything which
+ * wants to know what the alarms are doing, like an audit log or the UI, can
+ * subscribe instead of wrapping every callback.
+ * <p/>
+ * Alarms go off on the scheduler's threads, so all the publishing does there
+ * is put the event in each subscriber's buffer.  The events are handed to the
+ * subscribers on separate threads, and each subscriber is only sent as many
+ * as it has asked for.  If a subscriber falls so far behind that its buffer
+ * fills up, new events for it are dropped and counted, rather than making the
+ * alarms wait or using up all the memory.
+ * <p/>
+ * Each subscriber has a counter of how many times it's been signalled.  Only
+ * the signal which takes it from 0 to 1 starts a delivery, and the delivery
+ * keeps going until it has caught up with every signal, so a subscriber is
+ * never sent two events at once.
+ *
+ * This class Does Something.
+ * @author Gordon
+ */
+public class PublishingAlarmStarter implements AlarmStarter, AlarmEventPublisher {
+
+    public static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    private final AlarmStarter delegate;
+    private final int bufferSize;
+    /**
+     * Runs the deliveries.  Its threads are daemons which go away when
+     * they've been idle for a minute, so it never has to be shut down.
+     */
+    private final Executor executor;
+
+    private final CopyOnWriteArrayList<Subscription> subscriptions =
+            new CopyOnWriteArrayList<Subscription>();
+
+    /**
+     * The alarms we've published SCHEDULED for which haven't fired or been
+     * cancelled yet, by id.
+     */
+    private final ConcurrentLongMap<SetAlarm> scheduled = new ConcurrentLongMap<SetAlarm>();
+
+    private volatile boolean shutdown = false;
+
+    /** How many events were dropped because a subscriber's buffer was full. */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Creates a PublishingAlarmStarter.
+     * @param delegate the AlarmStarter which actually schedules the alarms
+     * @param bufferSize how many events each subscriber can fall behind by
+     * before events are dropped
+     */
+    public PublishingAlarmStarter(AlarmStarter delegate, int bufferSize){
+        if(bufferSize <= 0)
+            throw new IllegalArgumentException("bufferSize must be positive");
+
+        this.delegate = delegate;
+        this.bufferSize = bufferSize;
+        this.executor = Executors.newCachedThreadPool(
+                AlarmDispatcher.daemonThreadFactory("AlarmEvents"));
+    }
+
+    /**
+     * Creates a PublishingAlarmStarter with a buffer of
+     * {@link #DEFAULT_BUFFER_SIZE} events for each subscriber.
+     */
+    public PublishingAlarmStarter(AlarmStarter delegate){
+        this(delegate, DEFAULT_BUFFER_SIZE);
+    }
+
+    @Override
+    public void subscribe(AlarmEventSubscriber subscriber){
+        Subscription subscription = new Subscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        if(shutdown){
+            subscription.complete();
+            return;
+        }
+        subscriptions.add(subscription);
+    }
+
+    /** @return how many events have been dropped for all subscribers. */
+    public long getDroppedCount(){
+        return dropped.get();
+    }
+
+    /** @return how many subscribers there are. */
+    public int getSubscriberCount(){
+        return subscriptions.size();
+    }
+
+    /**
+     * Stops publishing.  Each subscriber is sent the events already in its
+     * buffer, as it asks for them, and then onComplete.
+     */
+    public void shutdown(){
+        shutdown = true;
+        for(Subscription subscription : subscriptions){
+            subscription.complete();
+        }
+    }
+
+    @Override
+    public SetAlarm createAlarm(DateTime alarmDate, String exePath)
+    {
+        return delegate.createAlarm(alarmDate, exePath);
+    }
+
+    @Override
+    public TimerTask startAlarm(SetAlarm alarm, Runnable whenFinished)
+            throws Exception
+    {
+        //publish it before it's started, so FIRED can't come out first
+        boolean ours = this.publishScheduled(alarm);
+        TimerTask task;
+        try{
+            task = delegate.startAlarm(alarm, this.firing(alarm, whenFinished, false));
+        }catch(Exception ex){
+            if(ours)
+                this.publishFinished(AlarmEvent.Type.CANCELLED, alarm);
+            throw ex;
+        }
+        return new PublishedTask(alarm, task);
+    }
+
+    /**
+     * Starts a recurring alarm.  Each time it goes off, a FIRED event is sent
+     * for its first SetAlarm, since that's the one it's cancelled by.
+     */
+    @Override
+    public TimerTask startRecurringAlarm(RecurringAlarm alarm, Runnable whenFinished)
+            throws Exception
+    {
+        SetAlarm first = alarm.getFirst();
+        boolean ours = this.publishScheduled(first);
+        TimerTask task;
+        try{
+            task = delegate.startRecurringAlarm(alarm, this.firing(first, whenFinished, true));
+        }catch(Exception ex){
+            if(ours)
+                this.publishFinished(AlarmEvent.Type.CANCELLED, first);
+            throw ex;
+        }
+        return new PublishedTask(first, task);
+    }
+
+    @Override
+    public boolean cancelAlarm(SetAlarm alarm){
+        boolean cancelled = delegate.cancelAlarm(alarm);
+        if(cancelled)
+            this.publishFinished(AlarmEvent.Type.CANCELLED, alarm);
+        return cancelled;
+    }
+
+    @Override
+    public AlarmBatchResult startAlarms(Collection<SetAlarm> alarms, final AlarmListener whenFinished){
+        boolean[] ours = new boolean[alarms.size()];
+        int index = 0;
+        for(SetAlarm alarm : alarms){
+            ours[index++] = this.publishScheduled(alarm);
+        }
+
+        AlarmBatchResult result = delegate.startAlarms(alarms, new AlarmListener(){
+            @Override
+            public void alarmFinished(SetAlarm alarm) {
+                PublishingAlarmStarter.this.publishFinished(AlarmEvent.Type.FIRED, alarm);
+                whenFinished.alarmFinished(alarm);
+            }
+        });
+
+        AlarmBatchResult ret = new AlarmBatchResult(result.size());
+        for(int i = 0; i < result.size(); i++){
+            SetAlarm alarm = result.getAlarm(i);
+            if(result.getFailure(i) != null){
+                if(ours[i])
+                    this.publishFinished(AlarmEvent.Type.CANCELLED, alarm);
+                ret.setFailed(i, alarm, result.getFailure(i));
+                continue;
+            }
+            ret.setStarted(i, alarm, new PublishedTask(alarm, result.getTask(i)));
+        }
+        return ret;
+    }
+
+    @Override
+    public boolean[] cancelAlarms(Collection<SetAlarm> alarms){
+        boolean[] result = delegate.cancelAlarms(alarms);
+        int index = 0;
+        for(SetAlarm alarm : alarms){
+            if(result[index++])
+                this.publishFinished(AlarmEvent.Type.CANCELLED, alarm);
+        }
+        return result;
+    }
+
+    /**
+     * Wraps the callback so that the FIRED event is sent as it runs.  A
+     * recurring alarm is still scheduled after it fires.
+     */
+    private Runnable firing(final SetAlarm alarm, final Runnable whenFinished, final boolean recurring){
+        return new Runnable(){
+            @Override
+            public void run() {
+                if(recurring)
+                    PublishingAlarmStarter.this.publish(AlarmEvent.Type.FIRED, alarm);
+                else
+                    PublishingAlarmStarter.this.publishFinished(AlarmEvent.Type.FIRED, alarm);
+                whenFinished.run();
+            }
+        };
+    }
+
+    /**
+     * Publishes SCHEDULED for an alarm that's about to be started, unless
+     * we've already published it.  Starting it twice is refused by the
+     * wrapped AlarmStarter, and the failure mustn't look like a cancel.
+     * @return true if this call published it, so a failed start should
+     * publish CANCELLED
+     */
+    private boolean publishScheduled(SetAlarm alarm){
+        if(scheduled.putIfAbsent(alarm.getId(), alarm) != null)
+            return false;
+        this.publish(AlarmEvent.Type.SCHEDULED, alarm);
+        return true;
+    }
+
+    /** Publishes FIRED or CANCELLED for an alarm which won't go off again. */
+    private void publishFinished(AlarmEvent.Type type, SetAlarm alarm){
+        scheduled.remove(alarm.getId());
+        this.publish(type, alarm);
+    }
+
+    private void publish(AlarmEvent.Type type, SetAlarm alarm){
+        if(subscriptions.isEmpty())
+            return;
+        AlarmEvent event = new AlarmEvent(type, alarm, System.currentTimeMillis());
+        for(Subscription subscription : subscriptions){
+            subscription.offer(event);
+        }
+    }
+
+    /**
+     * This class is one subscriber's link to us.  It holds the events the
+     * subscriber hasn't been sent yet, and how many more it has asked for.
+     */
+    private class Subscription implements AlarmEventSubscription, Runnable {
+
+        private final AlarmEventSubscriber subscriber;
+        private final ArrayBlockingQueue<AlarmEvent> buffer =
+                new ArrayBlockingQueue<AlarmEvent>(bufferSize);
+
+        /** How many more events the subscriber has asked for. */
+        private final AtomicLong demand = new AtomicLong();
+        /** How many times we've been signalled since the last delivery caught up. */
+        private final AtomicInteger signals = new AtomicInteger();
+        /** Set once we've warned about dropping this subscriber's events. */
+        private volatile boolean warned = false;
+
+        private volatile boolean cancelled = false;
+        private volatile boolean completed = false;
+        private volatile Throwable error;
+
+        /** Set once onComplete or onError has been sent.  Only used by run(). */
+        private boolean finished = false;
+
+        Subscription(AlarmEventSubscriber subscriber){
+            this.subscriber = subscriber;
+        }
+
+        void offer(AlarmEvent event){
+            if(cancelled)
+                return;
+            if(!buffer.offer(event)){
+                dropped.incrementAndGet();
+                if(!warned){
+                    warned = true;
+                    Logger.getLogger(PublishingAlarmStarter.class.getName()).log(Level.WARNING,
+                            "A subscriber fell too far behind, its events are being dropped");
+                }
+            }
+            this.signal();
+        }
+
+        void complete(){
+            completed = true;
+            this.signal();
+        }
+
+        @Override
+        public void request(long n){
+            if(n <= 0){
+                error = new IllegalArgumentException("Must request a positive number of events, not " + n);
+            }else{
+                //add it on, but don't go past Long.MAX_VALUE
+                long current;
+                long next;
+                do{
+                    current = demand.get();
+                    next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                }while(!demand.compareAndSet(current, next));
+            }
+            this.signal();
+        }
+
+        @Override
+        public void cancel(){
+            cancelled = true;
+            subscriptions.remove(this);
+            buffer.clear();
+        }
+
+        private void signal(){
+            if(signals.getAndIncrement() == 0)
+                executor.execute(this);
+        }
+
+        /**
+         * Sends the subscriber as many events as it has asked for, then
+         * checks whether it was signalled again while we were doing that.
+         */
+        @Override
+        public void run(){
+            int missed = 1;
+            do{
+                this.deliver();
+                missed = signals.addAndGet(-missed);
+            }while(missed != 0);
+        }
+
+        private void deliver(){
+            if(finished)
+                return;
+            while(!cancelled && error == null && demand.get() > 0){
+                AlarmEvent event = buffer.poll();
+                if(event == null)
+                    break;
+                if(demand.get() != Long.MAX_VALUE)
+                    demand.decrementAndGet();
+                try{
+                    subscriber.onNext(event);
+                }catch(Throwable t){
+                    error = t;
+                }
+            }
+
+            if(cancelled){
+                finished = true;
+            }else if(error != null){
+                finished = true;
+                this.cancel();
+                subscriber.onError(error);
+            }else if(completed && buffer.isEmpty()){
+                finished = true;
+                subscriptions.remove(this);
+                subscriber.onComplete();
+            }
+        }
+    }
+
+    /**
+     * This wraps the task returned by the wrapped AlarmStarter so that
+     * cancelling it directly is published too.
+     */
+    private class PublishedTask extends TimerTask {
+        private final SetAlarm alarm;
+        private final TimerTask task;
+
+        PublishedTask(SetAlarm alarm, TimerTask task){
+            this.alarm = alarm;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        @Override
+        public boolean cancel(){
+            boolean cancelled = task.cancel();
+            if(cancelled)
+                PublishingAlarmStarter.this.publishFinished(AlarmEvent.Type.CANCELLED, alarm);
+            return cancelled;
+        }
+
+        @Override
+        public long scheduledExecutionTime(){
+            return task.scheduledExecutionTime();
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package alarmclock.ServiceImplementations;
+
+import alarmclock.models.AlarmBatchResult;
+import alarmclock.models.RecurringAlarm;
+import alarmclock.models.SetAlarm;
+import alarmclock.services.AlarmListener;
+import alarmclock.services.AlarmStarter;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.joda.time.DateTime;
+
+/**
+ * This class is an AlarmStarter which sends every alarm it starts, cancels
+ * or fires to a standby copy of the program, an {@link AlarmStandby}, over a
+ * socket on this computer.  The standby keeps the same alarms in memory, so
+ * if this program dies the standby can start firing them right away, without
+ * reading anything back from disk.
+ * <p/>
+ * It's another Decorator, like the JournalingAlarmStarter, and it sends the
+ * same AlarmJournalRecords the journal writes.  The records are handed to a
+ * sender thread through a queue, so starting an alarm never waits on the
+ * standby.  The sender keeps its own copy of the pending alarms, and when a
+ * standby connects it first gets all of those, then every record after that.
+ * When there's nothing to send it sends a heartbeat every so often, so the
+ * standby can tell the difference between a quiet primary and a dead one.
+ * <p/>
+ * Only one standby is connected at a time.  If a new one connects it
+ * replaces the old one.
+ *
+ * This class Does Something.
+ * @author Gordon
+ */
+public class ReplicatingAlarmStarter implements AlarmStarter {
+
+    /*
+     * Each message on the socket starts with one of these bytes.
+     */
+    /** The full list of pending alarms follows, up to SNAPSHOT_END. */
+    static final byte SNAPSHOT_BEGIN = 'B';
+    static final byte SNAPSHOT_END = 'E';
+    /** An AlarmJournalRecord follows. */
+    static final byte RECORD = 'J';
+    /** Nothing follows, the primary is just saying it's still alive. */
+    static final byte HEARTBEAT = 'H';
+
+    public static final long DEFAULT_HEARTBEAT_MILLIS = 100;
+
+    private final AlarmStarter delegate;
+    private final ServerSocket serverSocket;
+    private final long heartbeatMillis;
+
+    /**
+     * The records waiting to be sent, and standby sockets waiting to be
+     * caught up.  Both go through the same queue so that the sender thread is
+     * the only one that ever touches the live map or the socket.
+     */
+    private final LinkedBlockingQueue<Object> outbox = new LinkedBlockingQueue<Object>();
+
+    /** The pending alarms.  Only the sender thread uses this. */
+    private final Map<Long, AlarmJournalRecord> live =
+            new LinkedHashMap<Long, AlarmJournalRecord>();
+
+    /**
+     * The records we've queued for alarms which haven't fired or been
+     * cancelled yet, by alarm id.
+     */
+    private final ConcurrentLongMap<AlarmJournalRecord> sent =
+            new ConcurrentLongMap<AlarmJournalRecord>();
+
+    private volatile boolean running = true;
+    private final Thread acceptThread;
+    private final Thread senderThread;
+
+    /**
+     * Creates a ReplicatingAlarmStarter and starts listening for a standby.
+     * @param delegate the AlarmStarter which actually schedules the alarms
+     * @param port the port to listen on, on this computer only.  0 picks any
+     * free port, see {@link #getPort()}.
+     * @param heartbeatMillis how often to send a heartbeat when there's
+     * nothing else to send
+     * @throws IOException if the port can't be listened on
+     */
+    public ReplicatingAlarmStarter(AlarmStarter delegate, int port, long heartbeatMillis)
+            throws IOException
+    {
+        if(heartbeatMillis <= 0)
+            throw new IllegalArgumentException("heartbeatMillis must be positive");
+
+        this.delegate = delegate;
+        this.heartbeatMillis = heartbeatMillis;
+        this.serverSocket = new ServerSocket(port, 1, InetAddress.getByName("127.0.0.1"));
+
+        acceptThread = AlarmDispatcher.daemonThreadFactory("ReplicationAccept").newThread(new Runnable(){
+            @Override
+            public void run() {
+                ReplicatingAlarmStarter.this.acceptLoop();
+            }
+        });
+        senderThread = AlarmDispatcher.daemonThreadFactory("ReplicationSender").newThread(new Runnable(){
+            @Override
+            public void run() {
+                ReplicatingAlarmStarter.this.sendLoop();
+            }
+        });
+        acceptThread.start();
+        senderThread.start();
+    }
+
+    /**
+     * Creates a ReplicatingAlarmStarter which sends heartbeats every
+     * {@link #DEFAULT_HEARTBEAT_MILLIS}.
+     */
+    public ReplicatingAlarmStarter(AlarmStarter delegate, int port) throws IOException {
+        this(delegate, port, DEFAULT_HEARTBEAT_MILLIS);
+    }
+
+    /** @return the port the standby should connect to. */
+    public int getPort(){
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Stops listening and disconnects the standby, which will then take over.
+     * Alarms which are already scheduled here keep going, so this should be
+     * done as the program exits.
+     */
+    public void shutdown(){
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException ex) {
+            Logger.getLogger(ReplicatingAlarmStarter.class.getName()).log(Level.WARNING, null, ex);
+        }
+        senderThread.interrupt();
+        try {
+            senderThread.join();
+            acceptThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public SetAlarm createAlarm(DateTime alarmDate, String exePath)
+    {
+        return delegate.createAlarm(alarmDate, exePath);
+    }
+
+    @Override
+    public TimerTask startAlarm(SetAlarm alarm, Runnable whenFinished)
+            throws Exception
+    {
+        //send it before it's started, so the standby can't hear it fired first
+        boolean ours = this.sendScheduled(new AlarmJournalRecord(AlarmJournalRecord.SCHEDULED,
+                alarm.getId(), alarm.getTimeMillis(), alarm.getZone(), alarm.getPath(), 0));
+        TimerTask task;
+        try{
+            task = delegate.startAlarm(alarm, this.firing(alarm, whenFinished));
+        }catch(Exception ex){
+            if(ours)
+                this.sendFinished(AlarmJournalRecord.CANCELLED, alarm);
+            throw ex;
+        }
+        return new ReplicatedTask(alarm, task);
+    }
+
+    /**
+     * Starts a recurring alarm.  Like the journal, we don't send each time it
+     * goes off, it's pending until it's cancelled.
+     */
+    @Override
+    public TimerTask startRecurringAlarm(RecurringAlarm alarm, Runnable whenFinished)
+            throws Exception
+    {
+        SetAlarm first = alarm.getFirst();
+        boolean ours = this.sendScheduled(new AlarmJournalRecord(AlarmJournalRecord.RECURRING,
+                first.getId(), first.getTimeMillis(), first.getZone(), first.getPath(), alarm.getPeriodMillis()));
+        TimerTask task;
+        try{
+            task = delegate.startRecurringAlarm(alarm, whenFinished);
+        }catch(Exception ex){
+            if(ours)
+                this.sendFinished(AlarmJournalRecord.CANCELLED, first);
+            throw ex;
+        }
+        return new ReplicatedTask(first, task);
+    }
+
+    @Override
+    public boolean cancelAlarm(SetAlarm alarm){
+        boolean cancelled = delegate.cancelAlarm(alarm);
+        if(cancelled)
+            this.sendFinished(AlarmJournalRecord.CANCELLED, alarm);
+        return cancelled;
+    }
+
+    @Override
+    public AlarmBatchResult startAlarms(Collection<SetAlarm> alarms, final AlarmListener whenFinished){
+        boolean[] ours = new boolean[alarms.size()];
+        int index = 0;
+        for(SetAlarm alarm : alarms){
+            ours[index++] = this.sendScheduled(new AlarmJournalRecord(AlarmJournalRecord.SCHEDULED,
+                    alarm.getId(), alarm.getTimeMillis(), alarm.getZone(), alarm.getPath(), 0));
+        }
+
+        AlarmBatchResult result = delegate.startAlarms(alarms, new AlarmListener(){
+            @Override
+            public void alarmFinished(SetAlarm alarm) {
+                ReplicatingAlarmStarter.this.sendFinished(AlarmJournalRecord.FIRED, alarm);
+                whenFinished.alarmFinished(alarm);
+            }
+        });
+
+        AlarmBatchResult ret = new AlarmBatchResult(result.size());
+        for(int i = 0; i < result.size(); i++){
+            SetAlarm alarm = result.getAlarm(i);
+            if(result.getFailure(i) != null){
+                if(ours[i])
+                    this.sendFinished(AlarmJournalRecord.CANCELLED, alarm);
+                ret.setFailed(i, alarm, result.getFailure(i));
+                continue;
+            }
+            ret.setStarted(i, alarm, new ReplicatedTask(alarm, result.getTask(i)));
+        }
+        return ret;
+    }
+
+    @Override
+    public boolean[] cancelAlarms(Collection<SetAlarm> alarms){
+        boolean[] result = delegate.cancelAlarms(alarms);
+        int index = 0;
+        for(SetAlarm alarm : alarms){
+            if(result[index++])
+                this.sendFinished(AlarmJournalRecord.CANCELLED, alarm);
+        }
+        return result;
+    }
+
+    /**
+     * Wraps the callback so that the standby hears about the alarm firing
+     * before the callback runs.
+     */
+    private Runnable firing(final SetAlarm alarm, final Runnable whenFinished){
+        return new Runnable(){
+            @Override
+            public void run() {
+                ReplicatingAlarmStarter.this.sendFinished(AlarmJournalRecord.FIRED, alarm);
+                whenFinished.run();
+            }
+        };
+    }
+
+    /**
+     * Queues the record for an alarm that's about to be started, unless we've
+     * already sent that alarm.  Starting it twice is refused by the wrapped
+     * AlarmStarter, and the failure mustn't cancel the standby's copy.
+     * @return true if this call sent it, so a failed start should cancel it
+     */
+    private boolean sendScheduled(AlarmJournalRecord record){
+        if(sent.putIfAbsent(record.getAlarmId(), record) != null)
+            return false;
+        outbox.add(record);
+        return true;
+    }
+
+    /**
+     * Queues a FIRED or CANCELLED record.  Recurring alarms stay sent until
+     * they're cancelled.
+     */
+    private void sendFinished(byte type, SetAlarm alarm){
+        sent.remove(alarm.getId());
+        outbox.add(new AlarmJournalRecord(type, alarm.getId(),
+                alarm.getTimeMillis(), alarm.getZone(), alarm.getPath(), 0));
+    }
+
+    /**
+     * This is the main loop of the accept thread.  It hands each standby that
+     * connects to the sender thread.
+     */
+    private void acceptLoop(){
+        while(running){
+            try{
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                outbox.add(socket);
+            }catch(IOException ex){
+                if(running)
+                    Logger.getLogger(ReplicatingAlarmStarter.class.getName()).log(Level.WARNING,
+                            "Could not accept a standby", ex);
+            }
+        }
+    }
+
+    /**
+     * This is the main loop of the sender thread.  It keeps the live map up
+     * to date and sends everything on to the standby, if there is one.  The
+     * stream is only flushed when the queue is empty or a heartbeat is due,
+     * so a burst of alarms goes out in a few big writes.
+     */
+    private void sendLoop(){
+        Socket standby = null;
+        DataOutputStream out = null;
+        long lastFlush = System.currentTimeMillis();
+
+        while(running){
+            Object next;
+            try {
+                next = outbox.poll(heartbeatMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                break;
+            }
+
+            try{
+                if(next instanceof Socket){
+                    close(standby);
+                    standby = (Socket)next;
+                    out = new DataOutputStream(new BufferedOutputStream(standby.getOutputStream(), 1 << 16));
+                    out.writeByte(SNAPSHOT_BEGIN);
+                    for(AlarmJournalRecord record : live.values()){
+                        out.writeByte(RECORD);
+                        record.writeTo(out);
+                    }
+                    out.writeByte(SNAPSHOT_END);
+                }else if(next != null){
+                    AlarmJournalRecord record = (AlarmJournalRecord)next;
+                    AlarmJournal.apply(live, record);
+                    if(out != null){
+                        out.writeByte(RECORD);
+                        record.writeTo(out);
+                    }
+                }else if(out != null){
+                    out.writeByte(HEARTBEAT);
+                }
+
+                long now = System.currentTimeMillis();
+                if(out != null && (outbox.isEmpty() || now - lastFlush >= heartbeatMillis)){
+                    out.flush();
+                    lastFlush = now;
+                }
+            }catch(IOException ex){
+                Logger.getLogger(ReplicatingAlarmStarter.class.getName()).log(Level.INFO,
+                        "Standby disconnected", ex);
+                close(standby);
+                standby = null;
+                out = null;
+            }
+        }
+        close(standby);
+    }
+
+    private static void close(Socket socket){
+        if(socket == null)
+            return;
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            Logger.getLogger(ReplicatingAlarmStarter.class.getName()).log(Level.FINE, null, ex);
+        }
+    }
+
+    /**
+     * This wraps the task returned by the wrapped AlarmStarter so that
+     * cancelling it directly gets sent to the standby too.
+     */
+    private class ReplicatedTask extends TimerTask {
+        private final SetAlarm alarm;
+        private final TimerTask task;
+
+        ReplicatedTask(SetAlarm alarm, TimerTask task){
+            this.alarm = alarm;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        @Override
+        public boolean cancel(){
+            boolean cancelled = task.cancel();
+            if(cancelled)
+                ReplicatingAlarmStarter.this.sendFinished(AlarmJournalRecord.CANCELLED, alarm);
+            return cancelled;
+        }
+
+        @Override
+        public long scheduledExecutionTime(){
+            return task.scheduledExecutionTime();
+        }
+    }
+}
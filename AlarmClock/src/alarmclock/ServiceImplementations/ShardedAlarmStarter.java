@@ -0,0 +1,210 @@
+package alarmclock.ServiceImplementations;
+
+import alarmclock.models.AlarmBatchResult;
+import alarmclock.models.RecurringAlarm;
+import alarmclock.models.SetAlarm;
+import alarmclock.services.AlarmListener;
+import alarmclock.services.AlarmStarter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TimerTask;
+import org.joda.time.DateTime;
+
+/**
+ * This class is an AlarmStarter which splits its alarms up between several
+ * other AlarmStarters, called shards.
+ * <p/>
+ * Each AlarmStarter has one lock and one thread watching the clock, so no
+ * matter how many processors the computer has, only one thread at a time can
+ * be scheduling or firing alarms.  By giving each shard its own wheel, lock,
+ * thread and dispatcher, N shards can do N times the work.  Every alarm always
+ * goes to the same shard, picked by its hash code, so starting, cancelling
+ * and checking for duplicates only ever involves the one shard that owns it.
+ *
+ * This class Does Something.
+ * @author Gordon
+ */
+public class ShardedAlarmStarter implements AlarmStarter {
+
+    private final AlarmStarter[] shards;
+
+    /**
+     * Creates a ShardedAlarmStarter with one TimingWheelAlarmStarter shard per
+     * processor.
+     */
+    public ShardedAlarmStarter(){
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a ShardedAlarmStarter with the given number of
+     * TimingWheelAlarmStarter shards, each with its own wheel thread and its
+     * own dispatcher.
+     * @param shardCount the number of shards
+     */
+    public ShardedAlarmStarter(int shardCount){
+        this(timingWheels(shardCount));
+    }
+
+    /**
+     * Creates a ShardedAlarmStarter which splits alarms between the given
+     * AlarmStarters.
+     * @param shards the AlarmStarters to use as shards.  There must be at
+     * least one, and they must all be different instances.
+     */
+    public ShardedAlarmStarter(List<? extends AlarmStarter> shards){
+        if(shards.isEmpty())
+            throw new IllegalArgumentException("need at least one shard");
+        this.shards = shards.toArray(new AlarmStarter[shards.size()]);
+    }
+
+    private static List<AlarmStarter> timingWheels(int shardCount){
+        if(shardCount <= 0)
+            throw new IllegalArgumentException("need at least one shard");
+
+        List<AlarmStarter> ret = new ArrayList<AlarmStarter>(shardCount);
+        for(int i = 0; i < shardCount; i++){
+            ret.add(new TimingWheelAlarmStarter());
+        }
+        return ret;
+    }
+
+    /** @return the number of shards. */
+    public int getShardCount(){
+        return shards.length;
+    }
+
+    /**
+     * Works out which shard owns the given alarm.
+     */
+    int shardIndex(SetAlarm alarm){
+        if(shards.length == 1)
+            return 0;
+
+        //SetAlarm's hash code is built by multiplying by small primes, so
+        //the low bits aren't very random.  Mix the high bits in before we
+        //take the remainder.
+        int h = alarm.hashCode();
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return (h & Integer.MAX_VALUE) % shards.length;
+    }
+
+    private AlarmStarter shardFor(SetAlarm alarm){
+        return shards[this.shardIndex(alarm)];
+    }
+
+    @Override
+    public SetAlarm createAlarm(DateTime alarmDate, String exePath)
+    {
+        return shards[0].createAlarm(alarmDate, exePath);
+    }
+
+    @Override
+    public TimerTask startAlarm(SetAlarm alarm, Runnable whenFinished)
+            throws Exception
+    {
+        return this.shardFor(alarm).startAlarm(alarm, whenFinished);
+    }
+
+    @Override
+    public TimerTask startRecurringAlarm(RecurringAlarm alarm, Runnable whenFinished)
+            throws Exception
+    {
+        return this.shardFor(alarm.getFirst()).startRecurringAlarm(alarm, whenFinished);
+    }
+
+    /**
+     * Cancels an alarm.  Only the shard that owns the alarm is asked.
+     */
+    @Override
+    public boolean cancelAlarm(SetAlarm alarm){
+        return this.shardFor(alarm).cancelAlarm(alarm);
+    }
+
+    /**
+     * Starts a batch of alarms.  The batch is split up into one smaller batch
+     * per shard, so each shard can still do its part in bulk.
+     */
+    @Override
+    public AlarmBatchResult startAlarms(Collection<SetAlarm> alarms, AlarmListener whenFinished){
+        List<List<SetAlarm>> perShard = new ArrayList<List<SetAlarm>>(shards.length);
+        List<List<Integer>> indexes = new ArrayList<List<Integer>>(shards.length);
+        this.split(alarms, perShard, indexes);
+
+        AlarmBatchResult result = new AlarmBatchResult(alarms.size());
+        for(int s = 0; s < shards.length; s++){
+            List<SetAlarm> batch = perShard.get(s);
+            if(batch.isEmpty())
+                continue;
+
+            AlarmBatchResult shardResult = shards[s].startAlarms(batch, whenFinished);
+            List<Integer> original = indexes.get(s);
+            for(int i = 0; i < shardResult.size(); i++){
+                int index = original.get(i);
+                if(shardResult.getFailure(i) != null)
+                    result.setFailed(index, shardResult.getAlarm(i), shardResult.getFailure(i));
+                else
+                    result.setStarted(index, shardResult.getAlarm(i), shardResult.getTask(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Cancels a batch of alarms, one smaller batch per shard.
+     */
+    @Override
+    public boolean[] cancelAlarms(Collection<SetAlarm> alarms){
+        List<List<SetAlarm>> perShard = new ArrayList<List<SetAlarm>>(shards.length);
+        List<List<Integer>> indexes = new ArrayList<List<Integer>>(shards.length);
+        this.split(alarms, perShard, indexes);
+
+        boolean[] result = new boolean[alarms.size()];
+        for(int s = 0; s < shards.length; s++){
+            List<SetAlarm> batch = perShard.get(s);
+            if(batch.isEmpty())
+                continue;
+
+            boolean[] shardResult = shards[s].cancelAlarms(batch);
+            List<Integer> original = indexes.get(s);
+            for(int i = 0; i < shardResult.length; i++){
+                result[original.get(i)] = shardResult[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Splits a batch of alarms up by shard, remembering where each one was
+     * in the original batch.
+     */
+    private void split(Collection<SetAlarm> alarms, List<List<SetAlarm>> perShard,
+            List<List<Integer>> indexes)
+    {
+        int expected = alarms.size() / shards.length + 1;
+        for(int s = 0; s < shards.length; s++){
+            perShard.add(new ArrayList<SetAlarm>(expected));
+            indexes.add(new ArrayList<Integer>(expected));
+        }
+
+        int index = 0;
+        for(SetAlarm alarm : alarms){
+            int s = this.shardIndex(alarm);
+            perShard.get(s).add(alarm);
+            indexes.get(s).add(index++);
+        }
+    }
+
+    /**
+     * Stops every shard which is a TimingWheelAlarmStarter.
+     */
+    public void shutdown(){
+        for(AlarmStarter shard : shards){
+            if(shard instanceof TimingWheelAlarmStarter)
+                ((TimingWheelAlarmStarter)shard).shutdown();
+        }
+    }
+}
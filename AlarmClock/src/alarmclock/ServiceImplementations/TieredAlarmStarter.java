@@ -0,0 +1,477 @@
+package alarmclock.ServiceImplementations;
+
+import alarmclock.models.AlarmBatchResult;
+import alarmclock.models.RecurringAlarm;
+import alarmclock.models.SetAlarm;
+import alarmclock.services.AlarmListener;
+import alarmclock.services.AlarmStarter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.joda.time.DateTime;
+
+/**
+ * This class is an AlarmStarter which can schedule alarms any distance into the
+ * future, by splitting them into two tiers.
+ * <p/>
+ * The active tier is another AlarmStarter (usually a TimerAlarmStarter) which
+ * only ever holds the alarms that are due within a rolling horizon, one day by
+ * default.  Alarms further out than that wait in the far tier, which is just a
+ * sorted map of time buckets (one hour each by default) holding lists of alarms.
+ * Once an hour the far tier hands the buckets which have come inside the
+ * horizon to the active tier.  This way the active tier's queue stays small
+ * no matter how many alarms are set for months from now, and we are no longer
+ * limited by {@link SetAlarm#MAX_FUTURE_SCHEDULING_MILLIS}.
+ * <p/>
+ * This is an example of the Decorator pattern: it implements AlarmStarter by
+ * wrapping another AlarmStarter and adding to what it does.
+ *
+ * This class Does Something.
+ * @author Gordon
+ */
+public class TieredAlarmStarter implements AlarmStarter {
+
+    public static final long DEFAULT_HORIZON_MILLIS = 24l * 60l * 60l * 1000l;
+    public static final long DEFAULT_BUCKET_MILLIS = 60l * 60l * 1000l;
+
+    /** The AlarmStarter holding the alarms inside the horizon. */
+    private final AlarmStarter activeStarter;
+
+    private final long horizonMillis;
+    private final long bucketMillis;
+
+    /**
+     * This guards the far tier and the state of the TieredTasks.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * This is the far tier.  The key is the start time of each bucket, and the
+     * value is the list of alarms due within that bucket.  Because it's sorted
+     * we can quickly pull off every bucket which starts before the horizon.
+     */
+    private final TreeMap<Long, List<TieredTask>> farTier = new TreeMap<Long, List<TieredTask>>();
+    private int farCount = 0;
+
+    /** This remembers every alarm we know about, in either tier, by alarm id. */
+    private final ConcurrentLongMap<TieredTask> runningTasks = new ConcurrentLongMap<TieredTask>();
+
+    /**
+     * This remembers the recurring alarms, which live in the active tier for
+     * good, by alarm id.  The value is the active tier's task for the alarm.
+     */
+    private final ConcurrentLongMap<TimerTask> recurringTasks = new ConcurrentLongMap<TimerTask>();
+
+    /** This timer moves buckets from the far tier into the active tier. */
+    private final Timer promotionTimer = new Timer("TieredAlarmStarter", true);
+
+    /**
+     * This runs the alarms which were already late by the time they were
+     * promoted, catching anything they throw so the promotionTimer survives.
+     */
+    private final AlarmDispatcher lateDispatcher = new AlarmDispatcher();
+
+    /**
+     * The active tier tells us here when one of our alarms goes off, and we
+     * look up and run the right callback.
+     */
+    private final AlarmListener activeListener = new AlarmListener(){
+        @Override
+        public void alarmFinished(SetAlarm alarm) {
+            TieredAlarmStarter.this.onActiveAlarmFinished(alarm);
+        }
+    };
+
+    /**
+     * Creates a TieredAlarmStarter with the default horizon of one day and
+     * one hour buckets.
+     * @param activeStarter the AlarmStarter to use for the active tier
+     */
+    public TieredAlarmStarter(AlarmStarter activeStarter){
+        this(activeStarter, DEFAULT_HORIZON_MILLIS, DEFAULT_BUCKET_MILLIS);
+    }
+
+    /**
+     * Creates a TieredAlarmStarter.
+     * @param activeStarter the AlarmStarter to use for the active tier
+     * @param horizonMillis alarms due within this many milliseconds are put in
+     * the active tier
+     * @param bucketMillis how much time each bucket in the far tier covers,
+     * which is also how often buckets are moved into the active tier.
+     */
+    public TieredAlarmStarter(AlarmStarter activeStarter, long horizonMillis, long bucketMillis){
+        if(bucketMillis <= 0 || horizonMillis < bucketMillis)
+            throw new IllegalArgumentException("the horizon must be at least one bucket");
+        //a bucket which just made it inside the horizon can reach a whole
+        //bucket past it, and the active tier has to accept that.
+        if(horizonMillis + bucketMillis > SetAlarm.MAX_FUTURE_SCHEDULING_MILLIS)
+            throw new IllegalArgumentException("the horizon is too far for the active tier");
+
+        this.activeStarter = activeStarter;
+        this.horizonMillis = horizonMillis;
+        this.bucketMillis = bucketMillis;
+
+        promotionTimer.scheduleAtFixedRate(new TimerTask(){
+            @Override
+            public void run() {
+                TieredAlarmStarter.this.promote();
+            }
+        }, bucketMillis, bucketMillis);
+    }
+
+    @Override
+    public SetAlarm createAlarm(DateTime alarmDate, String exePath)
+    {
+        return activeStarter.createAlarm(alarmDate, exePath);
+    }
+
+    /**
+     * Starts the given alarm, putting it in the active tier if it's due within
+     * the horizon, or in the far tier otherwise.
+     * @param alarm the alarm to start
+     * @param whenFinished A callback task to be executed when the alarm starts
+     * @return a TimerTask which can be used to monitor and cancel the alarm no
+     * matter which tier it's in.
+     * @throws Exception if the alarm is in the past or has already been started.
+     */
+    @Override
+    public TimerTask startAlarm(SetAlarm alarm, Runnable whenFinished)
+            throws Exception
+    {
+        long now = System.currentTimeMillis();
+        TieredTask task = this.register(alarm, whenFinished, now);
+
+        if(task.deadline - now > horizonMillis){
+            synchronized(lock){
+                this.addToFarTier(task);
+            }
+            return task;
+        }
+
+        synchronized(lock){
+            task.state = TieredTask.ACTIVE;
+        }
+        try{
+            activeStarter.startAlarm(alarm, AlarmDispatcher.notifying(activeListener, alarm));
+        }catch(Exception ex){
+            runningTasks.remove(alarm.getId(), task);
+            throw ex;
+        }
+        this.cancelIfDone(task);
+        return task;
+    }
+
+    /**
+     * Starts a recurring alarm.  Since it goes off again every period, it is
+     * always handed straight to the active tier, so its first time and its
+     * period have to be within what the active tier allows.
+     */
+    @Override
+    public TimerTask startRecurringAlarm(RecurringAlarm alarm, Runnable whenFinished)
+            throws Exception
+    {
+        SetAlarm first = alarm.getFirst();
+        if(runningTasks.containsKey(first.getId()))
+            throw new UnsupportedOperationException("Already scheduled once");
+
+        TimerTask task = activeStarter.startRecurringAlarm(alarm, whenFinished);
+        recurringTasks.put(first.getId(), task);
+        return task;
+    }
+
+    /**
+     * Starts a batch of alarms.  The ones inside the horizon are handed to the
+     * active tier as one batch, the rest go into the far tier together.
+     */
+    @Override
+    public AlarmBatchResult startAlarms(Collection<SetAlarm> alarms, AlarmListener whenFinished){
+        AlarmBatchResult result = new AlarmBatchResult(alarms.size());
+        List<SetAlarm> active = new ArrayList<SetAlarm>();
+        List<TieredTask> far = new ArrayList<TieredTask>();
+        //where each active alarm was in the original batch
+        List<Integer> activeIndexes = new ArrayList<Integer>();
+        long now = System.currentTimeMillis();
+
+        int index = 0;
+        for(SetAlarm alarm : alarms){
+            try{
+                TieredTask task = this.register(alarm,
+                        AlarmDispatcher.notifying(whenFinished, alarm), now);
+                result.setStarted(index, alarm, task);
+
+                if(task.deadline - now > horizonMillis){
+                    far.add(task);
+                }else{
+                    synchronized(lock){
+                        task.state = TieredTask.ACTIVE;
+                    }
+                    active.add(alarm);
+                    activeIndexes.add(index);
+                }
+            }catch(Exception ex){
+                result.setFailed(index, alarm, ex);
+            }
+            index++;
+        }
+
+        if(!far.isEmpty()){
+            synchronized(lock){
+                for(TieredTask task : far){
+                    this.addToFarTier(task);
+                }
+            }
+        }
+
+        if(!active.isEmpty()){
+            AlarmBatchResult activeResult = activeStarter.startAlarms(active, activeListener);
+            for(int i = 0; i < activeResult.size(); i++){
+                Exception failure = activeResult.getFailure(i);
+                SetAlarm alarm = activeResult.getAlarm(i);
+                int original = activeIndexes.get(i);
+                TieredTask task = (TieredTask)result.getTask(original);
+                if(failure != null){
+                    runningTasks.remove(alarm.getId(), task);
+                    result.setFailed(original, alarm, failure);
+                }else{
+                    this.cancelIfDone(task);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Validates the alarm and remembers it.  Unlike the other AlarmStarters
+     * there is no limit on how far in the future it can be.
+     */
+    private TieredTask register(SetAlarm alarm, Runnable whenFinished, long now){
+        long deadline = alarm.getTimeMillis();
+        if(deadline < now)
+            throw new UnsupportedOperationException("can't schedule for " + (deadline - now) + "from now");
+
+        TieredTask task = new TieredTask(alarm, whenFinished, deadline);
+        if(runningTasks.putIfAbsent(alarm.getId(), task) != null){
+            throw new UnsupportedOperationException("Already scheduled once");
+        }
+        return task;
+    }
+
+    /**
+     * Puts a task in its bucket in the far tier.  Must be called while holding
+     * the lock.
+     */
+    private void addToFarTier(TieredTask task){
+        long bucket = task.deadline - (task.deadline % bucketMillis);
+        List<TieredTask> list = farTier.get(bucket);
+        if(list == null){
+            list = new ArrayList<TieredTask>();
+            farTier.put(bucket, list);
+        }
+        task.bucket = bucket;
+        task.bucketIndex = list.size();
+        list.add(task);
+        farCount++;
+    }
+
+    /**
+     * Takes a task out of its bucket in the far tier.  We swap the last task in
+     * the bucket into its place, so this is O(1) no matter how big the bucket
+     * is.  Must be called while holding the lock.
+     */
+    private void removeFromFarTier(TieredTask task){
+        List<TieredTask> list = farTier.get(task.bucket);
+        TieredTask last = list.remove(list.size() - 1);
+        if(last != task){
+            list.set(task.bucketIndex, last);
+            last.bucketIndex = task.bucketIndex;
+        }
+        if(list.isEmpty())
+            farTier.remove(task.bucket);
+        farCount--;
+    }
+
+    /**
+     * Moves every bucket which now starts inside the horizon into the active
+     * tier.  This is called by the promotionTimer once per bucket.
+     */
+    void promote(){
+        List<SetAlarm> promoted = new ArrayList<SetAlarm>();
+        List<TieredTask> tasks = new ArrayList<TieredTask>();
+        synchronized(lock){
+            SortedMap<Long, List<TieredTask>> due =
+                    farTier.headMap(System.currentTimeMillis() + horizonMillis);
+            Iterator<List<TieredTask>> it = due.values().iterator();
+            while(it.hasNext()){
+                for(TieredTask task : it.next()){
+                    task.state = TieredTask.ACTIVE;
+                    promoted.add(task.alarm);
+                    tasks.add(task);
+                    farCount--;
+                }
+                it.remove();
+            }
+        }
+
+        if(promoted.isEmpty())
+            return;
+
+        AlarmBatchResult result = activeStarter.startAlarms(promoted, activeListener);
+        for(int i = 0; i < result.size(); i++){
+            Exception failure = result.getFailure(i);
+            if(failure == null){
+                this.cancelIfDone(tasks.get(i));
+                continue;
+            }
+
+            //This happens if the computer was asleep and the alarm is already
+            //in the past.  Better late than never, so set it off right now.
+            SetAlarm alarm = result.getAlarm(i);
+            Logger.getLogger(TieredAlarmStarter.class.getName()).log(Level.WARNING,
+                    "Could not promote alarm for " + alarm.getPath() + ", running it now", failure);
+            lateDispatcher.dispatch(alarm, AlarmDispatcher.notifying(activeListener, alarm));
+        }
+    }
+
+    /**
+     * Takes an alarm back out of the active tier if it was cancelled while we
+     * were handing it over.  TieredTask.cancel cancels it in the active tier
+     * too, but if the active tier didn't have it yet that does nothing, and
+     * the alarm would stay there until it went off.  Call this after the
+     * active tier has it.
+     */
+    private void cancelIfDone(TieredTask task){
+        synchronized(lock){
+            if(task.state != TieredTask.DONE)
+                return;
+        }
+        activeStarter.cancelAlarm(task.alarm);
+    }
+
+    /**
+     * Called when an alarm in the active tier goes off.
+     */
+    private void onActiveAlarmFinished(SetAlarm alarm){
+        TieredTask task = runningTasks.get(alarm.getId());
+        if(task == null)
+            return;
+
+        synchronized(lock){
+            if(task.state != TieredTask.ACTIVE)
+                //it was cancelled while it was being promoted
+                return;
+            task.state = TieredTask.DONE;
+        }
+        runningTasks.remove(alarm.getId(), task);
+
+        task.whenFinished.run();
+    }
+
+    /**
+     * Cancels an alarm in either tier.
+     * @param alarm the currently running alarm
+     * @return true if the alarm could be canceled, false otherwise.
+     */
+    @Override
+    public boolean cancelAlarm(SetAlarm alarm){
+        TimerTask recurring = recurringTasks.remove(alarm.getId());
+        if(recurring != null)
+            return activeStarter.cancelAlarm(alarm);
+
+        TieredTask task = runningTasks.get(alarm.getId());
+        if(task == null)
+            return false;
+
+        return task.cancel();
+    }
+
+    @Override
+    public boolean[] cancelAlarms(Collection<SetAlarm> alarms){
+        boolean[] result = new boolean[alarms.size()];
+        int index = 0;
+        for(SetAlarm alarm : alarms){
+            result[index++] = this.cancelAlarm(alarm);
+        }
+        return result;
+    }
+
+    /** @return the number of alarms waiting in the far tier. */
+    public int getFarAlarmCount(){
+        synchronized(lock){
+            return farCount;
+        }
+    }
+
+    /**
+     * Stops moving alarms into the active tier.  Alarms still in the far tier
+     * will never go off.
+     */
+    public void shutdown(){
+        promotionTimer.cancel();
+    }
+
+    /**
+     * This is the handle for an alarm in either tier.  It is never scheduled
+     * on a java.util.Timer itself.
+     */
+    private class TieredTask extends TimerTask {
+        static final int FAR = 0;
+        static final int ACTIVE = 1;
+        static final int DONE = 2;
+
+        final SetAlarm alarm;
+        final Runnable whenFinished;
+        final long deadline;
+
+        /* These are guarded by the TieredAlarmStarter's lock */
+        int state = FAR;
+        long bucket;
+        int bucketIndex;
+
+        TieredTask(SetAlarm alarm, Runnable whenFinished, long deadline){
+            this.alarm = alarm;
+            this.whenFinished = whenFinished;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void run() {
+            whenFinished.run();
+        }
+
+        @Override
+        public boolean cancel(){
+            boolean wasActive;
+            synchronized(lock){
+                if(state == DONE)
+                    return false;
+
+                wasActive = state == ACTIVE;
+                if(!wasActive)
+                    TieredAlarmStarter.this.removeFromFarTier(this);
+                state = DONE;
+            }
+            super.cancel();
+            runningTasks.remove(alarm.getId(), this);
+
+            if(wasActive){
+                //if it's being promoted right now the active tier may not have
+                //it yet, but then cancelIfDone takes it back out.
+                activeStarter.cancelAlarm(alarm);
+            }
+            return true;
+        }
+
+        @Override
+        public long scheduledExecutionTime(){
+            return deadline;
+        }
+    }
+}
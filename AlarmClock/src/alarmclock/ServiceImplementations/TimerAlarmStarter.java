@@ -1,11 +1,20 @@
 package alarmclock.ServiceImplementations;
 
+import alarmclock.models.AlarmBatchResult;
+import alarmclock.models.RecurringAlarm;
 import alarmclock.models.SetAlarm;
+import alarmclock.services.AlarmListener;
 import alarmclock.services.AlarmStarter;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.joda.time.DateTime;
 
 /**
@@ -21,11 +30,68 @@ public class TimerAlarmStarter implements AlarmStarter {
 
     /**
      * This is a collection that simply remembers our currently running timers.
-     * It has to be synchronized because it will be modified concurrently by multiple
+     * It has to be thread safe because it will be modified concurrently by multiple
      * threads, specifically the UI thread and also the timer thread.
+     * <p/>
+     * The map is split into stripes which are locked separately, so
+     * threads starting, cancelling and firing different alarms don't all wait
+     * on one lock.  It also gives us putIfAbsent, which checks for an existing
+     * alarm and inserts the new one as one atomic step.  The tasks are keyed
+     * by the SetAlarm's id, so two alarms for the same time and path are kept
+     * apart, and a lookup never has to hash a DateTime or a String.
      */
-    private Map<SetAlarm, TimerTask> runningTasks =
-            Collections.synchronizedMap(new java.util.HashMap());
+    private ConcurrentLongMap<TimerTask> runningTasks = new ConcurrentLongMap<TimerTask>();
+
+    /**
+     * This runs the whenFinished callbacks once the timer says an alarm is due.
+     * By default it runs them right on the timer thread, but it can be replaced
+     * with one that uses a pool of worker threads so that a slow callback
+     * doesn't make every other alarm late.
+     */
+    private AlarmDispatcher dispatcher = new AlarmDispatcher();
+    public void setDispatcher(AlarmDispatcher dispatcher){
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Alarms which are due within the same window of this many milliseconds
+     * are put on the timer as one task, so they all go off in a single wakeup
+     * and are handed to the dispatcher together.  Each alarm goes off at the
+     * end of its window, so it can be up to this late, but never early.
+     * Zero, the default, gives every alarm its own task.
+     */
+    private volatile long coalesceWindowMillis = 0;
+    public void setCoalesceWindowMillis(long coalesceWindowMillis){
+        if(coalesceWindowMillis < 0)
+            throw new IllegalArgumentException("window can't be negative");
+        this.coalesceWindowMillis = coalesceWindowMillis;
+    }
+
+    /**
+     * A java.util.Timer doesn't take a cancelled task out of its queue, it
+     * only marks it and throws it away when its time comes around, which can
+     * be a month later.  Until then it's a tombstone taking up room in the
+     * queue.  We count the tombstones, and once there are more of them than
+     * this, and more of them than live alarms, we ask the Timer to purge them.
+     * Waiting until they outnumber the live alarms means each purge, which
+     * has to look at the whole queue, is paid for by at least as many cancels.
+     */
+    private volatile int purgeThreshold = 1024;
+    public void setPurgeThreshold(int purgeThreshold){
+        if(purgeThreshold <= 0)
+            throw new IllegalArgumentException("threshold must be positive");
+        this.purgeThreshold = purgeThreshold;
+    }
+
+    private final AtomicInteger tombstones = new AtomicInteger();
+    private final AtomicLong purged = new AtomicLong();
+
+    /**
+     * These are the windows which are on the timer and haven't gone off yet,
+     * keyed by the time each window starts.  Both are guarded by the windowLock.
+     */
+    private final Object windowLock = new Object();
+    private final Map<Long, FireWindow> windows = new HashMap<Long, FireWindow>();
 
     /**
      * This method implements the createAlarm function for the TimerAlarmStarter.
@@ -51,53 +117,173 @@ public class TimerAlarmStarter implements AlarmStarter {
     public TimerTask startAlarm(final SetAlarm alarm, final Runnable whenFinished)
             throws Exception
     {
-        //this section is validation on the given alarm
-        if (runningTasks.containsKey(alarm)){
+        return this.start(alarm, whenFinished, System.currentTimeMillis());
+    }
+
+    /**
+     * Starts an alarm which goes off over and over.  This uses the Timer's
+     * own scheduleAtFixedRate, so the one TimerTask stays on the timer for
+     * good.  If the Timer falls behind, say while the computer is asleep,
+     * scheduleAtFixedRate runs every missed time back to back to catch up, so
+     * the task skips all but the last of them, like the TimingWheelAlarmStarter.
+     * <p/>
+     * Unfortunately the Timer only knows about absolute time, so a daily
+     * alarm will be an hour off after daylight savings starts or ends.  The
+     * TimingWheelAlarmStarter works out each time from the local wall clock.
+     */
+    @Override
+    public TimerTask startRecurringAlarm(final RecurringAlarm alarm, final Runnable whenFinished)
+            throws Exception
+    {
+        SetAlarm first = alarm.getFirst();
+        long millis = this.millisFromNow(first, System.currentTimeMillis());
+
+        TimerTask ret = new AlarmTask(first, whenFinished, alarm.getPeriodMillis());
+
+        if(runningTasks.putIfAbsent(first.getId(), ret) != null){
             throw new UnsupportedOperationException("Already scheduled once");
         }
 
-        //get the number of milliseconds in the future we want to set the alarm for.
-        long millis = alarm.getTime().getMillis() - System.currentTimeMillis();
-        if(millis < 0 || millis > SetAlarm.MAX_FUTURE_SCHEDULING_MILLIS)
-            throw new UnsupportedOperationException("can't schedule for " + millis + "from now");
+        try{
+            timer.scheduleAtFixedRate(ret, millis, alarm.getPeriodMillis());
+        }catch(RuntimeException ex){
+            runningTasks.remove(first.getId(), ret);
+            throw ex;
+        }
 
-        //here we are creating the new TimerTask that will be executed by the timer.
-        TimerTask ret = new TimerTask(){
-            @Override
-            public void run() {
-                //run the given task when the timer goes off
-                whenFinished.run();
-
-                //and remove it from our remembered tasks
-                runningTasks.remove(alarm);
+        return ret;
+    }
+
+    /**
+     * Starts a whole batch of alarms.  We only look at the clock once for the
+     * whole batch, and one bad alarm doesn't stop the others.
+     * <p/>
+     * Unfortunately java.util.Timer doesn't let us add many tasks to its
+     * queue at once, so each one still takes the Timer's lock separately.
+     * The TimingWheelAlarmStarter can do better.
+     * @param alarms the alarms to start
+     * @param whenFinished the listener to tell when each one goes off
+     * @return which alarms were started and which ones failed
+     */
+    @Override
+    public AlarmBatchResult startAlarms(Collection<SetAlarm> alarms, AlarmListener whenFinished){
+        AlarmBatchResult result = new AlarmBatchResult(alarms.size());
+        int index = 0;
+        long now = System.currentTimeMillis();
+
+        for(SetAlarm alarm : alarms){
+            try{
+                TimerTask task = this.start(alarm,
+                        AlarmDispatcher.notifying(whenFinished, alarm), now);
+
+                result.setStarted(index, alarm, task);
+            }catch(Exception ex){
+                result.setFailed(index, alarm, ex);
             }
+            index++;
+        }
 
-            /**
-             * We are overriding cancel here so we can make sure it gets
-             * removed from our runningTasks list.
-             */
-            @Override
-            public boolean cancel(){
-                //call into the base class' cancel() implementation
-                boolean ret = super.cancel();
+        return result;
+    }
 
-                runningTasks.remove(alarm);
+    /**
+     * Validates, remembers and schedules one alarm, either on its own or in
+     * its coalescing window.
+     */
+    private TimerTask start(SetAlarm alarm, Runnable whenFinished, long now){
+        //this section is validation on the given alarm
+        long millis = this.millisFromNow(alarm, now);
 
-                return ret;
+        long window = coalesceWindowMillis;
+        if(window > 0){
+            CoalescedTask task = new CoalescedTask(alarm, whenFinished);
+            if(runningTasks.putIfAbsent(alarm.getId(), task) != null){
+                throw new UnsupportedOperationException("Already scheduled once");
             }
-        };
+            try{
+                this.addToWindow(task, alarm.getTimeMillis(), window, now);
+            }catch(RuntimeException ex){
+                runningTasks.remove(alarm.getId(), task);
+                throw ex;
+            }
+            return task;
+        }
 
-        //Remember the task for later in case we need to cancel
-        runningTasks.put(alarm, ret);
+        TimerTask ret = this.register(alarm, whenFinished);
+        this.schedule(alarm, ret, millis);
 
-        //We are now scheduling the task in the timer.  The timer runs in a separate
-        //thread and will execute the run() method of the timer task when the
-        //given date in millis is reached.
-        timer.schedule(ret, millis);
+        return ret;
+    }
+
+    /**
+     * Puts a task in the window its alarm falls in, putting the window on the
+     * timer if it's the first alarm in it.
+     */
+    private void addToWindow(CoalescedTask task, long deadline, long window, long now){
+        long windowStart = deadline - (deadline % window);
+        synchronized(windowLock){
+            FireWindow fireWindow = windows.get(windowStart);
+            if(fireWindow == null || fireWindow.window != window){
+                //the last millisecond of the window is the latest any alarm in it is due
+                fireWindow = new FireWindow(windowStart, window);
+                timer.schedule(fireWindow, Math.max(0, fireWindow.fireAt - now));
+                windows.put(windowStart, fireWindow);
+            }
+            fireWindow.members.add(task);
+            task.window = fireWindow;
+        }
+    }
+
+    /**
+     * Validates the time of the alarm and works out how far in the future it is.
+     * @param alarm the alarm to validate
+     * @param now the current time in millis
+     * @return the number of milliseconds from now until the alarm
+     * @throws UnsupportedOperationException if the alarm can't be scheduled
+     */
+    private long millisFromNow(SetAlarm alarm, long now){
+        //get the number of milliseconds in the future we want to set the alarm for.
+        long millis = alarm.getTimeMillis() - now;
+        if(millis < 0 || millis > SetAlarm.MAX_FUTURE_SCHEDULING_MILLIS)
+            throw new UnsupportedOperationException("can't schedule for " + millis + "from now");
+
+        return millis;
+    }
+
+    /**
+     * Creates the TimerTask for an alarm and remembers it in the runningTasks.
+     * @throws UnsupportedOperationException if the alarm was already started
+     */
+    private TimerTask register(SetAlarm alarm, Runnable whenFinished){
+        //here we are creating the new TimerTask that will be executed by the timer.
+        TimerTask ret = new AlarmTask(alarm, whenFinished, 0);
+
+        //Remember the task for later in case we need to cancel.  If there's
+        //already a task for this alarm then it was started twice.  Checking
+        //and inserting in one step means two threads can't both get in here.
+        if(runningTasks.putIfAbsent(alarm.getId(), ret) != null){
+            throw new UnsupportedOperationException("Already scheduled once");
+        }
 
         return ret;
     }
 
+    /**
+     * Puts a registered task on the timer, forgetting it again if the timer
+     * won't take it.
+     */
+    private void schedule(SetAlarm alarm, TimerTask task, long millis){
+        try{
+            //We are now scheduling the task in the timer.  The timer runs in a separate
+            //thread and will execute the run() method of the timer task when the
+            //given date in millis is reached.
+            timer.schedule(task, millis);
+        }catch(RuntimeException ex){
+            runningTasks.remove(alarm.getId(), task);
+            throw ex;
+        }
+    }
+
 
     /**
      * Cancels a given alarm that has already been started
@@ -107,7 +293,7 @@ public class TimerAlarmStarter implements AlarmStarter {
     @Override
     public boolean cancelAlarm(SetAlarm alarm){
         //We pull the TimerTask object out of our map of tasks that we remember.
-        TimerTask task = runningTasks.get(alarm);
+        TimerTask task = runningTasks.get(alarm.getId());
         if (task == null)
             return false;
 
@@ -115,9 +301,228 @@ public class TimerAlarmStarter implements AlarmStarter {
         boolean cancelled = task.cancel();
 
         if(cancelled)
-            runningTasks.remove(alarm);
+            runningTasks.remove(alarm.getId(), task);
 
         return cancelled;
     }
 
+    /**
+     * Counts one more cancelled task left on the timer, and purges the timer
+     * if there are enough of them.
+     */
+    private void addTombstone(){
+        int count = tombstones.incrementAndGet();
+        if(count < purgeThreshold || count < runningTasks.size())
+            return;
+
+        //only one thread needs to purge
+        if(tombstones.compareAndSet(count, 0)){
+            purged.addAndGet(timer.purge());
+        }
+    }
+
+    /**
+     * @return the number of cancelled tasks which may still be in the timer's
+     * queue, waiting to be purged.
+     */
+    public int getTombstoneCount(){
+        return tombstones.get();
+    }
+
+    /** @return the number of cancelled tasks which have been purged from the timer. */
+    public long getPurgedCount(){
+        return purged.get();
+    }
+
+    /**
+     * Cancels a whole batch of alarms.  Cancelling a TimerTask only marks it,
+     * it doesn't touch the Timer's queue, so there's nothing to gain from
+     * doing them in bulk here.
+     * @param alarms the alarms to cancel
+     * @return whether each alarm was cancelled, in the same order as given
+     */
+    @Override
+    public boolean[] cancelAlarms(Collection<SetAlarm> alarms){
+        boolean[] result = new boolean[alarms.size()];
+        int index = 0;
+        for(SetAlarm alarm : alarms){
+            result[index++] = this.cancelAlarm(alarm);
+        }
+        return result;
+    }
+
+
+    /**
+     * This is the TimerTask for a single alarm, which goes on the timer.
+     * <p/>
+     * When it's cancelled it lets go of its alarm and callback right away,
+     * so that while it waits in the timer's queue to be purged it's just an
+     * empty shell, and the SetAlarm, its DateTime and whatever the callback
+     * refers to can all be garbage collected.
+     */
+    private class AlarmTask extends TimerTask {
+        /* These are cleared when the task is cancelled */
+        private volatile SetAlarm alarm;
+        private volatile Runnable whenFinished;
+        /** For a recurring alarm, how often it goes off.  Otherwise 0. */
+        private final long periodMillis;
+
+        AlarmTask(SetAlarm alarm, Runnable whenFinished, long periodMillis){
+            this.alarm = alarm;
+            this.whenFinished = whenFinished;
+            this.periodMillis = periodMillis;
+        }
+
+        @Override
+        public void run() {
+            //a recurring alarm can be cancelled while it's running
+            SetAlarm alarm = this.alarm;
+            Runnable whenFinished = this.whenFinished;
+            if(alarm == null || whenFinished == null)
+                return;
+
+            //If a recurring alarm is a whole period late, the Timer is
+            //catching up on times it missed and will run it again right
+            //away, so only the last one actually goes off.
+            if(periodMillis > 0 &&
+                    System.currentTimeMillis() - this.scheduledExecutionTime() >= periodMillis)
+                return;
+
+            //run the given task when the timer goes off.  The dispatcher
+            //catches anything it throws, because an exception escaping
+            //from here would cancel the Timer and every alarm on it.
+            dispatcher.dispatch(alarm, whenFinished);
+
+            //and remove it from our remembered tasks.  We only remove it
+            //if it's still mapped to this task, just in case.  A recurring
+            //alarm stays, since the Timer will run it again.
+            if(periodMillis == 0)
+                runningTasks.remove(alarm.getId(), this);
+        }
+
+        /**
+         * We are overriding cancel here so we can make sure it gets
+         * removed from our runningTasks list.
+         */
+        @Override
+        public boolean cancel(){
+            //call into the base class' cancel() implementation
+            boolean ret = super.cancel();
+
+            SetAlarm alarm = this.alarm;
+            if(alarm != null)
+                runningTasks.remove(alarm.getId(), this);
+
+            if(ret){
+                this.alarm = null;
+                this.whenFinished = null;
+                TimerAlarmStarter.this.addTombstone();
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * This is the one TimerTask for all the alarms due within one coalescing
+     * window.  When it goes off, every alarm in it is handed to the dispatcher
+     * together, which still gives each callback its own job.
+     */
+    private class FireWindow extends TimerTask {
+        final long windowStart;
+        final long window;
+        final long fireAt;
+
+        /* These are guarded by the windowLock.  The members are in a linked
+         * set so that cancelling one doesn't have to search the window. */
+        final LinkedHashSet<CoalescedTask> members = new LinkedHashSet<CoalescedTask>();
+        boolean fired = false;
+
+        FireWindow(long windowStart, long window){
+            this.windowStart = windowStart;
+            this.window = window;
+            this.fireAt = windowStart + window - 1;
+        }
+
+        @Override
+        public void run() {
+            List<SetAlarm> alarms;
+            List<Runnable> callbacks;
+            List<CoalescedTask> fired;
+            synchronized(windowLock){
+                if(windows.get(windowStart) == this)
+                    windows.remove(windowStart);
+                this.fired = true;
+                fired = new ArrayList<CoalescedTask>(members);
+            }
+
+            alarms = new ArrayList<SetAlarm>(fired.size());
+            callbacks = new ArrayList<Runnable>(fired.size());
+            for(CoalescedTask task : fired){
+                alarms.add(task.alarm);
+                callbacks.add(task.whenFinished);
+            }
+
+            //the dispatcher catches anything the callbacks throw, just like
+            //for a single alarm
+            dispatcher.dispatchAll(alarms, callbacks);
+
+            for(CoalescedTask task : fired){
+                runningTasks.remove(task.alarm.getId(), task);
+            }
+        }
+    }
+
+    /**
+     * This is the handle for one alarm in a coalescing window.  It is never
+     * put on the timer itself, its FireWindow is.
+     */
+    private class CoalescedTask extends TimerTask {
+        final SetAlarm alarm;
+        final Runnable whenFinished;
+
+        /* This is guarded by the windowLock */
+        FireWindow window;
+
+        CoalescedTask(SetAlarm alarm, Runnable whenFinished){
+            this.alarm = alarm;
+            this.whenFinished = whenFinished;
+        }
+
+        @Override
+        public void run() {
+            whenFinished.run();
+        }
+
+        /**
+         * Takes this alarm out of its window.  If it was the last one in the
+         * window, the window is taken off the timer too.
+         */
+        @Override
+        public boolean cancel(){
+            boolean emptied = false;
+            synchronized(windowLock){
+                if(window == null || window.fired)
+                    return false;
+
+                window.members.remove(this);
+                if(window.members.isEmpty()){
+                    emptied = window.cancel();
+                    if(windows.get(window.windowStart) == window)
+                        windows.remove(window.windowStart);
+                }
+                window = null;
+            }
+            runningTasks.remove(alarm.getId(), this);
+            if(emptied)
+                TimerAlarmStarter.this.addTombstone();
+            return true;
+        }
+
+        @Override
+        public long scheduledExecutionTime(){
+            synchronized(windowLock){
+                return window == null ? 0 : window.fireAt;
+            }
+        }
+    }
 }
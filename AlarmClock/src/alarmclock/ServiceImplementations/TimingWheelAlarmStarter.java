@@ -0,0 +1,763 @@
+package alarmclock.ServiceImplementations;
+
+import alarmclock.models.AlarmBatchResult;
+import alarmclock.models.RecurringAlarm;
+import alarmclock.models.SetAlarm;
+import alarmclock.services.AlarmListener;
+import alarmclock.services.AlarmStarter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.joda.time.DateTime;
+
+/**
+ * This class is a Service which implements the AlarmStarter interface using a
+ * hierarchical hashed timing wheel instead of a {@link java.util.Timer}.
+ * <p/>
+ * A java.util.Timer keeps its tasks in a binary heap, so every schedule and
+ * every cancel costs O(log n).  That's fine for a handful of alarms, but when
+ * tens of thousands of alarms are pending it adds up.  A timing wheel is like
+ * the face of a clock: time is chopped up into "ticks", and each tick has a
+ * slot holding a linked list of the alarms due on that tick.  Putting an alarm
+ * in a slot and taking it back out of a slot are both O(1).
+ * <p/>
+ * One wheel with a slot for every tick in the next 31 days would be enormous,
+ * so we use several wheels stacked on top of each other (the hierarchy), like
+ * the second, minute and hour hands of a clock.  Each wheel has 64 slots, and
+ * each slot of a higher wheel covers one full turn of the wheel below it.  When
+ * a lower wheel comes back around to zero, the next slot of the wheel above is
+ * "cascaded", meaning its alarms are re-inserted into the lower wheels where
+ * they now belong.
+ * <p/>
+ * The wheel is turned by System.nanoTime, which only ever moves forward at a
+ * steady rate, but alarms are set for a wall clock time.  The wall clock can
+ * be stepped by NTP, changed by the user, or jump forward after the computer
+ * wakes up from sleep.  So every tick the wheel thread checks whether the wall
+ * clock has moved away from where nanoTime says it should be, and if so moves
+ * the wheel to match.  See {@link #adjustForClockJump()}.
+ *
+ * This class Does Something.
+ * @author Gordon
+ */
+public class TimingWheelAlarmStarter implements AlarmStarter {
+
+    /** The number of bits of the tick count used to index one wheel. */
+    static final int WHEEL_BITS = 6;
+
+    /** The number of slots in each wheel, 64. */
+    static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    /** The default length of one tick, which is also the resolution of the alarms. */
+    public static final long DEFAULT_TICK_MILLIS = 10;
+
+    /**
+     * If the wall clock moves by more than this compared to nanoTime, we
+     * treat it as a jump.  Anything smaller is just the two clocks drifting
+     * apart a little, or NTP slewing the clock, and isn't worth the work.
+     */
+    public static final long CLOCK_JUMP_THRESHOLD_MILLIS = 100;
+
+    /**
+     * This is the lock object which guards the wheels.  The UI thread inserts
+     * and removes tasks while the wheel thread advances the wheel, so both
+     * must hold this lock while they touch the slots.
+     */
+    private final Object lock = new Object();
+
+    private final long tickMillis;
+    private final long tickNanos;
+
+    /** The number of stacked wheels, enough to cover the max scheduling horizon. */
+    private final int levels;
+
+    /**
+     * The head of the linked list in each slot.  The slot for wheel L at index
+     * i is found at {@code slots[L * WHEEL_SIZE + i]}.
+     */
+    private final WheelTask[] slots;
+
+    /** The next tick which the wheel thread will process. */
+    private long currentTick = 0;
+
+    /** The number of tasks currently sitting in the wheels. */
+    private int pendingCount = 0;
+
+    /**
+     * The wall clock time and the System.nanoTime at which tick 0 started.
+     * Alarm times are converted into ticks relative to these.
+     */
+    private final long startMillis;
+    private final long startNanos;
+
+    /**
+     * How far the wall clock has jumped since tick 0, in nanoseconds.  The
+     * current tick is worked out from nanoTime plus this.  Guarded by the lock.
+     */
+    private long clockOffsetNanos = 0;
+
+    /** The number of wall clock jumps we've noticed.  Guarded by the lock. */
+    private int clockJumpCount = 0;
+
+    private Thread wheelThread;
+    private volatile boolean shutdown = false;
+
+    /**
+     * This is a collection that simply remembers our currently running timers.
+     * It has to be thread safe because it will be modified concurrently by multiple
+     * threads, specifically the UI thread and also the wheel thread.  See the
+     * TimerAlarmStarter for why it's a ConcurrentLongMap keyed by alarm id.
+     */
+    private ConcurrentLongMap<WheelTask> runningTasks = new ConcurrentLongMap<WheelTask>();
+
+    /**
+     * This runs the whenFinished callbacks once the wheel says an alarm is due.
+     * By default it runs them right on the wheel thread.
+     */
+    private AlarmDispatcher dispatcher = new AlarmDispatcher();
+    public void setDispatcher(AlarmDispatcher dispatcher){
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Creates a TimingWheelAlarmStarter with the default tick of
+     * {@link #DEFAULT_TICK_MILLIS} milliseconds.
+     */
+    public TimingWheelAlarmStarter(){
+        this(DEFAULT_TICK_MILLIS);
+    }
+
+    /**
+     * Creates a TimingWheelAlarmStarter whose wheels turn once every tickMillis.
+     * Alarms go off on the first tick at or after their time, so a smaller tick
+     * is more accurate but wakes up the wheel thread more often.
+     * @param tickMillis the length of one tick in milliseconds
+     */
+    public TimingWheelAlarmStarter(long tickMillis){
+        if(tickMillis <= 0)
+            throw new IllegalArgumentException("tickMillis must be positive");
+
+        this.tickMillis = tickMillis;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+
+        //figure out how many wheels we need so that the top wheel can hold
+        //an alarm scheduled as far in the future as we allow.
+        long maxTicks = SetAlarm.MAX_FUTURE_SCHEDULING_MILLIS / tickMillis + 1;
+        int l = 1;
+        while(l * WHEEL_BITS < 63 && (1L << (l * WHEEL_BITS)) <= maxTicks){
+            l++;
+        }
+        this.levels = l;
+        this.slots = new WheelTask[levels * WHEEL_SIZE];
+
+        this.startMillis = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * This method implements the createAlarm function for the TimingWheelAlarmStarter.
+     * It creates and returns a new Alarm for the given time and path
+     * @param alarmDate the Time when the alarm should go off
+     * @param exePath the Path of the executable or file that should be started
+     * @return a new Alarm object containing that data.
+     */
+    @Override
+    public SetAlarm createAlarm(DateTime alarmDate, String exePath)
+    {
+        return new SetAlarm(alarmDate, exePath);
+    }
+
+    /**
+     * Starts the given SetAlarm by dropping it into the timing wheel.
+     * @param alarm the alarm to start
+     * @param whenFinished A callback task to be executed when the alarm starts
+     * @return a TimerTask which can be used to monitor and cancel the alarm.  It
+     * is never scheduled on a java.util.Timer, it only represents the slot
+     * in the wheel.
+     * @throws Exception if the alarm is not valid or has already been started.
+     */
+    @Override
+    public TimerTask startAlarm(final SetAlarm alarm, final Runnable whenFinished)
+            throws Exception
+    {
+        long now = this.wallClockMillis();
+        WheelTask ret;
+        synchronized(lock){
+            //this section is validation on the given alarm
+            ret = this.register(alarm, whenFinished, now);
+            this.addToWheel(ret);
+
+            //wake up the wheel thread in case it was idle
+            lock.notifyAll();
+        }
+
+        return ret;
+    }
+
+    /**
+     * Starts an alarm which goes off over and over.  Each time it goes off,
+     * the wheel thread works out the next time and links the very same
+     * WheelTask back into the wheel, so no new task, map entry or DateTime is
+     * created for each time it goes off.
+     */
+    @Override
+    public TimerTask startRecurringAlarm(RecurringAlarm alarm, Runnable whenFinished)
+            throws Exception
+    {
+        long now = this.wallClockMillis();
+        WheelTask ret;
+        synchronized(lock){
+            ret = this.register(alarm.getFirst(), whenFinished, now);
+            ret.recurrence = alarm;
+            this.addToWheel(ret);
+            lock.notifyAll();
+        }
+
+        return ret;
+    }
+
+    /**
+     * Starts a whole batch of alarms.  All of the alarms are registered and
+     * go into the wheel while holding the wheel's lock just once, and the
+     * wheel thread is woken up just once.
+     * @param alarms the alarms to start
+     * @param whenFinished the listener to tell when each one goes off
+     * @return which alarms were started and which ones failed
+     */
+    @Override
+    public AlarmBatchResult startAlarms(Collection<SetAlarm> alarms, AlarmListener whenFinished){
+        AlarmBatchResult result = new AlarmBatchResult(alarms.size());
+        int index = 0;
+        long now = this.wallClockMillis();
+
+        synchronized(lock){
+            for(SetAlarm alarm : alarms){
+                try{
+                    WheelTask task = this.register(alarm,
+                            AlarmDispatcher.notifying(whenFinished, alarm), now);
+                    this.addToWheel(task);
+                    result.setStarted(index, alarm, task);
+                }catch(Exception ex){
+                    result.setFailed(index, alarm, ex);
+                }
+                index++;
+            }
+            lock.notifyAll();
+        }
+
+        return result;
+    }
+
+    /**
+     * Validates the alarm, creates its WheelTask and remembers it in the
+     * runningTasks.  It doesn't go in the wheel yet.  Must be called while
+     * holding the lock, and the task must go in the wheel before letting go
+     * of it, otherwise a cancel could find the task before it's in the wheel
+     * and the alarm would go off anyway.
+     * @throws UnsupportedOperationException if the alarm can't be scheduled
+     * or was already started.
+     */
+    private WheelTask register(SetAlarm alarm, Runnable whenFinished, long now){
+        //get the number of milliseconds in the future we want to set the alarm for.
+        long alarmMillis = alarm.getTimeMillis();
+        long millis = alarmMillis - now;
+        if(millis < 0 || millis > SetAlarm.MAX_FUTURE_SCHEDULING_MILLIS)
+            throw new UnsupportedOperationException("can't schedule for " + millis + "from now");
+
+        WheelTask ret = new WheelTask(alarm, whenFinished, alarmMillis);
+
+        //Remember the task for later in case we need to cancel.  If there's
+        //already a task for this alarm then it was started twice.
+        if(runningTasks.putIfAbsent(alarm.getId(), ret) != null){
+            throw new UnsupportedOperationException("Already scheduled once");
+        }
+
+        return ret;
+    }
+
+    /**
+     * Puts a registered task into the wheel.  Must be called while holding
+     * the lock.  The caller is responsible for waking up the wheel thread.
+     */
+    private void addToWheel(WheelTask task){
+        if(pendingCount == 0){
+            //The wheels are empty, so there is nothing to cascade.  We can
+            //skip straight to the current tick instead of making the
+            //wheel thread grind through all the empty ticks since it went idle.
+            //The wheel thread doesn't watch the clock while it's idle, so
+            //catch up on any jump first.
+            this.measureClockJump();
+            currentTick = this.elapsedTicks();
+        }
+        this.insert(task);
+        pendingCount++;
+
+        this.ensureThreadStarted();
+    }
+
+    /**
+     * Cancels a given alarm that has already been started
+     * @param alarm the currently running alarm
+     * @return true if the alarm could be canceled, false otherwise.
+     */
+    @Override
+    public boolean cancelAlarm(SetAlarm alarm){
+        //We pull the task object out of our map of tasks that we remember.
+        TimerTask task = runningTasks.get(alarm.getId());
+        if (task == null)
+            return false;
+
+        //The WheelTask's cancel() takes care of unlinking it from the wheel
+        //and forgetting it in the runningTasks map.
+        return task.cancel();
+    }
+
+    /**
+     * Cancels a whole batch of alarms, unlinking all of them from the wheel
+     * while holding the wheel's lock just once.
+     * @param alarms the alarms to cancel
+     * @return whether each alarm was cancelled, in the same order as given
+     */
+    @Override
+    public boolean[] cancelAlarms(Collection<SetAlarm> alarms){
+        boolean[] result = new boolean[alarms.size()];
+        WheelTask[] tasks = new WheelTask[alarms.size()];
+
+        synchronized(lock){
+            int index = 0;
+            for(SetAlarm alarm : alarms){
+                WheelTask task = runningTasks.get(alarm.getId());
+                tasks[index] = task;
+                result[index] = task != null && task.removeFromWheel();
+                index++;
+            }
+        }
+
+        for(WheelTask task : tasks){
+            if(task != null)
+                task.forget();
+        }
+
+        return result;
+    }
+
+    /**
+     * Stops the wheel thread.  Any alarms still in the wheel will never go off.
+     * The TimerAlarmStarter never needs this because the app runs until it's
+     * closed, but tests and benchmarks create lots of these and need to clean up.
+     */
+    public void shutdown(){
+        synchronized(lock){
+            shutdown = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Converts a wall clock time into the tick on which it should go off.  We
+     * round up so that an alarm never goes off before its time.
+     */
+    private long toTick(long alarmMillis){
+        long relative = alarmMillis - startMillis;
+        if(relative <= 0)
+            return 0;
+        return (relative + tickMillis - 1) / tickMillis;
+    }
+
+    /** @return the number of wall clock jumps the wheel has adjusted for. */
+    public int getClockJumpCount(){
+        synchronized(lock){
+            return clockJumpCount;
+        }
+    }
+
+    /**
+     * Reads the wall clock.  Everything in here goes through this method so
+     * that the tests can pretend the clock jumped.
+     */
+    long wallClockMillis(){
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * The number of whole ticks which have elapsed since tick 0 started,
+     * going by nanoTime plus any wall clock jumps.  Must be called while
+     * holding the lock.
+     */
+    private long elapsedTicks(){
+        long elapsed = System.nanoTime() - startNanos + clockOffsetNanos;
+        return elapsed < 0 ? 0 : elapsed / tickNanos;
+    }
+
+    /**
+     * Checks whether the wall clock has jumped since we last looked, and if
+     * it has, remembers the new offset.  Must be called while holding the lock.
+     * @return how far the clock jumped in nanoseconds, or 0 if it didn't.
+     */
+    private long measureClockJump(){
+        long wallElapsed = TimeUnit.MILLISECONDS.toNanos(this.wallClockMillis() - startMillis);
+        long offset = wallElapsed - (System.nanoTime() - startNanos);
+        long jump = offset - clockOffsetNanos;
+        if(Math.abs(jump) < TimeUnit.MILLISECONDS.toNanos(CLOCK_JUMP_THRESHOLD_MILLIS))
+            return 0;
+
+        clockOffsetNanos = offset;
+        clockJumpCount++;
+        return jump;
+    }
+
+    /**
+     * Moves the wheel to match the wall clock if it has jumped.  Must be
+     * called while holding the lock.
+     * <p/>
+     * If the clock jumped forward, every alarm due in the time we skipped over
+     * is now late.  Rather than grinding through every skipped tick (a
+     * computer that slept overnight would skip millions), we only take out
+     * the slots which cover the skipped ticks, move the wheel forward, and put
+     * those tasks back.  Anything that's late lands on the very next tick.  The
+     * other slots are all further in the future than the skipped time, so
+     * they're still in the right place.
+     * <p/>
+     * If the clock jumped backward, the alarms are now due later than the
+     * slots they're in, so we just move the wheel back.  Any task whose slot
+     * comes up before its time is put back into the wheel instead of being
+     * run, see {@link #processTick(List)}.
+     * @return true if the clock jumped
+     */
+    private boolean adjustForClockJump(){
+        long jump = this.measureClockJump();
+        if(jump == 0)
+            return false;
+
+        long newTick = this.elapsedTicks();
+        if(newTick <= currentTick){
+            currentTick = newTick;
+            return true;
+        }
+
+        //take out every slot, on every wheel, which covers a skipped tick
+        WheelTask moved = null;
+        for(int level = 0; level < levels; level++){
+            int shift = level * WHEEL_BITS;
+            long first = currentTick >>> shift;
+            long last = newTick >>> shift;
+            long count = Math.min(last - first + 1, WHEEL_SIZE);
+            for(long i = 0; i < count; i++){
+                int slot = level * WHEEL_SIZE + (int)((first + i) & WHEEL_MASK);
+                WheelTask t = this.takeSlot(slot);
+                while(t != null){
+                    WheelTask next = t.next;
+                    t.next = moved;
+                    moved = t;
+                    t = next;
+                }
+            }
+        }
+
+        currentTick = newTick;
+        while(moved != null){
+            WheelTask next = moved.next;
+            this.insert(moved);
+            moved = next;
+        }
+        return true;
+    }
+
+    /**
+     * Puts a task in the proper slot of the proper wheel.  Must be called while
+     * holding the lock.
+     * <p/>
+     * The wheel is chosen by how far away the task is: wheel 0 holds tasks due
+     * in the next 64 ticks, wheel 1 tasks due in the next 64*64 ticks, and so on.
+     * Inside the wheel the slot comes from the bits of the deadline tick.
+     */
+    private void insert(WheelTask task){
+        long deadline = task.deadlineTick;
+        if(deadline < currentTick){
+            //it's already late, so it should go off on the very next tick
+            deadline = currentTick;
+        }
+        long delta = deadline - currentTick;
+
+        int level = 0;
+        while(level < levels - 1 && delta >= (1L << ((level + 1) * WHEEL_BITS))){
+            level++;
+        }
+
+        int index = (int)((deadline >>> (level * WHEEL_BITS)) & WHEEL_MASK);
+        int slot = level * WHEEL_SIZE + index;
+
+        //push it on the front of the slot's linked list
+        task.slot = slot;
+        task.prev = null;
+        task.next = slots[slot];
+        if(task.next != null)
+            task.next.prev = task;
+        slots[slot] = task;
+    }
+
+    /**
+     * Takes a task back out of its slot.  Because the slots are doubly linked
+     * lists this is O(1).  Must be called while holding the lock.
+     */
+    private void unlink(WheelTask task){
+        if(task.prev != null)
+            task.prev.next = task.next;
+        else
+            slots[task.slot] = task.next;
+
+        if(task.next != null)
+            task.next.prev = task.prev;
+
+        task.prev = null;
+        task.next = null;
+        task.slot = -1;
+    }
+
+    /**
+     * Empties the given slot, returning the linked list of tasks it held.
+     * Must be called while holding the lock.
+     */
+    private WheelTask takeSlot(int slot){
+        WheelTask head = slots[slot];
+        slots[slot] = null;
+        return head;
+    }
+
+    /**
+     * Processes one tick of the wheel: cascades the higher wheels if the lower
+     * ones have come back around to zero, then takes all the tasks due on this
+     * tick out of wheel 0.  Must be called while holding the lock.
+     * @param due the list to which the due tasks are added
+     */
+    private void processTick(List<WheelTask> due){
+        long tick = currentTick;
+
+        //Cascade each higher wheel whose lower wheels have all wrapped around.
+        for(int level = 1; level < levels; level++){
+            if((tick & ((1L << (level * WHEEL_BITS)) - 1)) != 0)
+                break;
+
+            int index = (int)((tick >>> (level * WHEEL_BITS)) & WHEEL_MASK);
+            WheelTask t = this.takeSlot(level * WHEEL_SIZE + index);
+            while(t != null){
+                WheelTask next = t.next;
+                this.insert(t);
+                t = next;
+            }
+        }
+
+        //Everything in this slot of wheel 0 is due now, unless the clock
+        //jumped backward since it was put there.
+        WheelTask t = this.takeSlot((int)(tick & WHEEL_MASK));
+        while(t != null){
+            WheelTask next = t.next;
+            if(t.deadlineTick > tick){
+                this.insert(t);
+            }else if(t.recurrence != null){
+                //Set it again for next time.  If we're running late, skip
+                //ahead rather than setting it off several times in a row.
+                due.add(t);
+                t.setDeadline(t.recurrence.nextAfter(
+                        Math.max(t.deadlineMillis, this.wallClockMillis())));
+                while(t.deadlineTick <= tick){
+                    //it repeats faster than the wheel ticks
+                    t.setDeadline(t.recurrence.nextAfter(t.deadlineMillis));
+                }
+                this.insert(t);
+            }else{
+                t.prev = null;
+                t.next = null;
+                t.slot = -1;
+                pendingCount--;
+                due.add(t);
+            }
+            t = next;
+        }
+
+        currentTick++;
+    }
+
+    /** Must be called while holding the lock. */
+    private void ensureThreadStarted(){
+        if(wheelThread != null)
+            return;
+
+        wheelThread = new Thread(new Runnable(){
+            @Override
+            public void run() {
+                TimingWheelAlarmStarter.this.runWheel();
+            }
+        }, "TimingWheelAlarmStarter");
+        wheelThread.setDaemon(true);
+        wheelThread.start();
+    }
+
+    /**
+     * This is the main loop of the wheel thread.  It wakes up once per tick,
+     * processes every tick that has elapsed since it last woke up, and then
+     * runs the tasks that came due outside of the lock.
+     */
+    private void runWheel(){
+        List<WheelTask> due = new ArrayList<WheelTask>();
+        while(true){
+            long sleepNanos;
+            synchronized(lock){
+                if(shutdown)
+                    return;
+
+                if(pendingCount == 0){
+                    //nothing to do, so sleep until someone starts an alarm
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    continue;
+                }
+
+                this.adjustForClockJump();
+
+                long now = this.elapsedTicks();
+                while(currentTick <= now && pendingCount > 0){
+                    this.processTick(due);
+                }
+
+                //figure out how long until the next tick starts.  Never sleep
+                //longer than a tick, so that we keep watching the clock even
+                //if it has jumped back to before tick 0.
+                sleepNanos = (startNanos - clockOffsetNanos + currentTick * tickNanos) - System.nanoTime();
+                sleepNanos = Math.min(sleepNanos, tickNanos);
+            }
+
+            //Run the due tasks outside the lock so that a slow task doesn't
+            //stop other threads from starting and cancelling alarms.  All the
+            //alarms due on the same tick are handed to the dispatcher together,
+            //which still gives each callback its own job.
+            if(!due.isEmpty()){
+                List<SetAlarm> alarms = new ArrayList<SetAlarm>(due.size());
+                List<Runnable> callbacks = new ArrayList<Runnable>(due.size());
+                for(WheelTask t : due){
+                    alarms.add(t.alarm);
+                    callbacks.add(t.whenFinished);
+                }
+                dispatcher.dispatchAll(alarms, callbacks);
+
+                for(WheelTask t : due){
+                    //recurring tasks are already back in the wheel
+                    if(t.recurrence == null)
+                        runningTasks.remove(t.alarm.getId(), t);
+                }
+                due.clear();
+            }
+
+            if(sleepNanos > 0)
+                LockSupport.parkNanos(this, sleepNanos);
+        }
+    }
+
+    /**
+     * This is the task which sits in the timing wheel.  It extends TimerTask
+     * so that it fits the AlarmStarter contract, but it is never handed to a
+     * java.util.Timer.  Instead it links itself into a slot of the wheel.
+     */
+    private class WheelTask extends TimerTask {
+        final SetAlarm alarm;
+        final Runnable whenFinished;
+
+        /** If this is a recurring alarm, when it should go off again. */
+        RecurringAlarm recurrence;
+
+        /*
+         * These change each time a recurring alarm goes off, and are guarded
+         * by the TimingWheelAlarmStarter's lock after the task is in the wheel.
+         */
+        long deadlineMillis;
+        long deadlineTick;
+
+        /*
+         * These fields are guarded by the TimingWheelAlarmStarter's lock.
+         * prev and next link the task into its slot, and slot is the index
+         * of the slot it's in, or -1 if it's not in the wheel.
+         */
+        WheelTask prev;
+        WheelTask next;
+        int slot = -1;
+
+        WheelTask(SetAlarm alarm, Runnable whenFinished, long deadlineMillis){
+            this.alarm = alarm;
+            this.whenFinished = whenFinished;
+            this.setDeadline(deadlineMillis);
+        }
+
+        final void setDeadline(long deadlineMillis){
+            this.deadlineMillis = deadlineMillis;
+            this.deadlineTick = TimingWheelAlarmStarter.this.toTick(deadlineMillis);
+        }
+
+        @Override
+        public void run() {
+            //run the given task when the alarm goes off
+            dispatcher.dispatch(alarm, whenFinished);
+
+            //and remove it from our remembered tasks
+            runningTasks.remove(alarm.getId(), this);
+        }
+
+        /**
+         * We are overriding cancel here so we can take the task out of the
+         * wheel and make sure it gets removed from our runningTasks list.
+         * @return true if the task was still waiting in the wheel
+         */
+        @Override
+        public boolean cancel(){
+            boolean ret;
+            synchronized(lock){
+                ret = this.removeFromWheel();
+            }
+            this.forget();
+
+            return ret;
+        }
+
+        /**
+         * Takes the task out of the wheel if it's still in there.  Must be
+         * called while holding the lock.
+         * @return true if the task was still waiting in the wheel
+         */
+        boolean removeFromWheel(){
+            if(this.slot < 0)
+                return false;
+
+            TimingWheelAlarmStarter.this.unlink(this);
+            pendingCount--;
+            return true;
+        }
+
+        /**
+         * Marks the task as cancelled and forgets about it in the runningTasks.
+         */
+        void forget(){
+            //mark the base class as cancelled too, so it can never be
+            //accidentally scheduled on a real Timer.
+            super.cancel();
+
+            runningTasks.remove(alarm.getId(), this);
+        }
+
+        /**
+         * The base class only knows the execution time if it was scheduled on
+         * a java.util.Timer, so we report the alarm's time ourselves.
+         */
+        @Override
+        public long scheduledExecutionTime(){
+            synchronized(lock){
+                return deadlineMillis;
+            }
+        }
+    }
+}
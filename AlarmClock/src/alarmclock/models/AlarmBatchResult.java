@@ -0,0 +1,111 @@
+package alarmclock.models;
+
+import java.util.Map;
+import java.util.TimerTask;
+
+/**
+ * This class holds the result of starting a whole batch of alarms at once.
+ * Some alarms in a batch can start while others fail, for instance because
+ * they are in the past or were already started, so it remembers what happened
+ * to each alarm individually.
+ * <p/>
+ * The results are kept in arrays in the same order as the alarms were given,
+ * rather than in maps, because hashing thousands of SetAlarms just to report
+ * on them would cost about as much as starting them.
+ *
+ * This class Is Something.
+ * @author Gordon
+ */
+public class AlarmBatchResult {
+
+    private final SetAlarm[] alarms;
+    private final TimerTask[] tasks;
+    private final Exception[] failures;
+    private int failedCount = 0;
+
+    /**
+     * Creates an empty result for a batch of the given size.
+     * @param size the number of alarms in the batch
+     */
+    public AlarmBatchResult(int size){
+        this.alarms = new SetAlarm[size];
+        this.tasks = new TimerTask[size];
+        this.failures = new Exception[size];
+    }
+
+    /** @return the number of alarms in the batch. */
+    public int size(){
+        return alarms.length;
+    }
+
+    /**
+     * @param index the position of the alarm in the batch
+     * @return the alarm at that position
+     */
+    public SetAlarm getAlarm(int index){
+        return alarms[index];
+    }
+
+    /**
+     * @param index the position of the alarm in the batch
+     * @return the TimerTask which can be used to monitor or cancel the alarm,
+     * or null if it failed to start.
+     */
+    public TimerTask getTask(int index){
+        return tasks[index];
+    }
+
+    /**
+     * @param index the position of the alarm in the batch
+     * @return the reason the alarm failed to start, or null if it started.
+     */
+    public Exception getFailure(int index){
+        return failures[index];
+    }
+
+    /** @return True if every alarm in the batch was started. */
+    public boolean isAllStarted(){
+        return failedCount == 0;
+    }
+
+    /** @return the number of alarms which could not be started. */
+    public int getFailedCount(){
+        return failedCount;
+    }
+
+    /**
+     * The alarms which could not be started, along with the reason why.
+     */
+    public Map<SetAlarm, Exception> getFailed(){
+        Map<SetAlarm, Exception> ret = new java.util.LinkedHashMap<SetAlarm, Exception>();
+        for(int i = 0; i < alarms.length; i++){
+            if(failures[i] != null)
+                ret.put(alarms[i], failures[i]);
+        }
+        return ret;
+    }
+
+    /**
+     * Records that an alarm in the batch was started.
+     * @param index the position of the alarm in the batch
+     * @param alarm the alarm
+     * @param task the TimerTask for the alarm
+     */
+    public void setStarted(int index, SetAlarm alarm, TimerTask task){
+        alarms[index] = alarm;
+        tasks[index] = task;
+    }
+
+    /**
+     * Records that an alarm in the batch could not be started.
+     * @param index the position of the alarm in the batch
+     * @param alarm the alarm
+     * @param reason the exception explaining why
+     */
+    public void setFailed(int index, SetAlarm alarm, Exception reason){
+        alarms[index] = alarm;
+        tasks[index] = null;
+        failures[index] = reason;
+        failedCount++;
+    }
+}
@@ -0,0 +1,50 @@
+package alarmclock.models;
+
+/**
+ * This class represents something that happened to an alarm: it was
+ * scheduled, it went off, or it was cancelled.  AlarmEvents are sent to
+ * everyone who subscribes to an AlarmEventPublisher.
+ *
+ * This class Is Something.
+ * @author Gordon
+ */
+public class AlarmEvent {
+
+    public enum Type {
+        SCHEDULED,
+        FIRED,
+        CANCELLED
+    }
+
+    private final Type type;
+    public Type getType(){
+        return type;
+    }
+
+    private final SetAlarm alarm;
+    public SetAlarm getAlarm(){
+        return alarm;
+    }
+
+    /** When it happened, in UTC millis. */
+    private final long timeMillis;
+    public long getTimeMillis(){
+        return timeMillis;
+    }
+
+    public AlarmEvent(Type type, SetAlarm alarm, long timeMillis){
+        if(type == null)
+            throw new NullPointerException("type");
+        if(alarm == null)
+            throw new NullPointerException("alarm");
+
+        this.type = type;
+        this.alarm = alarm;
+        this.timeMillis = timeMillis;
+    }
+
+    @Override
+    public String toString(){
+        return type + " " + alarm + " at " + timeMillis;
+    }
+}
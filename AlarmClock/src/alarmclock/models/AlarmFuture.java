@@ -0,0 +1,293 @@
+package alarmclock.models;
+
+import alarmclock.services.AlarmCallback;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * This class is a handle on an alarm which hasn't gone off yet.  It finishes
+ * when the alarm goes off, or finishes with a failure when the alarm is
+ * cancelled or can't be started.
+ * <p/>
+ * It's a Future, so a caller can wait for the alarm with get(), but the point
+ * of it is that nobody has to wait.  Callbacks added with
+ * {@link #addCallback(AlarmCallback)} are called by whichever thread finishes
+ * the future, or right away if it's already finished, and
+ * {@link #then(Next)} starts another alarm once this one goes off, giving
+ * back a future for the whole chain.  That way a sequence of alarms can be
+ * set up at once without any thread sitting around waiting for each one.
+ * <p/>
+ * Callbacks run on the thread that fires the alarm, so they should be quick
+ * and shouldn't block.
+ * <p/>
+ * Newer versions of Java come with a CompletableFuture that does all this,
+ * but this project is built for Java 6, so we have our own.
+ *
+ * This class Is Something.
+ * @author Gordon
+ */
+public class AlarmFuture implements Future<SetAlarm> {
+
+    /**
+     * This interface defines what to do after an alarm goes off, for
+     * chaining alarms together with {@link AlarmFuture#then(Next)}.
+     */
+    public interface Next {
+        /**
+         * Starts the next alarm in the chain.
+         * @param fired the alarm which just went off
+         * @return the future for the next alarm
+         * @throws Exception if the next alarm can't be started, which fails
+         * the chain
+         */
+        public AlarmFuture after(SetAlarm fired) throws Exception;
+    }
+
+    private final SetAlarm alarm;
+
+    /*
+     * These are all guarded by this.  Once done is set, nothing changes.
+     */
+    private boolean done = false;
+    private SetAlarm result;
+    private Throwable failure;
+    private List<AlarmCallback> callbacks = new ArrayList<AlarmCallback>(2);
+
+    /**
+     * Creates a future for an alarm which hasn't gone off yet.
+     * @param alarm the alarm
+     */
+    public AlarmFuture(SetAlarm alarm){
+        this.alarm = alarm;
+    }
+
+    /** @return the alarm this future is for. */
+    public SetAlarm getAlarm(){
+        return alarm;
+    }
+
+    /**
+     * Finishes this future because the alarm went off.
+     * @param fired the alarm that went off, which is what get() gives back
+     * @return false if this future was already finished.
+     */
+    public boolean fire(SetAlarm fired){
+        return this.finish(fired, null);
+    }
+
+    /**
+     * Finishes this future with a failure.
+     * @param reason why the alarm won't go off
+     * @return false if this future was already finished.
+     */
+    public boolean fail(Throwable reason){
+        if(reason == null)
+            throw new NullPointerException("reason");
+        return this.finish(null, reason);
+    }
+
+    /**
+     * This is called by cancel() to actually stop the alarm.  The AlarmStarter
+     * which made this future overrides it.
+     * @return true if the alarm was stopped, false if it's too late.
+     */
+    protected boolean cancelAlarm(){
+        return true;
+    }
+
+    /**
+     * Cancels the alarm, and fails this future with a CancellationException.
+     * @param mayInterruptIfRunning ignored, the alarm can't be interrupted
+     * once it's going off.
+     * @return false if the alarm couldn't be cancelled, usually because it
+     * has already gone off.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if(this.isDone() || !this.cancelAlarm())
+            return false;
+        //Once the alarm is stopped it can't go off, so this is cancelled even
+        //if stopping it already failed this future.
+        this.fail(new CancellationException("The alarm was cancelled"));
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return failure instanceof CancellationException;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /** @return true if the alarm went off. */
+    public synchronized boolean isFired(){
+        return done && failure == null;
+    }
+
+    @Override
+    public synchronized SetAlarm get() throws InterruptedException, ExecutionException {
+        while(!done){
+            this.wait();
+        }
+        return this.result();
+    }
+
+    @Override
+    public synchronized SetAlarm get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException
+    {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while(!done){
+            long left = deadline - System.nanoTime();
+            if(left <= 0)
+                throw new TimeoutException();
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return this.result();
+    }
+
+    private SetAlarm result() throws ExecutionException {
+        if(failure instanceof CancellationException)
+            throw (CancellationException)failure;
+        if(failure != null)
+            throw new ExecutionException(failure);
+        return result;
+    }
+
+    /**
+     * Adds a callback to be told how this future turns out.  If it has
+     * already finished, the callback is called right away on this thread.
+     * @param callback the callback
+     * @return this future, so calls can be chained.
+     */
+    public AlarmFuture addCallback(AlarmCallback callback){
+        synchronized(this){
+            if(!done){
+                callbacks.add(callback);
+                return this;
+            }
+        }
+        this.call(callback);
+        return this;
+    }
+
+    /**
+     * Starts another alarm once this one goes off.  If this one fails, the
+     * next one is never started.
+     * <p/>
+     * Cancelling the returned future cancels whichever alarm in the chain
+     * hasn't gone off yet.
+     * @param next what to start once this alarm goes off
+     * @return a future which finishes when the next alarm does, or fails if
+     * any alarm in the chain fails.
+     */
+    public AlarmFuture then(final Next next){
+        final Chained chain = new Chained(this);
+        this.addCallback(new AlarmCallback(){
+            @Override
+            public void alarmFired(SetAlarm fired) {
+                if(chain.isDone())
+                    return;
+
+                AlarmFuture following;
+                try{
+                    following = next.after(fired);
+                }catch(Exception ex){
+                    chain.fail(ex);
+                    return;
+                }
+                chain.setStage(following);
+                //it may have been cancelled while we were starting the next one
+                if(chain.isCancelled())
+                    following.cancel(false);
+
+                following.addCallback(new AlarmCallback(){
+                    @Override
+                    public void alarmFired(SetAlarm alarm) {
+                        chain.fire(alarm);
+                    }
+
+                    @Override
+                    public void alarmFailed(SetAlarm alarm, Throwable reason) {
+                        chain.fail(reason);
+                    }
+                });
+            }
+
+            @Override
+            public void alarmFailed(SetAlarm alarm, Throwable reason) {
+                chain.fail(reason);
+            }
+        });
+        return chain;
+    }
+
+    private boolean finish(SetAlarm fired, Throwable reason){
+        List<AlarmCallback> toCall;
+        synchronized(this){
+            if(done)
+                return false;
+            done = true;
+            result = fired;
+            failure = reason;
+            toCall = callbacks;
+            callbacks = null;
+            this.notifyAll();
+        }
+
+        //call them outside the lock, so they can't deadlock with us
+        for(AlarmCallback callback : toCall){
+            this.call(callback);
+        }
+        return true;
+    }
+
+    private void call(AlarmCallback callback){
+        SetAlarm fired;
+        Throwable reason;
+        synchronized(this){
+            fired = result;
+            reason = failure;
+        }
+        if(reason == null)
+            callback.alarmFired(fired);
+        else
+            callback.alarmFailed(alarm, reason);
+    }
+
+    /**
+     * This is the future returned by then().  Cancelling it cancels the
+     * alarm in the chain which is waiting right now.
+     */
+    private static class Chained extends AlarmFuture {
+        private AlarmFuture stage;
+
+        Chained(AlarmFuture first){
+            super(first.getAlarm());
+            this.stage = first;
+        }
+
+        synchronized void setStage(AlarmFuture stage){
+            this.stage = stage;
+        }
+
+        @Override
+        protected boolean cancelAlarm(){
+            AlarmFuture waiting;
+            synchronized(this){
+                waiting = stage;
+            }
+            //If it just went off, the next one hasn't been started yet, and
+            //won't be once we're cancelled.
+            return waiting.cancel(false) || waiting.isFired();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package alarmclock.models;
+
+/**
+ * This class holds everything a MetricsAlarmStarter has measured, at one
+ * moment in time.  Lateness and callback durations are in microseconds.
+ *
+ * This class Is Something.
+ * @author Gordon
+ */
+public class AlarmMetricsSnapshot {
+
+    private final LatencySnapshot lateness;
+    /**
+     * @return how long after its SetAlarm time each alarm's callback started,
+     * in microseconds.
+     */
+    public LatencySnapshot getLateness(){
+        return lateness;
+    }
+
+    private final LatencySnapshot callbackDuration;
+    /** @return how long each alarm's callback took to run, in microseconds. */
+    public LatencySnapshot getCallbackDuration(){
+        return callbackDuration;
+    }
+
+    private final long scheduledCount;
+    /** @return the number of alarms which were started. */
+    public long getScheduledCount(){
+        return scheduledCount;
+    }
+
+    private final long cancelledCount;
+    /** @return the number of alarms which were cancelled. */
+    public long getCancelledCount(){
+        return cancelledCount;
+    }
+
+    private final long firedCount;
+    /** @return the number of times an alarm went off. */
+    public long getFiredCount(){
+        return firedCount;
+    }
+
+    private final long elapsedMillis;
+    /** @return how long the counts above were counted for. */
+    public long getElapsedMillis(){
+        return elapsedMillis;
+    }
+
+    public AlarmMetricsSnapshot(LatencySnapshot lateness, LatencySnapshot callbackDuration,
+            long scheduledCount, long cancelledCount, long firedCount, long elapsedMillis)
+    {
+        this.lateness = lateness;
+        this.callbackDuration = callbackDuration;
+        this.scheduledCount = scheduledCount;
+        this.cancelledCount = cancelledCount;
+        this.firedCount = firedCount;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /** @return the number of alarms started per second. */
+    public double getScheduleRate(){
+        return perSecond(scheduledCount);
+    }
+
+    /** @return the number of alarms cancelled per second. */
+    public double getCancelRate(){
+        return perSecond(cancelledCount);
+    }
+
+    /** @return the number of alarms which went off per second. */
+    public double getFireRate(){
+        return perSecond(firedCount);
+    }
+
+    private double perSecond(long count){
+        return elapsedMillis <= 0 ? 0 : count * 1000.0 / elapsedMillis;
+    }
+
+    @Override
+    public String toString(){
+        return String.format("scheduled=%d (%.1f/s) cancelled=%d (%.1f/s) fired=%d (%.1f/s)%n"
+                + "  lateness us: %s%n  callback us: %s",
+                scheduledCount, this.getScheduleRate(), cancelledCount, this.getCancelRate(),
+                firedCount, this.getFireRate(), lateness, callbackDuration);
+    }
+}
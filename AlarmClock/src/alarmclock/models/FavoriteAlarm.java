@@ -27,20 +27,55 @@ public class FavoriteAlarm {
      * place you used the field.  Since we use a property, we can simply modify
      * the setter method to throw an exception if the timeOfDay is set to
      * an invalid value.
+     * <p/>
+     * Here the property even hides how the value is stored.  Favorites are only
+     * ever saved to the minute, so the backing field is just the number of
+     * minutes since midnight, and the LocalTime is created when someone asks
+     * for it, like the UI when it shows the favorite.
      */
-    private LocalTime timeOfDay;
+    private int minuteOfDay;
     public LocalTime getTimeOfDay(){
-        return timeOfDay;
+        return new LocalTime(minuteOfDay / 60, minuteOfDay % 60);
+    }
+
+    /** @return the time of day of this favorite, in minutes since midnight. */
+    public int getMinuteOfDay(){
+        return minuteOfDay;
     }
 
+    /**
+     * The path is the PathDictionary's shared copy.  Holding on to it is what
+     * keeps the path's number from being given to another path.
+     */
     private String path;
+    private int pathId;
     public String getPath(){
         return path;
     }
 
+    /** @return the number of this favorite's path in the PathDictionary. */
+    public int getPathId(){
+        return pathId;
+    }
+
+    /**
+     * Creates a FavoriteAlarm.  Any seconds in the time of day are dropped.
+     */
     public FavoriteAlarm(LocalTime timeOfDay, String path){
-        this.timeOfDay = timeOfDay;
-        this.path = path;
+        this(timeOfDay.getHourOfDay() * 60 + timeOfDay.getMinuteOfHour(), path);
+    }
+
+    /**
+     * Creates a FavoriteAlarm without needing a LocalTime.
+     * @param minuteOfDay the time of day, in minutes since midnight
+     * @param path the path of the program or file to start
+     */
+    public FavoriteAlarm(int minuteOfDay, String path){
+        if(minuteOfDay < 0 || minuteOfDay >= 24 * 60)
+            throw new IllegalArgumentException("not a minute of the day: " + minuteOfDay);
+        this.minuteOfDay = minuteOfDay;
+        this.path = PathDictionary.canonical(path);
+        this.pathId = PathDictionary.idOf(this.path);
     }
 
     /*
@@ -66,20 +101,17 @@ public class FavoriteAlarm {
             return false;
         }
         final FavoriteAlarm other = (FavoriteAlarm) obj;
-        if (this.timeOfDay != other.timeOfDay && (this.timeOfDay == null || !this.timeOfDay.equals(other.timeOfDay))) {
-            return false;
-        }
-        if ((this.path == null) ? (other.path != null) : !this.path.equals(other.path)) {
+        if (this.minuteOfDay != other.minuteOfDay) {
             return false;
         }
-        return true;
+        return this.pathId == other.pathId;
     }
 
     @Override
     public int hashCode() {
         int hash = 7;
-        hash = 43 * hash + (this.timeOfDay != null ? this.timeOfDay.hashCode() : 0);
-        hash = 43 * hash + (this.path != null ? this.path.hashCode() : 0);
+        hash = 43 * hash + this.minuteOfDay;
+        hash = 43 * hash + this.pathId;
         return hash;
     }
 
@@ -0,0 +1,62 @@
+package alarmclock.models;
+
+/**
+ * This class holds the percentiles of a LatencyHistogram at one moment in
+ * time.  The percentiles are in whatever unit the values were recorded in.
+ *
+ * This class Is Something.
+ * @author Gordon
+ */
+public class LatencySnapshot {
+
+    private final long count;
+    /** @return the number of values which were recorded. */
+    public long getCount(){
+        return count;
+    }
+
+    private final double mean;
+    /** @return the average of the values. */
+    public double getMean(){
+        return mean;
+    }
+
+    private final long p50;
+    /** @return the median value, which half of the values were at or below. */
+    public long getP50(){
+        return p50;
+    }
+
+    private final long p99;
+    /** @return the value which 99% of the values were at or below. */
+    public long getP99(){
+        return p99;
+    }
+
+    private final long p999;
+    /** @return the value which 99.9% of the values were at or below. */
+    public long getP999(){
+        return p999;
+    }
+
+    private final long max;
+    /** @return the largest value. */
+    public long getMax(){
+        return max;
+    }
+
+    public LatencySnapshot(long count, double mean, long p50, long p99, long p999, long max){
+        this.count = count;
+        this.mean = mean;
+        this.p50 = p50;
+        this.p99 = p99;
+        this.p999 = p999;
+        this.max = max;
+    }
+
+    @Override
+    public String toString(){
+        return String.format("count=%d mean=%.1f p50=%d p99=%d p99.9=%d max=%d",
+                count, mean, p50, p99, p999, max);
+    }
+}
@@ -0,0 +1,60 @@
+package alarmclock.models;
+
+/**
+ * This class represents a lease kept in a LeaseStore.  A lease gives one
+ * owner the right to something, like firing the alarms in one partition,
+ * until it expires.  The owner has to keep renewing it, so if the owner dies
+ * the lease runs out and someone else can take it.
+ * <p/>
+ * Along with the lease we keep a checkpoint: the owner promises that every
+ * alarm due at or before the checkpoint has already gone off.  Whoever takes
+ * the lease over next only has to fire the alarms after it.
+ *
+ * This class Is Something.
+ * @author Gordon
+ */
+public class Lease {
+
+    private final String name;
+    public String getName(){
+        return name;
+    }
+
+    private final String owner;
+    public String getOwner(){
+        return owner;
+    }
+
+    /** The time the lease runs out, in UTC millis. */
+    private final long expiresMillis;
+    public long getExpiresMillis(){
+        return expiresMillis;
+    }
+
+    /** Every alarm due at or before this time, in UTC millis, has gone off. */
+    private final long checkpointMillis;
+    public long getCheckpointMillis(){
+        return checkpointMillis;
+    }
+
+    public Lease(String name, String owner, long expiresMillis, long checkpointMillis){
+        this.name = name;
+        this.owner = owner;
+        this.expiresMillis = expiresMillis;
+        this.checkpointMillis = checkpointMillis;
+    }
+
+    /**
+     * @param millis a time in UTC millis
+     * @return true if the lease hasn't run out by that time.
+     */
+    public boolean isHeldAt(long millis){
+        return millis < expiresMillis;
+    }
+
+    @Override
+    public String toString(){
+        return name + " held by " + owner + " until " + expiresMillis
+                + ", fired through " + checkpointMillis;
+    }
+}
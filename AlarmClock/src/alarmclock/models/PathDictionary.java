@@ -0,0 +1,165 @@
+package alarmclock.models;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.WeakHashMap;
+
+/**
+ * This class gives every distinct alarm path a small number, and keeps just
+ * one copy of each path String for everyone to share.
+ * <p/>
+ * Alarms tend to point at the same handful of programs and websites over and
+ * over, like one radio stream or one script.  Every time a path is read from
+ * the favorites file or typed into the text box it's a brand new String, so
+ * thousands of alarms for the same website would otherwise each have their
+ * own copy.  The SetAlarm and FavoriteAlarm keep the shared copy and its
+ * number, which means checking whether two alarms have the same path is just
+ * comparing two ints.
+ * <p/>
+ * The dictionary only holds weak references to the paths.  The SetAlarm and
+ * FavoriteAlarm are what hold on to them, so once the last alarm with a path
+ * is gone the garbage collector can take the path, and its number is given
+ * to the next new path.  That means a number only stays with its path for as
+ * long as something holds on to the String that {@link #canonical} returned.
+ * The number 0 always means a null path.
+ *
+ * This class Does Something.
+ * @author Gordon
+ */
+public final class PathDictionary {
+
+    /**
+     * This is the dictionary's entry for one path.  It's a weak reference, so
+     * it doesn't keep the path around by itself.
+     */
+    private static final class Entry extends WeakReference<String> {
+        final int id;
+
+        Entry(String path, int id){
+            super(path, collected);
+            this.id = id;
+        }
+    }
+
+    /*
+     * Everything below is guarded by the lock, except that pathOf reads the
+     * byId array without it.
+     */
+    private static final Object lock = new Object();
+
+    /**
+     * The entry for each path.  A WeakHashMap only holds its keys weakly, so
+     * this doesn't keep the paths around either.
+     */
+    private static final WeakHashMap<String, Entry> entries = new WeakHashMap<String, Entry>();
+
+    /** The entry for each number.  It's replaced, never changed in place. */
+    private static volatile Entry[] byId = new Entry[64];
+
+    /** The entries whose path the garbage collector has taken. */
+    private static final ReferenceQueue<String> collected = new ReferenceQueue<String>();
+
+    /** The numbers of collected paths, ready to be handed out again. */
+    private static final ArrayDeque<Integer> free = new ArrayDeque<Integer>();
+
+    /** The next number to hand out when there are none free. */
+    private static int next = 1;
+
+    private PathDictionary(){
+    }
+
+    /**
+     * Looks up the number for a path, giving it a new one if we haven't seen
+     * it before.
+     * @param path the path, which can be null
+     * @return the number for the path
+     */
+    public static int idOf(String path){
+        if(path == null)
+            return 0;
+
+        synchronized(lock){
+            return intern(path).id;
+        }
+    }
+
+    /**
+     * @param id a number given out by idOf
+     * @return the shared copy of the path with that number, or null for 0 or
+     * if the path has been forgotten.
+     */
+    public static String pathOf(int id){
+        Entry entry = byId[id];
+        return entry == null ? null : entry.get();
+    }
+
+    /**
+     * @param path the path to look up
+     * @return the shared copy of the path, which is equal to the one given.
+     * Hold on to it for as long as its number is used.
+     */
+    public static String canonical(String path){
+        if(path == null)
+            return null;
+
+        synchronized(lock){
+            String ret;
+            do{
+                //the path could be collected between finding its entry and
+                //reading it, then we just give it a new one
+                ret = intern(path).get();
+            }while(ret == null);
+            return ret;
+        }
+    }
+
+    /** @return the number of distinct paths still in use. */
+    public static int size(){
+        synchronized(lock){
+            forgetCollected();
+            return entries.size();
+        }
+    }
+
+    /**
+     * Finds the entry for a path or makes a new one.  Must be called while
+     * holding the lock.
+     */
+    private static Entry intern(String path){
+        forgetCollected();
+
+        Entry entry = entries.get(path);
+        if(entry != null && entry.get() != null)
+            return entry;
+
+        Integer reused = free.poll();
+        int id = reused != null ? reused : next++;
+        Entry[] current = byId;
+        if(id >= current.length)
+            current = Arrays.copyOf(current, current.length * 2);
+        entry = new Entry(path, id);
+        current[id] = entry;
+        //write the array back, so pathOf sees the new entry
+        byId = current;
+        entries.put(path, entry);
+        return entry;
+    }
+
+    /**
+     * Frees the numbers of the paths the garbage collector has taken.  Must
+     * be called while holding the lock.
+     */
+    private static void forgetCollected(){
+        Entry entry;
+        while((entry = (Entry)collected.poll()) != null){
+            Entry[] current = byId;
+            if(current[entry.id] == entry){
+                current[entry.id] = null;
+                byId = current;
+                free.push(entry.id);
+            }
+        }
+    }
+}
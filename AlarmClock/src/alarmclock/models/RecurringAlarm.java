@@ -0,0 +1,105 @@
+package alarmclock.models;
+
+import org.joda.time.DateTimeZone;
+
+/**
+ * This class represents an alarm which goes off over and over, every so often,
+ * like a FavoriteAlarm that should go off at 7:00 AM every day.  It is made up
+ * of the first SetAlarm and the time between each time it goes off.
+ * <p/>
+ * The period is measured on the local wall clock of the first alarm's time
+ * zone, not in absolute time.  So a daily alarm at 7:00 AM stays at 7:00 AM
+ * when daylight savings starts or ends, even though that day is 23 or 25
+ * hours long.
+ *
+ * This class Is Something.
+ * @author Gordon
+ */
+public class RecurringAlarm {
+
+    public static final long DAILY = 24l * 60l * 60l * 1000l;
+
+    private final SetAlarm first;
+    /**
+     * @return the first time this alarm goes off.  It is also how the alarm is
+     * identified for cancelling.
+     */
+    public SetAlarm getFirst(){
+        return first;
+    }
+
+    private final long periodMillis;
+    public long getPeriodMillis(){
+        return periodMillis;
+    }
+
+    /*
+     * These are worked out once up front, so that finding the next time the
+     * alarm goes off doesn't have to create any DateTime objects.
+     */
+    private final DateTimeZone zone;
+    private final long firstLocalMillis;
+
+    /**
+     * Creates a RecurringAlarm.
+     * @param first the first time the alarm should go off
+     * @param periodMillis how long after each time it goes off it should go
+     * off again, on the local wall clock.
+     */
+    public RecurringAlarm(SetAlarm first, long periodMillis){
+        if(periodMillis <= 0 || periodMillis > SetAlarm.MAX_FUTURE_SCHEDULING_MILLIS)
+            throw new IllegalArgumentException("can't repeat every " + periodMillis + " millis");
+
+        this.first = first;
+        this.periodMillis = periodMillis;
+        this.zone = first.getZone();
+        this.firstLocalMillis = zone.convertUTCToLocal(first.getTimeMillis());
+    }
+
+    /**
+     * Works out the first time this alarm goes off after the given time.
+     * This doesn't create any objects, so it's cheap to call every time the
+     * alarm goes off.
+     * @param millis the time to start looking from, in UTC millis
+     * @return the next time the alarm goes off, in UTC millis, which is
+     * always later than the given time.
+     */
+    public long nextAfter(long millis){
+        //count the number of whole periods on the local clock, then check
+        //the actual time, since daylight savings can move it an hour either way
+        long local = zone.convertUTCToLocal(millis);
+        long n = local <= firstLocalMillis ? 0 : (local - firstLocalMillis) / periodMillis;
+        if(n > 0)
+            n--;
+
+        long next = zone.convertLocalToUTC(firstLocalMillis + n * periodMillis, false);
+        while(next <= millis){
+            n++;
+            next = zone.convertLocalToUTC(firstLocalMillis + n * periodMillis, false);
+        }
+        return next;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        final RecurringAlarm other = (RecurringAlarm) obj;
+        if (this.first != other.first && (this.first == null || !this.first.equals(other.first))) {
+            return false;
+        }
+        return this.periodMillis == other.periodMillis;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 5;
+        hash = 41 * hash + (this.first != null ? this.first.hashCode() : 0);
+        hash = 41 * hash + (int) (this.periodMillis ^ (this.periodMillis >>> 32));
+        return hash;
+    }
+}
@@ -5,7 +5,9 @@ import alarmclock.services.ProcessStarter;
 import java.util.EventListener;
 import java.util.List;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 
 /**
  * This class represents one currently set alarm.  It contains the date and time
@@ -19,20 +21,123 @@ import org.joda.time.DateTime;
 public class SetAlarm {
     /** Let's say 1 month */
     public static final long MAX_FUTURE_SCHEDULING_MILLIS = 31l * 24l * 60l * 60l * 1000l;
+
+    /** This hands out the ids, starting from 1. */
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+
+    private final long id;
+    /**
+     * Every SetAlarm gets its own id when it's created, which is never zero.
+     * Two SetAlarms for the same time and path are equal, since they describe
+     * the same alarm, but they are still two separate alarms which can both be
+     * started, and the AlarmStarters tell them apart by their ids.  Looking up
+     * a long is also much quicker than hashing the time and path.
+     * @return the id of this alarm.
+     */
+    public long getId(){
+        return id;
+    }
     
-    private DateTime time;
+    /*
+     * The time is kept as two small fields instead of a Joda DateTime.  A
+     * DateTime is an object of its own, with its millis and a reference to
+     * its chronology, so keeping one per alarm costs far more than the single
+     * long it stands for once there are millions of alarms.  The zone is one
+     * of Joda's shared DateTimeZone objects, so it costs only the reference.
+     */
+    private long timeMillis;
+    private DateTimeZone zone;
+
+    /**
+     * Creates a DateTime for when this alarm goes off.  It's a new object every
+     * time, so code which only needs the instant should use getTimeMillis.
+     * @return the time this alarm goes off, in the alarm's time zone.
+     */
     public DateTime getTime(){
-        return time;
+        return new DateTime(timeMillis, zone);
+    }
+
+    /** @return the time this alarm goes off, in UTC millis. */
+    public long getTimeMillis(){
+        return timeMillis;
+    }
+
+    /** @return the time zone the alarm was set in. */
+    public DateTimeZone getZone(){
+        return zone;
     }
     
+    /**
+     * The path is the PathDictionary's shared copy.  Holding on to it is what
+     * keeps the path's number from being given to another path.
+     */
     private String path;
+    private int pathId;
     public String getPath(){
         return path;
     }
+
+    /** @return the number of this alarm's path in the PathDictionary. */
+    public int getPathId(){
+        return pathId;
+    }
     
     public SetAlarm(DateTime time, String path){
-        this.time = time;
-        this.path = path;
+        this(time.getMillis(), time.getZone(), path);
+    }
+
+    /**
+     * Creates a SetAlarm without needing a DateTime.
+     * @param timeMillis when the alarm goes off, in UTC millis
+     * @param zone the time zone to show the time in
+     * @param path the path of the program or file to start
+     */
+    public SetAlarm(long timeMillis, DateTimeZone zone, String path){
+        this(0, zone, timeMillis, path);
+    }
+
+    /**
+     * Creates a SetAlarm which keeps an id it was given before, like one read
+     * back from the alarm journal after the program restarts.  Alarms created
+     * after this one get bigger ids, so the two never mix up.
+     * @param id the alarm's id, which must not be zero
+     * @param timeMillis when the alarm goes off, in UTC millis
+     * @param zone the time zone to show the time in
+     * @param path the path of the program or file to start
+     */
+    public SetAlarm(long id, long timeMillis, DateTimeZone zone, String path){
+        this(positive(id), zone, timeMillis, path);
+    }
+
+    /**
+     * Both public constructors end up here.  An id of 0 means hand out the
+     * next one, anything else is an id the alarm already had.  Everything is
+     * checked before NEXT_ID is touched, so a bad alarm never uses up an id.
+     */
+    private SetAlarm(long id, DateTimeZone zone, long timeMillis, String path){
+        if(zone == null)
+            throw new NullPointerException("zone");
+        if(id == 0){
+            id = NEXT_ID.incrementAndGet();
+        }
+        else{
+            //make sure NEXT_ID is past it
+            long current;
+            do{
+                current = NEXT_ID.get();
+            }while(current < id && !NEXT_ID.compareAndSet(current, id));
+        }
+        this.id = id;
+        this.timeMillis = timeMillis;
+        this.zone = zone;
+        this.path = PathDictionary.canonical(path);
+        this.pathId = PathDictionary.idOf(this.path);
+    }
+
+    private static long positive(long id){
+        if(id <= 0)
+            throw new IllegalArgumentException("id must be positive");
+        return id;
     }
 
     /*
@@ -58,20 +163,20 @@ public class SetAlarm {
             return false;
         }
         final SetAlarm other = (SetAlarm) obj;
-        if (this.time != other.time && (this.time == null || !this.time.equals(other.time))) {
-            return false;
-        }
-        if ((this.path == null) ? (other.path != null) : !this.path.equals(other.path)) {
+        if (this.timeMillis != other.timeMillis || !this.zone.equals(other.zone)) {
             return false;
         }
-        return true;
+        //Every path has just one number, so this is the same as comparing
+        //the path Strings, only quicker.
+        return this.pathId == other.pathId;
     }
 
     @Override
     public int hashCode() {
         int hash = 3;
-        hash = 83 * hash + (this.time != null ? this.time.hashCode() : 0);
-        hash = 83 * hash + (this.path != null ? this.path.hashCode() : 0);
+        hash = 83 * hash + (int) (this.timeMillis ^ (this.timeMillis >>> 32));
+        hash = 83 * hash + this.zone.hashCode();
+        hash = 83 * hash + this.pathId;
         return hash;
     }
     
@@ -0,0 +1,28 @@
+package alarmclock.services;
+
+import alarmclock.models.SetAlarm;
+import java.util.EventListener;
+
+/**
+ * This interface defines an EventListener which is told how an
+ * {@link alarmclock.models.AlarmFuture} turned out.  Exactly one of the two
+ * methods is called, exactly once.
+ * @author Gordon
+ */
+public interface AlarmCallback extends EventListener {
+
+    /**
+     * This event is fired when the alarm goes off.
+     * @param alarm The alarm that went off
+     */
+    public void alarmFired(SetAlarm alarm);
+
+    /**
+     * This event is fired when the alarm is cancelled or could not be
+     * started.
+     * @param alarm The alarm that won't go off
+     * @param reason A CancellationException if it was cancelled, otherwise
+     * the reason it failed.
+     */
+    public void alarmFailed(SetAlarm alarm, Throwable reason);
+}
@@ -0,0 +1,26 @@
+package alarmclock.services;
+
+/**
+ * This interface defines a source of AlarmEvents that anyone can subscribe
+ * to.  It works like the Publisher in the Reactive Streams standard: a
+ * subscriber is only sent as many events as it has asked for, so a slow
+ * subscriber can't be buried under events it can't keep up with.
+ * <p/>
+ * Java has its own copy of these interfaces (java.util.concurrent.Flow) from
+ * Java 9 on.  This project builds for Java 6, so AlarmEventPublisher,
+ * AlarmEventSubscriber and AlarmEventSubscription follow the same contracts
+ * instead.
+ *
+ * This interface defines the contract for classes which Do Something.
+ * @author Gordon
+ */
+public interface AlarmEventPublisher {
+
+    /**
+     * Adds a subscriber.  Its onSubscribe method is called with the
+     * AlarmEventSubscription it uses to ask for events.  It's only sent the
+     * events which happen after it subscribes.
+     * @param subscriber the subscriber to add
+     */
+    public void subscribe(AlarmEventSubscriber subscriber);
+}
@@ -0,0 +1,42 @@
+package alarmclock.services;
+
+import alarmclock.models.AlarmEvent;
+import java.util.EventListener;
+
+/**
+ * This interface defines an EventListener which subscribes to an
+ * AlarmEventPublisher.  The methods are called one at a time, never at the
+ * same time as each other, but not always on the same thread.
+ * @author Gordon
+ */
+public interface AlarmEventSubscriber extends EventListener {
+
+    /**
+     * This event is fired first, when the subscriber is added.  No events
+     * are sent until the subscriber asks for some with
+     * {@link AlarmEventSubscription#request(long)}.
+     * @param subscription the subscription, for asking for events or
+     * cancelling
+     */
+    public void onSubscribe(AlarmEventSubscription subscription);
+
+    /**
+     * This event is fired for each AlarmEvent, but never more times than the
+     * subscriber asked for.
+     * @param event what happened
+     */
+    public void onNext(AlarmEvent event);
+
+    /**
+     * This event is fired if the subscription fails, for instance because
+     * onNext threw an exception.  Nothing else is sent after it.
+     * @param error what went wrong
+     */
+    public void onError(Throwable error);
+
+    /**
+     * This event is fired when the publisher shuts down, after every event
+     * has been sent.  Nothing else is sent after it.
+     */
+    public void onComplete();
+}
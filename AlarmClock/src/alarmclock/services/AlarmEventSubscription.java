@@ -0,0 +1,26 @@
+package alarmclock.services;
+
+/**
+ * This interface defines a subscriber's link to an AlarmEventPublisher.  The
+ * subscriber uses it to ask for more events when it's ready for them, and to
+ * stop getting them.
+ *
+ * This interface defines the contract for classes which Do Something.
+ * @author Gordon
+ */
+public interface AlarmEventSubscription {
+
+    /**
+     * Asks for more events.  The numbers add up, so asking for 10 twice lets
+     * 20 events through.  Asking for Long.MAX_VALUE means "send everything".
+     * @param n how many more events the subscriber can take.  Anything less
+     * than 1 fails the subscription.
+     */
+    public void request(long n);
+
+    /**
+     * Stops sending events.  Some events which were already on their way may
+     * still arrive.
+     */
+    public void cancel();
+}
@@ -0,0 +1,20 @@
+package alarmclock.services;
+
+import alarmclock.models.SetAlarm;
+import java.util.EventListener;
+
+/**
+ * This interface defines an EventListener which is told when an alarm goes
+ * off.  It is used instead of a plain Runnable when one listener is shared by
+ * many alarms, for instance when a whole batch of alarms is started at once,
+ * so the listener needs to be told which alarm it was.
+ * @author Gordon
+ */
+public interface AlarmListener extends EventListener {
+
+    /**
+     * This event is fired when an alarm goes off.
+     * @param alarm The alarm that went off
+     */
+    public void alarmFinished(SetAlarm alarm);
+}
@@ -0,0 +1,51 @@
+package alarmclock.services;
+
+import alarmclock.models.SetAlarm;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.SortedSet;
+
+/**
+ * This interface defines a service which can answer questions about the
+ * alarms which are waiting to go off, like which ones are due this afternoon
+ * or how many are due each hour tomorrow.
+ * <p/>
+ * A recurring alarm shows up once, as the next time it will go off.
+ * @author Gordon
+ */
+public interface AlarmQueryService {
+
+    /**
+     * Gets the pending alarms which are due in a range of time, in the order
+     * they are due.  This is a read-only view of the pending alarms, not a
+     * copy, so it's cheap to get even when there are millions, and it changes
+     * as alarms are set and go off.
+     * @param fromMillis the start of the range in UTC millis, inclusive
+     * @param toMillis the end of the range in UTC millis, exclusive
+     * @return the alarms due in the range
+     */
+    public SortedSet<SetAlarm> getAlarmsBetween(long fromMillis, long toMillis);
+
+    /**
+     * Gets the next few alarms which are due after a moment.
+     * @param fromMillis the moment in UTC millis, inclusive
+     * @param count the most alarms to return
+     * @return up to count alarms, in the order they are due
+     */
+    public List<SetAlarm> getNextAlarms(long fromMillis, int count);
+
+    /**
+     * Counts the pending alarms due in each hour of a range of time.  Whole
+     * hours are counted, including the hours the range starts and ends in.
+     * @param fromMillis the start of the range in UTC millis, inclusive
+     * @param toMillis the end of the range in UTC millis, exclusive
+     * @return the number of alarms due in each hour, keyed by the start of the
+     * hour in UTC millis.  Hours with no alarms are left out.
+     */
+    public SortedMap<Long, Integer> getCountsPerHour(long fromMillis, long toMillis);
+
+    /**
+     * @return the number of alarms waiting to go off.
+     */
+    public int getPendingCount();
+}
@@ -1,6 +1,9 @@
 package alarmclock.services;
 
+import alarmclock.models.AlarmBatchResult;
+import alarmclock.models.RecurringAlarm;
 import alarmclock.models.SetAlarm;
+import java.util.Collection;
 import java.util.TimerTask;
 import org.joda.time.DateTime;
 
@@ -31,6 +34,19 @@ public interface AlarmStarter {
     public TimerTask startAlarm(SetAlarm alarm, Runnable whenFinished)
             throws Exception;
 
+    /**
+     * Starts an Alarm which goes off over and over.  Each time it goes off,
+     * the same scheduled entry is set again for the next time, so nothing has
+     * to be created or started again by hand.
+     * @param alarm The recurring alarm to start.  It is cancelled by passing
+     * its first SetAlarm to cancelAlarm.
+     * @param whenFinished The executable to run each time the alarm goes off.
+     * @return the TimerTask which can be used to monitor or cancel the alarm.
+     * @throws Exception if the first alarm is not valid or has already been started.
+     */
+    public TimerTask startRecurringAlarm(RecurringAlarm alarm, Runnable whenFinished)
+            throws Exception;
+
     /**
      * Cancels an Alarm, preventing it from going off in the future.  After
      * being canceled, the AlarmStarter will forget about the alarm.
@@ -39,4 +55,26 @@ public interface AlarmStarter {
      */
     public boolean cancelAlarm(SetAlarm alarm);
 
+    /**
+     * Starts a whole batch of Alarms at once.  This does the same thing as
+     * calling startAlarm for each one, but lets the AlarmStarter do the work in
+     * bulk, which is much faster when there are thousands of alarms to start.
+     * <p/>
+     * One bad alarm does not stop the rest of the batch from starting.
+     * @param alarms The alarms to start, created using the createAlarm method
+     * of this class.
+     * @param whenFinished The listener to tell when each alarm goes off.
+     * @return which alarms were started and which ones failed and why.
+     */
+    public AlarmBatchResult startAlarms(Collection<SetAlarm> alarms, AlarmListener whenFinished);
+
+    /**
+     * Cancels a whole batch of Alarms at once.  This does the same thing as
+     * calling cancelAlarm for each one, but in bulk.
+     * @param alarms The alarms to cancel
+     * @return for each alarm, in the same order as they were given, True if it
+     * was successfully canceled, false otherwise.
+     */
+    public boolean[] cancelAlarms(Collection<SetAlarm> alarms);
+
 }
@@ -0,0 +1,50 @@
+package alarmclock.services;
+
+import alarmclock.models.AlarmFuture;
+import alarmclock.models.SetAlarm;
+import java.util.Collection;
+import java.util.List;
+import org.joda.time.DateTime;
+
+/**
+ * This interface is another way to start alarms, which gives back an
+ * AlarmFuture instead of a TimerTask.  The future finishes when the alarm goes
+ * off and fails when it's cancelled or can't be started, and callbacks and
+ * further alarms can be chained onto it without any thread having to wait.
+ *
+ * This interface defines the contract for classes which Do Something.
+ * @author Gordon
+ */
+public interface AsyncAlarmStarter {
+    /**
+     * Creates a new Alarm object for the given date and executable file.
+     * @param alarmDate The date in the future for which the alarm should be scheduled.
+     * @param exePath The path to the file or website to start.
+     * @return the new Alarm object
+     */
+    public SetAlarm createAlarm(DateTime alarmDate, String exePath);
+
+    /**
+     * Starts an Alarm.  This never throws, if the alarm can't be started the
+     * future it gives back has already failed.
+     * @param alarm The alarm object to run, created using the createAlarm
+     * method of this class.
+     * @return the future which finishes when the alarm goes off.
+     */
+    public AlarmFuture startAlarm(SetAlarm alarm);
+
+    /**
+     * Starts a whole batch of Alarms at once.
+     * @param alarms The alarms to start.
+     * @return a future for each alarm, in the same order as they were given.
+     */
+    public List<AlarmFuture> startAlarms(Collection<SetAlarm> alarms);
+
+    /**
+     * Cancels an Alarm, which fails its future with a CancellationException.
+     * This does the same thing as cancelling the future.
+     * @param alarm The alarm to cancel
+     * @return True if the alarm was successfully canceled, false otherwise.
+     */
+    public boolean cancelAlarm(SetAlarm alarm);
+}
@@ -0,0 +1,52 @@
+package alarmclock.services;
+
+import alarmclock.models.Lease;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * This interface defines a place where the nodes of a cluster keep their
+ * leases, so they can agree on who owns what.  Every call has to be atomic
+ * across all the nodes sharing the store.
+ * <p/>
+ * The times are all in UTC millis from each node's own clock, so the nodes'
+ * clocks should be kept in sync.
+ * @author Gordon
+ */
+public interface LeaseStore {
+
+    /**
+     * Takes or renews a lease.  It only works if nobody holds the lease, the
+     * lease has run out, or the owner already holds it.
+     * @param name the name of the lease
+     * @param owner who wants the lease
+     * @param expiresMillis when the lease should run out
+     * @param checkpointMillis the owner's new checkpoint.  The checkpoint
+     * never goes backwards, so passing 0 keeps the one already there.
+     * @return the lease as it is now, or null if someone else holds it.
+     * @throws IOException if the store can't be read or written
+     */
+    public Lease tryAcquire(String name, String owner, long expiresMillis, long checkpointMillis)
+            throws IOException;
+
+    /**
+     * Gives a lease back early, so someone else can take it right away.
+     * @param name the name of the lease
+     * @param owner who holds the lease
+     * @param atMillis the time the owner stopped using it
+     * @param checkpointMillis the owner's final checkpoint
+     * @return true if it was given back, false if the owner didn't hold it.
+     * @throws IOException if the store can't be read or written
+     */
+    public boolean release(String name, String owner, long atMillis, long checkpointMillis)
+            throws IOException;
+
+    /**
+     * Gets all the leases whose names start with the prefix, including ones
+     * which have run out.
+     * @param prefix the start of the names
+     * @return the leases, by name
+     * @throws IOException if the store can't be read
+     */
+    public Map<String, Lease> getLeases(String prefix) throws IOException;
+}
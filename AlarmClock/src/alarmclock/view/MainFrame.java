@@ -6,7 +6,9 @@
 package alarmclock.view;
 
 import alarmclock.models.FavoriteAlarm;
+import alarmclock.models.RecurringAlarm;
 import alarmclock.models.SetAlarm;
+import alarmclock.services.AlarmQueryService;
 import alarmclock.services.AlarmStarter;
 import alarmclock.services.FavoriteAlarmService;
 import alarmclock.services.ProcessStarter;
@@ -14,7 +16,13 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedMap;
 import java.util.SortedSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -46,7 +54,20 @@ public class MainFrame extends javax.swing.JFrame {
             new Comparator<AlarmPanel>(){
                 @Override
                 public int compare(AlarmPanel o1, AlarmPanel o2) {
-                    return o1.getAlarm().getTime().compareTo(o2.getAlarm().getTime());
+                    long t1 = o1.getAlarm().getTimeMillis();
+                    long t2 = o2.getAlarm().getTimeMillis();
+                    if(t1 != t2)
+                        return t1 < t2 ? -1 : 1;
+                    //Lots of alarms can be set for the same time, and the
+                    //SortedSet would think they were all the same panel.
+                    int paths = o1.getAlarm().getPath().compareTo(o2.getAlarm().getPath());
+                    if(paths != 0)
+                        return paths;
+                    //Two alarms can even be equal, and they still each need
+                    //their own panel, so the id tells them apart.
+                    long id1 = o1.getAlarm().getId();
+                    long id2 = o2.getAlarm().getId();
+                    return id1 < id2 ? -1 : (id1 == id2 ? 0 : 1);
                 }
             });
 
@@ -56,6 +77,19 @@ public class MainFrame extends javax.swing.JFrame {
      */
     private final JFileChooser fileChooser = new JFileChooser();
 
+    /**
+     * These are the panels of alarms which have gone off but haven't been
+     * removed from the display yet.  Alarms go off on other threads, so this
+     * is locked whenever it's used.
+     */
+    private final List<AlarmPanel> finishedPanels = new ArrayList<AlarmPanel>();
+
+    /**
+     * These are the ids of the recurring alarms which are still going.
+     * Alarms are dropped on other threads, so this is a synchronized set.
+     */
+    private final Set<Long> recurringIds = Collections.synchronizedSet(new HashSet<Long>());
+
     //this timer is just going to invoke Update to update the display clock, it's not
     //going to do any important timing, all that will happen in TimerAlarmStarter
     javax.swing.Timer updateTimer;
@@ -86,6 +120,12 @@ public class MainFrame extends javax.swing.JFrame {
     public void setFavoritesService(FavoriteAlarmService favoritesService){
         this.favoritesService = favoritesService;
     }
+
+    /** This one is optional, it's only used to show what's coming up next. */
+    private AlarmQueryService alarmQueryService;
+    public void setAlarmQueryService(AlarmQueryService alarmQueryService){
+        this.alarmQueryService = alarmQueryService;
+    }
     //</editor-fold>
 
     /** The MainFrame constructor
@@ -386,12 +426,42 @@ private void saveButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FI
             public void run() {
                 DateTime now = new DateTime(System.currentTimeMillis());
                 MainFrame.this.CurrentTime.setText(now.toString("MMM d, yyyy h:mm:ss a"));
+                MainFrame.this.updateComingUp(now.getMillis());
             }
         });
 
     }
 
         /**
+     * Shows the next alarm and how many more go off before the end of the
+     * hour when the mouse is over the clock.  The AlarmQueryService finds them
+     * without looking through all the alarms.  It keeps a count for each
+     * hour, so we ask for the current hour's count rather than counting the
+     * alarms in the next sixty minutes, which would mean visiting every one
+     * of them on every tick.
+     */
+    private void updateComingUp(long now){
+        if(this.alarmQueryService == null)
+            return;
+
+        List<SetAlarm> next = this.alarmQueryService.getNextAlarms(now, 1);
+        if(next.isEmpty()){
+            this.CurrentTime.setToolTipText("No alarms set");
+            return;
+        }
+        SortedMap<Long, Integer> thisHour = this.alarmQueryService.getCountsPerHour(now, now + 1);
+        if(thisHour.isEmpty()){
+            this.CurrentTime.setToolTipText(String.format("Next: %s at %s",
+                    next.get(0).getPath(), next.get(0).getTime().toString("h:mm a")));
+            return;
+        }
+        DateTime hourEnds = new DateTime(thisHour.firstKey() + 60 * 60 * 1000);
+        this.CurrentTime.setToolTipText(String.format("Next: %s at %s, %d due before %s",
+                next.get(0).getPath(), next.get(0).getTime().toString("h:mm a"),
+                thisHour.get(thisHour.firstKey()), hourEnds.toString("h:mm a")));
+    }
+
+    /**
      * This method is called when a new FavoriteAlarm gets set.
      * @param time The TimeOfDay for the favorite alarm
      * @param exePath The Path to use for the alarm
@@ -459,6 +529,58 @@ private void saveButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FI
         this.setAlarm(setAlarm);
     }
 
+    /**
+     * Sets alarms which were pending when the program last stopped.  Any that
+     * went by while we weren't running are skipped.  This must be called on
+     * the EventQueue thread after init.
+     * @param restored the alarms to set again
+     */
+    public void restoreAlarms(Iterable<SetAlarm> restored){
+        DateTime now = new DateTime();
+        for(SetAlarm alm : restored){
+            if(alm.getTime().isBefore(now)){
+                Logger.getLogger(MainFrame.class.getName()).log(Level.INFO,
+                        "Skipping alarm for {0} which went by while we were closed", alm.getPath());
+                //cancel it so it doesn't come back next time either
+                this.alarmStarter.cancelAlarm(alm);
+                continue;
+            }
+            this.setAlarm(alm);
+        }
+    }
+
+    /**
+     * Starts recurring alarms which were pending when the program last
+     * stopped.  Each one gets a panel which stays up, showing the next time
+     * it goes off, until the user cancels it.  This must be called on the
+     * EventQueue thread after init.
+     * @param restored the recurring alarms to start again
+     */
+    public void restoreRecurringAlarms(Iterable<RecurringAlarm> restored){
+        for(final RecurringAlarm alm : restored){
+            //Create a new Panel view to display this alarm
+            final AlarmPanel panel = new AlarmPanel();
+            panel.setRecurringAlarm(alm);
+
+            try {
+                this.alarmStarter.startRecurringAlarm(alm, new Runnable(){
+                    @Override
+                    public void run() {
+                        //Each time it goes off, run this code
+                        MainFrame.this.onRecurringAlarmFinished(panel, alm);
+                    }
+                });
+            } catch (Exception ex) {
+                Logger.getLogger(MainFrame.class.getName()).log(Level.SEVERE, null, ex);
+                this.errorText.setText("Can't start alarm: " + ex.toString());
+                continue;
+            }
+
+            this.recurringIds.add(alm.getFirst().getId());
+            this.addAlarmPanel(panel);
+        }
+    }
+
     private SetAlarm setAlarm(DateTime time, String exePath){
         //call into the alarm starter service to create an Alarm for the given time and path
         final SetAlarm alm = this.alarmStarter.createAlarm(time, exePath);
@@ -490,6 +612,17 @@ private void saveButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FI
             return null;
         }
 
+        this.addAlarmPanel(panel);
+
+        return alm;
+    }
+
+    /**
+     * Shows the panel of an alarm which has just been started, and cancels
+     * the alarm if the user clicks the panel's cancel button.
+     * @param panel the panel for the alarm
+     */
+    private void addAlarmPanel(final AlarmPanel panel){
         //Make sure we're listening in case the user clicks the cancel button
         panel.addCancelAlarmListener(new AlarmPanel.CancelAlarmListener(){
             @Override
@@ -501,6 +634,7 @@ private void saveButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FI
 
                 //cancel the running alarm task
                 MainFrame.this.alarmStarter.cancelAlarm(alarm.getAlarm());
+                MainFrame.this.recurringIds.remove(alarm.getAlarm().getId());
             }
         });
 
@@ -510,8 +644,6 @@ private void saveButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FI
         //turn on the new alarm panel
         panel.setVisible(true);
         this.updateAlarmsPanel();
-
-        return alm;
     }
 
     /**
@@ -521,9 +653,57 @@ private void saveButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FI
      * @param alm The Alarm that went off
      */
     private void onAlarmFinished(final AlarmPanel panel, final SetAlarm alm){
+        if(!this.runFile(alm))
+            return;
+
+        //Can't guarantee this code is running on the same thread as the EventQueue
+        //so we do this invokeLater thing again.  When lots of alarms go off at
+        //once we don't want to redo the alarms panel for every one of them, so
+        //the finished panels are collected up and only the first one asks
+        //the EventQueue to remove them all.
+        boolean first;
+        synchronized(this.finishedPanels){
+            first = this.finishedPanels.isEmpty();
+            this.finishedPanels.add(panel);
+        }
+        if(first){
+            java.awt.EventQueue.invokeLater(new Runnable(){
+                @Override
+                public void run() {
+                    MainFrame.this.removeFinishedPanels();
+                }
+            });
+        }
+    }
+
+    /**
+     * This method gets executed each time a recurring Alarm goes off.  Its
+     * panel stays up, and is updated to show the next time it goes off.
+     * @param panel The AlarmPanel that houses the alarm
+     * @param alm The recurring Alarm that went off
+     */
+    private void onRecurringAlarmFinished(final AlarmPanel panel, final RecurringAlarm alm){
+        this.runFile(alm.getFirst());
+
+        java.awt.EventQueue.invokeLater(new Runnable(){
+            @Override
+            public void run() {
+                panel.Update();
+            }
+        });
+    }
+
+    /**
+     * Starts the program or file for an alarm which went off, and shows the
+     * error if it couldn't be started.  It can be called from any thread.
+     * @param alm The Alarm that went off
+     * @return true if the file was started
+     */
+    private boolean runFile(final SetAlarm alm){
         try {
             //Execute the file
             this.processStarter.runFile(alm.getPath());
+            return true;
         } catch (final IOException ex) {
             //Uh oh!  Log it
             Logger.getLogger(MainFrame.class.getName()).log(Level.SEVERE, null, ex);
@@ -539,21 +719,86 @@ private void saveButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FI
                             ex.getMessage());
                 }
             });
+            return false;
+        }
+    }
+
+    /**
+     * This method gets executed when an Alarm came due but was never run,
+     * because too many alarms went off at once.  It can be called from any
+     * thread.
+     * @param alm The Alarm that was dropped
+     */
+    public void onAlarmDropped(final SetAlarm alm){
+        if(this.recurringIds.contains(alm.getId())){
+            //Only this time was dropped, the alarm still goes off next time,
+            //so it keeps its panel and isn't cancelled.
+            java.awt.EventQueue.invokeLater(new Runnable(){
+                @Override
+                public void run() {
+                    MainFrame.this.errorText.setText("Skipped " + alm.getPath() +
+                            " this time because too many alarms went off at once");
+                }
+            });
             return;
         }
 
-        //Can't guarantee this code is running on the same thread as the EventQueue
-        //so we do this invokeLater thing again
+        this.takeDownAlarm(alm, "Skipped " + alm.getPath() +
+                " because too many alarms went off at once");
+    }
+
+    /**
+     * This method gets executed when an Alarm was missed while the computer
+     * was asleep, and the catch-up policy decided not to run it.  It can be
+     * called from any thread.
+     * @param alm The Alarm that was skipped
+     */
+    public void onAlarmSkipped(final SetAlarm alm){
+        this.takeDownAlarm(alm, "Skipped " + alm.getPath() +
+                " because it was missed while the computer was asleep");
+    }
+
+    /**
+     * Cancels an alarm which is never going to run, takes down its panel and
+     * shows why.
+     */
+    private void takeDownAlarm(final SetAlarm alm, final String why){
+        //make sure the alarm starter forgets about it too
+        this.alarmStarter.cancelAlarm(alm);
+
         java.awt.EventQueue.invokeLater(new Runnable(){
             @Override
             public void run() {
-                //Remove the alarm now that it's finished
-                MainFrame.this.alarms.remove(panel);
+                //find the alarm's panel and take it down.  An equal alarm
+                //might have a panel too, so only the same id will do.
+                for(AlarmPanel p : MainFrame.this.alarms){
+                    if(p.getAlarm().getId() == alm.getId()){
+                        MainFrame.this.alarms.remove(p);
+                        break;
+                    }
+                }
                 MainFrame.this.updateAlarmsPanel();
+                MainFrame.this.errorText.setText(why);
             }
         });
     }
 
+    /**
+     * Removes every alarm panel whose alarm has finished since the last time
+     * this was called.  It must be called on the EventQueue thread.
+     */
+    private void removeFinishedPanels(){
+        List<AlarmPanel> finished;
+        synchronized(this.finishedPanels){
+            finished = new ArrayList<AlarmPanel>(this.finishedPanels);
+            this.finishedPanels.clear();
+        }
+
+        //Remove the alarms now that they're finished
+        this.alarms.removeAll(finished);
+        this.updateAlarmsPanel();
+    }
+
 
     /**
      * This is called when there's a change to the AlarmsPanel container.  It
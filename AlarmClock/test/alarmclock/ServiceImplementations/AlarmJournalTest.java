@@ -0,0 +1,479 @@
+package alarmclock.ServiceImplementations;
+
+import alarmclock.models.SetAlarm;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import static org.junit.Assert.*;
+
+/**
+ * This class contains JUnit tests for the AlarmJournal and the
+ * JournalingAlarmStarter which writes to it.
+ * @author Gordon
+ */
+public class AlarmJournalTest {
+
+    private File file;
+    private AlarmJournal instance;
+
+    @org.junit.Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("AlarmJournalTest", ".dat");
+        file.delete();
+        instance = new AlarmJournal(file);
+    }
+
+    @org.junit.After
+    public void tearDown() {
+        instance.close();
+        file.delete();
+        new File(file.getPath() + ".old").delete();
+        new File(file.getPath() + ".compact").delete();
+    }
+
+    /**
+     * Only alarms which were scheduled and never cancelled or fired should
+     * come back when the journal is opened again.
+     */
+    @org.junit.Test
+    public void testOpen_ReplaysOnlyLiveAlarms() throws Exception {
+        System.out.println("testOpen_ReplaysOnlyLiveAlarms");
+
+        //setup
+        assertTrue(instance.open().isEmpty());
+        instance.append(new AlarmJournalRecord(AlarmJournalRecord.SCHEDULED, 1, 1000, DateTimeZone.UTC, "www.first.com", 0));
+        instance.append(new AlarmJournalRecord(AlarmJournalRecord.SCHEDULED, 2, 2000, DateTimeZone.UTC, "www.second.com", 0));
+        instance.append(new AlarmJournalRecord(AlarmJournalRecord.SCHEDULED, 3, 3000, DateTimeZone.UTC, "www.third.com", 0));
+        instance.append(new AlarmJournalRecord(AlarmJournalRecord.CANCELLED, 1, 1000, DateTimeZone.UTC, "www.first.com", 0));
+        long seq = instance.append(new AlarmJournalRecord(AlarmJournalRecord.FIRED, 3, 3000, DateTimeZone.UTC, "www.third.com", 0));
+        instance.awaitDurable(seq);
+        instance.close();
+
+        //act
+        instance = new AlarmJournal(file);
+        List<AlarmJournalRecord> result = instance.open();
+
+        //assert
+        assertEquals(1, result.size());
+        assertEquals(2000, result.get(0).getTimeMillis());
+        assertEquals("www.second.com", result.get(0).getPath());
+    }
+
+    /**
+     * If we died halfway through writing a record, the partial record should
+     * be ignored and everything before it kept.
+     */
+    @org.junit.Test
+    public void testOpen_TornLastRecord_IsIgnored() throws Exception {
+        System.out.println("testOpen_TornLastRecord_IsIgnored");
+
+        //setup
+        instance.open();
+        instance.append(new AlarmJournalRecord(AlarmJournalRecord.SCHEDULED, 1, 1000, DateTimeZone.UTC, "www.first.com", 0));
+        long seq = instance.append(new AlarmJournalRecord(AlarmJournalRecord.SCHEDULED, 2, 2000, DateTimeZone.UTC, "www.second.com", 0));
+        instance.awaitDurable(seq);
+        instance.close();
+
+        //chop the last few bytes off the second record
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try{
+            raf.setLength(raf.length() - 3);
+        }finally{
+            raf.close();
+        }
+
+        //act
+        instance = new AlarmJournal(file);
+        List<AlarmJournalRecord> result = instance.open();
+
+        //assert
+        assertEquals(1, result.size());
+        assertEquals("www.first.com", result.get(0).getPath());
+    }
+
+    /**
+     * Scheduling and cancelling the same alarms over and over shouldn't make
+     * the journal grow forever.
+     */
+    @org.junit.Test
+    public void testAppend_Compacts() throws Exception {
+        System.out.println("testAppend_Compacts");
+
+        //setup
+        instance.setMinCompactionRecords(100);
+        instance.open();
+        instance.append(new AlarmJournalRecord(AlarmJournalRecord.SCHEDULED, 100000, 5, DateTimeZone.UTC, "www.keep.com", 0));
+
+        //act
+        long seq = 0;
+        for(int i = 0; i < 5000; i++){
+            instance.append(new AlarmJournalRecord(AlarmJournalRecord.SCHEDULED, i + 1, i, DateTimeZone.UTC, "www.test.com", 0));
+            seq = instance.append(new AlarmJournalRecord(AlarmJournalRecord.CANCELLED, i + 1, i, DateTimeZone.UTC, "www.test.com", 0));
+        }
+        instance.awaitDurable(seq);
+
+        //assert
+        assertTrue("journal should have been compacted, has " + instance.getRecordCount(),
+                instance.getRecordCount() < 1000);
+        assertEquals(1, instance.getLiveCount());
+
+        instance.close();
+        instance = new AlarmJournal(file);
+        List<AlarmJournalRecord> result = instance.open();
+        assertEquals(1, result.size());
+        assertEquals("www.keep.com", result.get(0).getPath());
+    }
+
+    /**
+     * Alarms added while the writer is compacting should be written after
+     * the compacted file, not lost with the old one.
+     */
+    @org.junit.Test
+    public void testAppend_WhileCompacting_KeepsNewAlarms() throws Exception {
+        System.out.println("testAppend_WhileCompacting_KeepsNewAlarms");
+
+        //setup
+        instance.setMinCompactionRecords(100);
+        instance.open();
+
+        //act
+        long seq = 0;
+        for(int i = 0; i < 20000; i++){
+            instance.append(new AlarmJournalRecord(AlarmJournalRecord.SCHEDULED, i + 1, i, DateTimeZone.UTC, "www.test.com", 0));
+            seq = instance.append(new AlarmJournalRecord(AlarmJournalRecord.CANCELLED, i + 1, i, DateTimeZone.UTC, "www.test.com", 0));
+            if(i % 1000 == 0)
+                seq = instance.append(new AlarmJournalRecord(AlarmJournalRecord.SCHEDULED, 100000 + i, i, DateTimeZone.UTC, "www.keep.com", 0));
+        }
+        instance.awaitDurable(seq);
+        instance.close();
+
+        //assert
+        instance = new AlarmJournal(file);
+        List<AlarmJournalRecord> result = instance.open();
+        assertEquals(20, result.size());
+        for(int i = 0; i < result.size(); i++){
+            assertEquals("www.keep.com", result.get(i).getPath());
+            assertEquals(i * 1000, result.get(i).getTimeMillis());
+        }
+    }
+
+    /**
+     * An alarm started through the JournalingAlarmStarter should be
+     * recovered by the next one, unless it was cancelled.
+     */
+    @org.junit.Test
+    public void testJournalingAlarmStarter_RecoversPendingAlarms() throws Exception {
+        System.out.println("testJournalingAlarmStarter_RecoversPendingAlarms");
+
+        //setup
+        TimingWheelAlarmStarter wheel = new TimingWheelAlarmStarter();
+        JournalingAlarmStarter starter = new JournalingAlarmStarter(wheel, instance);
+        assertTrue(starter.recover().isEmpty());
+
+        DateTime now = new DateTime();
+        SetAlarm kept = new SetAlarm(now.plusMinutes(5), "www.kept.com");
+        SetAlarm cancelled = new SetAlarm(now.plusMinutes(6), "www.cancelled.com");
+        starter.startAlarm(kept, new Runnable(){
+            @Override
+            public void run() {
+            }
+        });
+        starter.startAlarm(cancelled, new Runnable(){
+            @Override
+            public void run() {
+            }
+        }).cancel();
+        starter.shutdown();
+        wheel.shutdown();
+
+        //act
+        instance = new AlarmJournal(file);
+        wheel = new TimingWheelAlarmStarter();
+        starter = new JournalingAlarmStarter(wheel, instance);
+        List<SetAlarm> result = starter.recover();
+        wheel.shutdown();
+
+        //assert
+        assertEquals(1, result.size());
+        assertEquals(kept, result.get(0));
+    }
+
+    /**
+     * The zone is part of what makes two SetAlarms equal, so an alarm set in
+     * some other zone than the local one has to come back in that zone.
+     */
+    @org.junit.Test
+    public void testJournalingAlarmStarter_RecoversTheZone() throws Exception {
+        System.out.println("testJournalingAlarmStarter_RecoversTheZone");
+
+        //setup
+        DateTimeZone zone = DateTimeZone.forID("Asia/Tokyo");
+        if(zone.equals(DateTimeZone.getDefault()))
+            zone = DateTimeZone.forID("America/New_York");
+        TimingWheelAlarmStarter wheel = new TimingWheelAlarmStarter();
+        JournalingAlarmStarter starter = new JournalingAlarmStarter(wheel, instance);
+        starter.recover();
+
+        DateTime now = new DateTime(zone);
+        SetAlarm alarm = new SetAlarm(now.plusMinutes(5), "www.tokyo.com");
+        SetAlarm first = new SetAlarm(now.plusMinutes(10), "www.daily.com");
+        starter.startAlarm(alarm, new Runnable(){
+            @Override
+            public void run() {
+            }
+        });
+        starter.startRecurringAlarm(new alarmclock.models.RecurringAlarm(first, 24 * 60 * 60 * 1000), new Runnable(){
+            @Override
+            public void run() {
+            }
+        });
+        starter.shutdown();
+        wheel.shutdown();
+
+        //act
+        instance = new AlarmJournal(file);
+        wheel = new TimingWheelAlarmStarter();
+        starter = new JournalingAlarmStarter(wheel, instance);
+        List<SetAlarm> result = starter.recover();
+        List<alarmclock.models.RecurringAlarm> recurring = starter.getRecoveredRecurringAlarms();
+        wheel.shutdown();
+
+        //assert
+        assertEquals(1, result.size());
+        assertEquals(alarm, result.get(0));
+        assertEquals(zone, result.get(0).getZone());
+        assertEquals(1, recurring.size());
+        assertEquals(first, recurring.get(0).getFirst());
+        assertEquals(zone, recurring.get(0).getFirst().getZone());
+    }
+
+    /**
+     * A recurring alarm stays pending until it's cancelled, and comes back
+     * moved up to the next time it should go off.
+     */
+    @org.junit.Test
+    public void testJournalingAlarmStarter_RecoversRecurringAlarms() throws Exception {
+        System.out.println("testJournalingAlarmStarter_RecoversRecurringAlarms");
+
+        //setup
+        TimingWheelAlarmStarter wheel = new TimingWheelAlarmStarter();
+        JournalingAlarmStarter starter = new JournalingAlarmStarter(wheel, instance);
+        starter.recover();
+
+        //leave plenty of time to start it, a slow build machine can take a
+        //good part of a second to get here
+        SetAlarm first = new SetAlarm(new DateTime().plusSeconds(1), "www.daily.com");
+        starter.startRecurringAlarm(new alarmclock.models.RecurringAlarm(first, 250), new Runnable(){
+            @Override
+            public void run() {
+            }
+        });
+        Thread.sleep(1500);
+        starter.shutdown();
+        wheel.shutdown();
+        DateTime stopped = new DateTime();
+
+        //act
+        instance = new AlarmJournal(file);
+        starter = new JournalingAlarmStarter(new TimingWheelAlarmStarter(), instance);
+        List<SetAlarm> oneShots = starter.recover();
+        List<alarmclock.models.RecurringAlarm> result = starter.getRecoveredRecurringAlarms();
+
+        //assert
+        assertTrue(oneShots.isEmpty());
+        assertEquals(1, result.size());
+        assertEquals("www.daily.com", result.get(0).getFirst().getPath());
+        assertEquals(250, result.get(0).getPeriodMillis());
+        assertTrue("should have been moved up past the time we stopped",
+                result.get(0).getFirst().getTime().isAfter(stopped));
+    }
+
+    /**
+     * A recurring alarm which is started again after being recovered, the
+     * way Main does it, should still be pending after the next restart too.
+     */
+    @org.junit.Test
+    public void testJournalingAlarmStarter_RecurringAlarmSurvivesRestarts() throws Exception {
+        System.out.println("testJournalingAlarmStarter_RecurringAlarmSurvivesRestarts");
+
+        //setup
+        Runnable nothing = new Runnable(){
+            @Override
+            public void run() {
+            }
+        };
+        TimingWheelAlarmStarter wheel = new TimingWheelAlarmStarter();
+        JournalingAlarmStarter starter = new JournalingAlarmStarter(wheel, instance);
+        starter.recover();
+        SetAlarm first = new SetAlarm(new DateTime().plusHours(1), "www.hourly.com");
+        starter.startRecurringAlarm(new alarmclock.models.RecurringAlarm(first, 60 * 60 * 1000), nothing);
+        starter.shutdown();
+        wheel.shutdown();
+
+        //first restart, which starts the recovered alarm again
+        instance = new AlarmJournal(file);
+        wheel = new TimingWheelAlarmStarter();
+        starter = new JournalingAlarmStarter(wheel, instance);
+        starter.recover();
+        assertEquals(1, starter.getRecoveredRecurringAlarms().size());
+        for(alarmclock.models.RecurringAlarm alarm : starter.getRecoveredRecurringAlarms()){
+            starter.startRecurringAlarm(alarm, nothing);
+        }
+        starter.shutdown();
+        wheel.shutdown();
+
+        //act
+        instance = new AlarmJournal(file);
+        wheel = new TimingWheelAlarmStarter();
+        starter = new JournalingAlarmStarter(wheel, instance);
+        starter.recover();
+        List<alarmclock.models.RecurringAlarm> result = starter.getRecoveredRecurringAlarms();
+        wheel.shutdown();
+
+        //assert
+        assertEquals(1, result.size());
+        assertEquals(first, result.get(0).getFirst());
+        assertEquals(60 * 60 * 1000, result.get(0).getPeriodMillis());
+    }
+
+    /**
+     * Two equal alarms are still two alarms, so cancelling one of them
+     * shouldn't stop the other from being recovered.  The recovered alarm
+     * keeps its id.
+     */
+    @org.junit.Test
+    public void testJournalingAlarmStarter_TwoEqualAlarms_AreKeptApart() throws Exception {
+        System.out.println("testJournalingAlarmStarter_TwoEqualAlarms_AreKeptApart");
+
+        //setup
+        Runnable nothing = new Runnable(){
+            @Override
+            public void run() {
+            }
+        };
+        TimingWheelAlarmStarter wheel = new TimingWheelAlarmStarter();
+        JournalingAlarmStarter starter = new JournalingAlarmStarter(wheel, instance);
+        starter.recover();
+        DateTime when = new DateTime().plusMinutes(5);
+        SetAlarm cancelled = new SetAlarm(when, "www.twice.com");
+        SetAlarm kept = new SetAlarm(when, "www.twice.com");
+        starter.startAlarm(cancelled, nothing);
+        starter.startAlarm(kept, nothing);
+        starter.cancelAlarm(cancelled);
+        starter.shutdown();
+        wheel.shutdown();
+
+        //act
+        instance = new AlarmJournal(file);
+        wheel = new TimingWheelAlarmStarter();
+        starter = new JournalingAlarmStarter(wheel, instance);
+        List<SetAlarm> result = starter.recover();
+        wheel.shutdown();
+
+        //assert
+        assertEquals(1, result.size());
+        assertEquals(kept.getId(), result.get(0).getId());
+        assertEquals(kept, result.get(0));
+        assertTrue(new SetAlarm(when, "www.twice.com").getId() > kept.getId());
+    }
+
+    /**
+     * The alarm should be in the journal before the wrapped AlarmStarter
+     * starts it, and taken back out if it couldn't be started.
+     */
+    @org.junit.Test
+    public void testJournalingAlarmStarter_WritesAheadAndCancelsOnFailure() throws Exception {
+        System.out.println("testJournalingAlarmStarter_WritesAheadAndCancelsOnFailure");
+
+        //setup
+        final java.util.concurrent.atomic.AtomicInteger liveWhenStarted =
+                new java.util.concurrent.atomic.AtomicInteger(-1);
+        TimingWheelAlarmStarter wheel = new TimingWheelAlarmStarter(){
+            @Override
+            public java.util.TimerTask startAlarm(SetAlarm alarm, Runnable whenFinished) throws Exception {
+                liveWhenStarted.set(instance.getLiveCount());
+                if(alarm.getPath().equals("www.broken.com"))
+                    throw new IllegalStateException("broken");
+                return super.startAlarm(alarm, whenFinished);
+            }
+        };
+        JournalingAlarmStarter starter = new JournalingAlarmStarter(wheel, instance);
+        starter.recover();
+        Runnable nothing = new Runnable(){
+            @Override
+            public void run() {
+            }
+        };
+        DateTime when = new DateTime().plusMinutes(5);
+
+        //act
+        starter.startAlarm(new SetAlarm(when, "www.works.com"), nothing);
+        int liveForFirst = liveWhenStarted.get();
+        try{
+            starter.startAlarm(new SetAlarm(when, "www.broken.com"), nothing);
+            fail("should have thrown");
+        }catch(IllegalStateException expected){
+        }
+        starter.shutdown();
+        wheel.shutdown();
+
+        instance = new AlarmJournal(file);
+        starter = new JournalingAlarmStarter(new TimingWheelAlarmStarter(), instance);
+        List<SetAlarm> result = starter.recover();
+
+        //assert
+        assertEquals(1, liveForFirst);
+        assertEquals(1, result.size());
+        assertEquals("www.works.com", result.get(0).getPath());
+    }
+
+    /**
+     * Recovering shouldn't take anything out of the journal, so alarms which
+     * haven't been started again yet survive another restart.  Cancelling a
+     * recovered alarm takes it out.
+     */
+    @org.junit.Test
+    public void testJournalingAlarmStarter_RecoveredAlarmsStayUntilCancelled() throws Exception {
+        System.out.println("testJournalingAlarmStarter_RecoveredAlarmsStayUntilCancelled");
+
+        //setup
+        TimingWheelAlarmStarter wheel = new TimingWheelAlarmStarter();
+        JournalingAlarmStarter starter = new JournalingAlarmStarter(wheel, instance);
+        starter.recover();
+        DateTime when = new DateTime().plusMinutes(5);
+        Runnable nothing = new Runnable(){
+            @Override
+            public void run() {
+            }
+        };
+        starter.startAlarm(new SetAlarm(when, "www.first.com"), nothing);
+        starter.startAlarm(new SetAlarm(when, "www.second.com"), nothing);
+        starter.shutdown();
+        wheel.shutdown();
+
+        //act
+        //this time we stop without starting them again
+        instance = new AlarmJournal(file);
+        starter = new JournalingAlarmStarter(new TimingWheelAlarmStarter(), instance);
+        assertEquals(2, starter.recover().size());
+        starter.shutdown();
+
+        instance = new AlarmJournal(file);
+        starter = new JournalingAlarmStarter(new TimingWheelAlarmStarter(), instance);
+        List<SetAlarm> recovered = starter.recover();
+        boolean cancelled = starter.cancelAlarm(recovered.get(0));
+        starter.shutdown();
+
+        instance = new AlarmJournal(file);
+        starter = new JournalingAlarmStarter(new TimingWheelAlarmStarter(), instance);
+        List<SetAlarm> result = starter.recover();
+
+        //assert
+        assertEquals(2, recovered.size());
+        assertTrue(cancelled);
+        assertEquals(1, result.size());
+        assertEquals(recovered.get(1), result.get(0));
+    }
+}
@@ -0,0 +1,185 @@
+package alarmclock.ServiceImplementations;
+
+import alarmclock.ServiceImplementations.BoundedAlarmDispatcher.OverloadPolicy;
+import alarmclock.models.SetAlarm;
+import alarmclock.services.AlarmListener;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.joda.time.DateTime;
+import static org.junit.Assert.*;
+
+/**
+ * This class contains JUnit tests for the BoundedAlarmDispatcher.  Each test
+ * uses one worker thread which is kept busy by a blocking alarm, so that we
+ * can fill up the queue and see what the overload policy does.
+ * @author Gordon
+ */
+public class BoundedAlarmDispatcherTest {
+
+    private BoundedAlarmDispatcher instance;
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final CountDownLatch blocking = new CountDownLatch(1);
+    private final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> dropped = Collections.synchronizedList(new ArrayList<String>());
+
+    @org.junit.After
+    public void tearDown() {
+        release.countDown();
+        if(instance != null)
+            instance.shutdown();
+    }
+
+    /**
+     * Creates the dispatcher and makes its only worker busy until release
+     * is counted down.
+     */
+    private void start(int capacity, OverloadPolicy policy) throws Exception {
+        instance = new BoundedAlarmDispatcher(1, capacity, policy);
+        instance.setOverloadListener(new AlarmListener(){
+            @Override
+            public void alarmFinished(SetAlarm alarm) {
+                dropped.add(alarm.getPath());
+            }
+        });
+        instance.dispatch(alarm("blocker"), new Runnable(){
+            @Override
+            public void run() {
+                blocking.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                }
+            }
+        });
+        assertTrue(blocking.await(1, TimeUnit.SECONDS));
+    }
+
+    private void dispatch(final String path){
+        instance.dispatch(alarm(path), new Runnable(){
+            @Override
+            public void run() {
+                ran.add(path);
+            }
+        });
+    }
+
+    private static SetAlarm alarm(String path){
+        return new SetAlarm(new DateTime(), path);
+    }
+
+    /** Waits for the queues to empty out after the worker is released. */
+    private void drain() throws Exception {
+        release.countDown();
+        for(int i = 0; i < 100 && (instance.getQueueDepth() > 0 || instance.getDeferredDepth() > 0); i++){
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+    }
+
+    @org.junit.Test
+    public void testDropOldest() throws Exception {
+        System.out.println("testDropOldest");
+
+        //setup
+        start(2, OverloadPolicy.DROP_OLDEST);
+
+        //act
+        for(int i = 0; i < 5; i++){
+            dispatch("www.test.com/" + i);
+        }
+
+        //assert
+        assertEquals(2, instance.getQueueDepth());
+        assertEquals(3, instance.getShedCount());
+        assertEquals(java.util.Arrays.asList("www.test.com/0", "www.test.com/1", "www.test.com/2"), dropped);
+
+        drain();
+        assertEquals(java.util.Arrays.asList("www.test.com/3", "www.test.com/4"), ran);
+    }
+
+    @org.junit.Test
+    public void testCoalesceByPath() throws Exception {
+        System.out.println("testCoalesceByPath");
+
+        //setup
+        start(2, OverloadPolicy.COALESCE_BY_PATH);
+
+        //act
+        //there's room, so both of these are queued
+        dispatch("www.same.com");
+        dispatch("www.same.com");
+        //the queue is full now
+        dispatch("www.other.com");
+        dispatch("www.same.com");
+
+        //assert
+        assertEquals(2, instance.getQueueDepth());
+        assertEquals(1, instance.getCoalescedCount());
+        assertEquals(1, instance.getShedCount());
+        assertEquals(java.util.Arrays.asList("www.other.com", "www.same.com"), dropped);
+
+        drain();
+        assertEquals(java.util.Arrays.asList("www.same.com", "www.same.com"), ran);
+
+        //once there is room again, the same path is queued
+        dispatch("www.same.com");
+        Thread.sleep(50);
+        assertEquals(3, ran.size());
+    }
+
+    @org.junit.Test
+    public void testDefer() throws Exception {
+        System.out.println("testDefer");
+
+        //setup
+        start(1, OverloadPolicy.DEFER);
+
+        //act
+        dispatch("www.first.com");
+        dispatch("www.deferred.com");
+        dispatch("www.shed.com");
+
+        //assert
+        assertEquals(1, instance.getQueueDepth());
+        assertEquals(1, instance.getDeferredDepth());
+        assertEquals(1, instance.getDeferredCount());
+        assertEquals(1, instance.getShedCount());
+        assertEquals(java.util.Arrays.asList("www.shed.com"), dropped);
+
+        drain();
+        assertEquals(java.util.Arrays.asList("www.first.com", "www.deferred.com"), ran);
+    }
+
+    @org.junit.Test
+    public void testBlock() throws Exception {
+        System.out.println("testBlock");
+
+        //setup
+        start(1, OverloadPolicy.BLOCK);
+        dispatch("www.first.com");
+        final CountDownLatch dispatched = new CountDownLatch(1);
+
+        //act
+        new Thread(new Runnable(){
+            @Override
+            public void run() {
+                dispatch("www.second.com");
+                dispatched.countDown();
+            }
+        }).start();
+
+        //assert
+        assertFalse("should be blocked while the queue is full",
+                dispatched.await(100, TimeUnit.MILLISECONDS));
+
+        drain();
+        assertTrue(dispatched.await(1, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals(java.util.Arrays.asList("www.first.com", "www.second.com"), ran);
+        assertEquals(0, instance.getShedCount());
+        assertTrue(dropped.isEmpty());
+    }
+}
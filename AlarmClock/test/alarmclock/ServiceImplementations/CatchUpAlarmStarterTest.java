@@ -0,0 +1,285 @@
+package alarmclock.ServiceImplementations;
+
+import alarmclock.ServiceImplementations.CatchUpAlarmStarter.CatchUpPolicy;
+import alarmclock.models.AlarmBatchResult;
+import alarmclock.models.RecurringAlarm;
+import alarmclock.models.SetAlarm;
+import alarmclock.services.AlarmListener;
+import alarmclock.services.AlarmStarter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimerTask;
+import org.joda.time.DateTime;
+import static org.junit.Assert.*;
+
+/**
+ * This class contains JUnit tests for the CatchUpAlarmStarter.
+ * @author Gordon
+ */
+public class CatchUpAlarmStarterTest {
+
+    /**
+     * This AlarmStarter holds on to every alarm's callback until wakeUp is
+     * called, then runs them all back to back, like a java.util.Timer does
+     * when the computer wakes up.
+     */
+    private static class SleepingStarter implements AlarmStarter {
+        final List<Runnable> callbacks = new ArrayList<Runnable>();
+
+        void wakeUp(){
+            for(Runnable r : callbacks){
+                r.run();
+            }
+            callbacks.clear();
+        }
+
+        @Override
+        public SetAlarm createAlarm(DateTime alarmDate, String exePath) {
+            return new SetAlarm(alarmDate, exePath);
+        }
+
+        @Override
+        public TimerTask startAlarm(SetAlarm alarm, Runnable whenFinished) throws Exception {
+            callbacks.add(whenFinished);
+            return null;
+        }
+
+        @Override
+        public TimerTask startRecurringAlarm(RecurringAlarm alarm, Runnable whenFinished) throws Exception {
+            callbacks.add(whenFinished);
+            return null;
+        }
+
+        @Override
+        public boolean cancelAlarm(SetAlarm alarm) {
+            return false;
+        }
+
+        @Override
+        public AlarmBatchResult startAlarms(Collection<SetAlarm> alarms, AlarmListener whenFinished) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean[] cancelAlarms(Collection<SetAlarm> alarms) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private SleepingStarter sleeping;
+    private CatchUpAlarmStarter instance;
+
+    /** The alarms whose callbacks ran, in order. */
+    private final List<SetAlarm> ran = Collections.synchronizedList(new ArrayList<SetAlarm>());
+    private final List<SetAlarm> skipped = Collections.synchronizedList(new ArrayList<SetAlarm>());
+
+    private CatchUpAlarmStarter create(CatchUpPolicy policy){
+        sleeping = new SleepingStarter();
+        instance = new CatchUpAlarmStarter(sleeping, policy);
+        instance.setSettleMillis(50);
+        instance.setReplayPerSecond(1000);
+        instance.setSkippedListener(new AlarmListener(){
+            @Override
+            public void alarmFinished(SetAlarm alarm) {
+                skipped.add(alarm);
+            }
+        });
+        return instance;
+    }
+
+    @org.junit.After
+    public void tearDown() {
+        if(instance != null)
+            instance.shutdown();
+    }
+
+    private SetAlarm start(int minutesAgo, String path) throws Exception {
+        final SetAlarm alarm = new SetAlarm(new DateTime().minusMinutes(minutesAgo), path);
+        instance.startAlarm(alarm, new Runnable(){
+            @Override
+            public void run() {
+                ran.add(alarm);
+            }
+        });
+        return alarm;
+    }
+
+    private void awaitDone(int count) throws Exception {
+        long deadline = System.currentTimeMillis() + 3000;
+        while(instance.getReplayedCount() + instance.getSkippedCount() < count
+                && System.currentTimeMillis() < deadline){
+            Thread.sleep(10);
+        }
+        //give the last callbacks a moment to finish
+        Thread.sleep(50);
+        assertEquals(count, instance.getReplayedCount() + instance.getSkippedCount());
+    }
+
+    /**
+     * An alarm which goes off on time should run right away, on the same
+     * thread, without waiting for a batch.
+     */
+    @org.junit.Test
+    public void testOnTime_RunsRightAway() throws Exception {
+        System.out.println("testOnTime_RunsRightAway");
+
+        //setup
+        this.create(CatchUpPolicy.FIRE_ALL);
+        SetAlarm alarm = this.start(0, "www.test.com");
+
+        //act
+        sleeping.wakeUp();
+
+        //assert
+        assertEquals(1, ran.size());
+        assertSame(alarm, ran.get(0));
+        assertEquals(0, instance.getMissedCount());
+    }
+
+    /**
+     * FIRE_ALL should run every missed alarm, oldest first, no faster than
+     * the replay rate.
+     */
+    @org.junit.Test
+    public void testFireAll_ReplaysInOrderAtRate() throws Exception {
+        System.out.println("testFireAll_ReplaysInOrderAtRate");
+
+        //setup
+        this.create(CatchUpPolicy.FIRE_ALL);
+        instance.setReplayPerSecond(20);
+        List<SetAlarm> expected = new ArrayList<SetAlarm>();
+        for(int i = 10; i > 0; i--){
+            expected.add(this.start(i * 10, "www.test.com/" + (i % 3)));
+        }
+
+        //act
+        //wake up newest first, so the replay has to sort them
+        Collections.reverse(sleeping.callbacks);
+        long start = System.currentTimeMillis();
+        sleeping.wakeUp();
+        assertEquals(0, ran.size());
+        this.awaitDone(10);
+        long took = System.currentTimeMillis() - start;
+
+        //assert
+        assertEquals(10, instance.getMissedCount());
+        assertEquals(10, instance.getReplayedCount());
+        assertEquals(expected.size(), ran.size());
+        for(int i = 0; i < expected.size(); i++){
+            assertSame(expected.get(i), ran.get(i));
+        }
+        //ten alarms at 20 a second is at least 9 gaps of 50ms
+        assertTrue("took " + took + "ms", took >= 400);
+    }
+
+    /**
+     * LATEST_PER_PATH should run only the most recent missed alarm for each
+     * path, and tell the skipped listener about the rest.
+     */
+    @org.junit.Test
+    public void testLatestPerPath() throws Exception {
+        System.out.println("testLatestPerPath");
+
+        //setup
+        this.create(CatchUpPolicy.LATEST_PER_PATH);
+        List<SetAlarm> latest = new ArrayList<SetAlarm>();
+        for(int p = 0; p < 3; p++){
+            for(int t = 4; t > 0; t--){
+                SetAlarm alarm = this.start(t * 15 + p, "www.test.com/" + p);
+                if(t == 1)
+                    latest.add(alarm);
+            }
+        }
+
+        //act
+        sleeping.wakeUp();
+        this.awaitDone(12);
+
+        //assert
+        assertEquals(3, ran.size());
+        assertTrue(ran.containsAll(latest));
+        assertEquals(9, skipped.size());
+        assertEquals(9, instance.getSkippedCount());
+        //a skipped alarm counts as cancelled, once
+        assertTrue(instance.cancelAlarm(skipped.get(0)));
+        assertFalse(instance.cancelAlarm(skipped.get(0)));
+        assertFalse(instance.cancelAlarm(latest.get(0)));
+    }
+
+    /**
+     * SKIP_OLDER_THAN should only run the missed alarms newer than the max
+     * age.
+     */
+    @org.junit.Test
+    public void testSkipOlderThan() throws Exception {
+        System.out.println("testSkipOlderThan");
+
+        //setup
+        this.create(CatchUpPolicy.SKIP_OLDER_THAN);
+        instance.setMaxAgeMillis(30 * 60 * 1000);
+        SetAlarm old1 = this.start(60, "www.test.com/1");
+        SetAlarm old2 = this.start(45, "www.test.com/2");
+        SetAlarm new1 = this.start(20, "www.test.com/3");
+        SetAlarm new2 = this.start(10, "www.test.com/4");
+
+        //act
+        sleeping.wakeUp();
+        this.awaitDone(4);
+
+        //assert
+        assertEquals(2, ran.size());
+        assertSame(new1, ran.get(0));
+        assertSame(new2, ran.get(1));
+        assertTrue(skipped.contains(old1));
+        assertTrue(skipped.contains(old2));
+    }
+
+    /**
+     * An alarm which went off on time but waited in the dispatcher's queue
+     * behind a slow one isn't missed, and should still run right away.
+     */
+    @org.junit.Test
+    public void testQueuedInDispatcher_NotMissed() throws Exception {
+        System.out.println("testQueuedInDispatcher_NotMissed");
+
+        //setup
+        TimingWheelAlarmStarter wheel = new TimingWheelAlarmStarter();
+        BoundedAlarmDispatcher dispatcher = new BoundedAlarmDispatcher(1, 16,
+                BoundedAlarmDispatcher.OverloadPolicy.BLOCK);
+        wheel.setDispatcher(dispatcher);
+        instance = new CatchUpAlarmStarter(wheel, CatchUpPolicy.FIRE_ALL);
+        instance.setGraceMillis(200);
+        DateTime when = new DateTime().plusMillis(300);
+        final java.util.concurrent.CountDownLatch done = new java.util.concurrent.CountDownLatch(1);
+
+        try{
+            instance.startAlarm(new SetAlarm(when, "www.slow.com"), new Runnable(){
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(600);
+                    } catch (InterruptedException ex) {
+                    }
+                }
+            });
+            instance.startAlarm(new SetAlarm(when.plusMillis(100), "www.queued.com"), new Runnable(){
+                @Override
+                public void run() {
+                    done.countDown();
+                }
+            });
+
+            //act
+            boolean ran = done.await(3, java.util.concurrent.TimeUnit.SECONDS);
+
+            //assert
+            assertTrue(ran);
+            assertEquals(0, instance.getMissedCount());
+        }finally{
+            dispatcher.shutdown();
+            wheel.shutdown();
+        }
+    }
+}
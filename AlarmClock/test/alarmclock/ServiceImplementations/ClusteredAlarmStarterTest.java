@@ -0,0 +1,307 @@
+package alarmclock.ServiceImplementations;
+
+import alarmclock.models.Lease;
+import alarmclock.models.RecurringAlarm;
+import alarmclock.models.SetAlarm;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.joda.time.DateTime;
+import static org.junit.Assert.*;
+
+/**
+ * This class contains JUnit tests for the ClusteredAlarmStarter and the
+ * FileLockLeaseStore it keeps its leases in.  Each test runs a little
+ * cluster of nodes inside this JVM, sharing one lease file.
+ * @author Gordon
+ */
+public class ClusteredAlarmStarterTest {
+
+    private static final int PARTITIONS = 8;
+    private static final long LEASE_MILLIS = 600;
+
+    private File file;
+    private List<TimingWheelAlarmStarter> wheels = new ArrayList<TimingWheelAlarmStarter>();
+    private List<ClusteredAlarmStarter> nodes = new ArrayList<ClusteredAlarmStarter>();
+
+    /** How many times each alarm went off across the whole cluster. */
+    private ConcurrentHashMap<String, AtomicInteger> fired = new ConcurrentHashMap<String, AtomicInteger>();
+
+    @org.junit.Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("ClusteredAlarmStarterTest", ".leases");
+    }
+
+    @org.junit.After
+    public void tearDown() {
+        for(ClusteredAlarmStarter node : nodes){
+            node.abandon();
+        }
+        for(TimingWheelAlarmStarter wheel : wheels){
+            wheel.shutdown();
+        }
+        file.delete();
+    }
+
+    private ClusteredAlarmStarter addNode(String name) throws Exception {
+        TimingWheelAlarmStarter wheel = new TimingWheelAlarmStarter();
+        wheels.add(wheel);
+        ClusteredAlarmStarter node = new ClusteredAlarmStarter(wheel,
+                new FileLockLeaseStore(file), name, PARTITIONS, LEASE_MILLIS);
+        nodes.add(node);
+        return node;
+    }
+
+    /**
+     * Starts the same alarms on every node, like a real cluster would.
+     */
+    private void startEverywhere(DateTime when, int count) throws Exception {
+        for(ClusteredAlarmStarter node : nodes){
+            for(int i = 0; i < count; i++){
+                final String path = "www.test.com/" + i;
+                node.startAlarm(new SetAlarm(when, path), new Runnable(){
+                    @Override
+                    public void run() {
+                        AtomicInteger count = fired.get(path);
+                        if(count == null){
+                            AtomicInteger created = new AtomicInteger();
+                            count = fired.putIfAbsent(path, created);
+                            if(count == null)
+                                count = created;
+                        }
+                        count.incrementAndGet();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Waits until the given nodes own all the partitions between them, and
+     * none of them has more than its fair share.
+     */
+    private void awaitBalanced(ClusteredAlarmStarter... live) throws Exception {
+        int share = (PARTITIONS + live.length - 1) / live.length;
+        long deadline = System.currentTimeMillis() + 5000;
+        while(System.currentTimeMillis() < deadline){
+            int total = 0;
+            boolean fair = true;
+            for(ClusteredAlarmStarter node : live){
+                total += node.getOwnedPartitionCount();
+                fair &= node.getOwnedPartitionCount() <= share;
+            }
+            if(total == PARTITIONS && fair)
+                return;
+            Thread.sleep(20);
+        }
+        fail("the partitions were never balanced");
+    }
+
+    private void assertEachFiredOnce(int count){
+        assertEquals(count, fired.size());
+        for(AtomicInteger times : fired.values()){
+            assertEquals(1, times.get());
+        }
+    }
+
+    /**
+     * A lease should only be taken by one owner at a time, until it runs out
+     * or is given back, and its checkpoint should never go backwards.
+     */
+    @org.junit.Test
+    public void testLeaseStore() throws Exception {
+        System.out.println("testLeaseStore");
+
+        //setup
+        FileLockLeaseStore one = new FileLockLeaseStore(file);
+        FileLockLeaseStore two = new FileLockLeaseStore(file);
+        long now = System.currentTimeMillis();
+
+        //act & assert
+        assertNotNull(one.tryAcquire("partition/0", "a", now + 60000, 100));
+        assertNull(two.tryAcquire("partition/0", "b", now + 60000, 0));
+        Lease renewed = one.tryAcquire("partition/0", "a", now + 60000, 50);
+        assertEquals(100, renewed.getCheckpointMillis());
+
+        assertFalse(two.release("partition/0", "b", now, 0));
+        assertTrue(one.release("partition/0", "a", now, 200));
+        Lease taken = two.tryAcquire("partition/0", "b", now + 60000, 0);
+        assertEquals("b", taken.getOwner());
+        assertEquals(200, taken.getCheckpointMillis());
+
+        assertNotNull(two.tryAcquire("member/b", "b", now - 1, 0));
+        assertEquals(1, one.getLeases("member/").size());
+        assertFalse(one.getLeases("member/").get("member/b").isHeldAt(now));
+    }
+
+    /**
+     * With two nodes, each should own half the partitions, and every alarm
+     * should go off exactly once between them.  The second node joins after
+     * the first has taken everything, so this also hands partitions over.
+     */
+    @org.junit.Test
+    public void testTwoNodes_EachAlarmFiresOnce() throws Exception {
+        System.out.println("testTwoNodes_EachAlarmFiresOnce");
+
+        //setup
+        ClusteredAlarmStarter first = this.addNode("first");
+        this.awaitBalanced(first);
+        ClusteredAlarmStarter second = this.addNode("second");
+        this.awaitBalanced(first, second);
+
+        //act
+        this.startEverywhere(new DateTime().plusMillis(500), 200);
+        Thread.sleep(1500);
+
+        //assert
+        assertEachFiredOnce(200);
+        assertTrue(first.getFiredCount() > 0);
+        assertTrue(second.getFiredCount() > 0);
+        assertEquals(200, first.getFiredCount() + second.getFiredCount());
+    }
+
+    /**
+     * When a node dies, the others should take over its partitions once its
+     * leases run out, and fire its alarms, even the ones which came due while
+     * nobody owned them.
+     */
+    @org.junit.Test
+    public void testNodeDies_OthersTakeOver() throws Exception {
+        System.out.println("testNodeDies_OthersTakeOver");
+
+        //setup
+        ClusteredAlarmStarter first = this.addNode("first");
+        ClusteredAlarmStarter second = this.addNode("second");
+        this.awaitBalanced(first, second);
+        this.startEverywhere(new DateTime().plusMillis(300), 100);
+
+        //act
+        long died = System.currentTimeMillis();
+        first.abandon();
+        this.awaitBalanced(second);
+        long tookOver = System.currentTimeMillis() - died;
+        Thread.sleep(500);
+
+        //assert
+        assertTrue("took " + tookOver + "ms to take over", tookOver < 3 * LEASE_MILLIS);
+        assertEquals(0, first.getFiredCount());
+        assertEachFiredOnce(100);
+    }
+
+    /**
+     * When a node dies right after its alarms went off, before the lease
+     * thread has renewed its leases again, the node taking over shouldn't
+     * fire them a second time.
+     */
+    @org.junit.Test
+    public void testNodeDiesAfterFiring_NoneFireTwice() throws Exception {
+        System.out.println("testNodeDiesAfterFiring_NoneFireTwice");
+
+        //setup
+        ClusteredAlarmStarter first = this.addNode("first");
+        ClusteredAlarmStarter second = this.addNode("second");
+        this.awaitBalanced(first, second);
+        this.startEverywhere(new DateTime().plusMillis(300), 100);
+        long deadline = System.currentTimeMillis() + 2000;
+        while(fired.size() < 100 && System.currentTimeMillis() < deadline){
+            Thread.sleep(2);
+        }
+
+        //act
+        first.abandon();
+        this.awaitBalanced(second);
+        Thread.sleep(500);
+
+        //assert
+        assertTrue(first.getFiredCount() > 0);
+        assertEachFiredOnce(100);
+    }
+
+    /**
+     * A recurring alarm should go off on one node at a time, keep going when
+     * that node dies, and stop everywhere once it's cancelled.
+     */
+    @org.junit.Test
+    public void testRecurringAlarm_GoesOnAfterNodeDies() throws Exception {
+        System.out.println("testRecurringAlarm_GoesOnAfterNodeDies");
+
+        //setup
+        final int count = 20;
+        final long period = 500;
+        ClusteredAlarmStarter first = this.addNode("first");
+        ClusteredAlarmStarter second = this.addNode("second");
+        this.awaitBalanced(first, second);
+        DateTime when = new DateTime().plusMillis(300);
+        List<List<SetAlarm>> started = new ArrayList<List<SetAlarm>>();
+        for(ClusteredAlarmStarter node : nodes){
+            List<SetAlarm> alarms = new ArrayList<SetAlarm>();
+            for(int i = 0; i < count; i++){
+                final String path = "www.test.com/" + i;
+                SetAlarm alarm = new SetAlarm(when, path);
+                node.startRecurringAlarm(new RecurringAlarm(alarm, period), new Runnable(){
+                    @Override
+                    public void run() {
+                        AtomicInteger times = fired.get(path);
+                        if(times == null){
+                            AtomicInteger created = new AtomicInteger();
+                            times = fired.putIfAbsent(path, created);
+                            if(times == null)
+                                times = created;
+                        }
+                        times.incrementAndGet();
+                    }
+                });
+                alarms.add(alarm);
+            }
+            started.add(alarms);
+        }
+        this.awaitFiredAtLeast(count, 2);
+        assertTrue(first.getFiredCount() > 0);
+        assertTrue(second.getFiredCount() > 0);
+
+        //act
+        first.abandon();
+        this.awaitBalanced(second);
+        long secondBefore = second.getFiredCount();
+        this.awaitFiredAtLeast(count, 4);
+        for(int i = 0; i < nodes.size(); i++){
+            nodes.get(i).cancelAlarms(started.get(i));
+        }
+        long cancelled = System.currentTimeMillis();
+        int total = 0;
+        for(AtomicInteger times : fired.values()){
+            total += times.get();
+        }
+        Thread.sleep(3 * period);
+
+        //assert - never more than once per time it was due, and nothing after cancelling
+        assertTrue(second.getFiredCount() > secondBefore);
+        long mostTimes = (cancelled - when.getMillis()) / period + 1;
+        int after = 0;
+        for(AtomicInteger times : fired.values()){
+            assertTrue(times.get() + " times, at most " + mostTimes, times.get() <= mostTimes);
+            after += times.get();
+        }
+        assertEquals(total, after);
+    }
+
+    /**
+     * Waits until each of the alarms has gone off at least the given number
+     * of times.
+     */
+    private void awaitFiredAtLeast(int count, int times) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while(System.currentTimeMillis() < deadline){
+            boolean all = fired.size() == count;
+            for(AtomicInteger each : fired.values()){
+                all &= each.get() >= times;
+            }
+            if(all)
+                return;
+            Thread.sleep(20);
+        }
+        fail("the alarms didn't all go off " + times + " times");
+    }
+}
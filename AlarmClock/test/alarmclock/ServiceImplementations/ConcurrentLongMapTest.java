@@ -0,0 +1,104 @@
+package alarmclock.ServiceImplementations;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import static org.junit.Assert.*;
+
+/**
+ * This class contains JUnit tests for the ConcurrentLongMap.
+ * @author Gordon
+ */
+public class ConcurrentLongMapTest {
+
+    /**
+     * A long run of random puts, gets and removes should always agree with
+     * a plain HashMap.  The keys are kept in a small range so that lots of
+     * them land in the same runs, which is where removing gets tricky.
+     */
+    @org.junit.Test
+    public void testRandomOperations_MatchHashMap() {
+        System.out.println("testRandomOperations_MatchHashMap");
+
+        //setup
+        ConcurrentLongMap<String> instance = new ConcurrentLongMap<String>();
+        Map<Long, String> expected = new HashMap<Long, String>();
+        Random random = new Random(17);
+
+        //act and assert
+        for(int i = 0; i < 200000; i++){
+            long key = 1 + random.nextInt(2000);
+            String value = "v" + i;
+            switch(random.nextInt(4)){
+                case 0:
+                    String old = expected.get(key);
+                    if(old == null)
+                        expected.put(key, value);
+                    assertEquals(old, instance.putIfAbsent(key, value));
+                    break;
+                case 1:
+                    assertEquals(expected.remove(key), instance.remove(key));
+                    break;
+                case 2:
+                    String current = expected.get(key);
+                    boolean removed = current != null && random.nextBoolean();
+                    if(removed)
+                        expected.remove(key);
+                    assertEquals(removed, instance.remove(key, removed ? current : value));
+                    break;
+                default:
+                    assertEquals(expected.get(key), instance.get(key));
+            }
+        }
+        assertEquals(expected.size(), instance.size());
+        for(Map.Entry<Long, String> entry : expected.entrySet()){
+            assertEquals(entry.getValue(), instance.get(entry.getKey()));
+        }
+    }
+
+    /**
+     * Zero marks an empty position, so it can't be a key.
+     */
+    @org.junit.Test(expected = IllegalArgumentException.class)
+    public void testZeroKey_Throws() {
+        System.out.println("testZeroKey_Throws");
+        new ConcurrentLongMap<String>().putIfAbsent(0, "zero");
+    }
+
+    /**
+     * After a burst of alarms has gone, the stripes should give back the
+     * room they grew to hold it, and the keys left over should still be found.
+     */
+    @org.junit.Test
+    public void testRemove_ShrinksAfterABurst() {
+        System.out.println("testRemove_ShrinksAfterABurst");
+
+        //setup
+        ConcurrentLongMap<String> instance = new ConcurrentLongMap<String>();
+        int empty = instance.capacity();
+        for(long key = 1; key <= 100000; key++){
+            instance.put(key, "value " + key);
+        }
+        int grown = instance.capacity();
+
+        //act
+        for(long key = 1; key <= 100000; key++){
+            if(key % 1000 != 0)
+                instance.remove(key);
+        }
+
+        //assert
+        assertTrue(grown > 100000);
+        assertTrue("capacity " + instance.capacity(), instance.capacity() <= grown / 64);
+        assertEquals(100, instance.size());
+        for(long key = 1000; key <= 100000; key += 1000){
+            assertEquals("value " + key, instance.get(key));
+        }
+
+        //and with everything gone it's back where it started
+        for(long key = 1000; key <= 100000; key += 1000){
+            instance.remove(key);
+        }
+        assertEquals(empty, instance.capacity());
+    }
+}
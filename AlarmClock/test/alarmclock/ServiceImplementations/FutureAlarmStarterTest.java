@@ -0,0 +1,233 @@
+package alarmclock.ServiceImplementations;
+
+import alarmclock.models.AlarmFuture;
+import alarmclock.models.SetAlarm;
+import alarmclock.services.AlarmCallback;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.joda.time.DateTime;
+import static org.junit.Assert.*;
+
+/**
+ * This class contains JUnit tests for the FutureAlarmStarter and the
+ * AlarmFutures it gives back.
+ * @author Gordon
+ */
+public class FutureAlarmStarterTest {
+
+    private TimingWheelAlarmStarter wheel;
+    private FutureAlarmStarter instance;
+
+    @org.junit.Before
+    public void setUp() {
+        wheel = new TimingWheelAlarmStarter();
+        instance = new FutureAlarmStarter(wheel);
+    }
+
+    @org.junit.After
+    public void tearDown() {
+        wheel.shutdown();
+    }
+
+    /**
+     * This callback remembers how its future turned out.
+     */
+    private static class Recorder implements AlarmCallback {
+        final AtomicInteger fired = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        /** Callbacks can run just after get() returns, so wait on this. */
+        final CountDownLatch called = new CountDownLatch(1);
+
+        @Override
+        public void alarmFired(SetAlarm alarm) {
+            fired.incrementAndGet();
+            called.countDown();
+        }
+
+        @Override
+        public void alarmFailed(SetAlarm alarm, Throwable reason) {
+            failure.set(reason);
+            called.countDown();
+        }
+    }
+
+    /**
+     * The future should finish when the alarm goes off, and tell its
+     * callbacks, including ones added afterwards.
+     */
+    @org.junit.Test
+    public void testStartAlarm_FiresFuture() throws Exception {
+        System.out.println("testStartAlarm_FiresFuture");
+
+        //setup
+        SetAlarm alarm = new SetAlarm(new DateTime().plusMillis(300), "www.test.com");
+        Recorder before = new Recorder();
+        Recorder after = new Recorder();
+
+        //act
+        AlarmFuture future = instance.startAlarm(alarm).addCallback(before);
+        SetAlarm result = future.get(2, TimeUnit.SECONDS);
+        future.addCallback(after);
+
+        //assert
+        assertSame(alarm, result);
+        assertTrue(future.isFired());
+        assertTrue(before.called.await(1, TimeUnit.SECONDS));
+        assertEquals(1, before.fired.get());
+        assertEquals(1, after.fired.get());
+        assertEquals(0, instance.getPendingCount());
+    }
+
+    /**
+     * Cancelling should stop the alarm and fail the future, whether it's
+     * cancelled through the future or the starter.
+     */
+    @org.junit.Test
+    public void testCancel_FailsFuture() throws Exception {
+        System.out.println("testCancel_FailsFuture");
+
+        //setup
+        SetAlarm one = new SetAlarm(new DateTime().plusMillis(300), "www.test.com/1");
+        SetAlarm two = new SetAlarm(new DateTime().plusMillis(300), "www.test.com/2");
+        Recorder recorder = new Recorder();
+        AlarmFuture first = instance.startAlarm(one).addCallback(recorder);
+        AlarmFuture second = instance.startAlarm(two);
+
+        //act
+        assertTrue(first.cancel(false));
+        assertTrue(instance.cancelAlarm(two));
+        Thread.sleep(600);
+
+        //assert
+        assertTrue(first.isCancelled());
+        assertTrue(second.isCancelled());
+        assertEquals(0, recorder.fired.get());
+        assertTrue(recorder.failure.get() instanceof CancellationException);
+        assertFalse(first.cancel(false));
+        assertEquals(0, instance.getPendingCount());
+        try{
+            first.get();
+            fail("expected a CancellationException");
+        }catch(CancellationException ex){
+            //expected
+        }
+    }
+
+    /**
+     * An alarm which can't be started should give back a future which has
+     * already failed, instead of throwing.
+     */
+    @org.junit.Test
+    public void testStartAlarm_Past_FailsFuture() throws Exception {
+        System.out.println("testStartAlarm_Past_FailsFuture");
+
+        //setup
+        SetAlarm alarm = new SetAlarm(new DateTime().minusMinutes(1), "www.test.com");
+
+        //act
+        AlarmFuture future = instance.startAlarm(alarm);
+
+        //assert
+        assertTrue(future.isDone());
+        assertFalse(future.isFired());
+        assertFalse(future.isCancelled());
+        try{
+            future.get();
+            fail("expected an ExecutionException");
+        }catch(ExecutionException ex){
+            assertNotNull(ex.getCause());
+        }
+    }
+
+    /**
+     * A chain of alarms should start each one after the last goes off, and
+     * finish with the last one, without anyone waiting in between.
+     */
+    @org.junit.Test
+    public void testThen_ChainsAlarms() throws Exception {
+        System.out.println("testThen_ChainsAlarms");
+
+        //setup
+        final List<SetAlarm> order = new ArrayList<SetAlarm>();
+        AlarmFuture.Next next = new AlarmFuture.Next(){
+            @Override
+            public AlarmFuture after(SetAlarm fired) throws Exception {
+                synchronized(order){
+                    order.add(fired);
+                }
+                return instance.startAlarm(new SetAlarm(new DateTime().plusMillis(300), fired.getPath() + "/next"));
+            }
+        };
+
+        //act
+        AlarmFuture chain = instance.startAlarm(new SetAlarm(new DateTime().plusMillis(300), "www.test.com"))
+                .then(next)
+                .then(next);
+        SetAlarm last = chain.get(3, TimeUnit.SECONDS);
+
+        //assert
+        assertEquals("www.test.com/next/next", last.getPath());
+        assertEquals(2, order.size());
+        assertEquals("www.test.com", order.get(0).getPath());
+        assertEquals("www.test.com/next", order.get(1).getPath());
+    }
+
+    /**
+     * Cancelling a chain should cancel the alarm it's waiting on, and the
+     * rest of the chain should never start.
+     */
+    @org.junit.Test
+    public void testThen_Cancel_StopsChain() throws Exception {
+        System.out.println("testThen_Cancel_StopsChain");
+
+        //setup
+        final AtomicInteger started = new AtomicInteger();
+        AlarmFuture first = instance.startAlarm(new SetAlarm(new DateTime().plusMillis(300), "www.test.com"));
+        AlarmFuture chain = first.then(new AlarmFuture.Next(){
+            @Override
+            public AlarmFuture after(SetAlarm fired) throws Exception {
+                started.incrementAndGet();
+                return instance.startAlarm(new SetAlarm(new DateTime().plusMillis(300), "www.test.com/next"));
+            }
+        });
+
+        //act
+        assertTrue(chain.cancel(false));
+        Thread.sleep(600);
+
+        //assert
+        assertTrue(chain.isCancelled());
+        assertTrue(first.isCancelled());
+        assertEquals(0, started.get());
+    }
+
+    /**
+     * Each alarm in a batch should get its own future, and the ones which
+     * couldn't start should have already failed.
+     */
+    @org.junit.Test
+    public void testStartAlarms() throws Exception {
+        System.out.println("testStartAlarms");
+
+        //setup
+        SetAlarm good = new SetAlarm(new DateTime().plusMillis(300), "www.test.com/good");
+        SetAlarm bad = new SetAlarm(new DateTime().minusMinutes(1), "www.test.com/bad");
+
+        //act
+        List<AlarmFuture> futures = instance.startAlarms(Arrays.asList(good, bad));
+
+        //assert
+        assertEquals(2, futures.size());
+        assertTrue(futures.get(1).isDone());
+        assertFalse(futures.get(1).isFired());
+        assertSame(good, futures.get(0).get(2, TimeUnit.SECONDS));
+        assertEquals(0, instance.getPendingCount());
+    }
+}
@@ -0,0 +1,205 @@
+package alarmclock.ServiceImplementations;
+
+import alarmclock.models.RecurringAlarm;
+import alarmclock.models.SetAlarm;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.joda.time.DateTime;
+import static org.junit.Assert.*;
+
+/**
+ * This class contains JUnit tests for the IndexedAlarmStarter.
+ * @author Gordon
+ */
+public class IndexedAlarmStarterTest {
+
+    private static final long HOUR = 60L * 60L * 1000L;
+
+    private TimingWheelAlarmStarter wheel;
+    private IndexedAlarmStarter instance;
+
+    @org.junit.Before
+    public void setUp() {
+        wheel = new TimingWheelAlarmStarter();
+        instance = new IndexedAlarmStarter(wheel);
+    }
+
+    @org.junit.After
+    public void tearDown() {
+        wheel.shutdown();
+    }
+
+    /**
+     * The queries should find alarms by time, in order, and stop finding
+     * them once they are cancelled.
+     */
+    @org.junit.Test
+    public void testQueries_FindAlarmsByTime() throws Exception {
+        System.out.println("testQueries_FindAlarmsByTime");
+
+        //setup - two alarms in each of the next five hours, started out of order
+        long base = (System.currentTimeMillis() / HOUR + 2) * HOUR;
+        List<SetAlarm> alarms = new ArrayList<SetAlarm>();
+        for(int hour = 4; hour >= 0; hour--){
+            alarms.add(new SetAlarm(new DateTime(base + hour * HOUR + 30000), "www.test.com/" + hour));
+            alarms.add(new SetAlarm(new DateTime(base + hour * HOUR), "www.test.com/" + hour));
+        }
+
+        //act
+        instance.startAlarms(alarms, new alarmclock.services.AlarmListener(){
+            @Override
+            public void alarmFinished(SetAlarm alarm) {
+            }
+        });
+
+        //assert
+        assertEquals(10, instance.getPendingCount());
+
+        List<SetAlarm> between = new ArrayList<SetAlarm>(
+                instance.getAlarmsBetween(base + HOUR, base + 3 * HOUR));
+        assertEquals(4, between.size());
+        assertEquals(base + HOUR, between.get(0).getTimeMillis());
+        assertEquals(base + 2 * HOUR + 30000, between.get(3).getTimeMillis());
+
+        List<SetAlarm> next = instance.getNextAlarms(base + 30000, 3);
+        assertEquals(3, next.size());
+        assertEquals(base + 30000, next.get(0).getTimeMillis());
+        assertEquals(base + HOUR, next.get(1).getTimeMillis());
+
+        SortedMap<Long, Integer> counts = instance.getCountsPerHour(base, base + 5 * HOUR);
+        assertEquals(5, counts.size());
+        assertEquals(Integer.valueOf(2), counts.get(base + 4 * HOUR));
+
+        //act - cancel one of them
+        SortedSet<SetAlarm> view = instance.getAlarmsBetween(base + HOUR, base + 3 * HOUR);
+        assertTrue(instance.cancelAlarm(between.get(0)));
+
+        //assert - the view we already had sees it go, too
+        assertEquals(3, view.size());
+        assertEquals(base + HOUR + 30000, view.first().getTimeMillis());
+        assertEquals(Integer.valueOf(1), instance.getCountsPerHour(base, base + 5 * HOUR).get(base + HOUR));
+        assertEquals(9, instance.getPendingCount());
+    }
+
+    /**
+     * An alarm should leave the index when it goes off, and a recurring alarm
+     * should be replaced by the next time it goes off.
+     */
+    @org.junit.Test
+    public void testFiring_UpdatesTheIndex() throws Exception {
+        System.out.println("testFiring_UpdatesTheIndex");
+
+        //setup
+        final CountDownLatch fired = new CountDownLatch(2);
+        Runnable countDown = new Runnable(){
+            @Override
+            public void run() {
+                fired.countDown();
+            }
+        };
+        DateTime when = new DateTime().plusMillis(300);
+        SetAlarm once = new SetAlarm(when, "www.once.com");
+        SetAlarm first = new SetAlarm(when, "www.again.com");
+
+        //act
+        instance.startAlarm(once, countDown);
+        TimerTask recurring = instance.startRecurringAlarm(new RecurringAlarm(first, HOUR), countDown);
+        assertEquals(2, instance.getPendingCount());
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        Thread.sleep(50);
+
+        //assert
+        List<SetAlarm> left = instance.getNextAlarms(0, 10);
+        assertEquals(1, left.size());
+        assertEquals("www.again.com", left.get(0).getPath());
+        assertEquals(when.getMillis() + HOUR, left.get(0).getTimeMillis());
+
+        assertTrue(recurring.cancel());
+        assertEquals(0, instance.getPendingCount());
+        assertTrue(instance.getNextAlarms(0, 10).isEmpty());
+    }
+
+    /**
+     * Looking up a range only makes small keys to search with, so it
+     * shouldn't use up any alarm ids however often the UI asks.
+     */
+    @org.junit.Test
+    public void testQueries_DontUseUpIds() throws Exception {
+        System.out.println("testQueries_DontUseUpIds");
+
+        //setup
+        long base = (System.currentTimeMillis() / HOUR + 2) * HOUR;
+        SetAlarm early = new SetAlarm(new DateTime(base), "www.early.com");
+        SetAlarm late = new SetAlarm(new DateTime(base + HOUR), "www.late.com");
+        instance.startAlarm(early, new Runnable(){
+            @Override
+            public void run() {
+            }
+        });
+        instance.startAlarm(late, new Runnable(){
+            @Override
+            public void run() {
+            }
+        });
+        long lastId = late.getId();
+
+        //act
+        SortedSet<SetAlarm> view = null;
+        for(int i = 0; i < 1000; i++){
+            view = instance.getAlarmsBetween(base, base + 2 * HOUR);
+            instance.getNextAlarms(base, 1);
+        }
+
+        //assert
+        assertEquals(lastId + 1, new SetAlarm(new DateTime(base), "www.test.com").getId());
+        assertEquals(2, view.size());
+        assertEquals(early, view.first());
+        assertEquals(late, view.last());
+        assertTrue(view.contains(late));
+        assertEquals(1, view.headSet(late).size());
+        assertEquals(1, view.tailSet(late).size());
+    }
+
+    /**
+     * Once the last alarm in an hour is gone, the hour shouldn't be kept
+     * around, or a long running program would count every hour it ever had.
+     */
+    @org.junit.Test
+    public void testCounts_EmptyHoursAreRemoved() throws Exception {
+        System.out.println("testCounts_EmptyHoursAreRemoved");
+
+        //setup
+        long base = (System.currentTimeMillis() / HOUR + 2) * HOUR;
+        List<SetAlarm> alarms = new ArrayList<SetAlarm>();
+        for(int hour = 0; hour < 24; hour++){
+            alarms.add(new SetAlarm(new DateTime(base + hour * HOUR), "www.test.com/" + hour));
+        }
+        instance.startAlarms(alarms, new alarmclock.services.AlarmListener(){
+            @Override
+            public void alarmFinished(SetAlarm alarm) {
+            }
+        });
+        assertEquals(24, instance.getHoursCounted());
+
+        //act
+        instance.cancelAlarms(alarms.subList(0, 23));
+
+        //assert
+        assertEquals(1, instance.getHoursCounted());
+        assertEquals(1, instance.getCountsPerHour(base, base + 24 * HOUR).size());
+
+        //and a new alarm in an emptied hour is counted again
+        instance.startAlarm(new SetAlarm(new DateTime(base), "www.again.com"), new Runnable(){
+            @Override
+            public void run() {
+            }
+        });
+        assertEquals(Integer.valueOf(1), instance.getCountsPerHour(base, base + HOUR).get(base));
+        assertEquals(2, instance.getHoursCounted());
+    }
+}
@@ -0,0 +1,121 @@
+package alarmclock.ServiceImplementations;
+
+import alarmclock.models.AlarmMetricsSnapshot;
+import alarmclock.models.LatencySnapshot;
+import alarmclock.models.SetAlarm;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.joda.time.DateTime;
+import static org.junit.Assert.*;
+
+/**
+ * This class contains JUnit tests for the MetricsAlarmStarter and the
+ * LatencyHistogram it records into.
+ * @author Gordon
+ */
+public class MetricsAlarmStarterTest {
+
+    private TimingWheelAlarmStarter wheel;
+    private MetricsAlarmStarter instance;
+
+    @org.junit.Before
+    public void setUp() {
+        wheel = new TimingWheelAlarmStarter();
+        instance = new MetricsAlarmStarter(wheel);
+    }
+
+    @org.junit.After
+    public void tearDown() {
+        wheel.shutdown();
+    }
+
+    /**
+     * Every value should land in a bucket whose upper bound is at least the
+     * value and no more than about 6% above it.
+     */
+    @org.junit.Test
+    public void testHistogram_BucketsAreCloseToValue() {
+        System.out.println("testHistogram_BucketsAreCloseToValue");
+
+        long[] values = {0, 1, 31, 32, 33, 63, 64, 1000, 123456, 1l << 40, Long.MAX_VALUE};
+        for(long value : values){
+            long upper = LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketIndex(value));
+            assertTrue(value + " above its bucket " + upper, value <= upper);
+            assertTrue(value + " too far below its bucket " + upper, upper - value <= value / 16);
+        }
+    }
+
+    /**
+     * The percentiles should come out where they were put in.
+     */
+    @org.junit.Test
+    public void testHistogram_Percentiles() {
+        System.out.println("testHistogram_Percentiles");
+
+        //setup
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        //act
+        for(int i = 1; i <= 10000; i++){
+            histogram.record(i);
+        }
+        LatencySnapshot result = histogram.snapshot();
+
+        //assert
+        assertEquals(10000, result.getCount());
+        assertEquals(5000.5, result.getMean(), 0.001);
+        assertEquals(10000, result.getMax());
+        assertEquals(5000, result.getP50(), 5000 / 16);
+        assertEquals(9900, result.getP99(), 9900 / 16);
+        assertEquals(9990, result.getP999(), 9990 / 16);
+        assertTrue(result.getP50() >= 5000);
+    }
+
+    /**
+     * Firing alarms should record their lateness and callback time, and
+     * starting and cancelling should be counted.
+     */
+    @org.junit.Test
+    public void testSnapshot_CountsAndLatencies() throws Exception {
+        System.out.println("testSnapshot_CountsAndLatencies");
+
+        //setup
+        final CountDownLatch latch = new CountDownLatch(3);
+        Runnable callback = new Runnable(){
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException ex) {
+                }
+                latch.countDown();
+            }
+        };
+        DateTime when = new DateTime().plusMillis(300);
+
+        //act
+        for(int i = 0; i < 3; i++){
+            instance.startAlarm(new SetAlarm(when, "www.fire.com/" + i), callback);
+        }
+        SetAlarm cancelled = new SetAlarm(when.plusMinutes(1), "www.cancel.com");
+        instance.startAlarm(cancelled, callback);
+        instance.startAlarm(new SetAlarm(when.plusMinutes(2), "www.direct.com"), callback).cancel();
+        assertTrue(instance.cancelAlarm(cancelled));
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        AlarmMetricsSnapshot result = instance.snapshot();
+
+        //assert
+        assertEquals(5, result.getScheduledCount());
+        assertEquals(2, result.getCancelledCount());
+        assertEquals(3, result.getFiredCount());
+        assertEquals(3, result.getLateness().getCount());
+        assertTrue("lateness " + result.getLateness(), result.getLateness().getMax() < 1000000);
+        assertEquals(3, result.getCallbackDuration().getCount());
+        assertTrue("callback " + result.getCallbackDuration(),
+                result.getCallbackDuration().getP50() >= 19000);
+
+        instance.reset();
+        assertEquals(0, instance.snapshot().getFiredCount());
+    }
+}
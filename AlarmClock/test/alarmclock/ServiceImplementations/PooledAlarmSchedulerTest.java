@@ -0,0 +1,182 @@
+package alarmclock.ServiceImplementations;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.*;
+
+/**
+ * This class contains JUnit tests for the PooledAlarmScheduler.
+ * @author Gordon
+ */
+public class PooledAlarmSchedulerTest {
+
+    private PooledAlarmScheduler instance;
+
+    @org.junit.Before
+    public void setUp() {
+        instance = new PooledAlarmScheduler(4);
+    }
+
+    @org.junit.After
+    public void tearDown() {
+        instance.shutdown();
+    }
+
+    /**
+     * Alarms should go off in the order of their deadlines, not the order
+     * they were scheduled in.
+     */
+    @org.junit.Test
+    public void testSchedule_FiresInDeadlineOrder() throws Exception {
+        System.out.println("testSchedule_FiresInDeadlineOrder");
+
+        //setup
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch latch = new CountDownLatch(3);
+        long now = System.currentTimeMillis();
+        int[] offsets = {150, 50, 100};
+
+        //act
+        for(final int offset : offsets){
+            instance.schedule(now + offset, new Runnable(){
+                @Override
+                public void run() {
+                    order.add(offset);
+                    latch.countDown();
+                }
+            });
+        }
+
+        //assert
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        assertEquals(java.util.Arrays.asList(50, 100, 150), order);
+        assertEquals(0, instance.getPendingCount());
+    }
+
+    /**
+     * A cancelled alarm shouldn't go off, and its handle shouldn't work again
+     * even once the slot has been reused.
+     */
+    @org.junit.Test
+    public void testCancel() throws Exception {
+        System.out.println("testCancel");
+
+        //setup
+        final CountDownLatch cancelledRan = new CountDownLatch(1);
+        final CountDownLatch keptRan = new CountDownLatch(1);
+        long now = System.currentTimeMillis();
+
+        //act
+        long handle = instance.schedule(now + 50, new Runnable(){
+            @Override
+            public void run() {
+                cancelledRan.countDown();
+            }
+        });
+        assertTrue(instance.cancel(handle));
+        long reused = instance.schedule(now + 60, new Runnable(){
+            @Override
+            public void run() {
+                keptRan.countDown();
+            }
+        });
+
+        //assert
+        assertEquals("the freed slot should be reused", (int)handle, (int)reused);
+        assertFalse(instance.cancel(handle));
+        assertFalse(instance.cancel(PooledAlarmScheduler.NO_HANDLE));
+        assertTrue(keptRan.await(1, TimeUnit.SECONDS));
+        assertFalse(cancelledRan.await(100, TimeUnit.MILLISECONDS));
+        assertFalse("a fired alarm can't be cancelled", instance.cancel(reused));
+    }
+
+    /**
+     * Scheduling more alarms than there is room for should grow the arrays,
+     * and cancelling from the middle of the heap should keep it in order.
+     */
+    @org.junit.Test
+    public void testSchedule_GrowsAndKeepsOrder() throws Exception {
+        System.out.println("testSchedule_GrowsAndKeepsOrder");
+
+        //setup
+        final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch latch = new CountDownLatch(50);
+        long base = System.currentTimeMillis() + 200;
+        long[] handles = new long[100];
+
+        //act
+        for(int i = 99; i >= 0; i--){
+            final int n = i;
+            handles[i] = instance.schedule(base + i, new Runnable(){
+                @Override
+                public void run() {
+                    order.add(n);
+                    latch.countDown();
+                }
+            });
+        }
+        for(int i = 1; i < 100; i += 2){
+            assertTrue(instance.cancel(handles[i]));
+        }
+
+        //assert
+        assertTrue(instance.getCapacity() >= 100);
+        assertEquals(50, instance.getPendingCount());
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        for(int i = 0; i < 50; i++){
+            assertEquals(Integer.valueOf(i * 2), order.get(i));
+        }
+    }
+
+    /**
+     * Once the arrays are big enough, scheduling and cancelling shouldn't
+     * create any objects at all.
+     */
+    @org.junit.Test
+    public void testScheduleAndCancel_DoNotAllocate() throws Exception {
+        System.out.println("testScheduleAndCancel_DoNotAllocate");
+
+        //setup
+        if(!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+            return;
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        if(!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled())
+            return;
+
+        Runnable nothing = new Runnable(){
+            @Override
+            public void run() {
+            }
+        };
+        long far = System.currentTimeMillis() + 24L * 60L * 60L * 1000L;
+        long[] handles = new long[1000];
+        long id = Thread.currentThread().getId();
+
+        //warm up, so the JIT has compiled everything and the arrays are big enough
+        cycle(nothing, far, handles, 200);
+
+        //act
+        long before = threads.getThreadAllocatedBytes(id);
+        cycle(nothing, far, handles, 200);
+        long allocated = threads.getThreadAllocatedBytes(id) - before;
+
+        //assert - allow a little for the measuring itself
+        assertTrue("allocated " + allocated + " bytes for 200,000 alarms", allocated < 1024);
+    }
+
+    private void cycle(Runnable callback, long deadline, long[] handles, int rounds){
+        for(int round = 0; round < rounds; round++){
+            for(int i = 0; i < handles.length; i++){
+                handles[i] = instance.schedule(deadline + i, callback);
+            }
+            for(int i = 0; i < handles.length; i++){
+                instance.cancel(handles[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package alarmclock.ServiceImplementations;
+
+import alarmclock.models.AlarmEvent;
+import alarmclock.models.SetAlarm;
+import alarmclock.services.AlarmEventSubscriber;
+import alarmclock.services.AlarmEventSubscription;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.joda.time.DateTime;
+import static org.junit.Assert.*;
+
+/**
+ * This class contains JUnit tests for the PublishingAlarmStarter.
+ * @author Gordon
+ */
+public class PublishingAlarmStarterTest {
+
+    private TimingWheelAlarmStarter wheel;
+
+    @org.junit.Before
+    public void setUp() {
+        wheel = new TimingWheelAlarmStarter();
+    }
+
+    @org.junit.After
+    public void tearDown() {
+        wheel.shutdown();
+    }
+
+    /**
+     * This subscriber remembers everything it's sent, and asks for however
+     * many events it's told to when it subscribes.
+     */
+    private static class Recorder implements AlarmEventSubscriber {
+        final List<AlarmEvent> events = new ArrayList<AlarmEvent>();
+        final long initial;
+        volatile AlarmEventSubscription subscription;
+        volatile Throwable error;
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        Recorder(long initial){
+            this.initial = initial;
+        }
+
+        @Override
+        public void onSubscribe(AlarmEventSubscription subscription) {
+            this.subscription = subscription;
+            if(initial > 0)
+                subscription.request(initial);
+        }
+
+        @Override
+        public void onNext(AlarmEvent event) {
+            synchronized(events){
+                events.add(event);
+            }
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            this.error = error;
+            finished.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            finished.countDown();
+        }
+
+        int count(){
+            synchronized(events){
+                return events.size();
+            }
+        }
+
+        AlarmEvent.Type type(int index){
+            synchronized(events){
+                return events.get(index).getType();
+            }
+        }
+
+        void awaitCount(int count) throws Exception {
+            long deadline = System.currentTimeMillis() + 2000;
+            while(this.count() < count && System.currentTimeMillis() < deadline){
+                Thread.sleep(10);
+            }
+            assertEquals(count, this.count());
+        }
+    }
+
+    private static final Runnable NOTHING = new Runnable(){
+        @Override
+        public void run() {
+        }
+    };
+
+    /**
+     * A subscriber should be sent each thing that happens to the alarms, in
+     * the order it happened.
+     */
+    @org.junit.Test
+    public void testEvents_InOrder() throws Exception {
+        System.out.println("testEvents_InOrder");
+
+        //setup
+        PublishingAlarmStarter instance = new PublishingAlarmStarter(wheel);
+        Recorder recorder = new Recorder(Long.MAX_VALUE);
+        instance.subscribe(recorder);
+        SetAlarm fires = new SetAlarm(new DateTime().plusMillis(300), "www.test.com/fires");
+        SetAlarm cancelled = new SetAlarm(new DateTime().plusMinutes(10), "www.test.com/cancelled");
+
+        //act
+        instance.startAlarm(fires, NOTHING);
+        instance.startAlarm(cancelled, NOTHING).cancel();
+
+        //assert
+        recorder.awaitCount(4);
+        assertEquals(AlarmEvent.Type.SCHEDULED, recorder.type(0));
+        assertEquals(AlarmEvent.Type.SCHEDULED, recorder.type(1));
+        assertEquals(AlarmEvent.Type.CANCELLED, recorder.type(2));
+        assertEquals(AlarmEvent.Type.FIRED, recorder.type(3));
+        assertSame(fires, recorder.events.get(3).getAlarm());
+    }
+
+    /**
+     * A subscriber should only be sent as many events as it asked for.
+     */
+    @org.junit.Test
+    public void testBackpressure_OnlySendsWhatWasRequested() throws Exception {
+        System.out.println("testBackpressure_OnlySendsWhatWasRequested");
+
+        //setup
+        PublishingAlarmStarter instance = new PublishingAlarmStarter(wheel);
+        Recorder recorder = new Recorder(2);
+        instance.subscribe(recorder);
+
+        //act
+        for(int i = 0; i < 5; i++){
+            instance.startAlarm(new SetAlarm(new DateTime().plusMinutes(10), "www.test.com/" + i), NOTHING);
+        }
+        Thread.sleep(200);
+
+        //assert
+        assertEquals(2, recorder.count());
+        recorder.subscription.request(3);
+        recorder.awaitCount(5);
+    }
+
+    /**
+     * When a subscriber falls further behind than its buffer, the newest
+     * events are dropped instead of holding up the alarms.
+     */
+    @org.junit.Test
+    public void testBufferFull_DropsEvents() throws Exception {
+        System.out.println("testBufferFull_DropsEvents");
+
+        //setup
+        PublishingAlarmStarter instance = new PublishingAlarmStarter(wheel, 4);
+        Recorder recorder = new Recorder(0);
+        instance.subscribe(recorder);
+
+        //act
+        for(int i = 0; i < 10; i++){
+            instance.startAlarm(new SetAlarm(new DateTime().plusMinutes(10), "www.test.com/" + i), NOTHING);
+        }
+        recorder.subscription.request(Long.MAX_VALUE);
+
+        //assert
+        recorder.awaitCount(4);
+        assertEquals(6, instance.getDroppedCount());
+        assertEquals("www.test.com/0", recorder.events.get(0).getAlarm().getPath());
+    }
+
+    /**
+     * A subscriber which is stuck shouldn't stop alarms going off on time.
+     */
+    @org.junit.Test
+    public void testStuckSubscriber_AlarmsStillFire() throws Exception {
+        System.out.println("testStuckSubscriber_AlarmsStillFire");
+
+        //setup
+        final CountDownLatch release = new CountDownLatch(1);
+        PublishingAlarmStarter instance = new PublishingAlarmStarter(wheel);
+        instance.subscribe(new Recorder(Long.MAX_VALUE){
+            @Override
+            public void onNext(AlarmEvent event) {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        final CountDownLatch fired = new CountDownLatch(5);
+
+        //act
+        for(int i = 0; i < 5; i++){
+            instance.startAlarm(new SetAlarm(new DateTime().plusMillis(300), "www.test.com/" + i), new Runnable(){
+                @Override
+                public void run() {
+                    fired.countDown();
+                }
+            });
+        }
+
+        //assert
+        try{
+            assertTrue(fired.await(1, TimeUnit.SECONDS));
+        }finally{
+            release.countDown();
+        }
+    }
+
+    /**
+     * Shutting down should send the events already buffered and then
+     * onComplete, and a bad request should end the subscription with an error.
+     */
+    @org.junit.Test
+    public void testShutdownAndBadRequest() throws Exception {
+        System.out.println("testShutdownAndBadRequest");
+
+        //setup
+        PublishingAlarmStarter instance = new PublishingAlarmStarter(wheel);
+        Recorder completes = new Recorder(0);
+        Recorder errors = new Recorder(0);
+        instance.subscribe(completes);
+        instance.subscribe(errors);
+        instance.startAlarm(new SetAlarm(new DateTime().plusMinutes(10), "www.test.com"), NOTHING);
+
+        //act
+        errors.subscription.request(0);
+        instance.shutdown();
+        Thread.sleep(100);
+        assertEquals(1, completes.finished.getCount());
+        completes.subscription.request(1);
+
+        //assert
+        assertTrue(completes.finished.await(1, TimeUnit.SECONDS));
+        assertTrue(errors.finished.await(1, TimeUnit.SECONDS));
+        assertNull(completes.error);
+        assertEquals(1, completes.count());
+        assertTrue(errors.error instanceof IllegalArgumentException);
+        assertEquals(0, errors.count());
+        assertEquals(0, instance.getSubscriberCount());
+    }
+
+    /**
+     * An alarm which goes off before startAlarm returns should still be
+     * published as SCHEDULED before FIRED, and starting an alarm twice
+     * shouldn't publish anything for the second try.
+     */
+    @org.junit.Test
+    public void testFiresRightAwayAndStartedTwice() throws Exception {
+        System.out.println("testFiresRightAwayAndStartedTwice");
+
+        //setup
+        wheel.shutdown();
+        wheel = new TimingWheelAlarmStarter(){
+            @Override
+            public TimerTask startAlarm(SetAlarm alarm, Runnable whenFinished) throws Exception {
+                if(!alarm.getPath().endsWith("now"))
+                    return super.startAlarm(alarm, whenFinished);
+                whenFinished.run();
+                return new TimerTask(){
+                    @Override
+                    public void run() {
+                    }
+                };
+            }
+        };
+        PublishingAlarmStarter instance = new PublishingAlarmStarter(wheel);
+        Recorder recorder = new Recorder(Long.MAX_VALUE);
+        instance.subscribe(recorder);
+        SetAlarm now = new SetAlarm(new DateTime().plusMinutes(10), "www.test.com/now");
+        SetAlarm twice = new SetAlarm(new DateTime().plusMinutes(10), "www.test.com/twice");
+
+        //act
+        instance.startAlarm(now, NOTHING);
+        instance.startAlarm(twice, NOTHING);
+        try{
+            instance.startAlarm(twice, NOTHING);
+            fail("starting the same alarm twice should fail");
+        }catch(UnsupportedOperationException ex){
+        }
+
+        //assert
+        recorder.awaitCount(3);
+        Thread.sleep(100);
+        assertEquals(3, recorder.count());
+        assertEquals(AlarmEvent.Type.SCHEDULED, recorder.type(0));
+        assertEquals(AlarmEvent.Type.FIRED, recorder.type(1));
+        assertEquals(AlarmEvent.Type.SCHEDULED, recorder.type(2));
+        assertSame(twice, recorder.events.get(2).getAlarm());
+    }
+}
@@ -0,0 +1,195 @@
+package alarmclock.ServiceImplementations;
+
+import alarmclock.models.SetAlarm;
+import alarmclock.services.AlarmListener;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.joda.time.DateTime;
+import static org.junit.Assert.*;
+
+/**
+ * This class contains JUnit tests for the ReplicatingAlarmStarter and the
+ * AlarmStandby which follows it.  Both run inside this JVM, talking over a
+ * socket on this computer.
+ * @author Gordon
+ */
+public class ReplicatingAlarmStarterTest {
+
+    private TimingWheelAlarmStarter primaryWheel;
+    private TimingWheelAlarmStarter standbyWheel;
+    private ReplicatingAlarmStarter primary;
+    private AlarmStandby standby;
+
+    /** When set, the primary's alarms go off before startAlarm returns. */
+    private volatile boolean fireRightAway = false;
+
+    private AtomicInteger primaryFired = new AtomicInteger();
+    /** How many times each alarm went off on the standby. */
+    private ConcurrentHashMap<String, AtomicInteger> standbyFired = new ConcurrentHashMap<String, AtomicInteger>();
+
+    @org.junit.Before
+    public void setUp() throws Exception {
+        primaryWheel = new TimingWheelAlarmStarter(){
+            @Override
+            public TimerTask startAlarm(SetAlarm alarm, Runnable whenFinished) throws Exception {
+                if(!fireRightAway)
+                    return super.startAlarm(alarm, whenFinished);
+                whenFinished.run();
+                return new TimerTask(){
+                    @Override
+                    public void run() {
+                    }
+                };
+            }
+        };
+        standbyWheel = new TimingWheelAlarmStarter();
+        primary = new ReplicatingAlarmStarter(primaryWheel, 0);
+        standby = new AlarmStandby(standbyWheel, "127.0.0.1", primary.getPort());
+        standby.setAlarmListener(new AlarmListener(){
+            @Override
+            public void alarmFinished(SetAlarm alarm) {
+                AtomicInteger count = standbyFired.get(alarm.getPath());
+                if(count == null){
+                    AtomicInteger created = new AtomicInteger();
+                    count = standbyFired.putIfAbsent(alarm.getPath(), created);
+                    if(count == null)
+                        count = created;
+                }
+                count.incrementAndGet();
+            }
+        });
+    }
+
+    @org.junit.After
+    public void tearDown() {
+        standby.stop();
+        primary.shutdown();
+        primaryWheel.shutdown();
+        standbyWheel.shutdown();
+    }
+
+    private List<SetAlarm> startAlarms(DateTime when, int from, int to) throws Exception {
+        List<SetAlarm> ret = new ArrayList<SetAlarm>();
+        for(int i = from; i < to; i++){
+            SetAlarm alarm = new SetAlarm(when, "www.test.com/" + i);
+            primary.startAlarm(alarm, new Runnable(){
+                @Override
+                public void run() {
+                    primaryFired.incrementAndGet();
+                }
+            });
+            ret.add(alarm);
+        }
+        return ret;
+    }
+
+    private void awaitLiveCount(int count) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(System.currentTimeMillis() < deadline){
+            if(standby.isConnected() && standby.getLiveCount() == count)
+                return;
+            Thread.sleep(10);
+        }
+        fail("the standby has " + standby.getLiveCount() + " alarms, expected " + count);
+    }
+
+    /**
+     * The standby should get the alarms which were pending when it connected,
+     * and then every alarm started or cancelled after that.
+     */
+    @org.junit.Test
+    public void testStandbyFollowsPrimary() throws Exception {
+        System.out.println("testStandbyFollowsPrimary");
+
+        //setup
+        DateTime later = new DateTime().plusMinutes(10);
+        List<SetAlarm> before = this.startAlarms(later, 0, 30);
+
+        //act
+        standby.start();
+        this.awaitLiveCount(30);
+        this.startAlarms(later, 30, 50);
+        for(int i = 0; i < 10; i++){
+            assertTrue(primary.cancelAlarm(before.get(i)));
+        }
+
+        //assert
+        this.awaitLiveCount(40);
+        assertFalse(standby.isPromoted());
+        assertEquals(0, standbyFired.size());
+    }
+
+    /**
+     * When the primary goes away, the standby should take over in well under
+     * a second and fire each of its alarms exactly once.
+     */
+    @org.junit.Test
+    public void testPrimaryDies_StandbyTakesOver() throws Exception {
+        System.out.println("testPrimaryDies_StandbyTakesOver");
+
+        //setup
+        standby.start();
+        this.startAlarms(new DateTime().plusMillis(1000), 0, 100);
+        this.awaitLiveCount(100);
+
+        //act
+        long died = System.currentTimeMillis();
+        primary.shutdown();
+        primaryWheel.shutdown();
+        while(!standby.isPromoted() && System.currentTimeMillis() - died < 5000){
+            Thread.sleep(5);
+        }
+        long tookOver = System.currentTimeMillis() - died;
+        Thread.sleep(1500);
+
+        //assert
+        assertTrue(standby.isPromoted());
+        assertTrue("took " + tookOver + "ms to take over", tookOver < 1000);
+        assertTrue(standby.getTakeOverMillis() < 1000);
+        assertEquals(0, primaryFired.get());
+        assertEquals(100, standbyFired.size());
+        for(AtomicInteger times : standbyFired.values()){
+            assertEquals(1, times.get());
+        }
+    }
+
+    /**
+     * An alarm which goes off before startAlarm returns, and a second start
+     * of an alarm which is already started, should both leave the standby with
+     * the right alarms.
+     */
+    @org.junit.Test
+    public void testFiresRightAwayAndStartedTwice() throws Exception {
+        System.out.println("testFiresRightAwayAndStartedTwice");
+
+        //setup
+        standby.start();
+        List<SetAlarm> started = this.startAlarms(new DateTime().plusMinutes(10), 0, 1);
+        this.awaitLiveCount(1);
+
+        //act
+        fireRightAway = true;
+        this.startAlarms(new DateTime().plusMinutes(10), 1, 2);
+        fireRightAway = false;
+        try{
+            primary.startAlarm(started.get(0), new Runnable(){
+                @Override
+                public void run() {
+                }
+            });
+            fail("starting the same alarm twice should fail");
+        }catch(UnsupportedOperationException ex){
+        }
+        //something after those, so we know the standby has seen them
+        this.startAlarms(new DateTime().plusMinutes(10), 2, 3);
+
+        //assert
+        this.awaitLiveCount(2);
+        Thread.sleep(200);
+        assertEquals(2, standby.getLiveCount());
+        assertEquals(1, primaryFired.get());
+    }
+}
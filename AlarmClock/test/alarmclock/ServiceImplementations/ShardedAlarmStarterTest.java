@@ -0,0 +1,170 @@
+package alarmclock.ServiceImplementations;
+
+import alarmclock.models.AlarmBatchResult;
+import alarmclock.models.SetAlarm;
+import alarmclock.services.AlarmListener;
+import alarmclock.services.AlarmStarter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.mockito.Mockito.*;
+import static org.hamcrest.core.Is.is;
+import org.joda.time.DateTime;
+import static org.junit.Assert.*;
+
+/**
+ * This class contains JUnit tests for the ShardedAlarmStarter.
+ * @author Gordon
+ */
+public class ShardedAlarmStarterTest {
+
+    private ShardedAlarmStarter instance;
+
+    @org.junit.Before
+    public void setUp() {
+        instance = new ShardedAlarmStarter(4);
+    }
+
+    @org.junit.After
+    public void tearDown() {
+        instance.shutdown();
+    }
+
+    /**
+     * Alarms started through the shards should all go off.
+     */
+    @org.junit.Test
+    public void testStartAlarm_AllShardsFire() throws Exception {
+        System.out.println("testStartAlarm_AllShardsFire");
+
+        //setup
+        int count = 100;
+        final CountDownLatch latch = new CountDownLatch(count);
+        DateTime when = new DateTime().plusMillis(50);
+
+        //act
+        for(int i = 0; i < count; i++){
+            instance.startAlarm(new SetAlarm(when, "www.test.com/" + i), new Runnable(){
+                @Override
+                public void run() {
+                    latch.countDown();
+                }
+            });
+        }
+
+        //assert
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * The same alarm always goes to the same shard, so starting it twice is
+     * still caught.
+     */
+    @org.junit.Test
+    public void testStartAlarm_AlreadyScheduled_ThrowsException() throws Exception {
+        System.out.println("testStartAlarm_AlreadyScheduled_ThrowsException");
+
+        //setup
+        DateTime when = new DateTime().plusMinutes(5);
+        Runnable whenFinished = mock(Runnable.class);
+        SetAlarm alarm = new SetAlarm(when, "www.test.com");
+        instance.startAlarm(alarm, whenFinished);
+
+        try
+        {
+            //act
+            instance.startAlarm(alarm, whenFinished);
+
+            //assert
+            fail("Should have thrown an exception");
+        }
+        catch(Exception e)
+        {
+            assertThat(e, is(UnsupportedOperationException.class));
+        }
+    }
+
+    /**
+     * cancelAlarm should only ask the shard which owns the alarm.
+     */
+    @org.junit.Test
+    public void testCancelAlarm_OnlyAsksOwningShard() throws Exception {
+        System.out.println("testCancelAlarm_OnlyAsksOwningShard");
+
+        //setup
+        List<AlarmStarter> shards = new ArrayList<AlarmStarter>();
+        for(int i = 0; i < 4; i++){
+            shards.add(mock(AlarmStarter.class));
+        }
+        ShardedAlarmStarter sharded = new ShardedAlarmStarter(shards);
+        SetAlarm alarm = new SetAlarm(new DateTime().plusMinutes(5), "www.test.com");
+        AlarmStarter owner = shards.get(sharded.shardIndex(alarm));
+        when(owner.cancelAlarm(alarm)).thenReturn(true);
+
+        //act
+        boolean result = sharded.cancelAlarm(alarm);
+
+        //assert
+        assertTrue(result);
+        for(AlarmStarter shard : shards){
+            verify(shard, times(shard == owner ? 1 : 0)).cancelAlarm(alarm);
+        }
+    }
+
+    /**
+     * A batch is split across the shards, but the results come back in the
+     * order the alarms were given.
+     */
+    @org.junit.Test
+    public void testStartAlarms_ResultsInOriginalOrder() throws Exception {
+        System.out.println("testStartAlarms_ResultsInOriginalOrder");
+
+        //setup
+        DateTime now = new DateTime();
+        List<SetAlarm> alarms = new ArrayList<SetAlarm>();
+        for(int i = 0; i < 20; i++){
+            //every fifth one is in the past
+            DateTime when = i % 5 == 0 ? now.minusMinutes(1) : now.plusMinutes(5);
+            alarms.add(new SetAlarm(when, "www.test.com/" + i));
+        }
+        AlarmListener listener = mock(AlarmListener.class);
+
+        //act
+        AlarmBatchResult result = instance.startAlarms(alarms, listener);
+        boolean[] cancelled = instance.cancelAlarms(alarms);
+
+        //assert
+        assertEquals(4, result.getFailedCount());
+        for(int i = 0; i < alarms.size(); i++){
+            assertEquals(alarms.get(i), result.getAlarm(i));
+            assertEquals(i % 5 == 0, result.getFailure(i) != null);
+            assertEquals(i % 5 != 0, cancelled[i]);
+        }
+        assertFalse(instance.cancelAlarm(alarms.get(1)));
+    }
+
+    /**
+     * Lots of different alarms should be spread over all of the shards.
+     */
+    @org.junit.Test
+    public void testShardIndex_SpreadsAlarms() {
+        System.out.println("testShardIndex_SpreadsAlarms");
+
+        //setup
+        int[] counts = new int[instance.getShardCount()];
+        DateTime when = new DateTime(2012, 2, 9, 7, 0, 0, 0);
+
+        //act
+        for(int i = 0; i < 4000; i++){
+            counts[instance.shardIndex(new SetAlarm(when.plusMinutes(i), "www.test.com"))]++;
+        }
+
+        //assert
+        for(int c : counts){
+            assertTrue("shards should be roughly even, got " + Arrays.toString(counts),
+                    c > 700 && c < 1300);
+        }
+    }
+}
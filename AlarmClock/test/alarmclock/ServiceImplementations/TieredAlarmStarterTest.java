@@ -0,0 +1,190 @@
+package alarmclock.ServiceImplementations;
+
+import alarmclock.models.AlarmBatchResult;
+import alarmclock.models.SetAlarm;
+import alarmclock.services.AlarmListener;
+import alarmclock.testutils.Box;
+import java.util.Collection;
+import java.util.TimerTask;
+import static org.mockito.Mockito.*;
+import static org.hamcrest.core.Is.is;
+import org.joda.time.DateTime;
+import static org.junit.Assert.*;
+
+/**
+ * This class contains JUnit tests for the TieredAlarmStarter.  To keep the
+ * tests fast we use a tiny horizon and tiny buckets, measured in milliseconds
+ * instead of days and hours.
+ * @author Gordon
+ */
+public class TieredAlarmStarterTest {
+
+    private TimingWheelAlarmStarter activeStarter;
+    private TieredAlarmStarter instance;
+
+    @org.junit.Before
+    public void setUp() {
+        activeStarter = new TimingWheelAlarmStarter();
+        instance = new TieredAlarmStarter(activeStarter, 100, 50);
+    }
+
+    @org.junit.After
+    public void tearDown() {
+        instance.shutdown();
+        activeStarter.shutdown();
+    }
+
+    /**
+     * An alarm inside the horizon goes straight to the active tier.
+     */
+    @org.junit.Test
+    public void testStartAlarm_InsideHorizon_GoesOff() throws Exception {
+        System.out.println("testStartAlarm_InsideHorizon_GoesOff");
+
+        //setup
+        SetAlarm alarm = new SetAlarm(new DateTime().plusMillis(60), "www.test.com");
+        final Box<Boolean> wasRun = new Box<Boolean>(false);
+
+        //act
+        TimerTask result = instance.startAlarm(alarm, new Runnable(){
+            @Override
+            public void run() {
+                wasRun.setValue(true);
+            }
+        });
+
+        //assert
+        assertEquals(0, instance.getFarAlarmCount());
+        assertEquals(alarm.getTime().getMillis(), result.scheduledExecutionTime());
+
+        Thread.sleep(120);
+        wasRun.verifySet();
+    }
+
+    /**
+     * An alarm outside the horizon waits in the far tier, then gets promoted
+     * to the active tier and goes off on time.
+     */
+    @org.junit.Test
+    public void testStartAlarm_OutsideHorizon_PromotedThenGoesOff() throws Exception {
+        System.out.println("testStartAlarm_OutsideHorizon_PromotedThenGoesOff");
+
+        //setup
+        SetAlarm alarm = new SetAlarm(new DateTime().plusMillis(300), "www.test.com");
+        final Box<Long> ranAt = new Box<Long>();
+
+        //act
+        instance.startAlarm(alarm, new Runnable(){
+            @Override
+            public void run() {
+                ranAt.setValue(System.currentTimeMillis());
+            }
+        });
+
+        //assert
+        assertEquals(1, instance.getFarAlarmCount());
+
+        Thread.sleep(400);
+        ranAt.verifySet();
+        assertEquals(0, instance.getFarAlarmCount());
+        assertEquals(alarm.getTime().getMillis(), ranAt.getValue(), 50);
+    }
+
+    /**
+     * There's no 31 day limit any more.
+     */
+    @org.junit.Test
+    public void testStartAlarm_MonthsAway_Accepted() throws Exception {
+        System.out.println("testStartAlarm_MonthsAway_Accepted");
+
+        //setup
+        SetAlarm alarm = new SetAlarm(new DateTime().plusMonths(6), "www.test.com");
+
+        //act
+        TimerTask result = instance.startAlarm(alarm, mock(Runnable.class));
+
+        //assert
+        assertNotNull(result);
+        assertEquals(1, instance.getFarAlarmCount());
+    }
+
+    @org.junit.Test
+    public void testStartAlarm_InThePast_ThrowsException() throws Exception {
+        System.out.println("testStartAlarm_InThePast_ThrowsException");
+
+        SetAlarm alarm = new SetAlarm(new DateTime().minusMillis(100), "www.test.com");
+
+        try{
+            instance.startAlarm(alarm, mock(Runnable.class));
+            fail("Should have thrown an exception");
+        }catch(Exception e){
+            assertThat(e, is(UnsupportedOperationException.class));
+        }
+    }
+
+    /**
+     * Cancelling an alarm in the far tier takes it out of its bucket so it
+     * never gets promoted.
+     */
+    @org.junit.Test
+    public void testCancelAlarm_InFarTier() throws Exception {
+        System.out.println("testCancelAlarm_InFarTier");
+
+        //setup
+        SetAlarm alarm = new SetAlarm(new DateTime().plusMillis(300), "www.test.com");
+        SetAlarm sameBucket = new SetAlarm(alarm.getTime().plusMillis(1), "www.other.com");
+        Runnable whenFinished = mock(Runnable.class);
+        Runnable otherFinished = mock(Runnable.class);
+        instance.startAlarm(alarm, whenFinished);
+        instance.startAlarm(sameBucket, otherFinished);
+
+        //act
+        boolean cancelled = instance.cancelAlarm(alarm);
+
+        //assert
+        assertTrue(cancelled);
+        assertEquals(1, instance.getFarAlarmCount());
+
+        Thread.sleep(400);
+        verify(whenFinished, times(0)).run();
+        verify(otherFinished, times(1)).run();
+        assertFalse(instance.cancelAlarm(alarm));
+    }
+
+    /**
+     * Cancelling an alarm while it's being promoted, before the active tier
+     * has it, shouldn't leave it in the active tier.
+     */
+    @org.junit.Test
+    public void testCancelAlarm_WhilePromoting() throws Exception {
+        System.out.println("testCancelAlarm_WhilePromoting");
+
+        //setup
+        instance.shutdown();
+        activeStarter.shutdown();
+        final Box<SetAlarm> cancelDuringPromote = new Box<SetAlarm>();
+        activeStarter = new TimingWheelAlarmStarter(){
+            @Override
+            public AlarmBatchResult startAlarms(Collection<SetAlarm> alarms, AlarmListener whenFinished) {
+                //the cancel gets in just before the active tier has it
+                if(cancelDuringPromote.getValue() != null)
+                    assertTrue(instance.cancelAlarm(cancelDuringPromote.getValue()));
+                return super.startAlarms(alarms, whenFinished);
+            }
+        };
+        instance = new TieredAlarmStarter(activeStarter, 100, 50);
+        SetAlarm alarm = new SetAlarm(new DateTime().plusMillis(300), "www.test.com");
+        Runnable whenFinished = mock(Runnable.class);
+        instance.startAlarm(alarm, whenFinished);
+        cancelDuringPromote.setValue(alarm);
+
+        //act
+        Thread.sleep(250);
+
+        //assert
+        assertEquals(0, instance.getFarAlarmCount());
+        assertFalse(activeStarter.cancelAlarm(alarm));
+        Thread.sleep(150);
+        verify(whenFinished, times(0)).run();
+    }
+}
@@ -189,4 +189,520 @@ public class TimerAlarmStarterTest {
         assertFalse("value should never have been set because the alarm was cancelled",
                 wasRun.isValueSet());
     }
+
+    /**
+     * Test of startAlarms method, of class TimerAlarmStarter.  The bad alarms
+     * in the middle, one in the past and one started twice, shouldn't stop
+     * the good ones from starting.
+     */
+    @org.junit.Test
+    public void testStartAlarms_OneInvalid_OthersStillStart() throws Exception {
+        System.out.println("testStartAlarms_OneInvalid_OthersStillStart");
+
+        //setup
+        DateTime now = new DateTime();
+        SetAlarm first = new SetAlarm(now.plusMillis(300), "www.first.com");
+        SetAlarm past = new SetAlarm(now.minusMillis(100), "www.past.com");
+        SetAlarm second = new SetAlarm(now.plusMillis(320), "www.second.com");
+        final java.util.Set<SetAlarm> finished =
+                java.util.Collections.synchronizedSet(new java.util.HashSet<SetAlarm>());
+        final java.util.concurrent.CountDownLatch done =
+                new java.util.concurrent.CountDownLatch(2);
+        TimerAlarmStarter instance = new TimerAlarmStarter();
+
+        //act
+        alarmclock.models.AlarmBatchResult result = instance.startAlarms(
+                java.util.Arrays.asList(first, past, first, second),
+                new alarmclock.services.AlarmListener(){
+                    @Override
+                    public void alarmFinished(SetAlarm alarm) {
+                        finished.add(alarm);
+                        done.countDown();
+                    }
+                });
+
+        assertTrue(done.await(2, java.util.concurrent.TimeUnit.SECONDS));
+        //give a wrongly started duplicate a chance to go off too
+        Thread.sleep(100);
+
+        //assert
+        assertFalse(result.isAllStarted());
+        assertEquals(2, result.getFailedCount());
+        assertNotNull(result.getTask(0));
+        assertThat(result.getFailure(1), is(UnsupportedOperationException.class));
+        assertNull(result.getTask(1));
+        assertThat(result.getFailure(2), is(UnsupportedOperationException.class));
+        assertNull(result.getTask(2));
+        assertNotNull(result.getTask(3));
+        assertEquals(new java.util.HashSet<SetAlarm>(java.util.Arrays.asList(first, second)),
+                finished);
+        assertEquals(0, done.getCount());
+    }
+
+    /**
+     * Test of cancelAlarms method, of class TimerAlarmStarter.  An alarm that
+     * was never started, or is in the list twice, can't be cancelled again.
+     */
+    @org.junit.Test
+    public void testCancelAlarms() throws Exception {
+        System.out.println("testCancelAlarms");
+
+        //setup
+        DateTime now = new DateTime();
+        SetAlarm first = new SetAlarm(now.plusMillis(300), "www.first.com");
+        SetAlarm second = new SetAlarm(now.plusMillis(320), "www.second.com");
+        SetAlarm neverStarted = new SetAlarm(now.plusMillis(320), "www.never.com");
+        alarmclock.services.AlarmListener listener = mock(alarmclock.services.AlarmListener.class);
+        TimerAlarmStarter instance = new TimerAlarmStarter();
+        instance.startAlarms(java.util.Arrays.asList(first, second), listener);
+
+        //act
+        boolean[] result = instance.cancelAlarms(
+                java.util.Arrays.asList(first, second, neverStarted, first));
+
+        //wait out the alarms
+        Thread.sleep(450);
+
+        //assert
+        assertTrue(result[0]);
+        assertTrue(result[1]);
+        assertFalse(result[2]);
+        assertFalse(result[3]);
+        verify(listener, times(0)).alarmFinished(any(SetAlarm.class));
+    }
+
+    /**
+     * An exception thrown by one alarm's callback used to cancel the Timer,
+     * which meant no other alarm would ever go off.  Now the dispatcher
+     * catches it.
+     */
+    @org.junit.Test
+    public void testStartAlarm_CallbackThrows_LaterAlarmsStillRun() throws Exception {
+        System.out.println("testStartAlarm_CallbackThrows_LaterAlarmsStillRun");
+
+        //setup
+        SetAlarm badAlarm = new SetAlarm(new DateTime().plusMillis(50), "www.bad.com");
+        SetAlarm goodAlarm = new SetAlarm(new DateTime().plusMillis(100), "www.good.com");
+        final java.util.concurrent.CountDownLatch wasRun = new java.util.concurrent.CountDownLatch(1);
+
+        TimerAlarmStarter instance = new TimerAlarmStarter();
+        instance.startAlarm(badAlarm, new Runnable(){
+            @Override
+            public void run() {
+                throw new IllegalStateException("broken alarm");
+            }
+        });
+        instance.startAlarm(goodAlarm, new Runnable(){
+            @Override
+            public void run() {
+                wasRun.countDown();
+            }
+        });
+
+        //act
+        //logging the first exception can take a while, so be generous
+        boolean ran = wasRun.await(5, java.util.concurrent.TimeUnit.SECONDS);
+
+        //assert
+        assertTrue("the alarm after the broken one never ran", ran);
+    }
+
+    /**
+     * With a worker pool, a slow callback runs on a worker thread and doesn't
+     * hold up the timer thread, so the next alarm still goes off on time.
+     */
+    @org.junit.Test
+    public void testStartAlarm_WorkerPool_SlowCallbackDoesNotDelayOthers() throws Exception {
+        System.out.println("testStartAlarm_WorkerPool_SlowCallbackDoesNotDelayOthers");
+
+        //setup
+        //far enough ahead that starting them can't take longer
+        DateTime now = new DateTime();
+        SetAlarm slowAlarm = new SetAlarm(now.plusMillis(300), "www.slow.com");
+        SetAlarm fastAlarm = new SetAlarm(now.plusMillis(350), "www.fast.com");
+        final Box<Long> fastRanAt = new Box<Long>();
+
+        TimerAlarmStarter instance = new TimerAlarmStarter();
+        instance.setDispatcher(AlarmDispatcher.withWorkerPool(2));
+        instance.startAlarm(slowAlarm, new Runnable(){
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ex) {
+                }
+            }
+        });
+        instance.startAlarm(fastAlarm, new Runnable(){
+            @Override
+            public void run() {
+                fastRanAt.setValue(System.currentTimeMillis());
+            }
+        });
+
+        //act
+        Thread.sleep(500);
+
+        //assert
+        fastRanAt.verifySet();
+        assertEquals(fastAlarm.getTime().getMillis(), fastRanAt.getValue(), 100);
+    }
+
+    /**
+     * With a thread per firing, alarms due at the same moment block at the
+     * same time instead of waiting in line behind each other.
+     */
+    @org.junit.Test
+    public void testStartAlarm_ThreadPerFiring_SimultaneousAlarmsRunTogether() throws Exception {
+        System.out.println("testStartAlarm_ThreadPerFiring_SimultaneousAlarmsRunTogether");
+
+        //setup
+        int count = 10;
+        final java.util.concurrent.CountDownLatch latch =
+                new java.util.concurrent.CountDownLatch(count);
+        //far enough ahead that starting them all can't take longer
+        DateTime when = new DateTime().plusMillis(300);
+
+        TimerAlarmStarter instance = new TimerAlarmStarter();
+        instance.setDispatcher(AlarmDispatcher.threadPerFiring());
+        for(int i = 0; i < count; i++){
+            instance.startAlarm(new SetAlarm(when, "www.test.com/" + i), new Runnable(){
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException ex) {
+                    }
+                    latch.countDown();
+                }
+            });
+        }
+
+        //act
+        //one after the other they would take a whole second after going off
+        boolean allDone = latch.await(800, java.util.concurrent.TimeUnit.MILLISECONDS);
+
+        //assert
+        assertTrue(allDone);
+    }
+
+    /**
+     * Two threads starting the same alarm at the same moment used to be able
+     * to both get past the "Already scheduled once" check.  Now exactly one of
+     * them wins.
+     */
+    @org.junit.Test
+    public void testStartAlarm_SameAlarmFromManyThreads_OnlyOneStarts() throws Exception {
+        System.out.println("testStartAlarm_SameAlarmFromManyThreads_OnlyOneStarts");
+
+        //setup
+        final SetAlarm alarm = new SetAlarm(new DateTime().plusMinutes(5), "www.test.com");
+        final TimerAlarmStarter instance = new TimerAlarmStarter();
+        final Runnable whenFinished = mock(Runnable.class);
+        int threads = 16;
+        final java.util.concurrent.CountDownLatch go = new java.util.concurrent.CountDownLatch(1);
+        final java.util.concurrent.CountDownLatch done = new java.util.concurrent.CountDownLatch(threads);
+        final java.util.concurrent.atomic.AtomicInteger started =
+                new java.util.concurrent.atomic.AtomicInteger();
+
+        for(int i = 0; i < threads; i++){
+            new Thread(new Runnable(){
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                        instance.startAlarm(alarm, whenFinished);
+                        started.incrementAndGet();
+                    } catch (Exception ex) {
+                        //expected for everyone but the winner
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        //act
+        go.countDown();
+        done.await();
+
+        //assert
+        assertEquals(1, started.get());
+        assertTrue(instance.cancelAlarm(alarm));
+    }
+
+    /**
+     * With a coalescing window, alarms due within the same window all go off
+     * in one timer wakeup, no earlier than they're due, and each callback is
+     * still handed to the executor on its own.
+     */
+    @org.junit.Test
+    public void testStartAlarm_CoalesceWindow_FiresTogether() throws Exception {
+        System.out.println("testStartAlarm_CoalesceWindow_FiresTogether");
+
+        //setup
+        final java.util.concurrent.atomic.AtomicInteger wakeups =
+                new java.util.concurrent.atomic.AtomicInteger();
+        final java.util.concurrent.atomic.AtomicInteger handOffs =
+                new java.util.concurrent.atomic.AtomicInteger();
+        TimerAlarmStarter instance = new TimerAlarmStarter();
+        instance.setDispatcher(new AlarmDispatcher(new java.util.concurrent.Executor(){
+            @Override
+            public void execute(Runnable command) {
+                handOffs.incrementAndGet();
+                command.run();
+            }
+        }){
+            @Override
+            public void dispatchAll(java.util.List<SetAlarm> alarms, java.util.List<Runnable> callbacks) {
+                wakeups.incrementAndGet();
+                super.dispatchAll(alarms, callbacks);
+            }
+        });
+        instance.setCoalesceWindowMillis(50);
+
+        //line them up at the start of a window so they all fall in it
+        long windowStart = System.currentTimeMillis() + 100;
+        windowStart -= windowStart % 50;
+        int count = 20;
+        final java.util.List<Long> ranAt =
+                java.util.Collections.synchronizedList(new java.util.ArrayList<Long>());
+        for(int i = 0; i < count; i++){
+            instance.startAlarm(new SetAlarm(new DateTime(windowStart + i), "www.test.com/" + i),
+                    new Runnable(){
+                        @Override
+                        public void run() {
+                            ranAt.add(System.currentTimeMillis());
+                        }
+                    });
+        }
+
+        //act
+        Thread.sleep(windowStart + 200 - System.currentTimeMillis());
+
+        //assert
+        assertEquals(count, ranAt.size());
+        assertEquals(1, wakeups.get());
+        assertEquals(count, handOffs.get());
+        for(int i = 0; i < count; i++){
+            assertTrue("alarm went off early", ranAt.get(i) >= windowStart + count - 1);
+        }
+    }
+
+    /**
+     * With a coalescing window and a worker pool, slow callbacks due in the
+     * same window run at the same time instead of one after the other.
+     */
+    @org.junit.Test
+    public void testStartAlarm_CoalesceWindow_WorkerPool_RunTogether() throws Exception {
+        System.out.println("testStartAlarm_CoalesceWindow_WorkerPool_RunTogether");
+
+        this.assertWindowRunsTogether(AlarmDispatcher.withWorkerPool(10));
+    }
+
+    /**
+     * With a coalescing window and a thread per firing, slow callbacks due in
+     * the same window run at the same time instead of one after the other.
+     */
+    @org.junit.Test
+    public void testStartAlarm_CoalesceWindow_ThreadPerFiring_RunTogether() throws Exception {
+        System.out.println("testStartAlarm_CoalesceWindow_ThreadPerFiring_RunTogether");
+
+        this.assertWindowRunsTogether(AlarmDispatcher.threadPerFiring());
+    }
+
+    /**
+     * Starts ten alarms in one coalescing window, whose callbacks each block
+     * for 300ms, and checks they are all done long before they would be if
+     * they ran one after the other.
+     */
+    private void assertWindowRunsTogether(AlarmDispatcher dispatcher) throws Exception {
+        //setup
+        TimerAlarmStarter instance = new TimerAlarmStarter();
+        instance.setDispatcher(dispatcher);
+        instance.setCoalesceWindowMillis(50);
+        final java.util.concurrent.CountDownLatch latch =
+                new java.util.concurrent.CountDownLatch(10);
+        DateTime when = new DateTime().plusMillis(300);
+        for(int i = 0; i < 10; i++){
+            instance.startAlarm(new SetAlarm(when, "www.test.com/" + i), new Runnable(){
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(300);
+                    } catch (InterruptedException ex) {
+                    }
+                    latch.countDown();
+                }
+            });
+        }
+
+        //act
+        boolean done = latch.await(300 + 50 + 1000, java.util.concurrent.TimeUnit.MILLISECONDS);
+
+        //assert
+        //one after the other they would take three seconds after going off
+        assertTrue("callbacks in one window ran one after the other", done);
+    }
+
+    /**
+     * Cancelling one alarm in a coalescing window shouldn't stop the others,
+     * and cancelling all of them takes the window off the timer.
+     */
+    @org.junit.Test
+    public void testCancelAlarm_CoalesceWindow() throws Exception {
+        System.out.println("testCancelAlarm_CoalesceWindow");
+
+        //setup
+        TimerAlarmStarter instance = new TimerAlarmStarter();
+        instance.setCoalesceWindowMillis(50);
+        DateTime when = new DateTime().plusMillis(100);
+        SetAlarm kept = new SetAlarm(when, "www.kept.com");
+        SetAlarm cancelled = new SetAlarm(when, "www.cancelled.com");
+        Runnable keptFinished = mock(Runnable.class);
+        Runnable cancelledFinished = mock(Runnable.class);
+        instance.startAlarm(kept, keptFinished);
+        TimerTask task = instance.startAlarm(cancelled, cancelledFinished);
+
+        //act
+        boolean result = task.cancel();
+        Thread.sleep(250);
+
+        //assert
+        assertTrue(result);
+        verify(keptFinished, times(1)).run();
+        verify(cancelledFinished, times(0)).run();
+        assertFalse("a fired alarm should be forgotten", instance.cancelAlarm(kept));
+    }
+
+    /**
+     * Setting and cancelling a million alarms a month away shouldn't leave a
+     * million tombstones, or their alarms and callbacks, on the timer.
+     */
+    @org.junit.Test
+    public void testCancelAlarm_MillionCycles_DoesNotRetainMemory() throws Exception {
+        System.out.println("testCancelAlarm_MillionCycles_DoesNotRetainMemory");
+
+        //setup
+        TimerAlarmStarter instance = new TimerAlarmStarter();
+        Runnable nothing = mock(Runnable.class);
+        DateTime when = new DateTime().plusDays(30);
+        Runtime runtime = Runtime.getRuntime();
+
+        //a live alarm at the front of the queue keeps the timer thread asleep,
+        //so it never takes tombstones off the front itself and every one is
+        //counted by a purge
+        instance.startAlarm(new SetAlarm(when.minusDays(1), "www.front.com"), nothing);
+
+        SetAlarm first = new SetAlarm(when, "www.first.com");
+        instance.startAlarm(first, nothing);
+        assertTrue(instance.cancelAlarm(first));
+        java.lang.ref.WeakReference<SetAlarm> firstRef = new java.lang.ref.WeakReference<SetAlarm>(first);
+        first = null;
+
+        gc();
+        long usedBefore = runtime.totalMemory() - runtime.freeMemory();
+
+        //act
+        for(int i = 0; i < 1000000; i++){
+            SetAlarm alarm = new SetAlarm(when.plusMillis(i), "www.test.com");
+            instance.startAlarm(alarm, nothing);
+            instance.cancelAlarm(alarm);
+        }
+        gc();
+        long usedAfter = runtime.totalMemory() - runtime.freeMemory();
+
+        //assert
+        assertNull("the cancelled alarm should have been garbage collected", firstRef.get());
+        assertTrue("should have purged, only purged " + instance.getPurgedCount(),
+                instance.getPurgedCount() > 990000);
+        assertTrue("tombstones should be bounded, are " + instance.getTombstoneCount(),
+                instance.getTombstoneCount() <= 1024);
+        //a million tombstones holding their alarms would be over 100MB
+        assertTrue("heap grew by " + (usedAfter - usedBefore) + " bytes",
+                usedAfter - usedBefore < 16 * 1024 * 1024);
+    }
+
+    private static void gc() throws InterruptedException {
+        for(int i = 0; i < 3; i++){
+            System.gc();
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * Two alarms for the same time and path are equal, but they are still two
+     * separate alarms, and both can be started and cancelled on their own.
+     */
+    @org.junit.Test
+    public void testStartAlarm_TwoEqualAlarms_AreKeptApart() throws Exception {
+        System.out.println("testStartAlarm_TwoEqualAlarms_AreKeptApart");
+
+        //setup
+        TimerAlarmStarter instance = new TimerAlarmStarter();
+        DateTime when = new DateTime().plusMillis(300);
+        SetAlarm first = instance.createAlarm(when, "www.test.com");
+        SetAlarm second = instance.createAlarm(when, "www.test.com");
+        Runnable firstFinished = mock(Runnable.class);
+        Runnable secondFinished = mock(Runnable.class);
+
+        //act
+        instance.startAlarm(first, firstFinished);
+        instance.startAlarm(second, secondFinished);
+        boolean cancelled = instance.cancelAlarm(first);
+        Thread.sleep(600);
+
+        //assert
+        assertEquals(first, second);
+        assertTrue(first.getId() != second.getId());
+        assertTrue(cancelled);
+        verify(firstFinished, times(0)).run();
+        verify(secondFinished, times(1)).run();
+    }
+
+    /**
+     * When the timer thread falls behind, a recurring alarm should go off
+     * once for all the times it missed, not once for each of them.
+     */
+    @org.junit.Test
+    public void testStartRecurringAlarm_TimerFallsBehind_DoesNotCatchUp() throws Exception {
+        System.out.println("testStartRecurringAlarm_TimerFallsBehind_DoesNotCatchUp");
+
+        //setup
+        final java.util.concurrent.CountDownLatch stalled =
+                new java.util.concurrent.CountDownLatch(1);
+        final java.util.concurrent.atomic.AtomicInteger runs =
+                new java.util.concurrent.atomic.AtomicInteger();
+        DateTime now = new DateTime();
+
+        TimerAlarmStarter instance = new TimerAlarmStarter();
+        //this one holds up the timer thread for a second, like the computer
+        //going to sleep
+        instance.startAlarm(new SetAlarm(now.plusMillis(300), "www.slow.com"), new Runnable(){
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ex) {
+                }
+                stalled.countDown();
+            }
+        });
+        SetAlarm first = new SetAlarm(now.plusMillis(350), "www.recurring.com");
+        instance.startRecurringAlarm(new alarmclock.models.RecurringAlarm(first, 100), new Runnable(){
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        });
+
+        //act
+        assertTrue(stalled.await(3, java.util.concurrent.TimeUnit.SECONDS));
+        Thread.sleep(50);
+        instance.cancelAlarm(first);
+
+        //assert
+        //it missed about ten times while the timer was stuck
+        assertTrue("ran " + runs.get() + " times", runs.get() >= 1 && runs.get() <= 2);
+    }
 }
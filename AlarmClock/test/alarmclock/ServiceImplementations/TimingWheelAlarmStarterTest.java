@@ -0,0 +1,456 @@
+package alarmclock.ServiceImplementations;
+
+import alarmclock.models.SetAlarm;
+import alarmclock.testutils.Box;
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.mockito.Mockito.*;
+import static org.hamcrest.core.Is.is;
+import org.joda.time.DateTime;
+import static org.junit.Assert.*;
+
+/**
+ * This class contains JUnit tests for the TimingWheelAlarmStarter service
+ * implementation.  It should behave exactly like the TimerAlarmStarter from
+ * the outside, so most of these tests mirror TimerAlarmStarterTest.
+ * @author Gordon
+ */
+public class TimingWheelAlarmStarterTest {
+
+    private TimingWheelAlarmStarter instance;
+
+    @org.junit.Before
+    public void setUp() {
+        instance = new TimingWheelAlarmStarter();
+    }
+
+    @org.junit.After
+    public void tearDown() {
+        instance.shutdown();
+    }
+
+    /**
+     * Test of createAlarm method, of class TimingWheelAlarmStarter.
+     */
+    @org.junit.Test
+    public void testCreateAlarm() {
+        System.out.println("CreateAlarm");
+        //setup
+        DateTime alarmDate = new DateTime();
+        String exePath = "www.test.com";
+
+        //act
+        SetAlarm result = instance.createAlarm(alarmDate, exePath);
+
+        //assert
+        assertEquals(new SetAlarm(alarmDate, exePath), result);
+    }
+
+    /**
+     * Test of startAlarm method, of class TimingWheelAlarmStarter.
+     */
+    @org.junit.Test
+    public void testStartAlarm() throws Exception {
+        System.out.println("StartAlarm");
+
+        //setup
+        SetAlarm alarm = new SetAlarm(new DateTime().plusMillis(100), "www.test.com");
+        final Box<Boolean> wasRun = new Box<Boolean>(false);
+
+        Runnable whenFinished = new Runnable(){
+            @Override
+            public void run() {
+                wasRun.setValue(true);
+            }
+        };
+
+        //act
+        TimerTask result = instance.startAlarm(alarm, whenFinished);
+
+        //assert
+        assertNotNull(result);
+        assertEquals(alarm.getTime().getMillis(), result.scheduledExecutionTime(), 10);
+        assertFalse("value shouldn't get set till after the alarm goes off",
+                wasRun.isValueSet());
+
+        //wait out the alarm, plus a tick or two
+        Thread.sleep(140);
+
+        //verify the alarm was run
+        wasRun.verifySet();
+        assertTrue(wasRun.getValue());
+    }
+
+    @org.junit.Test
+    public void testStartAlarm_InvalidTime_ThrowsException() throws Exception {
+        System.out.println("testStartAlarm_InvalidTime_ThrowsException");
+
+        //setup
+        SetAlarm alarm = new SetAlarm(new DateTime().minusMillis(100), "www.test.com");
+        Runnable whenFinished = mock(Runnable.class);
+
+        try
+        {
+            //act
+            instance.startAlarm(alarm, whenFinished);
+
+            //assert
+            fail("Should have thrown an exception");
+        }
+        catch(Exception e)
+        {
+            assertThat(e, is(UnsupportedOperationException.class));
+        }
+
+        Thread.sleep(120);
+
+        verify(whenFinished, times(0)).run();
+    }
+
+    @org.junit.Test
+    public void testStartAlarm_AlreadyScheduled_ThrowsException() throws Exception {
+        System.out.println("testStartAlarm_AlreadyScheduled_ThrowsException");
+
+        //setup
+        SetAlarm alarm = new SetAlarm(new DateTime().plusMinutes(5), "www.test.com");
+        Runnable whenFinished = mock(Runnable.class);
+        instance.startAlarm(alarm, whenFinished);
+
+        try
+        {
+            //act
+            instance.startAlarm(alarm, whenFinished);
+
+            //assert
+            fail("Should have thrown an exception");
+        }
+        catch(Exception e)
+        {
+            assertThat(e, is(UnsupportedOperationException.class));
+        }
+    }
+
+    /**
+     * Alarms more than 64 ticks away start out in the higher wheels and have
+     * to be cascaded down before they go off.  Use a 1 millisecond tick so
+     * that this happens quickly.
+     */
+    @org.junit.Test
+    public void testStartAlarm_CascadesFromHigherWheels() throws Exception {
+        System.out.println("testStartAlarm_CascadesFromHigherWheels");
+
+        instance.shutdown();
+        instance = new TimingWheelAlarmStarter(1);
+
+        //setup
+        int count = 50;
+        final CountDownLatch latch = new CountDownLatch(count);
+        DateTime now = new DateTime();
+        for(int i = 0; i < count; i++){
+            SetAlarm alarm = new SetAlarm(now.plusMillis(70 + i * 7), "www.test.com/" + i);
+            instance.startAlarm(alarm, new Runnable(){
+                @Override
+                public void run() {
+                    latch.countDown();
+                }
+            });
+        }
+
+        //act
+        boolean allRan = latch.await(2, TimeUnit.SECONDS);
+
+        //assert
+        assertTrue("every alarm should have gone off", allRan);
+    }
+
+    /**
+     * Test of cancelAlarm method, of class TimingWheelAlarmStarter.
+     */
+    @org.junit.Test
+    public void testCancelAlarm() throws Exception {
+        System.out.println("CancelAlarm");
+
+        SetAlarm alarm = new SetAlarm(new DateTime().plusMillis(100), "www.test.com");
+        final Box<Boolean> wasRun = new Box<Boolean>(false);
+
+        Runnable whenFinished = new Runnable(){
+            @Override
+            public void run() {
+                wasRun.setValue(true);
+            }
+        };
+
+        instance.startAlarm(alarm, whenFinished);
+
+        //act
+        boolean cancelled = instance.cancelAlarm(alarm);
+
+        Thread.sleep(140);
+
+        //assert
+        assertTrue(cancelled);
+        assertFalse("value should never have been set because the alarm was cancelled",
+                wasRun.isValueSet());
+        assertFalse("a cancelled alarm should be forgotten", instance.cancelAlarm(alarm));
+    }
+
+    @org.junit.Test
+    public void testCancelByTimerTask() throws Exception {
+        System.out.println("testCancelByTimerTask");
+
+        //setup
+        SetAlarm alarm = new SetAlarm(new DateTime().plusMillis(100), "www.test.com");
+        final Box<Boolean> wasRun = new Box<Boolean>(false);
+
+        Runnable whenFinished = new Runnable(){
+            @Override
+            public void run() {
+                wasRun.setValue(true);
+            }
+        };
+
+        TimerTask result = instance.startAlarm(alarm, whenFinished);
+
+        //act
+        result.cancel();
+
+        Thread.sleep(140);
+
+        //assert
+        assertFalse("value should never have been set because the alarm was cancelled",
+                wasRun.isValueSet());
+    }
+
+    /**
+     * Test of startAlarms method, of class TimingWheelAlarmStarter.  The bad
+     * alarm in the middle shouldn't stop the good ones from starting.
+     */
+    @org.junit.Test
+    public void testStartAlarms_OneInvalid_OthersStillStart() throws Exception {
+        System.out.println("testStartAlarms_OneInvalid_OthersStillStart");
+
+        //setup
+        DateTime now = new DateTime();
+        SetAlarm first = new SetAlarm(now.plusMillis(60), "www.first.com");
+        SetAlarm past = new SetAlarm(now.minusMillis(100), "www.past.com");
+        SetAlarm second = new SetAlarm(now.plusMillis(80), "www.second.com");
+        final java.util.Set<SetAlarm> finished =
+                java.util.Collections.synchronizedSet(new java.util.HashSet<SetAlarm>());
+
+        //act
+        alarmclock.models.AlarmBatchResult result = instance.startAlarms(
+                java.util.Arrays.asList(first, past, second),
+                new alarmclock.services.AlarmListener(){
+                    @Override
+                    public void alarmFinished(SetAlarm alarm) {
+                        finished.add(alarm);
+                    }
+                });
+
+        Thread.sleep(150);
+
+        //assert
+        assertFalse(result.isAllStarted());
+        assertEquals(1, result.getFailedCount());
+        assertNotNull(result.getTask(0));
+        assertThat(result.getFailure(1), is(UnsupportedOperationException.class));
+        assertNull(result.getTask(1));
+        assertNotNull(result.getTask(2));
+        assertEquals(new java.util.HashSet<SetAlarm>(java.util.Arrays.asList(first, second)),
+                finished);
+    }
+
+    /**
+     * Test of cancelAlarms method, of class TimingWheelAlarmStarter.
+     */
+    @org.junit.Test
+    public void testCancelAlarms() throws Exception {
+        System.out.println("testCancelAlarms");
+
+        //setup
+        DateTime now = new DateTime();
+        SetAlarm first = new SetAlarm(now.plusMillis(200), "www.first.com");
+        SetAlarm second = new SetAlarm(now.plusMillis(220), "www.second.com");
+        SetAlarm neverStarted = new SetAlarm(now.plusMillis(220), "www.never.com");
+        alarmclock.services.AlarmListener listener = mock(alarmclock.services.AlarmListener.class);
+        instance.startAlarms(java.util.Arrays.asList(first, second), listener);
+
+        //act
+        boolean[] result =
+                instance.cancelAlarms(java.util.Arrays.asList(first, second, neverStarted));
+
+        Thread.sleep(300);
+
+        //assert
+        assertTrue(result[0]);
+        assertTrue(result[1]);
+        assertFalse(result[2]);
+        verify(listener, times(0)).alarmFinished(any(SetAlarm.class));
+    }
+
+    /**
+     * With a worker pool, slow callbacks due on the same tick run at the same
+     * time instead of one after the other.
+     */
+    @org.junit.Test
+    public void testStartAlarm_SameTick_WorkerPool_RunTogether() throws Exception {
+        System.out.println("testStartAlarm_SameTick_WorkerPool_RunTogether");
+
+        this.assertTickRunsTogether(AlarmDispatcher.withWorkerPool(10));
+    }
+
+    /**
+     * With a thread per firing, slow callbacks due on the same tick run at
+     * the same time instead of one after the other.
+     */
+    @org.junit.Test
+    public void testStartAlarm_SameTick_ThreadPerFiring_RunTogether() throws Exception {
+        System.out.println("testStartAlarm_SameTick_ThreadPerFiring_RunTogether");
+
+        this.assertTickRunsTogether(AlarmDispatcher.threadPerFiring());
+    }
+
+    /**
+     * Starts ten alarms for the same moment, whose callbacks each block for
+     * 300ms, and checks they are all done long before they would be if they
+     * ran one after the other.
+     */
+    private void assertTickRunsTogether(AlarmDispatcher dispatcher) throws Exception {
+        //setup
+        instance.setDispatcher(dispatcher);
+        final java.util.concurrent.CountDownLatch latch =
+                new java.util.concurrent.CountDownLatch(10);
+        DateTime when = new DateTime().plusMillis(300);
+        for(int i = 0; i < 10; i++){
+            instance.startAlarm(new SetAlarm(when, "www.test.com/" + i), new Runnable(){
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(300);
+                    } catch (InterruptedException ex) {
+                    }
+                    latch.countDown();
+                }
+            });
+        }
+
+        //act
+        boolean done = latch.await(300 + 1000, java.util.concurrent.TimeUnit.MILLISECONDS);
+
+        //assert
+        //one after the other they would take three seconds after going off
+        assertTrue("callbacks on one tick ran one after the other", done);
+    }
+
+    /**
+     * Creates a TimingWheelAlarmStarter whose wall clock is off from the real
+     * one by however much is in the given skew.
+     */
+    private static TimingWheelAlarmStarter skewedStarter(final java.util.concurrent.atomic.AtomicLong skew){
+        return new TimingWheelAlarmStarter(){
+            @Override
+            long wallClockMillis() {
+                return System.currentTimeMillis() + skew.get();
+            }
+        };
+    }
+
+    /**
+     * If the wall clock jumps forward past an alarm's time, like when the
+     * computer wakes up from sleep, the alarm should go off right away
+     * instead of waiting out the time that was skipped.
+     */
+    @org.junit.Test
+    public void testClockJumpsForward_SkippedAlarmsGoOff() throws Exception {
+        System.out.println("testClockJumpsForward_SkippedAlarmsGoOff");
+
+        //setup
+        instance.shutdown();
+        java.util.concurrent.atomic.AtomicLong skew = new java.util.concurrent.atomic.AtomicLong();
+        instance = skewedStarter(skew);
+        DateTime now = new DateTime();
+        SetAlarm skipped = new SetAlarm(now.plusMinutes(10), "www.skipped.com");
+        SetAlarm later = new SetAlarm(now.plusMinutes(20), "www.later.com");
+        Runnable skippedFinished = mock(Runnable.class);
+        Runnable laterFinished = mock(Runnable.class);
+        instance.startAlarm(skipped, skippedFinished);
+        instance.startAlarm(later, laterFinished);
+
+        //act
+        skew.set(15 * 60 * 1000);
+        Thread.sleep(150);
+
+        //assert
+        verify(skippedFinished, times(1)).run();
+        verify(laterFinished, times(0)).run();
+        assertEquals(1, instance.getClockJumpCount());
+        assertTrue("the later alarm should still be waiting", instance.cancelAlarm(later));
+    }
+
+    /**
+     * If the wall clock jumps backward, alarms shouldn't go off until the
+     * wall clock catches back up to their time.
+     */
+    @org.junit.Test
+    public void testClockJumpsBackward_AlarmsWaitForWallClock() throws Exception {
+        System.out.println("testClockJumpsBackward_AlarmsWaitForWallClock");
+
+        //setup
+        instance.shutdown();
+        java.util.concurrent.atomic.AtomicLong skew = new java.util.concurrent.atomic.AtomicLong();
+        instance = skewedStarter(skew);
+        SetAlarm alarm = new SetAlarm(new DateTime().plusMillis(150), "www.test.com");
+        Runnable whenFinished = mock(Runnable.class);
+        instance.startAlarm(alarm, whenFinished);
+
+        //act
+        skew.set(-60 * 60 * 1000);
+        Thread.sleep(400);
+
+        //assert
+        verify(whenFinished, times(0)).run();
+
+        //and once the clock is put right it goes off
+        skew.set(0);
+        Thread.sleep(150);
+        verify(whenFinished, times(1)).run();
+        assertEquals(2, instance.getClockJumpCount());
+    }
+
+    /**
+     * A recurring alarm goes off over and over from the same task, until it's
+     * cancelled.
+     */
+    @org.junit.Test
+    public void testStartRecurringAlarm_GoesOffUntilCancelled() throws Exception {
+        System.out.println("testStartRecurringAlarm_GoesOffUntilCancelled");
+
+        //setup
+        SetAlarm first = new SetAlarm(new DateTime().plusMillis(50), "www.test.com");
+        final java.util.concurrent.atomic.AtomicInteger count =
+                new java.util.concurrent.atomic.AtomicInteger();
+
+        //act
+        TimerTask result = instance.startRecurringAlarm(
+                new alarmclock.models.RecurringAlarm(first, 50), new Runnable(){
+                    @Override
+                    public void run() {
+                        count.incrementAndGet();
+                    }
+                });
+        Thread.sleep(290);
+        long scheduled = result.scheduledExecutionTime();
+        boolean cancelled = instance.cancelAlarm(first);
+        int countAtCancel = count.get();
+        Thread.sleep(150);
+
+        //assert
+        assertTrue("should have gone off several times, went off " + countAtCancel,
+                countAtCancel >= 3);
+        assertTrue("the same task should have moved on to later times",
+                scheduled > first.getTime().getMillis() + 100);
+        assertTrue(cancelled);
+        assertEquals(countAtCancel, count.get());
+    }
+}
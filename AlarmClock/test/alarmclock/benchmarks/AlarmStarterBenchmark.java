@@ -0,0 +1,339 @@
+package alarmclock.benchmarks;
+
+import alarmclock.ServiceImplementations.LatencyHistogram;
+import alarmclock.ServiceImplementations.ShardedAlarmStarter;
+import alarmclock.ServiceImplementations.TieredAlarmStarter;
+import alarmclock.ServiceImplementations.TimerAlarmStarter;
+import alarmclock.ServiceImplementations.TimingWheelAlarmStarter;
+import alarmclock.models.LatencySnapshot;
+import alarmclock.models.SetAlarm;
+import alarmclock.services.AlarmListener;
+import alarmclock.services.AlarmStarter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.joda.time.DateTime;
+
+/**
+ * This is the benchmark suite for comparing AlarmStarters.  For every
+ * AlarmStarter, number of pending alarms and number of threads it measures:
+ * <ul>
+ * <li>start: how many startAlarm calls per second the threads can make
+ * together, and how long each call takes</li>
+ * <li>cancel: the same for cancelAlarm</li>
+ * <li>fire: how many alarms per second go off when a big batch is all due at
+ * the same moment, and how late they are</li>
+ * </ul>
+ * The pending alarms are spread randomly over the next 30 days, so none of
+ * them go off while we're measuring, but the AlarmStarter has to work around
+ * them.
+ * <p/>
+ * Each measurement is repeated a few times to warm up the JIT before it
+ * counts, then a few more times, and the average and spread of those are
+ * printed.  Every combination gets a brand new AlarmStarter so that nothing
+ * left over from one run can slow down the next.
+ * <p/>
+ * Run it with "ant benchmark".  Everything can be changed with system
+ * properties, which the ant target passes through:
+ * <pre>
+ *   ant benchmark -Dbenchmark.starters=timer,wheel -Dbenchmark.pending=1000,10000000
+ *       -Dbenchmark.threads=1,4 -Dbenchmark.jvmargs=-Xmx8g
+ * </pre>
+ * The starters are timer, wheel, tiered (a TieredAlarmStarter over a
+ * TimingWheelAlarmStarter) and sharded (a ShardedAlarmStarter with one shard
+ * per processor).  Ten million pending alarms needs around 4GB of heap.
+ * @author Gordon
+ */
+public class AlarmStarterBenchmark {
+
+    private static final Runnable NOTHING = new Runnable(){
+        @Override
+        public void run() {
+        }
+    };
+
+    private static final AlarmListener IGNORE = new AlarmListener(){
+        @Override
+        public void alarmFinished(SetAlarm alarm) {
+        }
+    };
+
+    private static final long DAY_MILLIS = 24L * 60L * 60L * 1000L;
+
+    private final int warmups = Integer.getInteger("benchmark.warmup", 2);
+    private final int iterations = Integer.getInteger("benchmark.iterations", 5);
+    private final int opsPerThread = Integer.getInteger("benchmark.ops", 20000);
+    private final int fireCount = Integer.getInteger("benchmark.fire", 10000);
+
+    public static void main(String[] args) throws Exception {
+        AlarmStarterBenchmark benchmark = new AlarmStarterBenchmark();
+        String[] starters = System.getProperty("benchmark.starters", "timer,wheel,tiered,sharded").split(",");
+        int[] pendings = ints(System.getProperty("benchmark.pending", "1000,100000,1000000"));
+        int[] threadCounts = ints(System.getProperty("benchmark.threads", "1,2,4"));
+
+        System.out.println("available processors: " + Runtime.getRuntime().availableProcessors());
+        System.out.printf("%-8s %9s %3s  %-6s %18s %12s %12s%n",
+                "starter", "pending", "thr", "op", "ops/s", "p50", "p99");
+
+        try{
+            for(String starter : starters){
+                for(int pending : pendings){
+                    for(int threads : threadCounts){
+                        benchmark.run(starter.trim(), pending, threads);
+                    }
+                }
+            }
+        }finally{
+            //the TimerAlarmStarter's Timer threads would keep us alive forever
+            System.out.flush();
+            System.exit(0);
+        }
+    }
+
+    private static int[] ints(String list){
+        String[] parts = list.split(",");
+        int[] ret = new int[parts.length];
+        for(int i = 0; i < parts.length; i++){
+            ret[i] = Integer.parseInt(parts[i].trim());
+        }
+        return ret;
+    }
+
+    /**
+     * This creates a fresh AlarmStarter of one kind, and cleans it up after.
+     */
+    private static class Fixture {
+        final AlarmStarter starter;
+        private final Runnable shutdown;
+
+        Fixture(AlarmStarter starter, Runnable shutdown){
+            this.starter = starter;
+            this.shutdown = shutdown;
+        }
+
+        static Fixture create(String name){
+            if("timer".equals(name)){
+                return new Fixture(new TimerAlarmStarter(), NOTHING);
+            }else if("wheel".equals(name)){
+                final TimingWheelAlarmStarter wheel = new TimingWheelAlarmStarter();
+                return new Fixture(wheel, new Runnable(){
+                    @Override
+                    public void run() {
+                        wheel.shutdown();
+                    }
+                });
+            }else if("tiered".equals(name)){
+                final TimingWheelAlarmStarter wheel = new TimingWheelAlarmStarter();
+                final TieredAlarmStarter tiered = new TieredAlarmStarter(wheel);
+                return new Fixture(tiered, new Runnable(){
+                    @Override
+                    public void run() {
+                        tiered.shutdown();
+                        wheel.shutdown();
+                    }
+                });
+            }else if("sharded".equals(name)){
+                final ShardedAlarmStarter sharded = new ShardedAlarmStarter();
+                return new Fixture(sharded, new Runnable(){
+                    @Override
+                    public void run() {
+                        sharded.shutdown();
+                    }
+                });
+            }
+            throw new IllegalArgumentException("unknown starter " + name);
+        }
+    }
+
+    /**
+     * Measures one AlarmStarter with one number of pending alarms and threads.
+     */
+    private void run(String name, int pending, int threads) throws Exception {
+        double[] startRates = new double[iterations];
+        double[] cancelRates = new double[iterations];
+        double[] fireRates = new double[iterations];
+        LatencyHistogram startNanos = new LatencyHistogram();
+        LatencyHistogram cancelNanos = new LatencyHistogram();
+        LatencyHistogram fireLatenessMicros = new LatencyHistogram();
+
+        for(int i = -warmups; i < iterations; i++){
+            boolean counts = i >= 0;
+            Fixture fixture = Fixture.create(name);
+            try{
+                fillPending(fixture.starter, pending);
+
+                LatencyHistogram startSample = counts ? startNanos : new LatencyHistogram();
+                LatencyHistogram cancelSample = counts ? cancelNanos : new LatencyHistogram();
+                double[] rates = this.measureStartCancel(fixture.starter, threads, startSample, cancelSample);
+
+                double fireRate = this.measureFire(fixture.starter,
+                        counts ? fireLatenessMicros : new LatencyHistogram());
+                if(counts){
+                    startRates[i] = rates[0];
+                    cancelRates[i] = rates[1];
+                    fireRates[i] = fireRate;
+                }
+            }finally{
+                fixture.shutdown.run();
+            }
+        }
+
+        report(name, pending, threads, "start", startRates, startNanos.snapshot(), "ns");
+        report(name, pending, threads, "cancel", cancelRates, cancelNanos.snapshot(), "ns");
+        report(name, pending, threads, "fire", fireRates, fireLatenessMicros.snapshot(), "us late");
+    }
+
+    private static void report(String name, int pending, int threads, String op,
+            double[] rates, LatencySnapshot latency, String unit)
+    {
+        double mean = 0;
+        for(double rate : rates){
+            mean += rate;
+        }
+        mean /= rates.length;
+        double variance = 0;
+        for(double rate : rates){
+            variance += (rate - mean) * (rate - mean);
+        }
+        double spread = rates.length > 1 ? Math.sqrt(variance / (rates.length - 1)) : 0;
+
+        System.out.printf("%-8s %9d %3d  %-6s %,11.0f +-%4.1f%% %,9d %-2s %,9d %s%n",
+                name, pending, threads, op, mean, mean == 0 ? 0 : 100 * spread / mean,
+                latency.getP50(), unit.substring(0, 2), latency.getP99(), unit);
+    }
+
+    /**
+     * Starts the given number of alarms, spread over the next 30 days, and
+     * leaves them pending.
+     */
+    private static void fillPending(AlarmStarter starter, int pending) throws Exception {
+        Random random = new Random(42);
+        long now = System.currentTimeMillis();
+        List<SetAlarm> batch = new ArrayList<SetAlarm>(10000);
+        for(int i = 0; i < pending; i++){
+            long offset = DAY_MILLIS + (long)(random.nextDouble() * 29 * DAY_MILLIS);
+            batch.add(new SetAlarm(new DateTime(now + offset), "www.pending.com/" + i));
+            if(batch.size() == 10000){
+                starter.startAlarms(batch, IGNORE);
+                batch.clear();
+            }
+        }
+        if(!batch.isEmpty())
+            starter.startAlarms(batch, IGNORE);
+    }
+
+    /**
+     * Each thread starts its own alarms, then cancels them all again, timing
+     * every call.
+     * @return the start rate and the cancel rate, for all threads together.
+     */
+    private double[] measureStartCancel(final AlarmStarter starter, int threads,
+            final LatencyHistogram startNanos, final LatencyHistogram cancelNanos)
+            throws Exception
+    {
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(threads);
+        final CountDownLatch goCancel = new CountDownLatch(1);
+        final CountDownLatch cancelled = new CountDownLatch(threads);
+
+        Random random = new Random(7);
+        long now = System.currentTimeMillis();
+        for(int t = 0; t < threads; t++){
+            final SetAlarm[] alarms = new SetAlarm[opsPerThread];
+            for(int i = 0; i < alarms.length; i++){
+                long offset = DAY_MILLIS + (long)(random.nextDouble() * 29 * DAY_MILLIS);
+                alarms[i] = new SetAlarm(new DateTime(now + offset), "www.thread" + t + ".com/" + i);
+            }
+            Thread thread = new Thread(new Runnable(){
+                @Override
+                public void run() {
+                    boolean startDone = false;
+                    try{
+                        ready.countDown();
+                        go.await();
+                        for(SetAlarm alarm : alarms){
+                            long before = System.nanoTime();
+                            starter.startAlarm(alarm, NOTHING);
+                            startNanos.record(System.nanoTime() - before);
+                        }
+                        startDone = true;
+                        started.countDown();
+
+                        goCancel.await();
+                        for(SetAlarm alarm : alarms){
+                            long before = System.nanoTime();
+                            starter.cancelAlarm(alarm);
+                            cancelNanos.record(System.nanoTime() - before);
+                        }
+                    }catch(Exception ex){
+                        ex.printStackTrace();
+                    }finally{
+                        if(!startDone)
+                            started.countDown();
+                        cancelled.countDown();
+                    }
+                }
+            }, "benchmark-" + t);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        started.await();
+        long startTook = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        goCancel.countDown();
+        cancelled.await();
+        long cancelTook = System.nanoTime() - start;
+
+        double ops = (double)threads * opsPerThread;
+        return new double[]{ops / (startTook / 1e9), ops / (cancelTook / 1e9)};
+    }
+
+    /**
+     * Sets a batch of alarms to all go off at the same moment, and times how
+     * long it takes until the last one has gone off.
+     * @return the number of alarms fired per second
+     */
+    private double measureFire(AlarmStarter starter, final LatencyHistogram latenessMicros)
+            throws Exception
+    {
+        final CountDownLatch fired = new CountDownLatch(fireCount);
+        final long due = System.currentTimeMillis() + 500 + fireCount / 100;
+        final long[] last = new long[1];
+        DateTime when = new DateTime(due);
+
+        List<SetAlarm> batch = new ArrayList<SetAlarm>(fireCount);
+        for(int i = 0; i < fireCount; i++){
+            batch.add(new SetAlarm(when, "www.fire.com/" + i));
+        }
+        for(SetAlarm alarm : batch){
+            starter.startAlarm(alarm, new Runnable(){
+                @Override
+                public void run() {
+                    long now = System.currentTimeMillis();
+                    latenessMicros.record((now - due) * 1000);
+                    synchronized(last){
+                        last[0] = Math.max(last[0], now);
+                    }
+                    fired.countDown();
+                }
+            });
+        }
+
+        if(!fired.await(60, TimeUnit.SECONDS))
+            throw new IllegalStateException("only " + (fireCount - fired.getCount()) + " alarms fired");
+
+        long took;
+        synchronized(last){
+            took = Math.max(1, last[0] - due);
+        }
+        return fireCount / (took / 1000.0);
+    }
+}
@@ -0,0 +1,84 @@
+package alarmclock.benchmarks;
+
+import alarmclock.ServiceImplementations.AlarmDispatcher;
+import alarmclock.ServiceImplementations.BoundedAlarmDispatcher;
+import alarmclock.ServiceImplementations.BoundedAlarmDispatcher.OverloadPolicy;
+import alarmclock.ServiceImplementations.TimingWheelAlarmStarter;
+import alarmclock.models.SetAlarm;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.joda.time.DateTime;
+
+/**
+ * This little program sets off a storm of alarms all at once, each of which
+ * pretends to start a process by sleeping for a few milliseconds.  It
+ * compares starting a thread per alarm with the bounded dispatcher's overload
+ * policies, and reports how many callbacks were running at once at the
+ * worst point, how many threads there were, and how many alarms were dropped.
+ * @author Gordon
+ */
+public class AlarmStormBenchmark {
+
+    private static final int ALARMS = 10000;
+    private static final int PATHS = 50;
+    private static final long CALLBACK_MILLIS = 5;
+
+    public static void main(String[] args) throws Exception {
+        for(int round = 0; round < 2; round++){
+            measure("thread per firing", AlarmDispatcher.threadPerFiring(), null);
+            for(OverloadPolicy policy : OverloadPolicy.values()){
+                BoundedAlarmDispatcher bounded = new BoundedAlarmDispatcher(4, 256, policy);
+                measure("bounded " + policy, bounded, bounded);
+                bounded.shutdown();
+            }
+        }
+    }
+
+    private static void measure(String name, AlarmDispatcher dispatcher,
+            BoundedAlarmDispatcher bounded) throws Exception
+    {
+        TimingWheelAlarmStarter starter = new TimingWheelAlarmStarter();
+        starter.setDispatcher(dispatcher);
+
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final AtomicInteger finished = new AtomicInteger();
+        Runnable process = new Runnable(){
+            @Override
+            public void run() {
+                int now = running.incrementAndGet();
+                int max;
+                while((max = maxRunning.get()) < now && !maxRunning.compareAndSet(max, now)){
+                }
+                try {
+                    Thread.sleep(CALLBACK_MILLIS);
+                } catch (InterruptedException ex) {
+                }
+                running.decrementAndGet();
+                finished.incrementAndGet();
+            }
+        };
+
+        DateTime when = new DateTime().plusMillis(500);
+        for(int i = 0; i < ALARMS; i++){
+            starter.startAlarm(new SetAlarm(when.plusMillis(i / PATHS), "C:\\program" + (i % PATHS) + ".exe"), process);
+        }
+
+        int peakThreads = 0;
+        long start = System.currentTimeMillis();
+        long shed = 0;
+        while(System.currentTimeMillis() - start < 60000){
+            peakThreads = Math.max(peakThreads, ManagementFactory.getThreadMXBean().getThreadCount());
+            if(bounded != null)
+                shed = bounded.getShedCount() + bounded.getCoalescedCount();
+            if(finished.get() + shed >= ALARMS && System.currentTimeMillis() > when.getMillis() + ALARMS / PATHS)
+                break;
+            Thread.sleep(5);
+        }
+        long took = System.currentTimeMillis() - when.getMillis();
+        starter.shutdown();
+
+        System.out.printf("%-28s ran %,6d dropped %,6d  max running %,6d  peak threads %,6d  done after %,6d ms%n",
+                name, finished.get(), shed, maxRunning.get(), peakThreads, took);
+    }
+}
@@ -0,0 +1,144 @@
+package alarmclock.benchmarks;
+
+import alarmclock.ServiceImplementations.PooledAlarmScheduler;
+import alarmclock.ServiceImplementations.TimerAlarmStarter;
+import alarmclock.ServiceImplementations.TimingWheelAlarmStarter;
+import alarmclock.models.SetAlarm;
+import alarmclock.services.AlarmStarter;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.joda.time.DateTime;
+
+/**
+ * This little program measures how many bytes are allocated for each alarm
+ * that is scheduled and cancelled, and for each alarm that goes off, using
+ * the JVM's per-thread allocation counters.  It compares the AlarmStarters
+ * with the PooledAlarmScheduler, which shouldn't allocate anything once it's
+ * warmed up.
+ * <p/>
+ * For the AlarmStarters the SetAlarm has to be created for each alarm, and
+ * that's counted too, since it's part of the cost of using them.
+ * @author Gordon
+ */
+public class AllocationBenchmark {
+
+    private static final int ALARMS = 100000;
+    private static final int FIRES = 20000;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        for(int round = 0; round < 3; round++){
+            TimerAlarmStarter timer = new TimerAlarmStarter();
+            report("TimerAlarmStarter", round, scheduleCancel(timer), fire(timer, "Timer-"));
+
+            TimingWheelAlarmStarter wheel = new TimingWheelAlarmStarter();
+            report("TimingWheelAlarmStarter", round, scheduleCancel(wheel), fire(wheel, "TimingWheel"));
+            wheel.shutdown();
+
+            PooledAlarmScheduler pooled = new PooledAlarmScheduler(ALARMS);
+            report("PooledAlarmScheduler", round, scheduleCancel(pooled), fire(pooled));
+            pooled.shutdown();
+        }
+
+        //the TimerAlarmStarter's Timer threads would keep us alive forever
+        System.exit(0);
+    }
+
+    private static void report(String name, int round, double scheduleBytes, double fireBytes){
+        System.out.printf("%-24s round %d: schedule+cancel %8.1f bytes/alarm   fire %8.1f bytes/alarm%n",
+                name, round, scheduleBytes, fireBytes);
+    }
+
+    private static long allocated(){
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static final Runnable NOTHING = new Runnable(){
+        @Override
+        public void run() {
+        }
+    };
+
+    private static double scheduleCancel(AlarmStarter starter) throws Exception {
+        DateTime when = new DateTime().plusDays(1);
+        SetAlarm[] alarms = new SetAlarm[ALARMS];
+        long before = allocated();
+        for(int i = 0; i < ALARMS; i++){
+            alarms[i] = new SetAlarm(when.plusMillis(i), "www.test.com");
+            starter.startAlarm(alarms[i], NOTHING);
+        }
+        for(int i = 0; i < ALARMS; i++){
+            starter.cancelAlarm(alarms[i]);
+            alarms[i] = null;
+        }
+        return (double)(allocated() - before) / ALARMS;
+    }
+
+    private static double scheduleCancel(PooledAlarmScheduler scheduler){
+        long when = System.currentTimeMillis() + 24L * 60L * 60L * 1000L;
+        long[] handles = new long[ALARMS];
+        long before = allocated();
+        for(int i = 0; i < ALARMS; i++){
+            handles[i] = scheduler.schedule(when + i, NOTHING);
+        }
+        for(int i = 0; i < ALARMS; i++){
+            scheduler.cancel(handles[i]);
+        }
+        return (double)(allocated() - before) / ALARMS;
+    }
+
+    /**
+     * Adds up the bytes allocated by every thread whose name starts with the
+     * prefix.  The Timers from earlier rounds are still around, but they're
+     * idle, so this only counts the thread which is firing the alarms.
+     */
+    private static long allocatedBy(String prefix){
+        Thread[] all = new Thread[Thread.activeCount() * 2];
+        int count = Thread.enumerate(all);
+        long total = 0;
+        for(int i = 0; i < count; i++){
+            if(all[i].getName().startsWith(prefix))
+                total += THREADS.getThreadAllocatedBytes(all[i].getId());
+        }
+        return total;
+    }
+
+    private static double fire(AlarmStarter starter, String threadPrefix) throws Exception {
+        final CountDownLatch latch = new CountDownLatch(FIRES);
+        Runnable countDown = new Runnable(){
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+        DateTime when = new DateTime().plusMillis(1000);
+        for(int i = 0; i < FIRES; i++){
+            starter.startAlarm(new SetAlarm(when.plusMillis(i % 100), "www.test.com/" + i), countDown);
+        }
+
+        long before = allocatedBy(threadPrefix);
+        latch.await(30, TimeUnit.SECONDS);
+        return (double)(allocatedBy(threadPrefix) - before) / FIRES;
+    }
+
+    private static double fire(PooledAlarmScheduler scheduler) throws Exception {
+        final CountDownLatch latch = new CountDownLatch(FIRES);
+        Runnable countDown = new Runnable(){
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+        long when = System.currentTimeMillis() + 1000;
+        for(int i = 0; i < FIRES; i++){
+            scheduler.schedule(when + i % 100, countDown);
+        }
+
+        long before = allocatedBy("PooledAlarmScheduler");
+        latch.await(30, TimeUnit.SECONDS);
+        return (double)(allocatedBy("PooledAlarmScheduler") - before) / FIRES;
+    }
+}
@@ -0,0 +1,86 @@
+package alarmclock.benchmarks;
+
+import alarmclock.ServiceImplementations.TimerAlarmStarter;
+import alarmclock.ServiceImplementations.TimingWheelAlarmStarter;
+import alarmclock.models.SetAlarm;
+import alarmclock.services.AlarmListener;
+import alarmclock.services.AlarmStarter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.joda.time.DateTime;
+
+/**
+ * This little program compares starting thousands of alarms one at a time
+ * with startAlarm against starting them all at once with startAlarms, and the
+ * same for cancelling them.
+ * @author Gordon
+ */
+public class BatchIngestBenchmark {
+
+    private static final Runnable NOTHING = new Runnable(){
+        @Override
+        public void run() {
+        }
+    };
+
+    private static final AlarmListener NOBODY = new AlarmListener(){
+        @Override
+        public void alarmFinished(SetAlarm alarm) {
+        }
+    };
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = {10000, 100000};
+
+        for(int size : sizes){
+            for(int round = 0; round < 5; round++){
+                measure("TimerAlarmStarter", new TimerAlarmStarter(), size, round);
+
+                TimingWheelAlarmStarter wheel = new TimingWheelAlarmStarter();
+                measure("TimingWheelAlarmStarter", wheel, size, round);
+                wheel.shutdown();
+            }
+        }
+
+        //the TimerAlarmStarter's Timer threads would keep us alive forever
+        System.exit(0);
+    }
+
+    private static void measure(String name, AlarmStarter starter, int size, int round)
+            throws Exception
+    {
+        Random random = new Random(42);
+        long now = System.currentTimeMillis();
+        SetAlarm[] loop = new SetAlarm[size];
+        SetAlarm[] batch = new SetAlarm[size];
+        for(int i = 0; i < size; i++){
+            long offset = 60000L + (long)(random.nextDouble() * 30L * 24L * 60L * 60L * 1000L);
+            loop[i] = new SetAlarm(new DateTime(now + offset), "www.loop.com/" + i);
+            batch[i] = new SetAlarm(new DateTime(now + offset), "www.batch.com/" + i);
+        }
+        List<SetAlarm> batchList = Arrays.asList(batch);
+
+        long start = System.nanoTime();
+        for(SetAlarm alarm : loop){
+            starter.startAlarm(alarm, NOTHING);
+        }
+        long loopStarted = System.nanoTime();
+        for(SetAlarm alarm : loop){
+            starter.cancelAlarm(alarm);
+        }
+        long loopCancelled = System.nanoTime();
+        starter.startAlarms(batchList, NOBODY);
+        long batchStarted = System.nanoTime();
+        starter.cancelAlarms(batchList);
+        long batchCancelled = System.nanoTime();
+
+        System.out.printf("%-24s n=%-7d round %d: start loop %,11.0f/s batch %,11.0f/s"
+                + "   cancel loop %,11.0f/s batch %,11.0f/s%n",
+                name, size, round,
+                size / ((loopStarted - start) / 1e9),
+                size / ((batchStarted - loopCancelled) / 1e9),
+                size / ((loopCancelled - loopStarted) / 1e9),
+                size / ((batchCancelled - batchStarted) / 1e9));
+    }
+}
@@ -0,0 +1,83 @@
+package alarmclock.benchmarks;
+
+import alarmclock.ServiceImplementations.AlarmDispatcher;
+import alarmclock.ServiceImplementations.TimerAlarmStarter;
+import alarmclock.models.SetAlarm;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.joda.time.DateTime;
+
+/**
+ * This little program sets N alarms for the same moment, spread over a few
+ * milliseconds like alarms set for 7:00 AM by hand would be, and measures how
+ * many times the timer thread has to wake up and how long until the last
+ * callback has run.  The callback thread is a single thread, like the Swing
+ * EventQueue.
+ * @author Gordon
+ */
+public class CoalescingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = {1000, 10000, 50000};
+        long[] windows = {0, 10, 50};
+
+        for(int round = 0; round < 2; round++){
+            for(int size : sizes){
+                for(long window : windows){
+                    measure(size, window);
+                }
+            }
+        }
+
+        //the TimerAlarmStarter's Timer threads would keep us alive forever
+        System.exit(0);
+    }
+
+    private static void measure(int size, long window) throws Exception {
+        final AtomicInteger wakeups = new AtomicInteger();
+        final ExecutorService queue = Executors.newSingleThreadExecutor();
+        TimerAlarmStarter starter = new TimerAlarmStarter();
+        //every time the timer thread wakes up it hands the dispatcher either
+        //one alarm or a whole window
+        starter.setDispatcher(new AlarmDispatcher(queue){
+            @Override
+            public void dispatch(SetAlarm alarm, Runnable whenFinished) {
+                wakeups.incrementAndGet();
+                super.dispatch(alarm, whenFinished);
+            }
+
+            @Override
+            public void dispatchAll(List<SetAlarm> alarms, List<Runnable> callbacks) {
+                wakeups.incrementAndGet();
+                super.dispatchAll(alarms, callbacks);
+            }
+        });
+        starter.setCoalesceWindowMillis(window);
+
+        final CountDownLatch latch = new CountDownLatch(size);
+        Runnable countDown = new Runnable(){
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+
+        //start the alarms at the beginning of a window, a couple of seconds out
+        long when = System.currentTimeMillis() + 2000;
+        when -= when % 1000;
+        for(int i = 0; i < size; i++){
+            starter.startAlarm(new SetAlarm(new DateTime(when + (i % 5)), "www.test.com/" + i), countDown);
+        }
+
+        boolean finished = latch.await(60, TimeUnit.SECONDS);
+        long took = System.currentTimeMillis() - when;
+        queue.shutdown();
+
+        System.out.printf("window=%-3d ms n=%-6d %s %,7d timer wakeups, last callback %,d ms after the alarm time%n",
+                window, size, finished ? "all done" : "TIMED OUT", wakeups.get(), took);
+    }
+}
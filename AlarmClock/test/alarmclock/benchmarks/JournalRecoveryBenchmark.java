@@ -0,0 +1,100 @@
+package alarmclock.benchmarks;
+
+import alarmclock.ServiceImplementations.AlarmJournal;
+import alarmclock.ServiceImplementations.AlarmJournalRecord;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.joda.time.DateTimeZone;
+
+/**
+ * This little program measures how long it takes to recover a journal with a
+ * million records in it, and how many alarms per second can be journaled when
+ * lots of threads are setting alarms at once and sharing fsyncs.
+ * @author Gordon
+ */
+public class JournalRecoveryBenchmark {
+
+    private static final int RECORDS = 1000000;
+
+    public static void main(String[] args) throws Exception {
+        File file = File.createTempFile("JournalRecoveryBenchmark", ".dat");
+        file.deleteOnExit();
+
+        for(int round = 0; round < 3; round++){
+            //Write a journal where every third alarm is still pending
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(file), 1 << 16));
+            long base = System.currentTimeMillis() + 24l * 60l * 60l * 1000l;
+            for(int i = 0; i < RECORDS; i++){
+                byte type = AlarmJournalRecord.SCHEDULED;
+                int alarm = i;
+                if(i % 3 == 2){
+                    type = AlarmJournalRecord.CANCELLED;
+                    alarm = i - 1;
+                }
+                new AlarmJournalRecord(type, alarm + 1, base + alarm, DateTimeZone.UTC, "C:\\alarms\\wake up " + (alarm % 50) + ".mp3", 0)
+                        .writeTo(out);
+            }
+            out.close();
+            long size = file.length();
+
+            AlarmJournal journal = new AlarmJournal(file);
+            long start = System.nanoTime();
+            List<AlarmJournalRecord> live = journal.open();
+            long took = System.nanoTime() - start;
+            journal.close();
+
+            System.out.printf("recover round %d: %,d records (%,d bytes) -> %,d live in %,d ms, compacted to %,d bytes%n",
+                    round, RECORDS, size, live.size(), took / 1000000, file.length());
+        }
+
+        for(int threads : new int[]{1, 16, 64}){
+            file.delete();
+            AlarmJournal journal = new AlarmJournal(file);
+            journal.open();
+            measureDurableAppends(journal, threads);
+            journal.close();
+        }
+    }
+
+    /**
+     * Every thread appends a record and waits for it to be durable, like
+     * JournalingAlarmStarter.startAlarm does.
+     */
+    private static void measureDurableAppends(final AlarmJournal journal, int threads) throws Exception {
+        final int perThread = 2000 / threads + 1;
+        final CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for(int t = 0; t < threads; t++){
+            final int thread = t;
+            new Thread(new Runnable(){
+                @Override
+                public void run() {
+                    try{
+                        go.await();
+                        for(int i = 0; i < perThread; i++){
+                            journal.awaitDurable(journal.append(new AlarmJournalRecord(
+                                    AlarmJournalRecord.SCHEDULED, thread * perThread + i + 1, i, DateTimeZone.UTC,
+                                    "www.test.com/" + thread, 0)));
+                        }
+                    }catch(Exception ex){
+                        ex.printStackTrace();
+                    }finally{
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        long start = System.nanoTime();
+        go.countDown();
+        done.await();
+        long took = System.nanoTime() - start;
+        System.out.printf("durable appends threads=%-3d: %,10.0f alarms/s%n",
+                threads, (double)threads * perThread / (took / 1e9));
+    }
+}
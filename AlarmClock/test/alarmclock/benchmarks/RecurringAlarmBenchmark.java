@@ -0,0 +1,86 @@
+package alarmclock.benchmarks;
+
+import alarmclock.ServiceImplementations.TimingWheelAlarmStarter;
+import alarmclock.models.RecurringAlarm;
+import alarmclock.models.SetAlarm;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import org.joda.time.DateTime;
+
+/**
+ * This little program sets 100,000 alarms which each go off once a second,
+ * and measures how much time and memory the wheel thread spends per firing.
+ * <p/>
+ * It compares recurring alarms, which are set again in place, against the old
+ * way of starting a brand new one-shot alarm every time one goes off.
+ * @author Gordon
+ */
+public class RecurringAlarmBenchmark {
+
+    private static final int ALARMS = 100000;
+    private static final long PERIOD_MILLIS = 1000;
+    private static final long RUN_MILLIS = 5000;
+
+    public static void main(String[] args) throws Exception {
+        for(int round = 0; round < 3; round++){
+            measure("recurring", true);
+            measure("one-shot restart", false);
+        }
+    }
+
+    private static void measure(String name, boolean recurring) throws Exception {
+        final TimingWheelAlarmStarter starter = new TimingWheelAlarmStarter();
+        final AtomicLong fired = new AtomicLong();
+        DateTime base = new DateTime().plusSeconds(3);
+
+        for(int i = 0; i < ALARMS; i++){
+            //spread them out over the period
+            final SetAlarm first = new SetAlarm(base.plusMillis((int)(i % PERIOD_MILLIS)), "www.test.com/" + i);
+            if(recurring){
+                starter.startRecurringAlarm(new RecurringAlarm(first, PERIOD_MILLIS), new Runnable(){
+                    @Override
+                    public void run() {
+                        fired.incrementAndGet();
+                    }
+                });
+            }else{
+                starter.startAlarm(first, new Runnable(){
+                    private SetAlarm current = first;
+                    @Override
+                    public void run() {
+                        fired.incrementAndGet();
+                        //this is what MainFrame would have to do by hand
+                        current = new SetAlarm(current.getTime().plusMillis((int)PERIOD_MILLIS), current.getPath());
+                        try {
+                            starter.startAlarm(current, this);
+                        } catch (Exception ex) {
+                            ex.printStackTrace();
+                        }
+                    }
+                });
+            }
+        }
+
+        Thread wheelThread = null;
+        Thread.sleep(Math.max(0, base.getMillis() + 1000 - System.currentTimeMillis()));
+        for(Thread t : Thread.getAllStackTraces().keySet()){
+            if(t.getName().equals("TimingWheelAlarmStarter") && t.isAlive())
+                wheelThread = t;
+        }
+        com.sun.management.ThreadMXBean mx =
+                (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long allocStart = mx.getThreadAllocatedBytes(wheelThread.getId());
+        long cpuStart = mx.getThreadCpuTime(wheelThread.getId());
+        long firedStart = fired.get();
+
+        Thread.sleep(RUN_MILLIS);
+
+        long firings = fired.get() - firedStart;
+        long alloc = mx.getThreadAllocatedBytes(wheelThread.getId()) - allocStart;
+        long cpu = mx.getThreadCpuTime(wheelThread.getId()) - cpuStart;
+        starter.shutdown();
+
+        System.out.printf("%-17s %,9d firings in %d s: %,7.0f ns cpu and %,5.0f bytes allocated per firing%n",
+                name, firings, RUN_MILLIS / 1000, (double)cpu / firings, (double)alloc / firings);
+    }
+}
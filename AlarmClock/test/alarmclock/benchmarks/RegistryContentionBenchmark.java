@@ -0,0 +1,138 @@
+package alarmclock.benchmarks;
+
+import alarmclock.ServiceImplementations.TimerAlarmStarter;
+import alarmclock.ServiceImplementations.TimingWheelAlarmStarter;
+import alarmclock.models.SetAlarm;
+import alarmclock.services.AlarmStarter;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import org.joda.time.DateTime;
+
+/**
+ * This little program has lots of threads starting and cancelling alarms at
+ * the same time, to see how much they get in each other's way.
+ * <p/>
+ * First it measures just the running task registry, the old
+ * synchronizedMap with its containsKey-then-put against the ConcurrentHashMap
+ * with putIfAbsent.  Then it measures the whole AlarmStarters.
+ * @author Gordon
+ */
+public class RegistryContentionBenchmark {
+
+    private static final int OPS_PER_THREAD = 200000;
+
+    private static final Runnable NOTHING = new Runnable(){
+        @Override
+        public void run() {
+        }
+    };
+
+    /** One start and cancel against something, by one of the threads. */
+    private interface Operation {
+        void startAndCancel(SetAlarm alarm) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] threadCounts = {1, 4, 16, 32};
+
+        for(int threads : threadCounts){
+            for(int round = 0; round < 3; round++){
+                final Map<SetAlarm, TimerTask> syncMap =
+                        Collections.synchronizedMap(new java.util.HashMap<SetAlarm, TimerTask>());
+                measure("synchronizedMap", threads, round, new Operation(){
+                    @Override
+                    public void startAndCancel(SetAlarm alarm) {
+                        synchronized(syncMap){
+                            if(syncMap.containsKey(alarm))
+                                throw new UnsupportedOperationException("Already scheduled once");
+                            syncMap.put(alarm, null);
+                        }
+                        syncMap.remove(alarm);
+                    }
+                });
+
+                final ConcurrentMap<SetAlarm, TimerTask> concurrentMap =
+                        new ConcurrentHashMap<SetAlarm, TimerTask>();
+                final TimerTask marker = new TimerTask(){
+                    @Override
+                    public void run() {
+                    }
+                };
+                measure("ConcurrentHashMap", threads, round, new Operation(){
+                    @Override
+                    public void startAndCancel(SetAlarm alarm) {
+                        if(concurrentMap.putIfAbsent(alarm, marker) != null)
+                            throw new UnsupportedOperationException("Already scheduled once");
+                        concurrentMap.remove(alarm, marker);
+                    }
+                });
+
+                measure("TimerAlarmStarter", threads, round, starterOperation(new TimerAlarmStarter()));
+
+                TimingWheelAlarmStarter wheel = new TimingWheelAlarmStarter();
+                measure("TimingWheelAlarmStarter", threads, round, starterOperation(wheel));
+                wheel.shutdown();
+            }
+        }
+
+        //the TimerAlarmStarter's Timer threads would keep us alive forever
+        System.exit(0);
+    }
+
+    private static Operation starterOperation(final AlarmStarter starter){
+        return new Operation(){
+            @Override
+            public void startAndCancel(SetAlarm alarm) throws Exception {
+                starter.startAlarm(alarm, NOTHING);
+                starter.cancelAlarm(alarm);
+            }
+        };
+    }
+
+    private static void measure(String name, int threads, int round, final Operation op)
+            throws Exception
+    {
+        final DateTime base = new DateTime().plusDays(1);
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for(int t = 0; t < threads; t++){
+            //every thread gets its own set of alarms so that they never collide
+            final SetAlarm[] alarms = new SetAlarm[1024];
+            for(int i = 0; i < alarms.length; i++){
+                alarms[i] = new SetAlarm(base.plusMillis(i), "www.test.com/" + t);
+            }
+
+            new Thread(new Runnable(){
+                @Override
+                public void run() {
+                    try {
+                        ready.countDown();
+                        go.await();
+                        for(int i = 0; i < OPS_PER_THREAD; i++){
+                            op.startAndCancel(alarms[i & (alarms.length - 1)]);
+                        }
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        done.await();
+        long took = System.nanoTime() - start;
+
+        System.out.printf("%-24s threads=%-3d round %d: %,14.0f start+cancel/s%n",
+                name, threads, round, (double)threads * OPS_PER_THREAD / (took / 1e9));
+    }
+}
@@ -0,0 +1,72 @@
+package alarmclock.benchmarks;
+
+import alarmclock.ServiceImplementations.TimerAlarmStarter;
+import alarmclock.ServiceImplementations.TimingWheelAlarmStarter;
+import alarmclock.models.SetAlarm;
+import alarmclock.services.AlarmStarter;
+import java.util.Random;
+import org.joda.time.DateTime;
+
+/**
+ * This is not a unit test, it's a little program which measures how many
+ * alarms per second an AlarmStarter can start and cancel when lots of alarms
+ * are pending.  Run it with the main method and compare the numbers.
+ * <p/>
+ * The alarms are spread randomly over the next 30 days so that none of them
+ * go off while we're measuring.
+ * @author Gordon
+ */
+public class ScheduleThroughputBenchmark {
+
+    private static final Runnable NOTHING = new Runnable(){
+        @Override
+        public void run() {
+        }
+    };
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = {10000, 100000, 1000000};
+
+        for(int size : sizes){
+            //run each one a few times so the JIT has warmed up
+            for(int round = 0; round < 3; round++){
+                TimerAlarmStarter timer = new TimerAlarmStarter();
+                measure("TimerAlarmStarter", timer, size, round);
+
+                TimingWheelAlarmStarter wheel = new TimingWheelAlarmStarter();
+                measure("TimingWheelAlarmStarter", wheel, size, round);
+                wheel.shutdown();
+            }
+        }
+
+        //the TimerAlarmStarter's Timer thread would keep us alive forever
+        System.exit(0);
+    }
+
+    private static void measure(String name, AlarmStarter starter, int size, int round)
+            throws Exception
+    {
+        Random random = new Random(42);
+        long now = System.currentTimeMillis();
+        SetAlarm[] alarms = new SetAlarm[size];
+        for(int i = 0; i < size; i++){
+            long offset = 60000L + (long)(random.nextDouble() * 30L * 24L * 60L * 60L * 1000L);
+            alarms[i] = new SetAlarm(new DateTime(now + offset), "www.test.com/" + i);
+        }
+
+        long start = System.nanoTime();
+        for(SetAlarm alarm : alarms){
+            starter.startAlarm(alarm, NOTHING);
+        }
+        long scheduled = System.nanoTime();
+        for(SetAlarm alarm : alarms){
+            starter.cancelAlarm(alarm);
+        }
+        long cancelled = System.nanoTime();
+
+        System.out.printf("%-24s n=%-8d round %d: start %,12.0f ops/s   cancel %,12.0f ops/s%n",
+                name, size, round,
+                size / ((scheduled - start) / 1e9),
+                size / ((cancelled - scheduled) / 1e9));
+    }
+}
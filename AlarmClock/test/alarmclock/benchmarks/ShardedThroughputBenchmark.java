@@ -0,0 +1,103 @@
+package alarmclock.benchmarks;
+
+import alarmclock.ServiceImplementations.ShardedAlarmStarter;
+import alarmclock.models.SetAlarm;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.joda.time.DateTime;
+
+/**
+ * This little program measures how schedule and fire throughput change with
+ * the number of shards in a ShardedAlarmStarter.  One thread per shard starts
+ * and cancels alarms as fast as it can, then a big batch of alarms is set to
+ * go off at the same moment and we time how long it takes for all of them to
+ * fire.
+ * @author Gordon
+ */
+public class ShardedThroughputBenchmark {
+
+    private static final int OPS_PER_THREAD = 200000;
+    private static final int FIRE_COUNT = 200000;
+
+    private static final Runnable NOTHING = new Runnable(){
+        @Override
+        public void run() {
+        }
+    };
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("available processors: " + Runtime.getRuntime().availableProcessors());
+        int[] shardCounts = {1, 2, 4, 8};
+
+        for(int round = 0; round < 3; round++){
+            for(int shards : shardCounts){
+                ShardedAlarmStarter starter = new ShardedAlarmStarter(shards);
+                double scheduleRate = measureSchedule(starter, shards);
+                double fireRate = measureFire(starter);
+                starter.shutdown();
+
+                System.out.printf("round %d shards=%d: %,12.0f start+cancel/s %,12.0f fired/s%n",
+                        round, shards, scheduleRate, fireRate);
+            }
+        }
+    }
+
+    private static double measureSchedule(final ShardedAlarmStarter starter, int threads) throws Exception {
+        final DateTime base = new DateTime().plusDays(1);
+        final CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for(int t = 0; t < threads; t++){
+            final SetAlarm[] alarms = new SetAlarm[1024];
+            for(int i = 0; i < alarms.length; i++){
+                alarms[i] = new SetAlarm(base.plusMillis(i), "www.test.com/" + t);
+            }
+            new Thread(new Runnable(){
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                        for(int i = 0; i < OPS_PER_THREAD; i++){
+                            SetAlarm alarm = alarms[i & (alarms.length - 1)];
+                            starter.startAlarm(alarm, NOTHING);
+                            starter.cancelAlarm(alarm);
+                        }
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        long start = System.nanoTime();
+        go.countDown();
+        done.await();
+        long took = System.nanoTime() - start;
+        return (double)threads * OPS_PER_THREAD / (took / 1e9);
+    }
+
+    private static double measureFire(ShardedAlarmStarter starter) throws Exception {
+        final CountDownLatch latch = new CountDownLatch(FIRE_COUNT);
+        Runnable countDown = new Runnable(){
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+
+        DateTime when = new DateTime().plusSeconds(2);
+        for(int i = 0; i < FIRE_COUNT; i++){
+            starter.startAlarm(new SetAlarm(when, "www.test.com/" + i), countDown);
+        }
+
+        //wait until the alarm time, then time how long the wheels take to
+        //get through all of them
+        Thread.sleep(Math.max(0, when.getMillis() - System.currentTimeMillis()));
+        long start = System.nanoTime();
+        latch.await(60, TimeUnit.SECONDS);
+        long took = System.nanoTime() - start;
+        return FIRE_COUNT / (took / 1e9);
+    }
+}
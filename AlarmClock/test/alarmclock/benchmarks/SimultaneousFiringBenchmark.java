@@ -0,0 +1,68 @@
+package alarmclock.benchmarks;
+
+import alarmclock.ServiceImplementations.AlarmDispatcher;
+import alarmclock.ServiceImplementations.TimerAlarmStarter;
+import alarmclock.models.SetAlarm;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.joda.time.DateTime;
+
+/**
+ * This little program sets N alarms for the exact same moment, each of which
+ * blocks for a while when it goes off (like RealProcessStarter does while it
+ * starts a process), and measures how long it takes from the alarm time until
+ * the last callback has finished.
+ * <p/>
+ * It compares running the callbacks on the Timer thread, which is how the
+ * TimerAlarmStarter has always worked, with starting a thread per firing.
+ * @author Gordon
+ */
+public class SimultaneousFiringBenchmark {
+
+    /** How long each callback pretends to be blocked on I/O. */
+    private static final long BLOCK_MILLIS = 20;
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = {100, 1000, 5000};
+
+        for(int size : sizes){
+            measure("Timer thread", new AlarmDispatcher(), size);
+            measure("thread per firing", AlarmDispatcher.threadPerFiring(), size);
+        }
+
+        //the TimerAlarmStarter's Timer threads would keep us alive forever
+        System.exit(0);
+    }
+
+    private static void measure(String name, AlarmDispatcher dispatcher, int size)
+            throws Exception
+    {
+        TimerAlarmStarter starter = new TimerAlarmStarter();
+        starter.setDispatcher(dispatcher);
+
+        final CountDownLatch latch = new CountDownLatch(size);
+        Runnable blocking = new Runnable(){
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(BLOCK_MILLIS);
+                } catch (InterruptedException ex) {
+                }
+                latch.countDown();
+            }
+        };
+
+        DateTime when = new DateTime().plusSeconds(1);
+        for(int i = 0; i < size; i++){
+            starter.startAlarm(new SetAlarm(when, "www.test.com/" + i), blocking);
+        }
+
+        //wait until they've all finished, giving up after a couple of minutes
+        boolean finished = latch.await(size * BLOCK_MILLIS + 10000, TimeUnit.MILLISECONDS);
+        long took = System.currentTimeMillis() - when.getMillis();
+
+        System.out.printf("%-18s n=%-6d %s in %,d ms (%,.0f alarms/s)%n",
+                name, size, finished ? "all done" : "TIMED OUT",
+                took, size / (took / 1000.0));
+    }
+}
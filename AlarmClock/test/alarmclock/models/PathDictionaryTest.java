@@ -0,0 +1,121 @@
+package alarmclock.models;
+
+import org.joda.time.DateTime;
+import org.joda.time.LocalTime;
+import static org.junit.Assert.*;
+
+/**
+ * This class contains JUnit tests for the PathDictionary, and for the models
+ * which keep their paths in it.
+ * @author Gordon
+ */
+public class PathDictionaryTest {
+
+    @org.junit.Test
+    public void testIdOf_EqualPaths_ShareOneCopy() {
+        System.out.println("testIdOf_EqualPaths_ShareOneCopy");
+
+        //setup - two different String objects with the same text
+        String path = new String("www.dictionary.com/shared");
+        String copy = new String("www.dictionary.com/shared");
+
+        //act
+        int id = PathDictionary.idOf(path);
+        int copyId = PathDictionary.idOf(copy);
+
+        //assert
+        assertEquals(id, copyId);
+        assertTrue(id > 0);
+        assertSame(PathDictionary.pathOf(id), PathDictionary.canonical(copy));
+        assertEquals(path, PathDictionary.pathOf(id));
+        assertFalse(id == PathDictionary.idOf("www.dictionary.com/other"));
+    }
+
+    @org.junit.Test
+    public void testIdOf_Null_IsZero() {
+        System.out.println("testIdOf_Null_IsZero");
+
+        //act & assert
+        assertEquals(0, PathDictionary.idOf(null));
+        assertNull(PathDictionary.pathOf(0));
+        assertNull(PathDictionary.canonical(null));
+    }
+
+    @org.junit.Test
+    public void testIdOf_ManyPaths_GrowsTheDictionary() {
+        System.out.println("testIdOf_ManyPaths_GrowsTheDictionary");
+
+        //setup - we hold on to the paths, like the alarms would
+        int[] ids = new int[500];
+        String[] paths = new String[ids.length];
+
+        //act
+        for(int i = 0; i < ids.length; i++){
+            paths[i] = PathDictionary.canonical("www.dictionary.com/" + i);
+            ids[i] = PathDictionary.idOf(paths[i]);
+        }
+
+        //assert
+        for(int i = 0; i < ids.length; i++){
+            assertEquals("www.dictionary.com/" + i, PathDictionary.pathOf(ids[i]));
+        }
+        assertTrue(PathDictionary.size() >= ids.length);
+        assertSame(paths[0], PathDictionary.pathOf(ids[0]));
+    }
+
+    /**
+     * Once nothing holds on to a path any more, the dictionary should forget
+     * it and give its number to the next new path, so it doesn't keep every
+     * path it has ever seen.  A path an alarm still has is kept.
+     */
+    @org.junit.Test
+    public void testIdOf_PathNoLongerUsed_IsForgotten() throws Exception {
+        System.out.println("testIdOf_PathNoLongerUsed_IsForgotten");
+
+        //setup
+        SetAlarm kept = new SetAlarm(new DateTime(), new String("www.dictionary.com/kept"));
+        int id = PathDictionary.idOf(new String("www.dictionary.com/forgotten"));
+
+        //act
+        for(int i = 0; i < 50 && PathDictionary.pathOf(id) != null; i++){
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(PathDictionary.pathOf(id));
+        //freed numbers are handed out before new ones, so this gets to it
+        //after any other forgotten paths
+        java.util.List<String> held = new java.util.ArrayList<String>();
+        boolean wasReused = false;
+        for(int i = 0; i < 5000 && !wasReused; i++){
+            String path = PathDictionary.canonical("www.dictionary.com/new" + i);
+            held.add(path);
+            wasReused = PathDictionary.idOf(path) == id;
+        }
+
+        //assert
+        assertEquals("www.dictionary.com/kept", PathDictionary.pathOf(kept.getPathId()));
+        assertSame(kept.getPath(), PathDictionary.canonical("www.dictionary.com/kept"));
+        assertTrue("the forgotten path's number should be handed out again", wasReused);
+    }
+
+    @org.junit.Test
+    public void testModels_ShareThePath() {
+        System.out.println("testModels_ShareThePath");
+
+        //setup
+        DateTime when = new DateTime(2012, 2, 9, 7, 0, 0, 0);
+
+        //act
+        SetAlarm alarm = new SetAlarm(when, new String("www.dictionary.com/model"));
+        SetAlarm same = new SetAlarm(when, new String("www.dictionary.com/model"));
+        FavoriteAlarm favorite = new FavoriteAlarm(new LocalTime(7, 0), new String("www.dictionary.com/model"));
+
+        //assert
+        assertEquals(alarm, same);
+        assertEquals(alarm.hashCode(), same.hashCode());
+        assertSame(alarm.getPath(), same.getPath());
+        assertSame(alarm.getPath(), favorite.getPath());
+        assertEquals(alarm.getPathId(), favorite.getPathId());
+        assertFalse(alarm.equals(new SetAlarm(when, "www.dictionary.com/elsewhere")));
+    }
+}
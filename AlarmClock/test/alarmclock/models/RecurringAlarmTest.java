@@ -0,0 +1,71 @@
+package alarmclock.models;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import static org.junit.Assert.*;
+
+/**
+ * This class contains JUnit tests for the RecurringAlarm model, which works
+ * out each time a recurring alarm goes off.
+ * @author Gordon
+ */
+public class RecurringAlarmTest {
+
+    private static final DateTimeZone NEW_YORK = DateTimeZone.forID("America/New_York");
+
+    @org.junit.Test
+    public void testNextAfter_BeforeFirst_IsFirst() {
+        System.out.println("testNextAfter_BeforeFirst_IsFirst");
+
+        //setup
+        DateTime first = new DateTime(2012, 2, 9, 7, 0, 0, 0, NEW_YORK);
+        RecurringAlarm instance = new RecurringAlarm(new SetAlarm(first, "www.test.com"), RecurringAlarm.DAILY);
+
+        //act
+        long result = instance.nextAfter(first.minusHours(3).getMillis());
+
+        //assert
+        assertEquals(first.getMillis(), result);
+    }
+
+    @org.junit.Test
+    public void testNextAfter_IsNextDay() {
+        System.out.println("testNextAfter_IsNextDay");
+
+        //setup
+        DateTime first = new DateTime(2012, 2, 9, 7, 0, 0, 0, NEW_YORK);
+        RecurringAlarm instance = new RecurringAlarm(new SetAlarm(first, "www.test.com"), RecurringAlarm.DAILY);
+
+        //act
+        long afterFirst = instance.nextAfter(first.getMillis());
+        long weekLater = instance.nextAfter(first.plusDays(6).plusHours(1).getMillis());
+
+        //assert
+        assertEquals(first.plusDays(1).getMillis(), afterFirst);
+        assertEquals(first.plusDays(7).getMillis(), weekLater);
+    }
+
+    /**
+     * A daily 7:00 AM alarm should still go off at 7:00 AM after daylight
+     * savings starts, even though that day is only 23 hours long.
+     */
+    @org.junit.Test
+    public void testNextAfter_AcrossDaylightSavings_KeepsLocalTime() {
+        System.out.println("testNextAfter_AcrossDaylightSavings_KeepsLocalTime");
+
+        //setup
+        //daylight savings started on March 11th 2012 in New York
+        DateTime first = new DateTime(2012, 3, 10, 7, 0, 0, 0, NEW_YORK);
+        RecurringAlarm instance = new RecurringAlarm(new SetAlarm(first, "www.test.com"), RecurringAlarm.DAILY);
+
+        //act
+        long result = instance.nextAfter(first.getMillis());
+
+        //assert
+        DateTime next = new DateTime(result, NEW_YORK);
+        assertEquals(11, next.getDayOfMonth());
+        assertEquals(7, next.getHourOfDay());
+        assertEquals(0, next.getMinuteOfHour());
+        assertEquals(23l * 60l * 60l * 1000l, result - first.getMillis());
+    }
+}
@@ -0,0 +1,94 @@
+package alarmclock.models;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import static org.junit.Assert.*;
+
+/**
+ * This class contains JUnit tests for the SetAlarm model, which keeps its
+ * time as UTC millis and a time zone instead of a DateTime.
+ * @author Gordon
+ */
+public class SetAlarmTest {
+
+    private static final DateTimeZone NEW_YORK = DateTimeZone.forID("America/New_York");
+    private static final DateTimeZone LONDON = DateTimeZone.forID("Europe/London");
+
+    @org.junit.Test
+    public void testGetTime_GivesBackTheSameTimeAndZone() {
+        System.out.println("testGetTime_GivesBackTheSameTimeAndZone");
+
+        //setup
+        DateTime when = new DateTime(2012, 2, 9, 7, 30, 15, 250, NEW_YORK);
+
+        //act
+        SetAlarm instance = new SetAlarm(when, "www.test.com");
+
+        //assert
+        assertEquals(when, instance.getTime());
+        assertEquals(when.getMillis(), instance.getTimeMillis());
+        assertEquals(NEW_YORK, instance.getZone());
+        assertEquals(7, instance.getTime().getHourOfDay());
+    }
+
+    @org.junit.Test
+    public void testEquals_ComparesTheZoneLikeDateTime() {
+        System.out.println("testEquals_ComparesTheZoneLikeDateTime");
+
+        //setup
+        DateTime when = new DateTime(2012, 2, 9, 7, 0, 0, 0, NEW_YORK);
+        SetAlarm instance = new SetAlarm(when, "www.test.com");
+
+        //act
+        SetAlarm same = new SetAlarm(when.getMillis(), NEW_YORK, "www.test.com");
+        SetAlarm sameInstant = new SetAlarm(when.withZone(LONDON), "www.test.com");
+
+        //assert - two DateTimes in different zones aren't equal either
+        assertEquals(instance, same);
+        assertEquals(instance.hashCode(), same.hashCode());
+        assertFalse(instance.equals(sameInstant));
+        assertEquals(instance.getTimeMillis(), sameInstant.getTimeMillis());
+    }
+
+    @org.junit.Test
+    public void testRestore_KeepsTheIdWithoutUsingUpAnother() {
+        System.out.println("testRestore_KeepsTheIdWithoutUsingUpAnother");
+
+        //setup
+        long last = new SetAlarm(1000, NEW_YORK, "www.test.com").getId();
+
+        //act
+        SetAlarm restored = new SetAlarm(last + 5, 2000, NEW_YORK, "www.test.com");
+        SetAlarm next = new SetAlarm(3000, NEW_YORK, "www.test.com");
+
+        //assert
+        assertEquals(last + 5, restored.getId());
+        assertEquals(last + 6, next.getId());
+    }
+
+    @org.junit.Test
+    public void testRestore_BadIdDoesntUseUpAnId() {
+        System.out.println("testRestore_BadIdDoesntUseUpAnId");
+
+        //setup
+        long last = new SetAlarm(1000, NEW_YORK, "www.test.com").getId();
+
+        //act
+        try{
+            new SetAlarm(0, 2000, NEW_YORK, "www.test.com");
+            fail("an id of 0 should be refused");
+        }catch(IllegalArgumentException ex){
+            //expected
+        }
+        try{
+            new SetAlarm(2000, null, "www.test.com");
+            fail("a null zone should be refused");
+        }catch(NullPointerException ex){
+            //expected
+        }
+        SetAlarm next = new SetAlarm(3000, NEW_YORK, "www.test.com");
+
+        //assert
+        assertEquals(last + 1, next.getId());
+    }
+}